@@ -0,0 +1,244 @@
+package no.uib.onyase.applications.engine;
+
+import com.compomics.util.exceptions.ExceptionHandler;
+import com.compomics.util.experiment.biology.Peptide;
+import com.compomics.util.experiment.identification.spectrum_annotation.SpecificAnnotationSettings;
+import com.compomics.util.preferences.IdentificationParameters;
+import com.compomics.util.waiting.WaitingHandler;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import no.uib.onyase.applications.engine.model.LocalizationCandidate;
+import no.uib.onyase.applications.engine.model.Psm;
+import no.uib.onyase.applications.engine.model.SpectrumPsms;
+import no.uib.onyase.applications.engine.modules.ModificationIsoformIterator;
+import no.uib.onyase.applications.engine.modules.PeptideModificationsIteratorFactory;
+import no.uib.onyase.applications.engine.modules.scoring.PsmScorer;
+import no.uib.onyase.applications.engine.modules.spectrum_store.SpectrumStore;
+import no.uib.onyase.applications.engine.parameters.EngineParameters;
+import no.uib.onyase.utils.TitlesIterator;
+
+/**
+ * The localization processor localizes exhaustively the modifications of the
+ * best PSMs found when screening representative isoforms only. For every
+ * spectrum, all isoforms of the best scoring candidates are scored and added
+ * to the PSMs of the spectrum.
+ *
+ * @author Marc Vaudel
+ */
+public class LocalizationProcessor {
+
+    /**
+     * A handler for the exceptions.
+     */
+    private ExceptionHandler exceptionHandler;
+    /**
+     * A waiting handler providing feedback to the user and allowing canceling
+     * the process.
+     */
+    private WaitingHandler waitingHandler;
+
+    /**
+     * Constructor.
+     *
+     * @param waitingHandler a waiting handler providing feedback to the user
+     * and allowing canceling the process
+     * @param exceptionHandler a handler for the exceptions
+     */
+    public LocalizationProcessor(WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) {
+        this.exceptionHandler = exceptionHandler;
+        this.waitingHandler = waitingHandler;
+    }
+
+    /**
+     * Scores all isoforms of the best localization candidates of every
+     * spectrum and adds them to the PSMs of the spectrum.
+     *
+     * @param psmMap the PSMs found when screening isoforms indexed by
+     * spectrum title
+     * @param spectrumStore the store containing the spectra
+     * @param identificationParameters the identification parameters to use
+     * @param engineParameters the engine parameters to use
+     * @param nThreads the number of threads to use
+     *
+     * @throws InterruptedException exception thrown if a threading issue
+     * occurs.
+     */
+    public void localize(HashMap<String, SpectrumPsms> psmMap, SpectrumStore spectrumStore, IdentificationParameters identificationParameters, EngineParameters engineParameters, int nThreads) throws InterruptedException {
+
+        // Set progress counters
+        waitingHandler.setSecondaryProgressCounterIndeterminate(false);
+        waitingHandler.setMaxSecondaryProgressCounter(psmMap.size());
+
+        // Make a pool of localizers
+        TitlesIterator titlesIterator = new TitlesIterator(psmMap.keySet());
+        ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+        for (int i = 0; i < nThreads; i++) {
+            Localizer localizer = new Localizer(titlesIterator, psmMap, spectrumStore, identificationParameters, engineParameters);
+            pool.submit(localizer);
+        }
+
+        // Execute
+        pool.shutdown();
+        if (!pool.awaitTermination(Integer.MAX_VALUE, TimeUnit.DAYS)) {
+            waitingHandler.appendReport("Localization timed out.", true, true);
+        }
+        waitingHandler.setSecondaryProgressCounterIndeterminate(true);
+    }
+
+    /**
+     * Private runnable localizing the modifications of the PSMs of spectra.
+     */
+    private class Localizer implements Runnable {
+
+        /**
+         * Iterator for the spectrum titles.
+         */
+        private final TitlesIterator titlesIterator;
+        /**
+         * The PSMs indexed by spectrum title.
+         */
+        private final HashMap<String, SpectrumPsms> psmMap;
+        /**
+         * The store containing the spectra.
+         */
+        private final SpectrumStore spectrumStore;
+        /**
+         * The number of candidates to localize per spectrum.
+         */
+        private final int nCandidates;
+        /**
+         * The factory for the modification isoforms.
+         */
+        private final PeptideModificationsIteratorFactory modificationsIteratorFactory;
+        /**
+         * The scorer used to score the PSMs.
+         */
+        private final PsmScorer psmScorer;
+
+        /**
+         * Constructor.
+         *
+         * @param titlesIterator an iterator for the spectra to process
+         * @param psmMap the PSMs indexed by spectrum title
+         * @param spectrumStore the store containing the spectra
+         * @param identificationParameters the identification parameters to use
+         * @param engineParameters the engine parameters to use
+         */
+        public Localizer(TitlesIterator titlesIterator, HashMap<String, SpectrumPsms> psmMap, SpectrumStore spectrumStore, IdentificationParameters identificationParameters, EngineParameters engineParameters) {
+            this.titlesIterator = titlesIterator;
+            this.psmMap = psmMap;
+            this.spectrumStore = spectrumStore;
+            this.nCandidates = engineParameters.getLocalizationCandidates();
+            modificationsIteratorFactory = new PeptideModificationsIteratorFactory(identificationParameters.getSearchParameters().getPtmSettings());
+            psmScorer = new PsmScorer(engineParameters.getPsmScore(), identificationParameters, spectrumStore);
+        }
+
+        @Override
+        public void run() {
+
+            try {
+
+                int[] isoformSites = new int[8];
+                int[] isoformModifications = new int[8];
+
+                String spectrumTitle;
+                while ((spectrumTitle = titlesIterator.next()) != null) {
+
+                    int spectrumIndex = spectrumStore.getIndex(spectrumTitle);
+                    SpectrumPsms spectrumPsms = psmMap.get(spectrumTitle);
+
+                    // Sort the screening PSMs by decreasing score
+                    ArrayList<Psm> screeningPsms = new ArrayList<Psm>();
+                    for (Psm psm : spectrumPsms.getPsms()) {
+                        if (psm.getLocalizationCandidate() != null) {
+                            screeningPsms.add(psm);
+                        }
+                    }
+                    Collections.sort(screeningPsms, new Comparator<Psm>() {
+                        @Override
+                        public int compare(Psm psm1, Psm psm2) {
+                            return Double.compare(psm2.getScore(), psm1.getScore());
+                        }
+                    });
+
+                    // Select the best candidates, every candidate-charge pair once
+                    ArrayList<Psm> selectedPsms = new ArrayList<Psm>(nCandidates);
+                    for (Psm psm : screeningPsms) {
+                        if (selectedPsms.size() == nCandidates) {
+                            break;
+                        }
+                        boolean selected = false;
+                        for (Psm selectedPsm : selectedPsms) {
+                            if (selectedPsm.getLocalizationCandidate() == psm.getLocalizationCandidate() && selectedPsm.getCharge() == psm.getCharge()) {
+                                selected = true;
+                                break;
+                            }
+                        }
+                        if (!selected) {
+                            selectedPsms.add(psm);
+                        }
+                    }
+
+                    // Score all isoforms of the selected candidates
+                    for (Psm psm : selectedPsms) {
+
+                        LocalizationCandidate localizationCandidate = psm.getLocalizationCandidate();
+                        Peptide peptide = localizationCandidate.getPeptide();
+                        int charge = psm.getCharge();
+                        ModificationIsoformIterator isoformIterator = modificationsIteratorFactory.getModificationIsoformIterator(localizationCandidate.getModificationPlan(), localizationCandidate.getModificationProfileTable(), localizationCandidate.getProfile(), 0);
+                        int nModifications = isoformIterator.getNModifications();
+                        if (nModifications > isoformSites.length) {
+                            isoformSites = new int[nModifications];
+                            isoformModifications = new int[nModifications];
+                        }
+                        boolean incremental = psmScorer.isIncremental();
+                        if (incremental) {
+                            psmScorer.setIsoformPeptide(peptide, charge, spectrumIndex, modificationsIteratorFactory.getOrderedModificationMasses());
+                        }
+                        while (isoformIterator.hasNext()) {
+
+                            // Score the isoform, incrementally if possible
+                            isoformIterator.getIsoform(isoformSites, isoformModifications);
+                            Peptide modifiedPeptide = null;
+                            double score;
+                            if (incremental) {
+                                score = psmScorer.getIsoformScore(isoformSites, isoformModifications, nModifications);
+                            } else {
+                                modifiedPeptide = modificationsIteratorFactory.getModifiedPeptide(peptide, isoformSites, isoformModifications, nModifications);
+                                SpecificAnnotationSettings modifiedSpecificAnnotationSettings = psmScorer.getSpecificAnnotationSettings(modifiedPeptide, charge);
+                                score = psmScorer.getScore(modifiedPeptide, charge, spectrumIndex, modifiedSpecificAnnotationSettings);
+                            }
+
+                            // Retain only PSMs with a score, the isoforms already screened are not added again
+                            if (score > 0) {
+                                if (modifiedPeptide == null) {
+                                    modifiedPeptide = modificationsIteratorFactory.getModifiedPeptide(peptide, isoformSites, isoformModifications, nModifications);
+                                }
+                                String peptideKey = modifiedPeptide.getKey();
+                                if (!spectrumPsms.containsKey(peptideKey)) {
+                                    spectrumPsms.addPsm(peptideKey, new Psm(modifiedPeptide, charge, score));
+                                }
+                            }
+                        }
+                    }
+
+                    if (waitingHandler.isRunCanceled()) {
+                        return;
+                    } else {
+                        waitingHandler.increaseSecondaryProgressCounter();
+                    }
+                }
+            } catch (Exception e) {
+                if (!waitingHandler.isRunCanceled()) {
+                    exceptionHandler.catchException(e);
+                    waitingHandler.setRunCanceled();
+                }
+            }
+        }
+    }
+}
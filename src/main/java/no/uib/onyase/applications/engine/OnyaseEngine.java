@@ -4,23 +4,41 @@ import com.compomics.util.Util;
 import com.compomics.util.exceptions.ExceptionHandler;
 import com.compomics.util.experiment.biology.EnzymeFactory;
 import com.compomics.util.experiment.biology.PTMFactory;
+import com.compomics.util.experiment.identification.identification_parameters.PtmSettings;
 import com.compomics.util.experiment.identification.identification_parameters.SearchParameters;
 import com.compomics.util.experiment.identification.protein_sequences.SequenceFactory;
+import com.compomics.util.experiment.identification.spectrum_annotation.AnnotationSettings;
 import com.compomics.util.experiment.massspectrometry.SpectrumFactory;
+import com.compomics.util.preferences.DigestionPreferences;
 import com.compomics.util.preferences.IdentificationParameters;
 import com.compomics.util.waiting.Duration;
 import com.compomics.util.waiting.WaitingHandler;
 import java.io.File;
 import java.io.IOException;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Map;
 import no.uib.onyase.applications.engine.export.TextExporter;
+import no.uib.onyase.applications.engine.model.PeptideProteins;
 import no.uib.onyase.applications.engine.model.Psm;
+import no.uib.onyase.applications.engine.model.SearchProtocol;
+import no.uib.onyase.applications.engine.model.SpectrumPsms;
+import no.uib.onyase.applications.engine.modules.fragment_index.FragmentIndex;
+import no.uib.onyase.applications.engine.modules.fragment_index.FragmentIndexBuilder;
+import no.uib.onyase.applications.engine.modules.peptide_index.PeptideIndex;
+import no.uib.onyase.applications.engine.modules.peptide_index.PeptideIndexBuilder;
+import no.uib.onyase.applications.engine.modules.peptide_index.PeptideIndexCache;
+import no.uib.onyase.applications.engine.modules.precursor_handling.PrecursorInference;
 import no.uib.onyase.applications.engine.modules.precursor_handling.PrecursorProcessor;
 import no.uib.onyase.applications.engine.modules.scoring.EValueEstimator;
 import no.uib.onyase.applications.engine.modules.scoring.PsmScore;
 import no.uib.onyase.applications.engine.modules.scoring.evalue_estimators.HyperscoreEValueEstimator;
 import no.uib.onyase.applications.engine.modules.scoring.evalue_estimators.SnrEvalueEstimator;
+import no.uib.onyase.applications.engine.modules.spectrum_store.SpectrumStore;
+import no.uib.onyase.applications.engine.modules.spectrum_store.SpectrumStoreBuilder;
+import no.uib.onyase.applications.engine.parameters.EngineParameters;
+import no.uib.onyase.applications.engine.parameters.SearchMode;
 import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException;
 
 /**
@@ -96,12 +114,379 @@ public class OnyaseEngine {
      * occurred
      */
     public void launch(File spectrumFile, File psmsFile, IdentificationParameters identificationParameters, PsmScore psmScore, int maxX, Double minMz, Double maxMz, HashMap<String, Integer> maxModifications, int maxSites, int nThreads, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) throws IOException, ClassNotFoundException, SQLException, MzMLUnmarshallerException, InterruptedException {
+        EngineParameters engineParameters = new EngineParameters();
+        engineParameters.setPsmScore(psmScore);
+        engineParameters.setMaxX(maxX);
+        engineParameters.setMinMz(minMz);
+        engineParameters.setMaxMz(maxMz);
+        engineParameters.setMaxModifications(maxModifications);
+        engineParameters.setMaxSites(maxSites);
+        launch(spectrumFile, psmsFile, identificationParameters, engineParameters, nThreads, waitingHandler, exceptionHandler);
+    }
+
+    /**
+     * Launches the search.
+     *
+     * @param spectrumFile the spectrum file to search
+     * @param psmsFile the file where to export all psms
+     * @param identificationParameters the identification parameters
+     * @param engineParameters the engine parameters
+     * @param nThreads the number of threads to use
+     * @param waitingHandler a waiting handler providing feedback to the user
+     * and allowing canceling the process
+     * @param exceptionHandler a handler for the exceptions
+     *
+     * @throws IOException exception thrown if an error occurred while reading
+     * or writing a file
+     * @throws ClassNotFoundException exception thrown if an error occurred
+     * while casting an object
+     * @throws SQLException exception thrown if an error occurred while
+     * interacting with a database
+     * @throws MzMLUnmarshallerException exception thrown if an error occurred
+     * while reading an mzML file
+     * @throws InterruptedException exception thrown if a threading error
+     * occurred
+     */
+    public void launch(File spectrumFile, File psmsFile, IdentificationParameters identificationParameters, EngineParameters engineParameters, int nThreads, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) throws IOException, ClassNotFoundException, SQLException, MzMLUnmarshallerException, InterruptedException {
+
+        PsmScore psmScore = engineParameters.getPsmScore();
+
+        Duration totalDuration = new Duration();
+        totalDuration.start();
+        waitingHandler.appendReportEndLine();
+        waitingHandler.setWaitingText("Onyase engine start.");
+
+        // Load the spectra and their precursors
+        SearchParameters searchParameters = identificationParameters.getSearchParameters();
+        String spectrumFileName = Util.getFileName(spectrumFile);
+        SearchProtocol searchProtocol = getSearchProtocol(spectrumFile, searchParameters.getDigestionPreferences(), identificationParameters, engineParameters, nThreads, waitingHandler, exceptionHandler);
+        SpectrumStore spectrumStore = searchProtocol.getSpectrumStore(0);
+        precursorProcessor = searchProtocol.getPrecursorProcessor();
+        Duration localDuration;
+
+        File fastaFile = searchParameters.getFastaFile();
+
+        // Prepare the search
+        PeptideIndex peptideIndex = null;
+        FragmentIndex fragmentIndex = null;
+        switch (engineParameters.getSearchMode()) {
+            case proteinCentric:
+                loadSequences(fastaFile, waitingHandler);
+                break;
+            case spectrumCentric:
+                peptideIndex = getPeptideIndex(identificationParameters, engineParameters, nThreads, waitingHandler, exceptionHandler);
+                if (engineParameters.getFragmentIndexCandidates() != null) {
+                    localDuration = new Duration();
+                    localDuration.start();
+                    waitingHandler.setWaitingText("Indexing fragment ions.");
+                    AnnotationSettings annotationSettings = identificationParameters.getAnnotationPreferences();
+                    FragmentIndexBuilder fragmentIndexBuilder = new FragmentIndexBuilder(waitingHandler, exceptionHandler);
+                    fragmentIndex = fragmentIndexBuilder.buildIndex(peptideIndex, annotationSettings.getFragmentIonAccuracy(), annotationSettings.isFragmentIonPpm(), nThreads);
+                    localDuration.end();
+                    waitingHandler.setWaitingText("Indexing fragment ions completed (" + fragmentIndex.size() + " fragments, " + localDuration + ").");
+                }
+                break;
+            default:
+                throw new UnsupportedOperationException("Search mode " + engineParameters.getSearchMode() + " not implemented.");
+        }
+
+        // Get PSMs
+        HashMap<String, SpectrumPsms> psmsMap;
+        Map<String, PeptideProteins> peptideProteins;
+        Double cascadeEValue = engineParameters.getCascadeEValue();
+        if (cascadeEValue == null) {
+            SearchResults searchResults = getPsms(spectrumStore, peptideIndex, fragmentIndex, identificationParameters, engineParameters, nThreads, waitingHandler, exceptionHandler);
+            psmsMap = searchResults.psmsMap;
+            peptideProteins = searchResults.peptideProteins;
+        } else {
+
+            // Search all spectra without variable modifications
+            EngineParameters unmodifiedEngineParameters = new EngineParameters(engineParameters);
+            HashMap<String, Integer> noModification = new HashMap<String, Integer>();
+            for (String ptmName : searchParameters.getPtmSettings().getVariableModifications()) {
+                noModification.put(ptmName, 0);
+            }
+            unmodifiedEngineParameters.setMaxModifications(noModification);
+            unmodifiedEngineParameters.setLocalizationCandidates(null);
+            waitingHandler.setWaitingText("Cascade search, first pass: peptides without variable modifications.");
+            SearchResults unmodifiedResults = getPsms(spectrumStore, peptideIndex, fragmentIndex, identificationParameters, unmodifiedEngineParameters, nThreads, waitingHandler, exceptionHandler);
+
+            // Remove the spectra identified from the precursors
+            localDuration = new Duration();
+            localDuration.start();
+            waitingHandler.setWaitingText("Estimating e-values of the first pass.");
+            EValueEstimator unmodifiedEValueEstimator = getEValueEstimator(spectrumFileName, unmodifiedResults.psmsMap, psmScore, nThreads, waitingHandler, exceptionHandler);
+            int nSpectra = spectrumStore.size();
+            boolean[] identifiedSpectra = new boolean[nSpectra];
+            for (int i = 0; i < nSpectra; i++) {
+                String spectrumTitle = spectrumStore.getTitle(i);
+                for (Psm psm : unmodifiedResults.psmsMap.get(spectrumTitle).getPsms()) {
+                    if (unmodifiedEValueEstimator.getEValue(spectrumTitle, psm.getScore()) <= cascadeEValue) {
+                        identifiedSpectra[i] = true;
+                        break;
+                    }
+                }
+            }
+            int nIdentified = precursorProcessor.removeSpectra(identifiedSpectra);
+            localDuration.end();
+            waitingHandler.setWaitingText("Estimating e-values of the first pass completed (" + nIdentified + " of " + nSpectra + " spectra identified, " + localDuration + ").");
+
+            // Search the remaining spectra with variable modifications
+            waitingHandler.setWaitingText("Cascade search, second pass: modified peptides.");
+            SearchResults modifiedResults = getPsms(spectrumStore, peptideIndex, fragmentIndex, identificationParameters, engineParameters, nThreads, waitingHandler, exceptionHandler);
+
+            // Merge the results of both passes
+            psmsMap = modifiedResults.psmsMap;
+            for (int i = 0; i < nSpectra; i++) {
+                if (identifiedSpectra[i]) {
+                    String spectrumTitle = spectrumStore.getTitle(i);
+                    psmsMap.put(spectrumTitle, unmodifiedResults.psmsMap.get(spectrumTitle));
+                }
+            }
+            peptideProteins = modifiedResults.peptideProteins;
+            for (Map.Entry<String, PeptideProteins> entry : unmodifiedResults.peptideProteins.entrySet()) {
+                if (!peptideProteins.containsKey(entry.getKey())) {
+                    peptideProteins.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+
+        // Localize, estimate e-values, and export
+        exportResults(spectrumFileName, spectrumStore, psmsMap, peptideProteins, psmsFile, identificationParameters, engineParameters, nThreads, waitingHandler, exceptionHandler);
+
+        // Finished
+        totalDuration.end();
+        waitingHandler.appendReportEndLine();
+        waitingHandler.setWaitingText("Onyase engine completed (" + totalDuration + ").");
+
+    }
+
+    /**
+     * Launches the search of several spectrum files, for example fractions,
+     * in a single pass on the database. The precursors of all files are
+     * indexed together and the PSMs are exported to a file per spectrum file.
+     * Only protein centric searches without cascade are supported.
+     *
+     * @param spectrumFiles the spectrum files to search
+     * @param psmsFiles the files where to export all psms of every spectrum
+     * file
+     * @param identificationParameters the identification parameters
+     * @param engineParameters the engine parameters
+     * @param nThreads the number of threads to use
+     * @param waitingHandler a waiting handler providing feedback to the user
+     * and allowing canceling the process
+     * @param exceptionHandler a handler for the exceptions
+     *
+     * @throws IOException exception thrown if an error occurred while reading
+     * or writing a file
+     * @throws ClassNotFoundException exception thrown if an error occurred
+     * while casting an object
+     * @throws SQLException exception thrown if an error occurred while
+     * interacting with a database
+     * @throws MzMLUnmarshallerException exception thrown if an error occurred
+     * while reading an mzML file
+     * @throws InterruptedException exception thrown if a threading error
+     * occurred
+     * @throws IllegalArgumentException exception thrown if the search is not
+     * protein centric or uses a cascade
+     */
+    public void launch(ArrayList<File> spectrumFiles, ArrayList<File> psmsFiles, IdentificationParameters identificationParameters, EngineParameters engineParameters, int nThreads, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) throws IOException, ClassNotFoundException, SQLException, MzMLUnmarshallerException, InterruptedException {
+        checkMultipleFilesSearch(engineParameters);
+        ArrayList<ArrayList<File>> protocolSpectrumFiles = new ArrayList<ArrayList<File>>(1);
+        protocolSpectrumFiles.add(spectrumFiles);
+        ArrayList<DigestionPreferences> digestionPreferences = new ArrayList<DigestionPreferences>(1);
+        digestionPreferences.add(identificationParameters.getSearchParameters().getDigestionPreferences());
+        ArrayList<ArrayList<File>> protocolPsmsFiles = new ArrayList<ArrayList<File>>(1);
+        protocolPsmsFiles.add(psmsFiles);
+        launch(protocolSpectrumFiles, digestionPreferences, protocolPsmsFiles, identificationParameters, engineParameters, nThreads, waitingHandler, exceptionHandler);
+    }
+
+    /**
+     * Verifies that the given engine parameters can be used to search
+     * several spectrum files or protocols in one pass: only protein centric
+     * searches without cascade are supported.
+     *
+     * @param engineParameters the engine parameters
+     *
+     * @throws IllegalArgumentException exception thrown if the search is not
+     * protein centric or uses a cascade
+     */
+    private void checkMultipleFilesSearch(EngineParameters engineParameters) {
+        if (engineParameters.getSearchMode() != SearchMode.proteinCentric) {
+            throw new IllegalArgumentException("Search mode " + engineParameters.getSearchMode() + " not supported when searching multiple spectrum files or protocols, only " + SearchMode.proteinCentric + " is supported.");
+        }
+        if (engineParameters.getCascadeEValue() != null) {
+            throw new IllegalArgumentException("Cascade search not supported when searching multiple spectrum files or protocols.");
+        }
+    }
+
+    /**
+     * Launches the search of several sets of spectrum files digested using
+     * different protocols in a single pass on the database, for example
+     * digests of the same sample with different enzymes. The precursors of
+     * the files of a set are indexed together and the PSMs are exported to a
+     * file per spectrum file. The digestion preferences of the search
+     * parameters are ignored. Only protein centric searches without cascade
+     * are supported.
+     *
+     * @param spectrumFiles the sets of spectrum files to search
+     * @param digestionPreferences the digestion preferences used for every
+     * set of spectrum files
+     * @param psmsFiles the files where to export all psms of every spectrum
+     * file, in the same order as the spectrum files
+     * @param identificationParameters the identification parameters
+     * @param engineParameters the engine parameters
+     * @param nThreads the number of threads to use
+     * @param waitingHandler a waiting handler providing feedback to the user
+     * and allowing canceling the process
+     * @param exceptionHandler a handler for the exceptions
+     *
+     * @throws IOException exception thrown if an error occurred while reading
+     * or writing a file
+     * @throws ClassNotFoundException exception thrown if an error occurred
+     * while casting an object
+     * @throws SQLException exception thrown if an error occurred while
+     * interacting with a database
+     * @throws MzMLUnmarshallerException exception thrown if an error occurred
+     * while reading an mzML file
+     * @throws InterruptedException exception thrown if a threading error
+     * occurred
+     * @throws IllegalArgumentException exception thrown if the files and
+     * protocols do not match, if the search is not protein centric or if it
+     * uses a cascade
+     */
+    public void launch(ArrayList<ArrayList<File>> spectrumFiles, ArrayList<DigestionPreferences> digestionPreferences, ArrayList<ArrayList<File>> psmsFiles, IdentificationParameters identificationParameters, EngineParameters engineParameters, int nThreads, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) throws IOException, ClassNotFoundException, SQLException, MzMLUnmarshallerException, InterruptedException {
+
+        if (spectrumFiles.size() != digestionPreferences.size() || spectrumFiles.size() != psmsFiles.size()) {
+            throw new IllegalArgumentException("One set of digestion preferences and one set of output files must be provided for every set of spectrum files.");
+        }
+        for (int i = 0; i < spectrumFiles.size(); i++) {
+            if (spectrumFiles.get(i).size() != psmsFiles.get(i).size()) {
+                throw new IllegalArgumentException("One output file must be provided for every spectrum file.");
+            }
+        }
+        checkMultipleFilesSearch(engineParameters);
 
         Duration totalDuration = new Duration();
         totalDuration.start();
         waitingHandler.appendReportEndLine();
         waitingHandler.setWaitingText("Onyase engine start.");
 
+        // Load the spectra and their precursors
+        ArrayList<SearchProtocol> searchProtocols = new ArrayList<SearchProtocol>(spectrumFiles.size());
+        for (int i = 0; i < spectrumFiles.size(); i++) {
+            searchProtocols.add(getSearchProtocol(spectrumFiles.get(i), digestionPreferences.get(i), identificationParameters, engineParameters, nThreads, waitingHandler, exceptionHandler));
+        }
+
+        // Get PSMs for all protocols in one pass on the database
+        loadSequences(identificationParameters.getSearchParameters().getFastaFile(), waitingHandler);
+        Duration localDuration = new Duration();
+        localDuration.start();
+        waitingHandler.setWaitingText("Getting PSMs according to the identification parameters " + identificationParameters.getName() + ".");
+        SequencesProcessor sequencesProcessor = new SequencesProcessor(waitingHandler, exceptionHandler);
+        sequencesProcessor.iterateSequences(searchProtocols, null, identificationParameters, engineParameters.getPsmScore(), engineParameters.getMaxX(), nThreads, engineParameters.getMinMz(), engineParameters.getMaxMz(), engineParameters.getMaxModifications(), engineParameters.getMaxSites(), engineParameters.getLocalizationCandidates() != null, engineParameters.getInspectedPeptidesMemory() * 1048576L, engineParameters.getMaxPsms(), engineParameters.getDecoyMode());
+        localDuration.end();
+        waitingHandler.setWaitingText("Getting PSMs completed (" + localDuration + ").");
+
+        // Localize, estimate e-values, and export every file of every protocol
+        for (int i = 0; i < spectrumFiles.size(); i++) {
+            SearchProtocol searchProtocol = searchProtocols.get(i);
+            for (int fileIndex = 0; fileIndex < searchProtocol.getNFiles(); fileIndex++) {
+                String spectrumFileName = Util.getFileName(spectrumFiles.get(i).get(fileIndex));
+                exportResults(spectrumFileName, searchProtocol.getSpectrumStore(fileIndex), sequencesProcessor.getPsms(i, fileIndex), sequencesProcessor.getPeptideProteins(i), psmsFiles.get(i).get(fileIndex), identificationParameters, engineParameters, nThreads, waitingHandler, exceptionHandler);
+            }
+        }
+
+        // Finished
+        totalDuration.end();
+        waitingHandler.appendReportEndLine();
+        waitingHandler.setWaitingText("Onyase engine completed (" + totalDuration + ").");
+
+    }
+
+    /**
+     * Loads the spectra of the given files, infers the precursors if needed,
+     * and returns the search protocol for these spectra. The precursors of
+     * all files are merged in a single index.
+     *
+     * @param spectrumFiles the spectrum files
+     * @param digestionPreferences the digestion preferences used for the
+     * sample
+     * @param identificationParameters the identification parameters
+     * @param engineParameters the engine parameters
+     * @param nThreads the number of threads to use
+     * @param waitingHandler a waiting handler providing feedback to the user
+     * and allowing canceling the process
+     * @param exceptionHandler a handler for the exceptions
+     *
+     * @return the search protocol for the spectra of the files
+     *
+     * @throws IOException exception thrown if an error occurred while reading
+     * or writing a file
+     * @throws ClassNotFoundException exception thrown if an error occurred
+     * while casting an object
+     * @throws SQLException exception thrown if an error occurred while
+     * interacting with a database
+     * @throws MzMLUnmarshallerException exception thrown if an error occurred
+     * while reading an mzML file
+     * @throws InterruptedException exception thrown if a threading error
+     * occurred
+     */
+    private SearchProtocol getSearchProtocol(ArrayList<File> spectrumFiles, DigestionPreferences digestionPreferences, IdentificationParameters identificationParameters, EngineParameters engineParameters, int nThreads, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) throws IOException, ClassNotFoundException, SQLException, MzMLUnmarshallerException, InterruptedException {
+
+        if (spectrumFiles.size() == 1) {
+            return getSearchProtocol(spectrumFiles.get(0), digestionPreferences, identificationParameters, engineParameters, nThreads, waitingHandler, exceptionHandler);
+        }
+
+        // Load every file
+        ArrayList<SpectrumStore> spectrumStores = new ArrayList<SpectrumStore>(spectrumFiles.size());
+        ArrayList<PrecursorProcessor> precursorProcessors = new ArrayList<PrecursorProcessor>(spectrumFiles.size());
+        for (File spectrumFile : spectrumFiles) {
+            SearchProtocol fileProtocol = getSearchProtocol(spectrumFile, digestionPreferences, identificationParameters, engineParameters, nThreads, waitingHandler, exceptionHandler);
+            spectrumStores.add(fileProtocol.getSpectrumStore(0));
+            precursorProcessors.add(fileProtocol.getPrecursorProcessor());
+        }
+
+        // Merge the precursors
+        Duration localDuration = new Duration();
+        localDuration.start();
+        waitingHandler.setWaitingText("Merging the precursors of " + spectrumFiles.size() + " files.");
+        PrecursorProcessor mergedPrecursorProcessor = new PrecursorProcessor(precursorProcessors);
+        localDuration.end();
+        waitingHandler.setWaitingText("Merging the precursors completed (" + mergedPrecursorProcessor.getNNeutralMasses() + " neutral masses indexed, " + localDuration + ").");
+
+        return new SearchProtocol(digestionPreferences, spectrumStores, mergedPrecursorProcessor);
+    }
+
+    /**
+     * Loads the spectra of the given file, infers the precursors if needed,
+     * and returns the search protocol for these spectra.
+     *
+     * @param spectrumFile the spectrum file
+     * @param digestionPreferences the digestion preferences used for the
+     * sample
+     * @param identificationParameters the identification parameters
+     * @param engineParameters the engine parameters
+     * @param nThreads the number of threads to use
+     * @param waitingHandler a waiting handler providing feedback to the user
+     * and allowing canceling the process
+     * @param exceptionHandler a handler for the exceptions
+     *
+     * @return the search protocol for the spectra of the file
+     *
+     * @throws IOException exception thrown if an error occurred while reading
+     * or writing a file
+     * @throws ClassNotFoundException exception thrown if an error occurred
+     * while casting an object
+     * @throws SQLException exception thrown if an error occurred while
+     * interacting with a database
+     * @throws MzMLUnmarshallerException exception thrown if an error occurred
+     * while reading an mzML file
+     * @throws InterruptedException exception thrown if a threading error
+     * occurred
+     */
+    private SearchProtocol getSearchProtocol(File spectrumFile, DigestionPreferences digestionPreferences, IdentificationParameters identificationParameters, EngineParameters engineParameters, int nThreads, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) throws IOException, ClassNotFoundException, SQLException, MzMLUnmarshallerException, InterruptedException {
+
         // Load the spectra in the spectrum factory
         Duration localDuration = new Duration();
         localDuration.start();
@@ -112,71 +497,306 @@ public class OnyaseEngine {
         localDuration.end();
         waitingHandler.setWaitingText("Loading spectra completed (" + localDuration + ").");
 
+        // Preprocess the spectra
+        localDuration = new Duration();
+        localDuration.start();
+        waitingHandler.setWaitingText("Preprocessing spectra from " + spectrumFileName + ".");
+        double intensityLimit = engineParameters.getPsmScore() == PsmScore.snrScore ? 0.0 : identificationParameters.getAnnotationPreferences().getAnnotationIntensityLimit();
+        SpectrumStoreBuilder spectrumStoreBuilder = new SpectrumStoreBuilder(waitingHandler, exceptionHandler);
+        SpectrumStore spectrumStore = spectrumStoreBuilder.buildStore(spectrumFileName, intensityLimit, nThreads);
+        localDuration.end();
+        waitingHandler.setWaitingText("Preprocessing spectra completed (" + localDuration + ").");
+
+        // Infer the charges and isotopes of the precursors
+        SearchParameters searchParameters = identificationParameters.getSearchParameters();
+        PrecursorInference precursorInference = null;
+        if (engineParameters.getPrecursorCandidates() != null) {
+            localDuration = new Duration();
+            localDuration.start();
+            waitingHandler.setWaitingText("Inferring precursor charges and isotopes.");
+            precursorInference = new PrecursorInference(waitingHandler, exceptionHandler);
+            precursorInference.inferPrecursors(spectrumStore, searchParameters, identificationParameters.getAnnotationPreferences(), engineParameters.getPrecursorCandidates(), nThreads);
+            localDuration.end();
+            waitingHandler.setWaitingText("Inferring precursor charges and isotopes completed (" + precursorInference.getNInferred() + " of " + spectrumStore.size() + " spectra inferred, " + localDuration + ").");
+        }
+
         // Load precursors
         localDuration = new Duration();
         localDuration.start();
         waitingHandler.setWaitingText("Loading precursors from " + spectrumFileName + ".");
-        SearchParameters searchParameters = identificationParameters.getSearchParameters();
-        precursorProcessor = new PrecursorProcessor(spectrumFileName, searchParameters, minMz, maxMz);
+        PrecursorProcessor filePrecursorProcessor = new PrecursorProcessor(spectrumStore, precursorInference, searchParameters, engineParameters.getMinMz(), engineParameters.getMaxMz());
         localDuration.end();
-        waitingHandler.setWaitingText("Loading precursors completed (" + localDuration + ").");
+        waitingHandler.setWaitingText("Loading precursors completed (" + filePrecursorProcessor.getNAnnotatedSpectra() + " of " + spectrumStore.size() + " spectra with annotated charge, " + filePrecursorProcessor.getNNeutralMasses() + " neutral masses indexed, " + localDuration + ").");
+
+        return new SearchProtocol(digestionPreferences, spectrumStore, filePrecursorProcessor);
+    }
+
+    /**
+     * Localizes the modifications of the best candidates if needed, estimates
+     * the e-values, and exports the PSMs of a spectrum file.
+     *
+     * @param spectrumFileName the name of the spectrum file
+     * @param spectrumStore the store containing the spectra
+     * @param psmsMap the PSMs indexed by spectrum title
+     * @param peptideProteins the proteins of the peptides indexed by sequence
+     * @param psmsFile the file where to export all psms
+     * @param identificationParameters the identification parameters
+     * @param engineParameters the engine parameters
+     * @param nThreads the number of threads to use
+     * @param waitingHandler a waiting handler providing feedback to the user
+     * and allowing canceling the process
+     * @param exceptionHandler a handler for the exceptions
+     *
+     * @throws IOException exception thrown if an error occurred while reading
+     * or writing a file
+     * @throws MzMLUnmarshallerException exception thrown if an error occurred
+     * while reading an mzML file
+     * @throws InterruptedException exception thrown if a threading error
+     * occurred
+     */
+    private void exportResults(String spectrumFileName, SpectrumStore spectrumStore, HashMap<String, SpectrumPsms> psmsMap, Map<String, PeptideProteins> peptideProteins, File psmsFile, IdentificationParameters identificationParameters, EngineParameters engineParameters, int nThreads, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) throws IOException, MzMLUnmarshallerException, InterruptedException {
 
-        // Load the sequences in the sequence factory
+        // Localize the modifications of the best candidates
+        Duration localDuration;
+        if (engineParameters.getLocalizationCandidates() != null) {
+            localDuration = new Duration();
+            localDuration.start();
+            waitingHandler.setWaitingText("Localizing modifications.");
+            LocalizationProcessor localizationProcessor = new LocalizationProcessor(waitingHandler, exceptionHandler);
+            localizationProcessor.localize(psmsMap, spectrumStore, identificationParameters, engineParameters, nThreads);
+            localDuration.end();
+            waitingHandler.setWaitingText("Localizing modifications completed (" + localDuration + ").");
+        }
+
+        // Estimate e-values
         localDuration = new Duration();
         localDuration.start();
-        File fastaFile = searchParameters.getFastaFile();
-        String fastaFileName = Util.getFileName(fastaFile);
-        waitingHandler.setWaitingText("Loading sequences from " + fastaFileName + ".");
-        sequenceFactory.loadFastaFile(fastaFile);
+        waitingHandler.setWaitingText("Estimating e-values.");
+        EValueEstimator eValueEstimator = getEValueEstimator(spectrumFileName, psmsMap, engineParameters.getPsmScore(), nThreads, waitingHandler, exceptionHandler);
         localDuration.end();
-        waitingHandler.setWaitingText("Loading sequences completed (" + localDuration + ").");
+        waitingHandler.setWaitingText("Estimating e-values completed (" + localDuration + ").");
 
-        // Get PSMs
+        // Export PSMs
+        localDuration = new Duration();
+        localDuration.start();
+        waitingHandler.setWaitingText("Exporting results to " + psmsFile.getAbsolutePath() + ".");
+        TextExporter textExporter = new TextExporter(waitingHandler, exceptionHandler);
+        textExporter.writePsms(spectrumFileName, psmsMap, peptideProteins, eValueEstimator, psmsFile);
+        localDuration.end();
+        waitingHandler.setWaitingText("Exporting results completed (" + localDuration + ").");
+    }
+
+    /**
+     * Searches the spectra of the precursor processor and returns the PSMs
+     * found. The sequences must be loaded in the sequence factory for a
+     * protein centric search.
+     *
+     * @param spectrumStore the store containing the spectra to search
+     * @param peptideIndex the peptide index to search, null for a protein
+     * centric search
+     * @param fragmentIndex the fragment index to use to select the
+     * candidates, null if all candidates should be scored
+     * @param identificationParameters the identification parameters
+     * @param engineParameters the engine parameters
+     * @param nThreads the number of threads to use
+     * @param waitingHandler a waiting handler providing feedback to the user
+     * and allowing canceling the process
+     * @param exceptionHandler a handler for the exceptions
+     *
+     * @return the PSMs found and the proteins of the peptides
+     *
+     * @throws IOException exception thrown if an error occurred while reading
+     * or writing a file
+     * @throws InterruptedException exception thrown if a threading error
+     * occurred
+     */
+    private SearchResults getPsms(SpectrumStore spectrumStore, PeptideIndex peptideIndex, FragmentIndex fragmentIndex, IdentificationParameters identificationParameters, EngineParameters engineParameters, int nThreads, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) throws IOException, InterruptedException {
         Duration psmDuration = new Duration();
         psmDuration.start();
         waitingHandler.setWaitingText("Getting PSMs according to the identification parameters " + identificationParameters.getName() + ".");
-        SequencesProcessor sequencesProcessor = new SequencesProcessor(waitingHandler, exceptionHandler);
-        sequencesProcessor.iterateSequences(spectrumFileName, precursorProcessor, identificationParameters, psmScore, maxX, nThreads, minMz, maxMz, maxModifications, maxSites);
+        SearchResults searchResults;
+        switch (engineParameters.getSearchMode()) {
+            case proteinCentric:
+                SequencesProcessor sequencesProcessor = new SequencesProcessor(waitingHandler, exceptionHandler);
+                sequencesProcessor.iterateSequences(spectrumStore, precursorProcessor, identificationParameters, engineParameters.getPsmScore(), engineParameters.getMaxX(), nThreads, engineParameters.getMinMz(), engineParameters.getMaxMz(), engineParameters.getMaxModifications(), engineParameters.getMaxSites(), engineParameters.getLocalizationCandidates() != null, engineParameters.getInspectedPeptidesMemory() * 1048576L, engineParameters.getMaxPsms(), engineParameters.getDecoyMode());
+                searchResults = new SearchResults(sequencesProcessor.getPsms(), sequencesProcessor.getPeptideProteins());
+                break;
+            case spectrumCentric:
+                SpectraProcessor spectraProcessor = new SpectraProcessor(waitingHandler, exceptionHandler);
+                spectraProcessor.iterateSpectra(spectrumStore, precursorProcessor, peptideIndex, fragmentIndex, identificationParameters, engineParameters, nThreads);
+                searchResults = new SearchResults(spectraProcessor.getPsms(), spectraProcessor.getPeptideProteins());
+                break;
+            default:
+                throw new UnsupportedOperationException("Search mode " + engineParameters.getSearchMode() + " not implemented.");
+        }
         psmDuration.end();
         waitingHandler.setWaitingText("Getting PSMs completed (" + psmDuration + ").");
+        return searchResults;
+    }
 
-        // Get PSMs
-        HashMap<String, HashMap<String, Psm>> psmsMap = sequencesProcessor.getPsms();
-
-        // Estimate e-values
-        localDuration = new Duration();
-        localDuration.start();
-        waitingHandler.setWaitingText("Estimating e-values.");
-        EValueEstimator eValueEstimator;
+    /**
+     * Returns an e-value estimator for the given PSMs.
+     *
+     * @param spectrumFileName the name of the spectrum file
+     * @param psmsMap the PSMs indexed by spectrum title
+     * @param psmScore the score used
+     * @param nThreads the number of threads to use
+     * @param waitingHandler a waiting handler providing feedback to the user
+     * and allowing canceling the process
+     * @param exceptionHandler a handler for the exceptions
+     *
+     * @return an e-value estimator for the PSMs
+     *
+     * @throws InterruptedException exception thrown if a threading error
+     * occurred
+     */
+    private EValueEstimator getEValueEstimator(String spectrumFileName, HashMap<String, SpectrumPsms> psmsMap, PsmScore psmScore, int nThreads, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) throws InterruptedException {
         switch (psmScore) {
             case hyperscore:
+            case nativeHyperscore:
                 HyperscoreEValueEstimator hyperscoreEValueEstimator = new HyperscoreEValueEstimator(waitingHandler, exceptionHandler);
                 hyperscoreEValueEstimator.estimateInterpolationCoefficients(spectrumFileName, psmsMap, nThreads);
-                eValueEstimator = hyperscoreEValueEstimator;
-                break;
+                return hyperscoreEValueEstimator;
             case snrScore:
-                eValueEstimator = new SnrEvalueEstimator();
-                break;
+                return new SnrEvalueEstimator();
             default:
                 throw new UnsupportedOperationException("Score " + psmScore + " not implemented.");
         }
+    }
 
-        localDuration.end();
-        waitingHandler.setWaitingText("Estimating e-values completed (" + localDuration + ").");
-
-        // Export PSMs
-        localDuration = new Duration();
+    /**
+     * Loads the sequences of the given database in the sequence factory.
+     *
+     * @param fastaFile the database file
+     * @param waitingHandler a waiting handler providing feedback to the user
+     * and allowing canceling the process
+     *
+     * @throws IOException exception thrown if an error occurred while reading
+     * the file
+     * @throws ClassNotFoundException exception thrown if an error occurred
+     * while casting an object
+     */
+    private void loadSequences(File fastaFile, WaitingHandler waitingHandler) throws IOException, ClassNotFoundException {
+        Duration localDuration = new Duration();
         localDuration.start();
-        waitingHandler.setWaitingText("Exporting results to " + psmsFile.getAbsolutePath() + ".");
-        TextExporter textExporter = new TextExporter(waitingHandler, exceptionHandler);
-        textExporter.writePsms(spectrumFileName, psmsMap, eValueEstimator, psmsFile);
+        String fastaFileName = Util.getFileName(fastaFile);
+        waitingHandler.setWaitingText("Loading sequences from " + fastaFileName + ".");
+        sequenceFactory.loadFastaFile(fastaFile);
         localDuration.end();
-        waitingHandler.setWaitingText("Exporting results completed (" + localDuration + ").");
+        waitingHandler.setWaitingText("Loading sequences completed (" + localDuration + ").");
+    }
 
-        // Finished
-        totalDuration.end();
-        waitingHandler.appendReportEndLine();
-        waitingHandler.setWaitingText("Onyase engine completed (" + totalDuration + ").");
+    /**
+     * Returns the peptide index for the loaded precursors. If a peptide index
+     * folder is set in the engine parameters, an index covering the precursor
+     * masses is loaded from it when available, and newly built indexes are
+     * stored in it.
+     *
+     * @param identificationParameters the identification parameters
+     * @param engineParameters the engine parameters
+     * @param nThreads the number of threads to use
+     * @param waitingHandler a waiting handler providing feedback to the user
+     * and allowing canceling the process
+     * @param exceptionHandler a handler for the exceptions
+     *
+     * @return the peptide index
+     *
+     * @throws IOException exception thrown if an error occurred while reading
+     * or writing a file
+     * @throws ClassNotFoundException exception thrown if an error occurred
+     * while casting an object
+     * @throws InterruptedException exception thrown if a threading error
+     * occurred
+     */
+    private PeptideIndex getPeptideIndex(IdentificationParameters identificationParameters, EngineParameters engineParameters, int nThreads, WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) throws IOException, ClassNotFoundException, InterruptedException {
+
+        SearchParameters searchParameters = identificationParameters.getSearchParameters();
+        PtmSettings ptmSettings = searchParameters.getPtmSettings();
+        File fastaFile = searchParameters.getFastaFile();
+        String fastaFileName = Util.getFileName(fastaFile);
+        double massMin = precursorProcessor.getMassMin();
+        double massMax = precursorProcessor.getMassMax();
+        PeptideIndexBuilder peptideIndexBuilder = new PeptideIndexBuilder(waitingHandler, exceptionHandler);
+        File peptideIndexFolder = engineParameters.getPeptideIndexFolder();
+        PeptideIndexCache peptideIndexCache = null;
+        String indexKey = null;
+        PeptideIndex peptideIndex = null;
+
+        // Load the index from the cache
+        if (peptideIndexFolder != null) {
+            Duration localDuration = new Duration();
+            localDuration.start();
+            peptideIndexCache = new PeptideIndexCache(peptideIndexFolder);
+            indexKey = PeptideIndexCache.getIndexKey(identificationParameters, engineParameters.getMaxX(), engineParameters.getDecoyMode());
+            waitingHandler.setWaitingText("Loading peptide index " + indexKey + ".");
+            peptideIndex = peptideIndexCache.load(indexKey, peptideIndexBuilder.getFixedModifications(ptmSettings));
+            if (peptideIndex != null && (peptideIndex.getMassMin() > massMin || peptideIndex.getMassMax() < massMax)) {
+                massMin = Math.min(massMin, peptideIndex.getMassMin());
+                massMax = Math.max(massMax, peptideIndex.getMassMax());
+                peptideIndex = null;
+                waitingHandler.setWaitingText("Peptide index " + indexKey + " does not cover the precursor masses.");
+            } else if (peptideIndex != null) {
+                localDuration.end();
+                waitingHandler.setWaitingText("Loading peptide index completed (" + peptideIndex.size() + " peptides, " + localDuration + ").");
+            }
+        }
+
+        // Build the index
+        if (peptideIndex == null) {
+            loadSequences(fastaFile, waitingHandler);
+            Duration localDuration = new Duration();
+            localDuration.start();
+            waitingHandler.setWaitingText("Indexing peptides from " + fastaFileName + ".");
+            peptideIndex = peptideIndexBuilder.buildIndex(identificationParameters, engineParameters.getMaxX(), engineParameters.getDecoyMode(), massMin, massMax, nThreads);
+            if (peptideIndexCache != null) {
+                peptideIndexCache.save(peptideIndex, indexKey);
+            }
+            localDuration.end();
+            waitingHandler.setWaitingText("Indexing peptides completed (" + peptideIndex.size() + " peptides, " + localDuration + ").");
+        }
 
+        // Get the maximal number of modification sites
+        HashMap<String, Integer> maxOccurrences = null;
+        String occurrencesKey = null;
+        if (peptideIndexCache != null) {
+            occurrencesKey = PeptideIndexCache.getOccurrencesKey(ptmSettings, engineParameters.getMaxModifications());
+            maxOccurrences = peptideIndexCache.loadMaxOccurrences(indexKey, occurrencesKey);
+        }
+        if (maxOccurrences == null) {
+            maxOccurrences = peptideIndexBuilder.getMaxOccurrences(peptideIndex, ptmSettings, engineParameters.getMaxModifications(), nThreads);
+            if (peptideIndexCache != null) {
+                peptideIndexCache.saveMaxOccurrences(maxOccurrences, indexKey, occurrencesKey);
+            }
+        }
+        peptideIndex.setMaxOccurrences(maxOccurrences);
+
+        return peptideIndex;
+    }
+
+    /**
+     * The results of a search.
+     */
+    private static class SearchResults {
+
+        /**
+         * The PSMs indexed by spectrum title.
+         */
+        private final HashMap<String, SpectrumPsms> psmsMap;
+        /**
+         * The proteins of the peptides indexed by sequence.
+         */
+        private final Map<String, PeptideProteins> peptideProteins;
+
+        /**
+         * Constructor.
+         *
+         * @param psmsMap the PSMs indexed by spectrum title
+         * @param peptideProteins the proteins of the peptides indexed by
+         * sequence
+         */
+        public SearchResults(HashMap<String, SpectrumPsms> psmsMap, Map<String, PeptideProteins> peptideProteins) {
+            this.psmsMap = psmsMap;
+            this.peptideProteins = peptideProteins;
+        }
     }
 }
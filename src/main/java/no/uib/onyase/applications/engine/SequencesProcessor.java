@@ -1,74 +1,70 @@
 package no.uib.onyase.applications.engine;
 
+import no.uib.onyase.applications.engine.model.LocalizationCandidate;
 import no.uib.onyase.applications.engine.model.PeptideDraft;
 import no.uib.onyase.applications.engine.modules.precursor_handling.ExclusionList;
 import no.uib.onyase.applications.engine.modules.precursor_handling.PrecursorProcessor;
 import no.uib.onyase.applications.engine.modules.*;
 import com.compomics.util.exceptions.ExceptionHandler;
-import com.compomics.util.experiment.biology.ElementaryElement;
 import com.compomics.util.experiment.biology.PTM;
 import com.compomics.util.experiment.biology.PTMFactory;
 import com.compomics.util.experiment.biology.Peptide;
 import com.compomics.util.experiment.biology.Protein;
-import com.compomics.util.experiment.biology.ions.ElementaryIon;
-import com.compomics.util.experiment.identification.identification_parameters.PtmSettings;
 import com.compomics.util.experiment.identification.identification_parameters.SearchParameters;
-import com.compomics.util.experiment.identification.matches.IonMatch;
-import com.compomics.util.experiment.identification.matches.ModificationMatch;
 import com.compomics.util.experiment.identification.protein_sequences.SequenceFactory;
 import com.compomics.util.experiment.identification.protein_sequences.digestion.IteratorFactory;
 import com.compomics.util.experiment.identification.protein_sequences.digestion.PeptideWithPosition;
 import com.compomics.util.experiment.identification.protein_sequences.digestion.SequenceIterator;
-import com.compomics.util.experiment.identification.psm_scoring.psm_scores.HyperScore;
-import com.compomics.util.experiment.identification.psm_scoring.psm_scores.SnrScore;
-import com.compomics.util.experiment.identification.spectrum_annotation.AnnotationSettings;
 import com.compomics.util.experiment.identification.spectrum_annotation.SpecificAnnotationSettings;
-import com.compomics.util.experiment.identification.spectrum_annotation.spectrum_annotators.PeptideSpectrumAnnotator;
-import com.compomics.util.experiment.identification.spectrum_assumptions.PeptideAssumption;
-import com.compomics.util.experiment.massspectrometry.Charge;
-import com.compomics.util.experiment.massspectrometry.MSnSpectrum;
-import com.compomics.util.experiment.massspectrometry.SpectrumFactory;
-import com.compomics.util.experiment.massspectrometry.indexes.PrecursorMap;
-import com.compomics.util.maps.MapMutex;
 import com.compomics.util.preferences.DigestionPreferences;
 import com.compomics.util.preferences.IdentificationParameters;
 import com.compomics.util.preferences.SequenceMatchingPreferences;
 import com.compomics.util.waiting.WaitingHandler;
 import java.io.IOException;
+import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import no.uib.onyase.applications.engine.model.PeptideProteins;
 import no.uib.onyase.applications.engine.model.Psm;
-import no.uib.onyase.applications.engine.modules.ModificationProfileIterator.ModificationProfile;
-import no.uib.onyase.applications.engine.modules.peptide_modification_iterators.MultipleModificationsIterators;
-import no.uib.onyase.applications.engine.modules.peptide_modification_iterators.OverlappingModificationsIterator;
-import no.uib.onyase.applications.engine.modules.peptide_modification_iterators.SingleModificationIterator;
+import no.uib.onyase.applications.engine.model.SearchProtocol;
+import no.uib.onyase.applications.engine.model.SpectrumPsms;
 import no.uib.onyase.applications.engine.modules.scoring.PsmScore;
+import no.uib.onyase.applications.engine.modules.scoring.PsmScorer;
+import no.uib.onyase.applications.engine.modules.decoy_generation.DecoyGenerator;
+import no.uib.onyase.applications.engine.modules.digestion.MassLadder;
+import no.uib.onyase.applications.engine.modules.digestion.ModificationMassRange;
+import no.uib.onyase.applications.engine.modules.digestion.ProteinDigester;
+import no.uib.onyase.applications.engine.modules.peptide_index.PeptideIndex;
+import no.uib.onyase.applications.engine.modules.spectrum_store.SpectrumStore;
+import no.uib.onyase.applications.engine.parameters.DecoyMode;
+import no.uib.onyase.utils.BlockedBloomFilter;
+import no.uib.onyase.utils.ConcurrentLongHashSet;
+import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException;
 
 /**
  * The sequences processor runs multiple sequences iterators on the database in
- * the sequence factory.
+ * the sequence factory. Several search protocols can be searched in a single
+ * pass on the database: every protein is read once and digested according to
+ * every protocol, the candidates are matched against the spectra of the
+ * protocol only. The sequences of the retained PSMs are mapped to their
+ * proteins in a second pass on the database.
  *
  * @author Marc Vaudel
  */
 public class SequencesProcessor {
 
     /**
-     * The sequence factory.
+     * The number of locks guarding the PSMs of the spectra as power of two.
      */
-    private SequenceFactory sequenceFactory = SequenceFactory.getInstance();
+    private static final int LOCK_STRIPES_SHIFT = 12;
     /**
-     * The spectrum factory.
-     */
-    private SpectrumFactory spectrumFactory = SpectrumFactory.getInstance();
-    /**
-     * The modifications factory.
+     * The sequence factory.
      */
-    private PTMFactory ptmFactory = PTMFactory.getInstance();
+    private SequenceFactory sequenceFactory = SequenceFactory.getInstance();
     /**
      * A handler for the exceptions.
      */
@@ -79,17 +75,35 @@ public class SequencesProcessor {
      */
     private WaitingHandler waitingHandler;
     /**
-     * Map of the PSMs found.
+     * The search protocols.
+     */
+    private ArrayList<SearchProtocol> searchProtocols;
+    /**
+     * The PSMs found for every spectrum of every search protocol indexed by
+     * the index of the spectrum in the protocol.
+     */
+    private ArrayList<SpectrumPsms[]> protocolPsms;
+    /**
+     * Locks guarding the PSMs of the spectra. A spectrum is guarded by the
+     * lock at its index in the inspected peptides filter modulo the number
+     * of locks.
      */
-    private HashMap<String, HashMap<String, Psm>> psmMap;
+    private final Object[] psmLocks = new Object[1 << LOCK_STRIPES_SHIFT];
     /**
-     * Mutex for the scores map.
+     * Filter for the peptides inspected for each spectrum, shared by all
+     * search protocols.
      */
-    private MapMutex<String> scoresMapMutex = new MapMutex<String>();
+    private BlockedBloomFilter peptidesInspected;
     /**
-     * Map of the peptides inspected for each spectrum.
+     * The hashes of the peptide sequences already processed in every protein
+     * context for every search protocol.
      */
-    private HashMap<String, HashSet<String>> peptidesInspected;
+    private ConcurrentLongHashSet processedPeptides;
+    /**
+     * The proteins of every peptide sequence with a retained PSM for every
+     * search protocol.
+     */
+    private ArrayList<HashMap<String, PeptideProteins>> peptideProteinsMaps;
 
     /**
      * Constructor.
@@ -101,13 +115,16 @@ public class SequencesProcessor {
     public SequencesProcessor(WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) {
         this.exceptionHandler = exceptionHandler;
         this.waitingHandler = waitingHandler;
+        for (int i = 0; i < psmLocks.length; i++) {
+            psmLocks[i] = new Object();
+        }
     }
 
     /**
      * Iterates all sequences and returns all PSMs found in a map indexed by
      * spectrum title and peptide key.
      *
-     * @param spectrumFileName the name of the file to process
+     * @param spectrumStore the store containing the spectra to process
      * @param precursorProcessor the precursor processor
      * @param identificationParameters the identification parameters to use
      * @param implementedScore the score to use
@@ -117,21 +134,28 @@ public class SequencesProcessor {
      * @param maxMz the maximal m/z to consider
      * @param maxModifications the maximal number of modifications
      * @param maxSites the preferred number of sites to iterate for every PTM
+     * @param screenIsoforms boolean indicating whether only representative
+     * isoforms should be scored, to be localized exhaustively later
+     * @param inspectedPeptidesMemory the memory to allocate to the filter of
+     * the peptides inspected for every spectrum in bytes
+     * @param maxPsms the maximal number of PSMs to retain per spectrum, null
+     * to retain all
+     * @param decoyMode the way decoy peptides are obtained
      *
      * @throws IOException exception thrown whenever an error occurred while
      * reading a file
      * @throws InterruptedException exception thrown if a threading issue
      * occurs.
      */
-    public void iterateSequences(String spectrumFileName, PrecursorProcessor precursorProcessor, IdentificationParameters identificationParameters, PsmScore implementedScore, int maxX, int nThreads, Double minMz, Double maxMz, HashMap<String, Integer> maxModifications, int maxSites) throws IOException, InterruptedException {
-        iterateSequences(spectrumFileName, precursorProcessor, null, identificationParameters, implementedScore, maxX, nThreads, minMz, maxMz, maxModifications, maxSites);
+    public void iterateSequences(SpectrumStore spectrumStore, PrecursorProcessor precursorProcessor, IdentificationParameters identificationParameters, PsmScore implementedScore, int maxX, int nThreads, Double minMz, Double maxMz, HashMap<String, Integer> maxModifications, int maxSites, boolean screenIsoforms, long inspectedPeptidesMemory, Integer maxPsms, DecoyMode decoyMode) throws IOException, InterruptedException {
+        iterateSequences(spectrumStore, precursorProcessor, null, identificationParameters, implementedScore, maxX, nThreads, minMz, maxMz, maxModifications, maxSites, screenIsoforms, inspectedPeptidesMemory, maxPsms, decoyMode);
     }
 
     /**
      * Iterates all sequences and returns all PSMs found in a map indexed by
      * spectrum title and peptide key.
      *
-     * @param spectrumFileName the name of the file to process
+     * @param spectrumStore the store containing the spectra to process
      * @param precursorProcessor the precursor processor
      * @param exclusionListFilePath path of the exclusion list to use
      * @param identificationParameters the identification parameters to use
@@ -142,21 +166,95 @@ public class SequencesProcessor {
      * @param maxMz the maximal m/z to consider
      * @param maxModifications the maximal number of modifications
      * @param maxSites the preferred number of sites to iterate for every PTM
+     * @param screenIsoforms boolean indicating whether only representative
+     * isoforms should be scored, to be localized exhaustively later
+     * @param inspectedPeptidesMemory the memory to allocate to the filter of
+     * the peptides inspected for every spectrum in bytes
+     * @param maxPsms the maximal number of PSMs to retain per spectrum, null
+     * to retain all
+     * @param decoyMode the way decoy peptides are obtained
      *
      * @throws InterruptedException exception thrown if a threading issue
      * occurs.
      * @throws IOException exception thrown whenever an error occurred while
      * reading a file
      */
-    public void iterateSequences(String spectrumFileName, PrecursorProcessor precursorProcessor, String exclusionListFilePath, IdentificationParameters identificationParameters, PsmScore implementedScore, int maxX, int nThreads, Double minMz, Double maxMz, HashMap<String, Integer> maxModifications, int maxSites) throws InterruptedException, IOException {
-
-        // Initialize the maps
-        ArrayList<String> spectrumTitles = spectrumFactory.getSpectrumTitles(spectrumFileName);
-        psmMap = new HashMap<String, HashMap<String, Psm>>(spectrumTitles.size());
-        peptidesInspected = new HashMap<String, HashSet<String>>(spectrumTitles.size());
-        for (String spectrumTitle : spectrumTitles) {
-            psmMap.put(spectrumTitle, new HashMap<String, Psm>(2));
-            peptidesInspected.put(spectrumTitle, new HashSet<String>(2));
+    public void iterateSequences(SpectrumStore spectrumStore, PrecursorProcessor precursorProcessor, String exclusionListFilePath, IdentificationParameters identificationParameters, PsmScore implementedScore, int maxX, int nThreads, Double minMz, Double maxMz, HashMap<String, Integer> maxModifications, int maxSites, boolean screenIsoforms, long inspectedPeptidesMemory, Integer maxPsms, DecoyMode decoyMode) throws InterruptedException, IOException {
+        ArrayList<SearchProtocol> searchProtocols = new ArrayList<SearchProtocol>(1);
+        searchProtocols.add(new SearchProtocol(identificationParameters.getSearchParameters().getDigestionPreferences(), spectrumStore, precursorProcessor));
+        iterateSequences(searchProtocols, exclusionListFilePath, identificationParameters, implementedScore, maxX, nThreads, minMz, maxMz, maxModifications, maxSites, screenIsoforms, inspectedPeptidesMemory, maxPsms, decoyMode);
+    }
+
+    /**
+     * Iterates all sequences once and returns the PSMs found for every search
+     * protocol in a map indexed by spectrum title and peptide key. The
+     * proteins are digested according to the digestion preferences of every
+     * protocol, the digestion preferences of the search parameters are
+     * ignored. The candidates of a protocol are scored against the spectra
+     * of all its files at once.
+     *
+     * @param searchProtocols the search protocols
+     * @param exclusionListFilePath path of the exclusion list to use
+     * @param identificationParameters the identification parameters to use
+     * @param implementedScore the score to use
+     * @param maxX the maximal number of Xs to allow in a peptide sequence
+     * @param nThreads the number of threads to use
+     * @param minMz the minimal m/z to consider
+     * @param maxMz the maximal m/z to consider
+     * @param maxModifications the maximal number of modifications
+     * @param maxSites the preferred number of sites to iterate for every PTM
+     * @param screenIsoforms boolean indicating whether only representative
+     * isoforms should be scored, to be localized exhaustively later
+     * @param inspectedPeptidesMemory the memory to allocate to the filter of
+     * the peptides inspected for every spectrum in bytes
+     * @param maxPsms the maximal number of PSMs to retain per spectrum, null
+     * to retain all
+     * @param decoyMode the way decoy peptides are obtained
+     *
+     * @throws InterruptedException exception thrown if a threading issue
+     * occurs.
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading a file
+     */
+    public void iterateSequences(ArrayList<SearchProtocol> searchProtocols, String exclusionListFilePath, IdentificationParameters identificationParameters, PsmScore implementedScore, int maxX, int nThreads, Double minMz, Double maxMz, HashMap<String, Integer> maxModifications, int maxSites, boolean screenIsoforms, long inspectedPeptidesMemory, Integer maxPsms, DecoyMode decoyMode) throws InterruptedException, IOException {
+
+        // Initialize the PSMs of every protocol, the spectra are numbered across protocols in the inspected peptides filter
+        this.searchProtocols = searchProtocols;
+        int nProtocols = searchProtocols.size();
+        protocolPsms = new ArrayList<SpectrumPsms[]>(nProtocols);
+        int[] spectrumOffsets = new int[nProtocols];
+        int nSpectraTotal = 0;
+        for (int p = 0; p < nProtocols; p++) {
+            int nSpectra = searchProtocols.get(p).getNSpectra();
+            SpectrumPsms[] psms = new SpectrumPsms[nSpectra];
+            for (int i = 0; i < nSpectra; i++) {
+                psms[i] = new SpectrumPsms(maxPsms);
+            }
+            protocolPsms.add(psms);
+            spectrumOffsets[p] = nSpectraTotal;
+            nSpectraTotal += nSpectra;
+        }
+        peptidesInspected = new BlockedBloomFilter(inspectedPeptidesMemory);
+        processedPeptides = new ConcurrentLongHashSet();
+
+        // Exclude the spectra according to the exclusion list
+        SearchParameters searchParameters = identificationParameters.getSearchParameters();
+        ExclusionList exclusionList;
+        if (exclusionListFilePath != null) {
+            exclusionList = new ExclusionList(exclusionListFilePath, searchParameters.getPrecursorAccuracy(), searchParameters.isPrecursorAccuracyTypePpm(), minMz, maxMz);
+        } else {
+            exclusionList = new ExclusionList(searchParameters.getPrecursorAccuracy(), searchParameters.isPrecursorAccuracyTypePpm(), minMz, maxMz);
+        }
+        boolean[][] excludedSpectra = new boolean[nProtocols][];
+        for (int p = 0; p < nProtocols; p++) {
+            SearchProtocol searchProtocol = searchProtocols.get(p);
+            excludedSpectra[p] = new boolean[searchProtocol.getNSpectra()];
+            for (int fileIndex = 0; fileIndex < searchProtocol.getNFiles(); fileIndex++) {
+                SpectrumStore spectrumStore = searchProtocol.getSpectrumStore(fileIndex);
+                for (int i = 0; i < spectrumStore.size(); i++) {
+                    excludedSpectra[p][searchProtocol.getSpectrumIndex(fileIndex, i)] = exclusionList.isExcluded(spectrumStore.getPrecursorMz(i));
+                }
+            }
         }
 
         // Set progress counters
@@ -168,7 +266,7 @@ public class SequencesProcessor {
         ArrayList<SequenceProcessor> sequenceProcessors = new ArrayList<SequenceProcessor>(nThreads);
         ExecutorService pool = Executors.newFixedThreadPool(nThreads);
         for (int i = 0; i < nThreads; i++) {
-            SequenceProcessor sequenceProcessor = new SequenceProcessor(proteinIterator, spectrumFileName, precursorProcessor, exclusionListFilePath, identificationParameters, implementedScore, maxX, minMz, maxMz, maxModifications, maxSites);
+            SequenceProcessor sequenceProcessor = new SequenceProcessor(proteinIterator, searchProtocols, spectrumOffsets, excludedSpectra, identificationParameters, implementedScore, maxX, maxModifications, maxSites, screenIsoforms, decoyMode);
             sequenceProcessors.add(sequenceProcessor);
             pool.submit(sequenceProcessor);
         }
@@ -181,17 +279,157 @@ public class SequencesProcessor {
 
         // Gather the information saved by every sequence processor
         waitingHandler.setSecondaryProgressCounterIndeterminate(true);
+        long nPeptides = 0;
+        long nPeptidesProcessed = 0;
+        for (SequenceProcessor sequenceProcessor : sequenceProcessors) {
+            nPeptides += sequenceProcessor.nPeptides;
+            nPeptidesProcessed += sequenceProcessor.nPeptidesProcessed;
+        }
+        waitingHandler.appendReport(nPeptides + " peptides digested, " + nPeptidesProcessed + " processed.", true, true);
+        waitingHandler.appendReport("Inspected peptides filter: " + (peptidesInspected.getMemory() >> 20) + " MB, " + Math.round(100 * peptidesInspected.getFillRatio()) + "% filled, estimated false positive rate " + peptidesInspected.getFalsePositiveRate() + ".", true, true);
+
+        // Report the use of the annotation settings cache
+        long cacheHits = 0;
+        long cacheMisses = 0;
+        for (SequenceProcessor processor : sequenceProcessors) {
+            for (PsmScorer[] filePsmScorers : processor.psmScorers) {
+                for (PsmScorer psmScorer : filePsmScorers) {
+                    cacheHits += psmScorer.getCacheHits();
+                    cacheMisses += psmScorer.getCacheMisses();
+                }
+            }
+        }
+        if (cacheHits + cacheMisses > 0) {
+            double hitRate = 100.0 * cacheHits / (cacheHits + cacheMisses);
+            waitingHandler.appendReport("Annotation settings cache: " + cacheMisses + " settings computed, hit rate " + Math.round(hitRate) + "%.", true, true);
+        }
+        processedPeptides = null;
+
+        // Map the sequences of the retained PSMs to their proteins
+        if (!waitingHandler.isRunCanceled()) {
+            mapProteins(identificationParameters, maxX, nThreads, decoyMode);
+        }
+
+    }
+
+    /**
+     * Maps the sequences of the retained PSMs to their proteins in a second
+     * pass on the database where the proteins are digested like for the
+     * search. Sequences are screened using their hash before being compared.
+     *
+     * @param identificationParameters the identification parameters
+     * @param maxX the maximal number of Xs to allow in a peptide sequence
+     * @param nThreads the number of threads to use
+     * @param decoyMode the way decoy peptides are obtained
+     *
+     * @throws InterruptedException exception thrown if a threading issue
+     * occurs.
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the database
+     */
+    private void mapProteins(IdentificationParameters identificationParameters, int maxX, int nThreads, DecoyMode decoyMode) throws InterruptedException, IOException {
+
+        // Gather the sequences of the retained PSMs and of their targets when decoys are generated
+        int nProtocols = searchProtocols.size();
+        peptideProteinsMaps = new ArrayList<HashMap<String, PeptideProteins>>(nProtocols);
+        ArrayList<HashMap<String, PeptideProteins>> decoyPeptideProteinsMaps = new ArrayList<HashMap<String, PeptideProteins>>(nProtocols);
+        ConcurrentLongHashSet sequenceHashes = new ConcurrentLongHashSet();
+        for (int p = 0; p < nProtocols; p++) {
+            HashMap<String, PeptideProteins> peptideProteinsMap = new HashMap<String, PeptideProteins>();
+            HashMap<String, PeptideProteins> decoyPeptideProteinsMap = new HashMap<String, PeptideProteins>();
+            for (SpectrumPsms spectrumPsms : protocolPsms.get(p)) {
+                for (Psm psm : spectrumPsms.getPsms()) {
+                    String sequence = psm.getPeptide().getSequence();
+                    if (!peptideProteinsMap.containsKey(sequence)) {
+                        PeptideProteins peptideProteins = new PeptideProteins();
+                        peptideProteinsMap.put(sequence, peptideProteins);
+                        sequenceHashes.add(BlockedBloomFilter.getHash(BlockedBloomFilter.getHash(sequence), p));
+                        if (decoyMode != DecoyMode.concatenated) {
+                            String targetSequence = DecoyGenerator.getDecoySequence(sequence, decoyMode);
+                            if (!targetSequence.equals(sequence)) {
+                                decoyPeptideProteinsMap.put(targetSequence, peptideProteins);
+                                sequenceHashes.add(BlockedBloomFilter.getHash(BlockedBloomFilter.getHash(targetSequence), p));
+                            }
+                        }
+                    }
+                }
+            }
+            peptideProteinsMaps.add(peptideProteinsMap);
+            decoyPeptideProteinsMaps.add(decoyPeptideProteinsMap);
+        }
+
+        // Set progress counters
+        waitingHandler.setSecondaryProgressCounterIndeterminate(false);
+        waitingHandler.setMaxSecondaryProgressCounter(sequenceFactory.getNSequences());
+
+        // Make a pool of protein mappers
+        SequenceFactory.ProteinIterator proteinIterator = sequenceFactory.getProteinIterator(false);
+        ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+        for (int i = 0; i < nThreads; i++) {
+            ProteinMapper proteinMapper = new ProteinMapper(proteinIterator, sequenceHashes, decoyPeptideProteinsMaps, identificationParameters, maxX, decoyMode);
+            pool.submit(proteinMapper);
+        }
+
+        // Execute
+        pool.shutdown();
+        if (!pool.awaitTermination(Integer.MAX_VALUE, TimeUnit.DAYS)) {
+            waitingHandler.appendReport("Protein mapping timed out.", true, true);
+        }
+        waitingHandler.setSecondaryProgressCounterIndeterminate(true);
     }
 
     /**
-     * Returns a map of the PSMs for every peptide found for every spectrum.
+     * Returns a map of the PSMs for every peptide found for every spectrum of
+     * the first file of the first search protocol.
      *
      * @return a map of the PSMs for every peptide found for every spectrum
      */
-    public HashMap<String, HashMap<String, Psm>> getPsms() {
+    public HashMap<String, SpectrumPsms> getPsms() {
+        return getPsms(0, 0);
+    }
+
+    /**
+     * Returns a map of the PSMs for every peptide found for every spectrum of
+     * the given file of the given search protocol.
+     *
+     * @param protocolIndex the index of the search protocol
+     * @param fileIndex the index of the file in the search protocol
+     *
+     * @return a map of the PSMs for every peptide found for every spectrum
+     */
+    public HashMap<String, SpectrumPsms> getPsms(int protocolIndex, int fileIndex) {
+        SearchProtocol searchProtocol = searchProtocols.get(protocolIndex);
+        SpectrumPsms[] psms = protocolPsms.get(protocolIndex);
+        SpectrumStore spectrumStore = searchProtocol.getSpectrumStore(fileIndex);
+        HashMap<String, SpectrumPsms> psmMap = new HashMap<String, SpectrumPsms>(spectrumStore.size());
+        for (int i = 0; i < spectrumStore.size(); i++) {
+            psmMap.put(spectrumStore.getTitle(i), psms[searchProtocol.getSpectrumIndex(fileIndex, i)]);
+        }
         return psmMap;
     }
 
+    /**
+     * Returns the proteins of every peptide sequence digested for the first
+     * search protocol indexed by sequence.
+     *
+     * @return the proteins of every peptide sequence digested
+     */
+    public HashMap<String, PeptideProteins> getPeptideProteins() {
+        return getPeptideProteins(0);
+    }
+
+    /**
+     * Returns the proteins of every peptide sequence digested for the given
+     * search protocol indexed by sequence.
+     *
+     * @param protocolIndex the index of the search protocol
+     *
+     * @return the proteins of every peptide sequence digested
+     */
+    public HashMap<String, PeptideProteins> getPeptideProteins(int protocolIndex) {
+        return peptideProteinsMaps.get(protocolIndex);
+    }
+
     /**
      * Private runnable to process a sequence.
      */
@@ -210,108 +448,181 @@ public class SequencesProcessor {
          */
         private IteratorFactory iteratorFactory;
         /**
-         * The precursor map to use.
+         * The index of the first spectrum of every search protocol in the
+         * inspected peptides filter.
          */
-        private PrecursorProcessor precursorProcessor;
+        private int[] spectrumOffsets;
         /**
-         * The name of the spectrum file to compare the sequences to.
+         * Boolean indicating for every spectrum of every search protocol
+         * whether it is excluded.
          */
-        private String spectrumFileName;
+        private boolean[][] protocolExcludedSpectra;
         /**
-         * The score to use.
+         * The scorers used to score the PSMs of every file of every search
+         * protocol.
          */
-        private PsmScore implementedScore;
+        private PsmScorer[][] psmScorers;
         /**
-         * The object used to estimate the hyperscore.
+         * The current search protocol.
          */
-        private HyperScore hyperScoreEstimator;
+        private SearchProtocol searchProtocol;
         /**
-         * The object used to estimate the SNR score.
+         * The precursor map of the current search protocol.
          */
-        private SnrScore snrScoreEstimator;
+        private PrecursorProcessor precursorProcessor;
+        /**
+         * The scorers used to score the PSMs of every file of the current
+         * search protocol.
+         */
+        private PsmScorer[] filePsmScorers;
         /**
-         * A spectrum annotator.
+         * Boolean indicating for every spectrum of the current search
+         * protocol whether it is excluded.
          */
-        private PeptideSpectrumAnnotator peptideSpectrumAnnotator = new PeptideSpectrumAnnotator();
+        private boolean[] excludedSpectra;
         /**
-         * An iterator for the possible modification profiles.
+         * The index of the first spectrum of the current search protocol in
+         * the inspected peptides filter.
          */
-        private ModificationProfileIterator modificationProfileIterator = new ModificationProfileIterator();
+        private int spectrumOffset;
         /**
-         * Map of modifications with overlapping targets.
+         * The PSMs of the current search protocol indexed by spectrum.
          */
-        private HashMap<String, HashSet<String>> overlappingModifications;
+        private SpectrumPsms[] psms;
         /**
-         * A list of excluded m/z.
+         * The index of the current search protocol.
          */
-        private ExclusionList exclusionList;
+        private int protocolIndex;
         /**
          * The maximal number of modifications
          */
         private HashMap<String, Integer> maxModifications;
         /**
-         * Cache for the mass contribution of protons at different charges.
+         * The preferred number of modification sites to iterate per
+         * modification.
+         */
+        private int maxSites;
+        /**
+         * Boolean indicating whether only representative isoforms should be
+         * scored, to be localized exhaustively later.
          */
-        private double[] protonContributionCache;
+        private boolean screenIsoforms;
         /**
-         * Cache for the mass contribution of neutrons at different isotopes.
+         * The way decoy peptides are obtained.
          */
-        private double[] neutronContributionCache;
+        private DecoyMode decoyMode;
         /**
-         * The preferred number of modification sites to iterate per
-         * modification.
+         * The fixed modifications.
          */
-        private int maxSites;
+        private ArrayList<PTM> fixedModifications;
+        /**
+         * The minimal charge searched.
+         */
+        private int minCharge;
+        /**
+         * The maximal charge searched.
+         */
+        private int maxCharge;
+        /**
+         * Factory for the modification iterators.
+         */
+        private PeptideModificationsIteratorFactory modificationsIteratorFactory;
+        /**
+         * The variable modifications in the order used for the peptide keys.
+         */
+        private String[] orderedModifications;
+        /**
+         * The indexes of the neutral masses matching a modified peptide.
+         */
+        private int[] precursorMatches = new int[16];
+        /**
+         * Buffer for the sites of the modifications of an isoform.
+         */
+        private int[] isoformSites = new int[8];
+        /**
+         * Buffer for the indexes of the modifications of an isoform.
+         */
+        private int[] isoformModifications = new int[8];
+        /**
+         * The sequence matching preferences used for the keys of the
+         * peptides.
+         */
+        private SequenceMatchingPreferences sequenceMatchingPreferences;
+        /**
+         * The number of peptides digested.
+         */
+        private long nPeptides = 0;
+        /**
+         * The number of peptides processed after removal of the sequences
+         * already processed in the same protein context.
+         */
+        private long nPeptidesProcessed = 0;
 
         /**
          * Constructor.
          *
          * @param proteinIterator the protein iterator to use to iterate the
          * different proteins
-         * @param spectrumFileName the name of the spectrum file
-         * @param precursorProcessor the precursor processor for this file
-         * @param exclusionListFilePath path of the exclusion list to use
+         * @param searchProtocols the search protocols
+         * @param spectrumOffsets the index of the first spectrum of every
+         * search protocol in the inspected peptides filter
+         * @param excludedSpectra boolean indicating for every spectrum of
+         * every search protocol whether it is excluded
          * @param identificationParameters the identification parameters to use
          * @param implementedScore the score to use
          * @param maxX the maximal number of Xs to allow in a peptide
-         * @param removeZeros boolean indicating whether the peptide assumptions
-         * of score zero should be removed
-         * @param minMz the minimal m/z to consider
-         * @param maxMz the maximal m/z to consider
          * @param maxModifications the maximal number of modifications
-         * @param textExporter the text exporter used to write the results
+         * @param maxSites the preferred number of sites to iterate for every
+         * PTM
+         * @param screenIsoforms boolean indicating whether only
+         * representative isoforms should be scored
+         * @param decoyMode the way decoy peptides are obtained
          *
          * @throws IOException exception thrown whenever an error occurred while
          * reading the exclusion list file
          */
-        public SequenceProcessor(SequenceFactory.ProteinIterator proteinIterator, String spectrumFileName, PrecursorProcessor precursorProcessor, String exclusionListFilePath, IdentificationParameters identificationParameters, PsmScore implementedScore, int maxX, Double minMz, Double maxMz, HashMap<String, Integer> maxModifications, int maxSites) throws IOException {
+        public SequenceProcessor(SequenceFactory.ProteinIterator proteinIterator, ArrayList<SearchProtocol> searchProtocols, int[] spectrumOffsets, boolean[][] excludedSpectra, IdentificationParameters identificationParameters, PsmScore implementedScore, int maxX, HashMap<String, Integer> maxModifications, int maxSites, boolean screenIsoforms, DecoyMode decoyMode) throws IOException {
             this.proteinIterator = proteinIterator;
-            this.spectrumFileName = spectrumFileName;
-            this.precursorProcessor = precursorProcessor;
+            this.spectrumOffsets = spectrumOffsets;
             this.identificationParameters = identificationParameters;
-            this.implementedScore = implementedScore;
-            SearchParameters searchParameters = identificationParameters.getSearchParameters();
-            if (exclusionListFilePath != null) {
-                exclusionList = new ExclusionList(exclusionListFilePath, searchParameters.getPrecursorAccuracy(), searchParameters.isPrecursorAccuracyTypePpm(), minMz, maxMz);
-            } else {
-                exclusionList = new ExclusionList(searchParameters.getPrecursorAccuracy(), searchParameters.isPrecursorAccuracyTypePpm(), minMz, maxMz);
-            }
+            this.protocolExcludedSpectra = excludedSpectra;
             iteratorFactory = new IteratorFactory(identificationParameters.getSearchParameters().getPtmSettings().getFixedModifications(), maxX);
             if (maxModifications != null) {
                 this.maxModifications = new HashMap<String, Integer>(maxModifications);
             } else {
                 this.maxModifications = new HashMap<String, Integer>(0);
             }
-            switch (implementedScore) {
-                case hyperscore:
-                    hyperScoreEstimator = new HyperScore();
-                    break;
-                case snrScore:
-                    snrScoreEstimator = new SnrScore();
-                    break;
-                default:
-                    throw new UnsupportedOperationException("Score " + implementedScore + " not implemented.");
+            this.maxSites = maxSites;
+            this.screenIsoforms = screenIsoforms;
+            this.decoyMode = decoyMode;
+            PTMFactory ptmFactory = PTMFactory.getInstance();
+            fixedModifications = new ArrayList<PTM>();
+            for (String ptmName : identificationParameters.getSearchParameters().getPtmSettings().getFixedModifications()) {
+                fixedModifications.add(ptmFactory.getPTM(ptmName));
             }
+            psmScorers = new PsmScorer[searchProtocols.size()][];
+            for (int p = 0; p < searchProtocols.size(); p++) {
+                SearchProtocol protocol = searchProtocols.get(p);
+                psmScorers[p] = new PsmScorer[protocol.getNFiles()];
+                for (int fileIndex = 0; fileIndex < protocol.getNFiles(); fileIndex++) {
+                    psmScorers[p][fileIndex] = new PsmScorer(implementedScore, identificationParameters, protocol.getSpectrumStore(fileIndex));
+                }
+            }
+        }
+
+        /**
+         * Sets the search protocol against which the peptides are matched.
+         *
+         * @param protocolIndex the index of the search protocol
+         */
+        private void setSearchProtocol(int protocolIndex) {
+            searchProtocol = searchProtocols.get(protocolIndex);
+            precursorProcessor = searchProtocol.getPrecursorProcessor();
+            filePsmScorers = psmScorers[protocolIndex];
+            excludedSpectra = protocolExcludedSpectra[protocolIndex];
+            spectrumOffset = spectrumOffsets[protocolIndex];
+            psms = protocolPsms.get(protocolIndex);
+            this.protocolIndex = protocolIndex;
         }
 
         @Override
@@ -321,73 +632,39 @@ public class SequencesProcessor {
 
                 // The search settings
                 SearchParameters searchParameters = identificationParameters.getSearchParameters();
-                DigestionPreferences digestionPreferences = searchParameters.getDigestionPreferences();
-                int minCharge = searchParameters.getMinChargeSearched().value;
-                int maxCharge = searchParameters.getMaxChargeSearched().value;
-                int minIsotope = searchParameters.getMinIsotopicCorrection();
-                int maxIsotope = searchParameters.getMaxIsotopicCorrection();
-
-                // Cache for the proton and isotope contribution
-                protonContributionCache = new double[maxCharge-minCharge+1];
-                for (int charge = minCharge; charge <= maxCharge; charge++) {
-                    protonContributionCache[charge-minCharge] = charge * ElementaryIon.proton.getTheoreticMass();
-                }
-                neutronContributionCache = new double[maxIsotope - minIsotope + 1];
-                for (int isotope = minIsotope ; isotope <= maxIsotope ; isotope++) {
-                    neutronContributionCache[isotope] = isotope * ElementaryElement.neutron.getMass();
-                }
+                int nProtocols = searchProtocols.size();
+                minCharge = searchParameters.getMinChargeSearched().value;
+                maxCharge = searchParameters.getMaxChargeSearched().value;
 
                 // Store information on the searched modifications
-                PtmSettings ptmSettings = searchParameters.getPtmSettings();
-                int nVariableModifications = ptmSettings.getVariableModifications().size();
-                HashMap<String, PTM> variablePtms = new HashMap<String, PTM>(nVariableModifications);
-                HashMap<String, Double> variablePtmMasses = new HashMap<String, Double>(nVariableModifications);
-                overlappingModifications = new HashMap<String, HashSet<String>>(nVariableModifications);
-                for (String ptmName : ptmSettings.getVariableModifications()) {
-                    PTM ptm = ptmFactory.getPTM(ptmName);
-                    variablePtms.put(ptmName, ptm);
-                    variablePtmMasses.put(ptmName, ptm.getMass());
-                    if (ptm.getType() == PTM.MODAA) {
-                        for (String ptmName2 : ptmSettings.getVariableModifications()) {
-                            if (!ptmName.equals(ptmName2)) {
-                                PTM ptm2 = ptmFactory.getPTM(ptmName2);
-                                if (ptm2.getType() == PTM.MODAA) {
-                                    HashSet<Character> aas1 = ptm.getPattern().getAminoAcidsAtTargetSet();
-                                    for (Character aa2 : ptm2.getPattern().getAminoAcidsAtTarget()) {
-                                        if (aas1.contains(aa2)) {
-                                            HashSet<String> conflicts = overlappingModifications.get(ptmName);
-                                            if (conflicts == null) {
-                                                conflicts = new HashSet<String>(1);
-                                                overlappingModifications.put(ptmName, conflicts);
-                                            }
-                                            conflicts.add(ptmName2);
-                                            break;
-                                        }
-                                    }
-                                }
-                            }
+                modificationsIteratorFactory = new PeptideModificationsIteratorFactory(searchParameters.getPtmSettings());
+                orderedModifications = modificationsIteratorFactory.getOrderedModifications();
+
+                // Sequence settings for the keys of the peptides
+                sequenceMatchingPreferences = SequenceMatchingPreferences.getDefaultSequenceMatching();
+
+                // Digest using mass ladders when possible, the ladder is shared by the protocols
+                MassLadder massLadder = null;
+                ProteinDigester[] proteinDigesters = new ProteinDigester[nProtocols];
+                ModificationMassRange modificationMassRange = null;
+                if (MassLadder.isSupported(fixedModifications)) {
+                    massLadder = new MassLadder(fixedModifications);
+                    for (int p = 0; p < nProtocols; p++) {
+                        DigestionPreferences digestionPreferences = searchProtocols.get(p).getDigestionPreferences();
+                        if (ProteinDigester.isSupported(digestionPreferences)) {
+                            proteinDigesters[p] = new ProteinDigester(digestionPreferences);
                         }
                     }
+                    HashMap<String, PTM> variablePtms = modificationsIteratorFactory.getVariablePtms();
+                    PTM[] orderedVariablePtms = new PTM[orderedModifications.length];
+                    int[] maxOccurrences = new int[orderedModifications.length];
+                    for (int k = 0; k < orderedModifications.length; k++) {
+                        orderedVariablePtms[k] = variablePtms.get(orderedModifications[k]);
+                        Integer maxOccurrence = maxModifications.get(orderedModifications[k]);
+                        maxOccurrences[k] = maxOccurrence == null ? Integer.MAX_VALUE : maxOccurrence;
+                    }
+                    modificationMassRange = new ModificationMassRange(orderedVariablePtms, maxOccurrences);
                 }
-                ArrayList<String> orderedModificationsName = new ArrayList<String>(ptmSettings.getVariableModifications());
-                Collections.sort(orderedModificationsName);
-                ArrayList<String> orderedPeptideModificationsName = new ArrayList<String>(orderedModificationsName.size());
-
-                // Get objects for modification iteration
-                ArrayList<String> orderedModificationsNameList = new ArrayList<String>(variablePtms.keySet());
-                Collections.sort(orderedModificationsNameList);
-                String[] orderedModifications = orderedModificationsNameList.toArray(new String[orderedModificationsNameList.size()]);
-
-                // Information from the spectrum processing
-                Double massMin = precursorProcessor.getMassMin();
-                Double massMax = precursorProcessor.getMassMax();
-                PrecursorMap precursorMap = precursorProcessor.getPrecursorMap();
-
-                // Settings for the annotation of spectra
-                AnnotationSettings annotationSettings = identificationParameters.getAnnotationPreferences();
-
-                // Sequence settings for the keys of the peptides
-                SequenceMatchingPreferences sequenceMatchingPreferences = SequenceMatchingPreferences.getDefaultSequenceMatching();
 
                 // Iterate the proteins and store the possible PSMs
                 while (proteinIterator.hasNext()) {
@@ -395,297 +672,490 @@ public class SequencesProcessor {
                     // Get a protein and find all possible peptides
                     Protein protein = proteinIterator.getNextProtein();
                     String sequence = protein.getSequence();
-                    SequenceIterator sequenceIterator = iteratorFactory.getSequenceIterator(sequence, digestionPreferences, massMin, massMax);
-
                     boolean isDecoy = sequenceFactory.isDecoyAccession(protein.getAccession());
 
-                    // Iterate all peptides
-                    PeptideWithPosition peptideWithPosition;
-                    while ((peptideWithPosition = sequenceIterator.getNextPeptide()) != null) {
+                    // Compute the masses of the protein once for all protocols
+                    boolean ladderSet = massLadder != null && massLadder.setProtein(sequence);
+                    if (ladderSet) {
+                        modificationMassRange.setProtein(sequence);
+                    }
 
-                        Peptide peptide = peptideWithPosition.getPeptide();
-                        String peptideKey = peptide.getMatchingKey(sequenceMatchingPreferences);
-                        Double peptideMass = peptide.getMass();
-                        int indexOnProtein = peptideWithPosition.getPosition();
+                    // Digest the protein according to every protocol
+                    for (int p = 0; p < nProtocols; p++) {
+
+                        setSearchProtocol(p);
+                        Double massMin = precursorProcessor.getMassMin();
+                        Double massMax = precursorProcessor.getMassMax();
+                        ProteinDigester proteinDigester = proteinDigesters[p];
+
+                        if (ladderSet && proteinDigester != null) {
+
+                            // Create peptides only when a precursor can match, with or without variable modifications
+                            proteinDigester.setProtein(sequence, massLadder, massMin, massMax);
+                            while (proteinDigester.next()) {
+
+                                int start = proteinDigester.getStart();
+                                int end = proteinDigester.getEnd();
+                                double peptideMass = proteinDigester.getMass();
+                                double massLow = peptideMass + modificationMassRange.getMinMass(start, end);
+                                double massHigh = peptideMass + modificationMassRange.getMaxMass(start, end);
+
+                                if (precursorProcessor.getCandidatesStart(massLow) < precursorProcessor.getCandidatesEnd(massHigh)) {
+                                    Peptide peptide = PeptideIndex.getPeptide(sequence.substring(start, end), sequence, start, fixedModifications);
+                                    processPeptideAndDecoy(peptide, sequence, start, isDecoy);
+                                } else {
+                                    nPeptides++;
+                                    if (decoyMode != DecoyMode.concatenated && !isDecoy) {
+                                        nPeptides++;
+                                    }
+                                }
+                            }
 
-                        // Iterate posible charges
-                        for (int charge = minCharge; charge <= maxCharge; charge++) {
+                        } else {
 
-                            // Get the mass contribution of the proton
-                            double protonContribution = protonContributionCache[charge-minCharge];
+                            // Iterate all peptides
+                            DigestionPreferences digestionPreferences = searchProtocols.get(p).getDigestionPreferences();
+                            SequenceIterator sequenceIterator = iteratorFactory.getSequenceIterator(sequence, digestionPreferences, massMin, massMax);
+                            PeptideWithPosition peptideWithPosition;
+                            while ((peptideWithPosition = sequenceIterator.getNextPeptide()) != null) {
+                                processPeptideAndDecoy(peptideWithPosition.getPeptide(), sequence, peptideWithPosition.getPosition(), isDecoy);
+                            }
+                        }
+                    }
+                    if (waitingHandler.isRunCanceled()) {
+                        return;
+                    } else {
+                        waitingHandler.increaseSecondaryProgressCounter();
+                    }
+                }
+            } catch (Exception e) {
+                if (!waitingHandler.isRunCanceled()) {
+                    exceptionHandler.catchException(e);
+                    waitingHandler.setRunCanceled();
+                }
+            }
+        }
 
-                            // Set the annotation preferences for this peptide
-                            PeptideAssumption peptideAssumption = new PeptideAssumption(peptide, new Charge(Charge.PLUS, charge));
-                            SpecificAnnotationSettings specificAnnotationSettings = annotationSettings.getSpecificAnnotationPreferences(null, peptideAssumption, identificationParameters.getSequenceMatchingPreferences(), identificationParameters.getPtmScoringPreferences().getSequenceMatchingPreferences());
+        /**
+         * Processes the given peptide and, if decoys are not concatenated to
+         * the database, its decoy.
+         *
+         * @param peptide the peptide
+         * @param proteinSequence the sequence of the protein
+         * @param indexOnProtein the index of the peptide on the protein
+         * @param isDecoy a boolean indicating whether the peptide is a decoy
+         *
+         * @throws IOException exception thrown if an error occurred while
+         * reading or writing a file
+         * @throws InterruptedException exception thrown if a threading error
+         * occurred
+         * @throws ClassNotFoundException exception thrown if an error occurred
+         * while deserializing an object
+         * @throws SQLException exception thrown if an error occurred while
+         * interacting with a database
+         * @throws MzMLUnmarshallerException exception thrown if an error
+         * occurred while reading an mzML file
+         */
+        private void processPeptideAndDecoy(Peptide peptide, String proteinSequence, int indexOnProtein, boolean isDecoy) throws IOException, InterruptedException, ClassNotFoundException, SQLException, MzMLUnmarshallerException {
+
+            processPeptide(peptide, proteinSequence, indexOnProtein, isDecoy);
+
+            // Process the decoy peptide
+            if (decoyMode != DecoyMode.concatenated && !isDecoy) {
+                String peptideSequence = peptide.getSequence();
+                String decoySequence = DecoyGenerator.getDecoySequence(peptideSequence, decoyMode);
+                if (!decoySequence.equals(peptideSequence)) {
+                    int flankingLength = modificationsIteratorFactory.getContextFlankingLength();
+                    String decoyProteinWindow = DecoyGenerator.getDecoyProteinWindow(proteinSequence, indexOnProtein, indexOnProtein + peptideSequence.length(), flankingLength, decoyMode);
+                    int indexOnWindow = DecoyGenerator.getWindowStart(indexOnProtein, flankingLength);
+                    Peptide decoyPeptide = PeptideIndex.getPeptide(decoySequence, decoyProteinWindow, indexOnWindow, fixedModifications);
+                    processPeptide(decoyPeptide, decoyProteinWindow, indexOnWindow, true);
+                }
+            }
+        }
 
-                            // Iterate possible isotopes
-                            for (int isotope = minIsotope; isotope <= maxIsotope; isotope++) {
+        /**
+         * Matches the given peptide to the precursors of the current search
+         * protocol and scores it against the matching spectra. Every sequence
+         * is processed only once per protein context.
+         *
+         * @param peptide the peptide
+         * @param proteinSequence the sequence of the protein
+         * @param indexOnProtein the index of the peptide on the protein
+         * @param isDecoy a boolean indicating whether the peptide is a decoy
+         *
+         * @throws IOException exception thrown if an error occurred while
+         * reading or writing a file
+         * @throws InterruptedException exception thrown if a threading error
+         * occurred
+         * @throws ClassNotFoundException exception thrown if an error occurred
+         * while deserializing an object
+         * @throws SQLException exception thrown if an error occurred while
+         * interacting with a database
+         * @throws MzMLUnmarshallerException exception thrown if an error
+         * occurred while reading an mzML file
+         */
+        private void processPeptide(Peptide peptide, String proteinSequence, int indexOnProtein, boolean isDecoy) throws IOException, InterruptedException, ClassNotFoundException, SQLException, MzMLUnmarshallerException {
+
+            nPeptides++;
+            String peptideSequence = peptide.getSequence();
+
+            // Process every sequence only once per protein context, termini and flanking residues influencing the modifications
+            String context = modificationsIteratorFactory.getProteinContextKey(peptideSequence.length(), proteinSequence, indexOnProtein);
+            long contextHash = BlockedBloomFilter.getHash(BlockedBloomFilter.getHash(BlockedBloomFilter.getHash(peptideSequence), context), protocolIndex);
+            if (!processedPeptides.add(contextHash)) {
+                return;
+            }
+            nPeptidesProcessed++;
+
+            String peptideKey = peptide.getMatchingKey(sequenceMatchingPreferences);
+            long peptideKeyHash = BlockedBloomFilter.getHash(peptideKey);
+            double peptideMass = peptide.getMass();
+            int nCharges = maxCharge - minCharge + 1;
+
+            // Get the precursors matching the peptide at any charge and isotope
+            SpecificAnnotationSettings[] specificAnnotationSettings = new SpecificAnnotationSettings[nCharges];
+            int candidatesEnd = precursorProcessor.getCandidatesEnd(peptideMass);
+            for (int i = precursorProcessor.getCandidatesStart(peptideMass); i < candidatesEnd; i++) {
+
+                // See if the precursor matches and is not excluded
+                int spectrumIndex = precursorProcessor.getSpectrumIndex(i);
+                if (precursorProcessor.isMatch(i, peptideMass) && !excludedSpectra[spectrumIndex]) {
+
+                    // See if the peptide has already been identified for this spectrum
+                    long inspectedHash = BlockedBloomFilter.getHash(peptideKeyHash, spectrumOffset + spectrumIndex);
+                    if (!peptidesInspected.mightContain(inspectedHash)) {
+
+                        // Get the PSMs for this spectrum
+                        SpectrumPsms spectrumPsms = psms[spectrumIndex];
+                        Object psmLock = getPsmLock(spectrumIndex);
+
+                        // See if we already have a score
+                        boolean scored;
+                        synchronized (psmLock) {
+                            scored = spectrumPsms.containsKey(peptideKey);
+                        }
+                        if (!scored) {
+
+                            // Score the peptide
+                            int charge = precursorProcessor.getCharge(i);
+                            SpecificAnnotationSettings chargeAnnotationSettings = getSpecificAnnotationSettings(specificAnnotationSettings, peptide, charge);
+                            PsmScorer psmScorer = filePsmScorers[searchProtocol.getFileIndex(spectrumIndex)];
+                            double score = psmScorer.getScore(peptide, charge, searchProtocol.getIndexInFile(spectrumIndex), chargeAnnotationSettings);
+
+                            // Retain only PSMs with a score
+                            if (score > 0) {
+
+                                // Create a PSM
+                                Psm psm = new Psm(peptide, charge, score);
+
+                                // Save PSM
+                                synchronized (psmLock) {
+                                    spectrumPsms.addPsm(peptideKey, psm);
+                                }
 
-                                // See if we have a precursor for this m/z
-                                double neutronContribution = neutronContributionCache[isotope - minIsotope];
-                                double mass = peptideMass + protonContribution + neutronContribution;
-                                double mz = mass / charge;
+                            }
 
-                                // See if the precursor is in the exclusion list
-                                if (!exclusionList.isExcluded(mz)) {
+                            // Keep track of the inspected PSMs, also retained ones as they might be discarded later
+                            peptidesInspected.add(inspectedHash);
+                        }
+                    }
+                }
+            }
+
+            // See if the peptide can be modified
+            ModificationPlan modificationPlan = modificationsIteratorFactory.getModificationPlan(peptide, proteinSequence, indexOnProtein, maxModifications);
 
-                                    // get the precursors at this m/z
-                                    ArrayList<PrecursorMap.PrecursorWithTitle> precursorMatches = precursorMap.getMatchingSpectra(mz);
+            if (!modificationPlan.isEmpty()) {
 
-                                    if (!precursorMatches.isEmpty()) {
+                // Get the possible modification combinations sorted by mass
+                ModificationProfileTable modificationProfileTable = modificationsIteratorFactory.getModificationProfileTable(modificationPlan.getMaxOccurrences());
+                HashMap<String, Integer[]> possibleModificationSites = modificationPlan.getPossibleModificationSites();
 
-                                        // Iterate all precursor matches
-                                        for (PrecursorMap.PrecursorWithTitle precursorWithTitle : precursorMatches) {
+                // Merge the modification profiles with the precursors, both sorted by mass
+                int modifiedCandidatesStart = 0;
+                for (int profile = 0; profile < modificationProfileTable.size(); profile++) {
+
+                    // Gather the precursors matching the modified mass
+                    double modifiedMass = peptideMass + modificationProfileTable.getMass(profile);
+                    int nMatches = 0;
+                    modifiedCandidatesStart = precursorProcessor.getCandidatesStart(modifiedMass, modifiedCandidatesStart);
+                    int modifiedCandidatesEnd = precursorProcessor.getCandidatesEnd(modifiedMass, modifiedCandidatesStart);
+                    for (int i = modifiedCandidatesStart; i < modifiedCandidatesEnd; i++) {
+                        if (precursorProcessor.isMatch(i, modifiedMass) && !excludedSpectra[precursorProcessor.getSpectrumIndex(i)]) {
+                            if (nMatches == precursorMatches.length) {
+                                precursorMatches = Arrays.copyOf(precursorMatches, 2 * nMatches);
+                            }
+                            precursorMatches[nMatches++] = i;
+                        }
+                    }
 
-                                            // Get the spectrum title
-                                            String spectrumTitle = precursorWithTitle.spectrumTitle;
+                    if (nMatches > 0) {
 
-                                            // See if the peptide has already been identified for this spectrum
-                                            HashSet<String> peptidesInspectedForSpectrum = peptidesInspected.get(spectrumTitle);
-                                            if (!peptidesInspectedForSpectrum.contains(peptideKey)) {
+                        // Get the number of modifications
+                        HashMap<String, Integer> modificationOccurrence = new HashMap<String, Integer>(modificationProfileTable.getModificationOccurrence(profile));
 
-                                                // Get the PSMs map for this spectrum
-                                                HashMap<String, Psm> spectrumPsms = psmMap.get(spectrumTitle);
+                        // Create PeptideDraft
+                        PeptideDraft peptideDraft = new PeptideDraft(peptide.getSequence(), precursorProcessor.getCharge(precursorMatches[0]), modificationOccurrence, possibleModificationSites, isDecoy);
 
-                                                // See if we already have a score
-                                                if (!spectrumPsms.containsKey(peptideKey)) {
+                        // Compute a key for this peptide to see if it was already inspected
+                        String genericModifiedPeptideKey = peptideDraft.getKey(orderedModifications, sequenceMatchingPreferences);
 
-                                                    // Get the spectrum annotation
-                                                    MSnSpectrum spectrum = (MSnSpectrum) spectrumFactory.getSpectrum(spectrumFileName, spectrumTitle);
-                                                    ArrayList<IonMatch> ionMatches = peptideSpectrumAnnotator.getSpectrumAnnotation(annotationSettings, specificAnnotationSettings, spectrum, peptide);
+                        // See if the peptide has already been identified for the spectrum of the first precursor
+                        long inspectedHash = BlockedBloomFilter.getHash(BlockedBloomFilter.getHash(genericModifiedPeptideKey), spectrumOffset + precursorProcessor.getSpectrumIndex(precursorMatches[0]));
 
-                                                    // Retain only matches yielding fragment ions
-                                                    boolean retainedPSM = false;
-                                                    if (!ionMatches.isEmpty()) {
+                        // if new, iterate possible modification sites
+                        if (!peptidesInspected.mightContain(inspectedHash)) {
 
-                                                        // Get the score
-                                                        double score;
-                                                        switch (implementedScore) {
-                                                            case hyperscore:
-                                                                score = hyperScoreEstimator.getScore(peptide, spectrum, annotationSettings, specificAnnotationSettings, ionMatches);
-                                                                break;
-                                                            case snrScore:
-                                                                score = snrScoreEstimator.getScore(peptide, spectrum, annotationSettings, specificAnnotationSettings, ionMatches);
-                                                                break;
-                                                            default:
-                                                                throw new UnsupportedOperationException("Score " + implementedScore + " not implemented.");
-                                                        }
+                            // Create an iterator for the possible isoforms, only representative ones when screening
+                            ModificationIsoformIterator isoformIterator;
+                            LocalizationCandidate localizationCandidate = null;
+                            if (screenIsoforms) {
+                                isoformIterator = modificationsIteratorFactory.getScreeningIsoformIterator(modificationPlan, modificationProfileTable, profile);
+                                localizationCandidate = new LocalizationCandidate(peptide, modificationPlan, modificationProfileTable, profile);
+                            } else {
+                                isoformIterator = modificationsIteratorFactory.getModificationIsoformIterator(modificationPlan, modificationProfileTable, profile, maxSites);
+                            }
+                            int nModifications = isoformIterator.getNModifications();
+                            if (nModifications > isoformSites.length) {
+                                isoformSites = new int[nModifications];
+                                isoformModifications = new int[nModifications];
+                            }
 
-                                                        // Retain only PSMs with a score
-                                                        if (score > 0) {
+                            if (filePsmScorers[0].isIncremental()) {
 
-                                                            // Create a PSM
-                                                            Psm psm = new Psm(peptide, charge, score);
+                                // Go through all possibilities for every precursor, consecutive isoforms are scored incrementally
+                                for (int j = 0; j < nMatches; j++) {
 
-                                                            // Save PSM
-                                                            scoresMapMutex.acquire(spectrumTitle);
-                                                            spectrumPsms.put(peptideKey, psm);
-                                                            scoresMapMutex.release(spectrumTitle);
-                                                            retainedPSM = true;
+                                    // Get the spectrum and charge
+                                    int i = precursorMatches[j];
+                                    int spectrumIndex = precursorProcessor.getSpectrumIndex(i);
+                                    int charge = precursorProcessor.getCharge(i);
+                                    SpectrumPsms spectrumPsms = psms[spectrumIndex];
+                                    PsmScorer psmScorer = filePsmScorers[searchProtocol.getFileIndex(spectrumIndex)];
+                                    psmScorer.setIsoformPeptide(peptide, charge, searchProtocol.getIndexInFile(spectrumIndex), modificationsIteratorFactory.getOrderedModificationMasses());
+                                    isoformIterator.reset();
+                                    while (isoformIterator.hasNext()) {
 
-                                                        }
-                                                    }
+                                        // Score the isoform
+                                        isoformIterator.getIsoform(isoformSites, isoformModifications);
+                                        double score = psmScorer.getIsoformScore(isoformSites, isoformModifications, nModifications);
 
-                                                    // Keep track of the inspected PSMs
-                                                    if (!retainedPSM) {
+                                        // Retain only PSMs with a score
+                                        if (score > 0) {
 
-                                                        // Make sure that the list of inspected peptides does not get too long
-                                                        if (peptidesInspectedForSpectrum.size() == 8192) {
-                                                            peptidesInspectedForSpectrum.clear();
-                                                        }
+                                            // Create a PSM
+                                            Peptide modifiedPeptide = modificationsIteratorFactory.getModifiedPeptide(peptide, isoformSites, isoformModifications, nModifications);
+                                            Psm psm = new Psm(modifiedPeptide, charge, score, localizationCandidate);
 
-                                                        // Add the peptide to the inspected peptides list
-                                                        peptidesInspectedForSpectrum.add(peptideKey);
-                                                    }
-                                                }
+                                            // Save PSM
+                                            synchronized (getPsmLock(spectrumIndex)) {
+                                                spectrumPsms.addPsm(modifiedPeptide.getKey(), psm);
                                             }
                                         }
                                     }
                                 }
+                            } else {
 
-                                // See if the peptide can be modified
-                                HashMap<String, Integer[]> possibleModificationSites = new HashMap<String, Integer[]>(1);
-                                HashMap<String, Integer> possibleModificationOccurence = new HashMap<String, Integer>(1);
-                                for (PTM ptm : variablePtms.values()) {
-                                    ArrayList<Integer> ptmSites = peptide.getPotentialModificationSitesNoCombination(ptm, protein.getSequence(), indexOnProtein);
-                                    if (!ptmSites.isEmpty()) {
-                                        String ptmName = ptm.getName();
-                                        possibleModificationSites.put(ptmName, ptmSites.toArray(new Integer[ptmSites.size()]));
-                                        Integer maximalOccurrence = maxModifications.get(ptmName);
-                                        if (maximalOccurrence == null) {
-                                            maximalOccurrence = ptmSites.size();
-                                        } else {
-                                            maximalOccurrence = Math.min(ptmSites.size(), maximalOccurrence);
-                                        }
-                                        possibleModificationOccurence.put(ptmName, maximalOccurrence);
-                                    }
-                                }
+                                // Go through all possibilities
+                                while (isoformIterator.hasNext()) {
+
+                                    // Create a modified peptide
+                                    isoformIterator.getIsoform(isoformSites, isoformModifications);
+                                    Peptide modifiedPeptide = modificationsIteratorFactory.getModifiedPeptide(peptide, isoformSites, isoformModifications, nModifications);
+                                    String modifiedPeptideKey = modifiedPeptide.getKey();
+                                    SpecificAnnotationSettings[] modifiedSpecificAnnotationSettings = new SpecificAnnotationSettings[nCharges];
+
+                                    // Iterate all precursor matches
+                                    for (int j = 0; j < nMatches; j++) {
 
-                                if (!possibleModificationOccurence.isEmpty()) {
-
-                                    // Get the possible modification combinations     
-                                    ArrayList<ModificationProfile> modificationProfiles = modificationProfileIterator.getPossibleModificationProfiles(possibleModificationOccurence, variablePtmMasses);
-
-                                    // See if the modification profiles yield matches among the precursors
-                                    for (ModificationProfile modificationProfile : modificationProfiles) {
-
-                                        // See if the modified mass yields to any precursor match
-                                        double modifedMass = mass + modificationProfile.getMass();
-                                        mz = modifedMass / charge;
-
-                                        // See if the precursor is in the exclusion list
-                                        if (!exclusionList.isExcluded(mz)) {
-
-                                            // get the precursors at this m/z
-                                            ArrayList<PrecursorMap.PrecursorWithTitle> precursorMatches = precursorMap.getMatchingSpectra(mz);
-
-                                            if (!precursorMatches.isEmpty()) {
-
-                                                // Get the number of modifications
-                                                HashMap<String, Integer> modificationOccurrence = new HashMap<String, Integer>(modificationProfile.getModificationOccurence());
-
-                                                // Create PeptideDraft
-                                                PeptideDraft peptideDraft = new PeptideDraft(peptide.getSequence(), charge, modificationOccurrence, possibleModificationSites, isDecoy);
-
-                                                // Compute a key for this peptide to see if it was already inspected
-                                                String genericModifiedPeptideKey = peptideDraft.getKey(orderedModifications, sequenceMatchingPreferences);
-
-                                                // Get a precursor to see if the peptide was already inspected
-                                                PrecursorMap.PrecursorWithTitle precursorWithTitle = precursorMatches.get(0);
-                                                boolean newPeptide = true;
-
-                                                // Get the spectrum title
-                                                String spectrumTitle = precursorWithTitle.spectrumTitle;
-
-                                                // See if the peptide has already been identified for this spectrum
-                                                HashSet<String> peptidesInspectedForSpectrum = peptidesInspected.get(spectrumTitle);
-                                                if (peptidesInspectedForSpectrum.contains(genericModifiedPeptideKey)) {
-                                                    newPeptide = false;
-                                                }
-
-                                                // if new, iterate possible modification sites
-                                                if (newPeptide) {
-
-                                                    // Create an iterator for the possible sites
-                                                    PeptideModificationsIterator peptideModificationsIterator;
-                                                    if (modificationOccurrence.size() == 1) {
-                                                        String modificationName = modificationOccurrence.keySet().iterator().next();
-                                                        Integer[] possibleSites = possibleModificationSites.get(modificationName);
-                                                        Integer occurrence = modificationOccurrence.get(modificationName);
-                                                        peptideModificationsIterator = new SingleModificationIterator(possibleSites, occurrence, modificationName, maxSites);
-                                                    } else {
-                                                        boolean overlap = false;
-                                                        for (String modification1 : modificationOccurrence.keySet()) {
-                                                            HashSet<String> potentialConflicts = overlappingModifications.get(modification1);
-                                                            if (potentialConflicts != null) {
-                                                                for (String modification2 : modificationOccurrence.keySet()) {
-                                                                    if (potentialConflicts.contains(modification2)) {
-                                                                        overlap = true;
-                                                                        break;
-                                                                    }
-                                                                }
-                                                            }
-                                                            if (overlap) {
-                                                                break;
-                                                            }
-                                                        }
-                                                        orderedPeptideModificationsName.clear();
-                                                        for (String modification : orderedModificationsName) {
-                                                            if (modificationOccurrence.keySet().contains(modification)) {
-                                                                orderedPeptideModificationsName.add(modification);
-                                                            }
-                                                        }
-                                                        if (overlap) {
-                                                            peptideModificationsIterator = new OverlappingModificationsIterator(modificationOccurrence, possibleModificationSites, orderedPeptideModificationsName, maxSites);
-                                                        } else {
-                                                            peptideModificationsIterator = new MultipleModificationsIterators(modificationOccurrence, possibleModificationSites, orderedPeptideModificationsName, maxSites);
-                                                        }
-                                                    }
-
-                                                    // Go through all possibilities
-                                                    boolean first = true;
-                                                    while (peptideModificationsIterator.hasNext()) {
-
-                                                        // Create a modified peptide
-                                                        HashMap<String, int[]> modificationSitesMap = peptideModificationsIterator.next();
-                                                        ArrayList<ModificationMatch> modificationMatches = new ArrayList<ModificationMatch>();
-                                                        for (String modificationName : modificationSitesMap.keySet()) {
-                                                            int[] sites = modificationSitesMap.get(modificationName);
-                                                            for (Integer site : sites) {
-                                                                ModificationMatch modificationMatch = new ModificationMatch(modificationName, true, site);
-                                                                modificationMatch.setConfident(true);
-                                                                modificationMatches.add(modificationMatch);
-                                                            }
-                                                        }
-                                                        Peptide modifiedPeptide = new Peptide(peptideDraft.getSequence(), modificationMatches);
-                                                        PeptideAssumption modifiedPeptideAssumption = new PeptideAssumption(modifiedPeptide, new Charge(Charge.PLUS, charge));
-                                                        SpecificAnnotationSettings modifiedSpecificAnnotationSettings = annotationSettings.getSpecificAnnotationPreferences("", modifiedPeptideAssumption, identificationParameters.getSequenceMatchingPreferences(), identificationParameters.getPtmScoringPreferences().getSequenceMatchingPreferences());
-                                                        
-                                                        // Iterate all precursor matches
-                                                        for (PrecursorMap.PrecursorWithTitle precursorWithTitle2 : precursorMatches) {
-
-                                                            // Get the spectrum title
-                                                            spectrumTitle = precursorWithTitle2.spectrumTitle;
-
-                                                            // Get the PSM map
-                                                            HashMap<String, Psm> spectrumPsms = psmMap.get(spectrumTitle);
-
-                                                            // Get the spectrum annotation
-                                                            MSnSpectrum spectrum = (MSnSpectrum) spectrumFactory.getSpectrum(spectrumFileName, spectrumTitle);
-                                                            ArrayList<IonMatch> ionMatches = peptideSpectrumAnnotator.getSpectrumAnnotation(annotationSettings, modifiedSpecificAnnotationSettings, spectrum, modifiedPeptide);
-
-                                                            // Retain only peptides that yield fragment ions
-                                                            if (!ionMatches.isEmpty()) {
-
-                                                                // Get the score
-                                                                double score;
-                                                                switch (implementedScore) {
-                                                                    case hyperscore:
-                                                                        score = hyperScoreEstimator.getScore(modifiedPeptide, spectrum, annotationSettings, modifiedSpecificAnnotationSettings, ionMatches);
-                                                                        break;
-                                                                    case snrScore:
-                                                                        score = snrScoreEstimator.getScore(modifiedPeptide, spectrum, annotationSettings, modifiedSpecificAnnotationSettings, ionMatches);
-                                                                        break;
-                                                                    default:
-                                                                        throw new UnsupportedOperationException("Score " + implementedScore + " not implemented.");
-                                                                }
-
-                                                                // Retain only PSMs with a score
-                                                                if (score > 0) {
-
-                                                                    // Create a PSM
-                                                                    Psm psm = new Psm(modifiedPeptide, charge, score);
-
-                                                                    // Save PSM
-                                                                    String modifiedPeptideKey = modifiedPeptide.getKey();
-                                                                    scoresMapMutex.acquire(spectrumTitle);
-                                                                    spectrumPsms.put(modifiedPeptideKey, psm);
-                                                                    scoresMapMutex.release(spectrumTitle);
-                                                                }
-                                                            }
-
-                                                            // Keep track of the inspected PSMs
-                                                            if (first) {
-
-                                                                // Make sure that the list of inspected peptides for this spectrum does not get too long
-                                                                if (peptidesInspectedForSpectrum.size() == 8192) {
-                                                                    peptidesInspectedForSpectrum.clear();
-                                                                }
-
-                                                                // Add the peptide to the inspected peptides list
-                                                                peptidesInspectedForSpectrum.add(genericModifiedPeptideKey);
-
-                                                                // Avoid repeating this for all isoforms
-                                                                first = false;
-                                                            }
-                                                        }
-                                                    }
-                                                }
+                                        // Get the spectrum and charge
+                                        int i = precursorMatches[j];
+                                        int spectrumIndex = precursorProcessor.getSpectrumIndex(i);
+                                        int charge = precursorProcessor.getCharge(i);
+
+                                        // Get the PSMs of the spectrum
+                                        SpectrumPsms spectrumPsms = psms[spectrumIndex];
+
+                                        // Score the modified peptide
+                                        SpecificAnnotationSettings chargeAnnotationSettings = getSpecificAnnotationSettings(modifiedSpecificAnnotationSettings, modifiedPeptide, charge);
+                                        PsmScorer psmScorer = filePsmScorers[searchProtocol.getFileIndex(spectrumIndex)];
+                                        double score = psmScorer.getScore(modifiedPeptide, charge, searchProtocol.getIndexInFile(spectrumIndex), chargeAnnotationSettings);
+
+                                        // Retain only PSMs with a score
+                                        if (score > 0) {
+
+                                            // Create a PSM
+                                            Psm psm = new Psm(modifiedPeptide, charge, score, localizationCandidate);
+
+                                            // Save PSM
+                                            synchronized (getPsmLock(spectrumIndex)) {
+                                                spectrumPsms.addPsm(modifiedPeptideKey, psm);
                                             }
                                         }
                                     }
                                 }
                             }
+
+                            // Add the peptide to the inspected peptides filter
+                            peptidesInspected.add(inspectedHash);
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Returns the lock guarding the PSMs of the given spectrum of the
+         * current search protocol.
+         *
+         * @param spectrumIndex the index of the spectrum in the search
+         * protocol
+         *
+         * @return the lock guarding the PSMs of the spectrum
+         */
+        private Object getPsmLock(int spectrumIndex) {
+            return psmLocks[(spectrumOffset + spectrumIndex) & (psmLocks.length - 1)];
+        }
+
+        /**
+         * Returns the annotation settings for the given peptide at the given
+         * charge, using the given cache where annotation settings are stored
+         * per charge.
+         *
+         * @param specificAnnotationSettings the annotation settings already
+         * computed for this peptide indexed by charge
+         * @param peptide the peptide
+         * @param charge the charge
+         *
+         * @return the annotation settings
+         *
+         * @throws IOException exception thrown if an error occurred while
+         * reading or writing a file
+         * @throws InterruptedException exception thrown if a threading error
+         * occurred
+         * @throws ClassNotFoundException exception thrown if an error occurred
+         * while deserializing an object
+         * @throws SQLException exception thrown if an error occurred while
+         * interacting with a database
+         * @throws MzMLUnmarshallerException exception thrown if an error
+         * occurred while reading an mzML file
+         */
+        private SpecificAnnotationSettings getSpecificAnnotationSettings(SpecificAnnotationSettings[] specificAnnotationSettings, Peptide peptide, int charge) throws IOException, InterruptedException, ClassNotFoundException, SQLException, MzMLUnmarshallerException {
+            SpecificAnnotationSettings chargeAnnotationSettings = specificAnnotationSettings[charge - minCharge];
+            if (chargeAnnotationSettings == null) {
+                chargeAnnotationSettings = filePsmScorers[0].getSpecificAnnotationSettings(peptide, charge);
+                specificAnnotationSettings[charge - minCharge] = chargeAnnotationSettings;
+            }
+            return chargeAnnotationSettings;
+        }
+    }
+
+    /**
+     * Private runnable to map peptide sequences to proteins.
+     */
+    private class ProteinMapper implements Runnable {
+
+        /**
+         * The protein iterator.
+         */
+        private final SequenceFactory.ProteinIterator proteinIterator;
+        /**
+         * The hashes of the sequences to map combined with the index of
+         * their search protocol.
+         */
+        private final ConcurrentLongHashSet sequenceHashes;
+        /**
+         * The proteins of the decoy sequences to map for every search
+         * protocol indexed by the sequence of their target.
+         */
+        private final ArrayList<HashMap<String, PeptideProteins>> decoyPeptideProteinsMaps;
+        /**
+         * The sequence iterator factory.
+         */
+        private final IteratorFactory iteratorFactory;
+        /**
+         * The fixed modifications.
+         */
+        private final ArrayList<PTM> fixedModifications;
+        /**
+         * The way decoy peptides are obtained.
+         */
+        private final DecoyMode decoyMode;
+
+        /**
+         * Constructor.
+         *
+         * @param proteinIterator the protein iterator
+         * @param sequenceHashes the hashes of the sequences to map combined
+         * with the index of their search protocol
+         * @param decoyPeptideProteinsMaps the proteins of the decoy sequences
+         * to map for every search protocol indexed by the sequence of their
+         * target
+         * @param identificationParameters the identification parameters
+         * @param maxX the maximal number of Xs to allow in a peptide
+         * @param decoyMode the way decoy peptides are obtained
+         */
+        public ProteinMapper(SequenceFactory.ProteinIterator proteinIterator, ConcurrentLongHashSet sequenceHashes, ArrayList<HashMap<String, PeptideProteins>> decoyPeptideProteinsMaps, IdentificationParameters identificationParameters, int maxX, DecoyMode decoyMode) {
+            this.proteinIterator = proteinIterator;
+            this.sequenceHashes = sequenceHashes;
+            this.decoyPeptideProteinsMaps = decoyPeptideProteinsMaps;
+            this.decoyMode = decoyMode;
+            iteratorFactory = new IteratorFactory(identificationParameters.getSearchParameters().getPtmSettings().getFixedModifications(), maxX);
+            PTMFactory ptmFactory = PTMFactory.getInstance();
+            fixedModifications = new ArrayList<PTM>();
+            for (String ptmName : identificationParameters.getSearchParameters().getPtmSettings().getFixedModifications()) {
+                fixedModifications.add(ptmFactory.getPTM(ptmName));
+            }
+        }
+
+        @Override
+        public void run() {
+
+            try {
+
+                // Digest using mass ladders when possible, like for the search
+                int nProtocols = searchProtocols.size();
+                MassLadder massLadder = null;
+                ProteinDigester[] proteinDigesters = new ProteinDigester[nProtocols];
+                if (MassLadder.isSupported(fixedModifications)) {
+                    massLadder = new MassLadder(fixedModifications);
+                    for (int p = 0; p < nProtocols; p++) {
+                        DigestionPreferences digestionPreferences = searchProtocols.get(p).getDigestionPreferences();
+                        if (ProteinDigester.isSupported(digestionPreferences)) {
+                            proteinDigesters[p] = new ProteinDigester(digestionPreferences);
+                        }
+                    }
+                }
+
+                while (proteinIterator.hasNext()) {
+
+                    Protein protein = proteinIterator.getNextProtein();
+                    String sequence = protein.getSequence();
+                    String accession = protein.getAccession();
+                    boolean isDecoy = sequenceFactory.isDecoyAccession(accession);
+                    boolean ladderSet = massLadder != null && massLadder.setProtein(sequence);
+
+                    for (int p = 0; p < nProtocols; p++) {
+
+                        PrecursorProcessor precursorProcessor = searchProtocols.get(p).getPrecursorProcessor();
+                        Double massMin = precursorProcessor.getMassMin();
+                        Double massMax = precursorProcessor.getMassMax();
+                        ProteinDigester proteinDigester = proteinDigesters[p];
+
+                        if (ladderSet && proteinDigester != null) {
+                            proteinDigester.setProtein(sequence, massLadder, massMin, massMax);
+                            while (proteinDigester.next()) {
+                                mapPeptide(p, sequence, proteinDigester.getStart(), proteinDigester.getEnd(), accession, isDecoy);
+                            }
+                        } else {
+                            DigestionPreferences digestionPreferences = searchProtocols.get(p).getDigestionPreferences();
+                            SequenceIterator sequenceIterator = iteratorFactory.getSequenceIterator(sequence, digestionPreferences, massMin, massMax);
+                            PeptideWithPosition peptideWithPosition;
+                            while ((peptideWithPosition = sequenceIterator.getNextPeptide()) != null) {
+                                String peptideSequence = peptideWithPosition.getPeptide().getSequence();
+                                mapPeptide(p, peptideSequence, 0, peptideSequence.length(), accession, isDecoy);
+                            }
                         }
                     }
                     if (waitingHandler.isRunCanceled()) {
@@ -701,5 +1171,33 @@ public class SequencesProcessor {
                 }
             }
         }
+
+        /**
+         * Adds the given protein to the sequence between the given indexes
+         * and to its decoy if they are to be mapped.
+         *
+         * @param protocolIndex the index of the search protocol
+         * @param sequence the sequence containing the peptide
+         * @param start the index of the first residue of the peptide
+         * @param end the index after the last residue of the peptide
+         * @param accession the accession of the protein
+         * @param isDecoy a boolean indicating whether the protein is a decoy
+         */
+        private void mapPeptide(int protocolIndex, String sequence, int start, int end, String accession, boolean isDecoy) {
+            if (!sequenceHashes.contains(BlockedBloomFilter.getHash(BlockedBloomFilter.getHash(sequence, start, end), protocolIndex))) {
+                return;
+            }
+            String peptideSequence = sequence.substring(start, end);
+            PeptideProteins peptideProteins = peptideProteinsMaps.get(protocolIndex).get(peptideSequence);
+            if (peptideProteins != null) {
+                peptideProteins.addProtein(accession, isDecoy);
+            }
+            if (decoyMode != DecoyMode.concatenated && !isDecoy) {
+                PeptideProteins decoyPeptideProteins = decoyPeptideProteinsMaps.get(protocolIndex).get(peptideSequence);
+                if (decoyPeptideProteins != null) {
+                    decoyPeptideProteins.addProtein(DecoyGenerator.getDecoyAccession(accession), true);
+                }
+            }
+        }
     }
 }
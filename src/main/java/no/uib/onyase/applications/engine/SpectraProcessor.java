@@ -0,0 +1,528 @@
+package no.uib.onyase.applications.engine;
+
+import com.compomics.util.exceptions.ExceptionHandler;
+import com.compomics.util.experiment.biology.ElementaryElement;
+import com.compomics.util.experiment.biology.PTMFactory;
+import com.compomics.util.experiment.biology.Peptide;
+import com.compomics.util.experiment.biology.ions.ElementaryIon;
+import com.compomics.util.experiment.identification.identification_parameters.SearchParameters;
+import com.compomics.util.experiment.identification.matches.ModificationMatch;
+import com.compomics.util.experiment.identification.spectrum_annotation.SpecificAnnotationSettings;
+import com.compomics.util.preferences.IdentificationParameters;
+import com.compomics.util.preferences.SequenceMatchingPreferences;
+import com.compomics.util.waiting.WaitingHandler;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import no.uib.onyase.applications.engine.model.LocalizationCandidate;
+import no.uib.onyase.applications.engine.model.PeptideDraft;
+import no.uib.onyase.applications.engine.model.PeptideProteins;
+import no.uib.onyase.applications.engine.model.Psm;
+import no.uib.onyase.applications.engine.model.SpectrumPsms;
+import no.uib.onyase.applications.engine.modules.ModificationPlan;
+import no.uib.onyase.applications.engine.modules.ModificationProfileTable;
+import no.uib.onyase.applications.engine.modules.ModificationIsoformIterator;
+import no.uib.onyase.applications.engine.modules.PeptideModificationsIteratorFactory;
+import no.uib.onyase.applications.engine.modules.fragment_index.CandidateSelector;
+import no.uib.onyase.applications.engine.modules.fragment_index.FragmentIndex;
+import no.uib.onyase.applications.engine.modules.peptide_index.PeptideIndex;
+import no.uib.onyase.applications.engine.modules.precursor_handling.ExclusionList;
+import no.uib.onyase.applications.engine.modules.precursor_handling.PrecursorProcessor;
+import no.uib.onyase.applications.engine.modules.scoring.PsmScorer;
+import no.uib.onyase.applications.engine.modules.spectrum_store.SpectrumStore;
+import no.uib.onyase.applications.engine.parameters.EngineParameters;
+import no.uib.onyase.utils.TitlesIterator;
+
+/**
+ * The spectra processor iterates the spectra of a file and matches them to the
+ * peptides of a mass sorted peptide index.
+ *
+ * @author Marc Vaudel
+ */
+public class SpectraProcessor {
+
+    /**
+     * A handler for the exceptions.
+     */
+    private ExceptionHandler exceptionHandler;
+    /**
+     * A waiting handler providing feedback to the user and allowing canceling
+     * the process.
+     */
+    private WaitingHandler waitingHandler;
+    /**
+     * Map of the PSMs found.
+     */
+    private HashMap<String, SpectrumPsms> psmMap;
+    /**
+     * The proteins of every peptide sequence identified.
+     */
+    private HashMap<String, PeptideProteins> peptideProteinsMap;
+
+    /**
+     * Constructor.
+     *
+     * @param waitingHandler a waiting handler providing feedback to the user
+     * and allowing canceling the process
+     * @param exceptionHandler a handler for the exceptions
+     */
+    public SpectraProcessor(WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) {
+        this.exceptionHandler = exceptionHandler;
+        this.waitingHandler = waitingHandler;
+    }
+
+    /**
+     * Iterates all spectra and stores all PSMs found in a map indexed by
+     * spectrum title and peptide key. Every spectrum is processed by a single
+     * thread, its PSMs are final when the thread moves to the next spectrum.
+     *
+     * @param spectrumStore the store containing the spectra to process
+     * @param precursorProcessor the precursor processor providing the
+     * possible charges of the spectra
+     * @param peptideIndex the index of the peptides to search
+     * @param fragmentIndex the fragment index of the peptides to use to
+     * select the candidates, null if all candidates should be scored
+     * @param identificationParameters the identification parameters to use
+     * @param engineParameters the engine parameters to use
+     * @param nThreads the number of threads to use
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading a file
+     * @throws InterruptedException exception thrown if a threading issue
+     * occurs.
+     */
+    public void iterateSpectra(SpectrumStore spectrumStore, PrecursorProcessor precursorProcessor, PeptideIndex peptideIndex, FragmentIndex fragmentIndex, IdentificationParameters identificationParameters, EngineParameters engineParameters, int nThreads) throws IOException, InterruptedException {
+
+        // Initialize the maps
+        int nSpectra = spectrumStore.size();
+        ArrayList<String> spectrumTitles = new ArrayList<String>(nSpectra);
+        psmMap = new HashMap<String, SpectrumPsms>(nSpectra);
+        for (int i = 0; i < nSpectra; i++) {
+            String spectrumTitle = spectrumStore.getTitle(i);
+            spectrumTitles.add(spectrumTitle);
+            psmMap.put(spectrumTitle, new SpectrumPsms(engineParameters.getMaxPsms()));
+        }
+
+        // Set progress counters
+        waitingHandler.setSecondaryProgressCounterIndeterminate(false);
+        waitingHandler.setMaxSecondaryProgressCounter(nSpectra);
+
+        // Make a pool of spectrum processors
+        TitlesIterator titlesIterator = new TitlesIterator(spectrumTitles);
+        ArrayList<SpectrumProcessor> spectrumProcessors = new ArrayList<SpectrumProcessor>(nThreads);
+        ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+        for (int i = 0; i < nThreads; i++) {
+            SpectrumProcessor spectrumProcessor = new SpectrumProcessor(titlesIterator, spectrumStore, precursorProcessor, peptideIndex, fragmentIndex, identificationParameters, engineParameters);
+            spectrumProcessors.add(spectrumProcessor);
+            pool.submit(spectrumProcessor);
+        }
+
+        // Execute
+        pool.shutdown();
+        if (!pool.awaitTermination(Integer.MAX_VALUE, TimeUnit.DAYS)) {
+            waitingHandler.appendReport("Search timed out.", true, true);
+        }
+        waitingHandler.setSecondaryProgressCounterIndeterminate(true);
+
+        // Report the use of the annotation settings cache
+        long cacheHits = 0;
+        long cacheMisses = 0;
+        for (SpectrumProcessor processor : spectrumProcessors) {
+            cacheHits += processor.psmScorer.getCacheHits();
+            cacheMisses += processor.psmScorer.getCacheMisses();
+        }
+        if (cacheHits + cacheMisses > 0) {
+            double hitRate = 100.0 * cacheHits / (cacheHits + cacheMisses);
+            waitingHandler.appendReport("Annotation settings cache: " + cacheMisses + " settings computed, hit rate " + Math.round(hitRate) + "%.", true, true);
+        }
+
+        // Map the identified peptides to their proteins
+        PTMFactory ptmFactory = PTMFactory.getInstance();
+        peptideProteinsMap = new HashMap<String, PeptideProteins>();
+        for (SpectrumPsms spectrumPsms : psmMap.values()) {
+            for (Psm psm : spectrumPsms.getPsms()) {
+                Peptide peptide = psm.getPeptide();
+                String sequence = peptide.getSequence();
+                if (!peptideProteinsMap.containsKey(sequence)) {
+                    double mass = peptide.getMass();
+                    ArrayList<ModificationMatch> modificationMatches = peptide.getModificationMatches();
+                    if (modificationMatches != null) {
+                        for (ModificationMatch modificationMatch : modificationMatches) {
+                            if (modificationMatch.isVariable()) {
+                                mass -= ptmFactory.getPTM(modificationMatch.getTheoreticPtm()).getMass();
+                            }
+                        }
+                    }
+                    PeptideProteins peptideProteins = peptideIndex.getPeptideProteins(sequence, mass);
+                    if (peptideProteins != null) {
+                        peptideProteinsMap.put(sequence, peptideProteins);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a map of the PSMs for every peptide found for every spectrum.
+     *
+     * @return a map of the PSMs for every peptide found for every spectrum
+     */
+    public HashMap<String, SpectrumPsms> getPsms() {
+        return psmMap;
+    }
+
+    /**
+     * Returns the proteins of every peptide sequence identified indexed by
+     * sequence.
+     *
+     * @return the proteins of every peptide sequence identified
+     */
+    public HashMap<String, PeptideProteins> getPeptideProteins() {
+        return peptideProteinsMap;
+    }
+
+    /**
+     * Private runnable to process spectra.
+     */
+    private class SpectrumProcessor implements Runnable {
+
+        /**
+         * Iterator for the spectrum titles.
+         */
+        private final TitlesIterator titlesIterator;
+        /**
+         * The store containing the spectra.
+         */
+        private final SpectrumStore spectrumStore;
+        /**
+         * The precursor processor providing the possible charges of the
+         * spectra.
+         */
+        private final PrecursorProcessor precursorProcessor;
+        /**
+         * The index of the peptides to search.
+         */
+        private final PeptideIndex peptideIndex;
+        /**
+         * The identification parameters.
+         */
+        private final IdentificationParameters identificationParameters;
+        /**
+         * The maximal number of modifications.
+         */
+        private final HashMap<String, Integer> maxModifications;
+        /**
+         * The preferred number of modification sites to iterate per
+         * modification.
+         */
+        private final int maxSites;
+        /**
+         * Boolean indicating whether only representative isoforms should be
+         * scored, to be localized exhaustively later.
+         */
+        private final boolean screenIsoforms;
+        /**
+         * The scorer used to score the PSMs.
+         */
+        private final PsmScorer psmScorer;
+        /**
+         * A list of excluded m/z.
+         */
+        private final ExclusionList exclusionList;
+        /**
+         * The selector of the candidates to score.
+         */
+        private final CandidateSelector candidateSelector;
+        /**
+         * Indicates for every peptide of the current range whether it can be
+         * selected as candidate.
+         */
+        private boolean[] eligible = new boolean[256];
+        /**
+         * The eligible peptides of the current range.
+         */
+        private Peptide[] rangePeptides = new Peptide[256];
+        /**
+         * The keys of the eligible peptides of the current range.
+         */
+        private String[] rangeKeys = new String[256];
+        /**
+         * The modification plans of the eligible peptides of the current
+         * range.
+         */
+        private ModificationPlan[] rangePlans = new ModificationPlan[256];
+        /**
+         * The keys of the peptides already found in the current range.
+         */
+        private final HashSet<String> rangeKeySet = new HashSet<String>();
+
+        /**
+         * Constructor.
+         *
+         * @param titlesIterator an iterator for the spectra to process
+         * @param spectrumStore the store containing the spectra
+         * @param precursorProcessor the precursor processor providing the
+         * possible charges of the spectra
+         * @param peptideIndex the index of the peptides to search
+         * @param fragmentIndex the fragment index of the peptides to use to
+         * select the candidates, null if all candidates should be scored
+         * @param identificationParameters the identification parameters to use
+         * @param engineParameters the engine parameters to use
+         *
+         * @throws IOException exception thrown whenever an error occurred while
+         * reading the exclusion list file
+         */
+        public SpectrumProcessor(TitlesIterator titlesIterator, SpectrumStore spectrumStore, PrecursorProcessor precursorProcessor, PeptideIndex peptideIndex, FragmentIndex fragmentIndex, IdentificationParameters identificationParameters, EngineParameters engineParameters) throws IOException {
+            this.titlesIterator = titlesIterator;
+            this.spectrumStore = spectrumStore;
+            this.precursorProcessor = precursorProcessor;
+            this.peptideIndex = peptideIndex;
+            this.identificationParameters = identificationParameters;
+            SearchParameters searchParameters = identificationParameters.getSearchParameters();
+            exclusionList = new ExclusionList(searchParameters.getPrecursorAccuracy(), searchParameters.isPrecursorAccuracyTypePpm(), engineParameters.getMinMz(), engineParameters.getMaxMz());
+            if (engineParameters.getMaxModifications() != null) {
+                maxModifications = engineParameters.getMaxModifications();
+            } else {
+                maxModifications = new HashMap<String, Integer>(0);
+            }
+            maxSites = engineParameters.getMaxSites();
+            screenIsoforms = engineParameters.getLocalizationCandidates() != null;
+            psmScorer = new PsmScorer(engineParameters.getPsmScore(), identificationParameters, spectrumStore);
+            Integer fragmentIndexCandidates = engineParameters.getFragmentIndexCandidates();
+            if (fragmentIndex != null && fragmentIndexCandidates != null) {
+                candidateSelector = new CandidateSelector(fragmentIndex, fragmentIndexCandidates);
+            } else {
+                candidateSelector = new CandidateSelector(null, 0);
+            }
+        }
+
+        /**
+         * Prepares the buffers for a range of the given size.
+         *
+         * @param rangeSize the number of peptides in the range
+         */
+        private void setRange(int rangeSize) {
+            if (rangeSize > eligible.length) {
+                int size = Math.max(rangeSize, 2 * eligible.length);
+                eligible = new boolean[size];
+                rangePeptides = new Peptide[size];
+                rangeKeys = new String[size];
+                rangePlans = new ModificationPlan[size];
+            }
+            rangeKeySet.clear();
+        }
+
+        @Override
+        public void run() {
+
+            try {
+
+                // The search settings
+                SearchParameters searchParameters = identificationParameters.getSearchParameters();
+                double precursorAccuracy = searchParameters.getPrecursorAccuracy();
+                boolean ppm = searchParameters.isPrecursorAccuracyTypePpm();
+                double protonMass = ElementaryIon.proton.getTheoreticMass();
+                double neutronMass = ElementaryElement.neutron.getMass();
+
+                // Store information on the searched modifications
+                PeptideModificationsIteratorFactory modificationsIteratorFactory = new PeptideModificationsIteratorFactory(searchParameters.getPtmSettings());
+                String[] orderedModifications = modificationsIteratorFactory.getOrderedModifications();
+                int flankingLength = modificationsIteratorFactory.getContextFlankingLength();
+
+                // Get all the modification profiles possible in the database within the maximal number of modifications
+                HashMap<String, Integer> maxOccurrences = new HashMap<String, Integer>(peptideIndex.getMaxOccurrences());
+                for (String modification : maxOccurrences.keySet()) {
+                    Integer maxModification = maxModifications.get(modification);
+                    if (maxModification != null && maxModification < maxOccurrences.get(modification)) {
+                        maxOccurrences.put(modification, maxModification);
+                    }
+                }
+                ModificationProfileTable modificationProfileTable = modificationsIteratorFactory.getModificationProfileTable(maxOccurrences);
+                int[] isoformSites = new int[8];
+                int[] isoformModifications = new int[8];
+
+                // Sequence settings for the keys of the peptides
+                SequenceMatchingPreferences sequenceMatchingPreferences = SequenceMatchingPreferences.getDefaultSequenceMatching();
+
+                String spectrumTitle;
+                while ((spectrumTitle = titlesIterator.next()) != null) {
+
+                    // Get the precursor and see whether it is excluded
+                    int spectrumIndex = spectrumStore.getIndex(spectrumTitle);
+                    double precursorMz = spectrumStore.getPrecursorMz(spectrumIndex);
+
+                    if (!exclusionList.isExcluded(precursorMz)) {
+
+                        // The peaks used to select the candidates
+                        candidateSelector.setPeaks(spectrumStore.getMzs(), spectrumStore.getPeakStart(spectrumIndex), spectrumStore.getPeakEnd(spectrumIndex));
+
+                        // The PSMs of this spectrum
+                        SpectrumPsms spectrumPsms = psmMap.get(spectrumTitle);
+
+                        // The peptides already inspected for this spectrum
+                        HashSet<String> peptidesInspected = new HashSet<String>();
+
+                        // The keys of the PSMs added for this spectrum, isoforms can be reached again at another charge
+                        HashSet<String> psmKeys = new HashSet<String>();
+
+                        // The tolerance in m/z
+                        double mzTolerance = ppm ? precursorMz * precursorAccuracy / 1000000 : precursorAccuracy;
+
+                        // Iterate possible charges and isotopes
+                        int[] charges = precursorProcessor.getCharges(spectrumIndex);
+                        int[] isotopes = precursorProcessor.getIsotopes(spectrumIndex);
+                        for (int hypothesis = 0; hypothesis < charges.length; hypothesis++) {
+
+                            int charge = charges[hypothesis];
+                            int isotope = isotopes[hypothesis];
+                            double protonContribution = charge * protonMass;
+
+                            // The window of peptide masses matching the precursor
+                            double neutronContribution = isotope * neutronMass;
+                            double massLow = (precursorMz - mzTolerance) * charge - protonContribution - neutronContribution;
+                            double massHigh = (precursorMz + mzTolerance) * charge - protonContribution - neutronContribution;
+
+                            // Select the unmodified candidates among the peptides not inspected yet, once per sequence
+                            int first = peptideIndex.getFirstIndex(massLow);
+                            int last = peptideIndex.getLastIndex(massHigh);
+                            setRange(last - first);
+                            for (int i = first; i < last; i++) {
+                                Peptide peptide = peptideIndex.getPeptide(i);
+                                String peptideKey = peptide.getMatchingKey(sequenceMatchingPreferences);
+                                boolean isEligible = !peptidesInspected.contains(peptideKey) && rangeKeySet.add(peptideKey);
+                                eligible[i - first] = isEligible;
+                                if (isEligible) {
+                                    rangePeptides[i - first] = peptide;
+                                    rangeKeys[i - first] = peptideKey;
+                                }
+                            }
+                            int nCandidates = candidateSelector.select(first, last, eligible);
+                            int[] candidates = candidateSelector.getCandidates();
+
+                            // Iterate the unmodified peptides
+                            for (int j = 0; j < nCandidates; j++) {
+
+                                int i = candidates[j];
+                                Peptide peptide = rangePeptides[i - first];
+                                String peptideKey = rangeKeys[i - first];
+
+                                if (peptidesInspected.add(peptideKey)) {
+
+                                    // Score the peptide
+                                    SpecificAnnotationSettings specificAnnotationSettings = psmScorer.getSpecificAnnotationSettings(peptide, charge);
+                                    double score = psmScorer.getScore(peptide, charge, spectrumIndex, specificAnnotationSettings);
+
+                                    // Retain only PSMs with a score
+                                    if (score > 0) {
+                                        spectrumPsms.addPsm(peptideKey, new Psm(peptide, charge, score));
+                                    }
+                                }
+                            }
+
+                            // Iterate the modified peptides
+                            for (int profile = 0; profile < modificationProfileTable.size(); profile++) {
+
+                                double modificationMass = modificationProfileTable.getMass(profile);
+                                HashMap<String, Integer> modificationOccurrence = modificationProfileTable.getModificationOccurrence(profile);
+
+                                // Select the candidates among the peptides which can carry the modifications of the profile and were not inspected yet, once per key
+                                first = peptideIndex.getFirstIndex(massLow - modificationMass);
+                                last = peptideIndex.getLastIndex(massHigh - modificationMass);
+                                setRange(last - first);
+                                for (int i = first; i < last; i++) {
+                                    boolean isEligible = false;
+                                    Peptide peptide = peptideIndex.getPeptide(i);
+                                    String proteinSequence = peptideIndex.getProteinSequence(i, flankingLength);
+                                    int indexOnProtein = peptideIndex.getIndexOnProteinSequence(i, flankingLength);
+                                    ModificationPlan modificationPlan = modificationsIteratorFactory.getModificationPlan(peptide, proteinSequence, indexOnProtein, maxModifications);
+                                    if (modificationPlan.isPossible(modificationProfileTable, profile)) {
+                                        PeptideDraft peptideDraft = new PeptideDraft(peptide.getSequence(), charge, modificationOccurrence, modificationPlan.getPossibleModificationSites(), peptideIndex.isDecoy(i));
+                                        String genericModifiedPeptideKey = peptideDraft.getKey(orderedModifications, sequenceMatchingPreferences);
+                                        isEligible = !peptidesInspected.contains(genericModifiedPeptideKey) && rangeKeySet.add(genericModifiedPeptideKey);
+                                        if (isEligible) {
+                                            rangePeptides[i - first] = peptide;
+                                            rangeKeys[i - first] = genericModifiedPeptideKey;
+                                            rangePlans[i - first] = modificationPlan;
+                                        }
+                                    }
+                                    eligible[i - first] = isEligible;
+                                }
+                                nCandidates = candidateSelector.select(first, last, eligible);
+                                candidates = candidateSelector.getCandidates();
+
+                                for (int j = 0; j < nCandidates; j++) {
+
+                                    int i = candidates[j];
+                                    Peptide peptide = rangePeptides[i - first];
+                                    ModificationPlan modificationPlan = rangePlans[i - first];
+                                    String genericModifiedPeptideKey = rangeKeys[i - first];
+
+                                    if (peptidesInspected.add(genericModifiedPeptideKey)) {
+
+                                        // Go through all possible sites
+                                        ModificationIsoformIterator isoformIterator;
+                                        LocalizationCandidate localizationCandidate = null;
+                                        if (screenIsoforms) {
+                                            isoformIterator = modificationsIteratorFactory.getScreeningIsoformIterator(modificationPlan, modificationProfileTable, profile);
+                                            localizationCandidate = new LocalizationCandidate(peptide, modificationPlan, modificationProfileTable, profile);
+                                        } else {
+                                            isoformIterator = modificationsIteratorFactory.getModificationIsoformIterator(modificationPlan, modificationProfileTable, profile, maxSites);
+                                        }
+                                        int nModifications = isoformIterator.getNModifications();
+                                        if (nModifications > isoformSites.length) {
+                                            isoformSites = new int[nModifications];
+                                            isoformModifications = new int[nModifications];
+                                        }
+                                        boolean incremental = psmScorer.isIncremental();
+                                        if (incremental) {
+                                            psmScorer.setIsoformPeptide(peptide, charge, spectrumIndex, modificationsIteratorFactory.getOrderedModificationMasses());
+                                        }
+                                        while (isoformIterator.hasNext()) {
+
+                                            // Score the isoform, incrementally if possible
+                                            isoformIterator.getIsoform(isoformSites, isoformModifications);
+                                            Peptide modifiedPeptide = null;
+                                            double score;
+                                            if (incremental) {
+                                                score = psmScorer.getIsoformScore(isoformSites, isoformModifications, nModifications);
+                                            } else {
+                                                modifiedPeptide = modificationsIteratorFactory.getModifiedPeptide(peptide, isoformSites, isoformModifications, nModifications);
+                                                SpecificAnnotationSettings modifiedSpecificAnnotationSettings = psmScorer.getSpecificAnnotationSettings(modifiedPeptide, charge);
+                                                score = psmScorer.getScore(modifiedPeptide, charge, spectrumIndex, modifiedSpecificAnnotationSettings);
+                                            }
+
+                                            // Retain only PSMs with a score
+                                            if (score > 0) {
+                                                if (modifiedPeptide == null) {
+                                                    modifiedPeptide = modificationsIteratorFactory.getModifiedPeptide(peptide, isoformSites, isoformModifications, nModifications);
+                                                }
+                                                String modifiedPeptideKey = modifiedPeptide.getKey();
+                                                if (psmKeys.add(modifiedPeptideKey) || spectrumPsms.containsKey(modifiedPeptideKey)) {
+                                                    spectrumPsms.addPsm(modifiedPeptideKey, new Psm(modifiedPeptide, charge, score, localizationCandidate));
+                                                }
+                                            }
+                                        }
+                                    }
+                                }
+                            }
+                        }
+                    }
+                    if (waitingHandler.isRunCanceled()) {
+                        return;
+                    } else {
+                        waitingHandler.increaseSecondaryProgressCounter();
+                    }
+                }
+            } catch (Exception e) {
+                if (!waitingHandler.isRunCanceled()) {
+                    exceptionHandler.catchException(e);
+                    waitingHandler.setRunCanceled();
+                }
+            }
+        }
+    }
+}
@@ -15,8 +15,11 @@ import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.zip.GZIPOutputStream;
+import no.uib.onyase.applications.engine.model.PeptideProteins;
 import no.uib.onyase.applications.engine.model.Psm;
+import no.uib.onyase.applications.engine.model.SpectrumPsms;
 import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException;
 import no.uib.onyase.applications.engine.modules.scoring.EValueEstimator;
 
@@ -62,13 +65,14 @@ public class TextExporter {
      * 
      * @param spectrumFileName the name of the spectrum file
      * @param psmsMap the map of the PSMs
+     * @param peptideProteins the proteins of the peptides indexed by sequence
      * @param eValueEstimator an estimator for the e-value
      * @param destinationFile the destination file
      * 
      * @throws IOException exception thrown if an error occurred while writing the file
      * @throws MzMLUnmarshallerException exception thrown if an error occurred while reading an mzML file
      */
-    public void writePsms(String spectrumFileName, HashMap<String, HashMap<String, Psm>> psmsMap, EValueEstimator eValueEstimator, File destinationFile) throws IOException, MzMLUnmarshallerException {
+    public void writePsms(String spectrumFileName, HashMap<String, SpectrumPsms> psmsMap, Map<String, PeptideProteins> peptideProteins, EValueEstimator eValueEstimator, File destinationFile) throws IOException, MzMLUnmarshallerException {
 
         // Set progress bars
         waitingHandler.setSecondaryProgressCounterIndeterminate(false);
@@ -88,13 +92,13 @@ public class TextExporter {
             for (String spectrumTitle : psmsMap.keySet()) {
 
                 // Get the PSMs
-                HashMap<String, Psm> spectrumPsms = psmsMap.get(spectrumTitle);
+                SpectrumPsms spectrumPsms = psmsMap.get(spectrumTitle);
 
                 // Iterate all Psms
-                for (Psm psm : spectrumPsms.values()) {
+                for (Psm psm : spectrumPsms.getPsms()) {
 
                     // Write to output
-                    writePsm(bw, spectrumFileName, spectrumTitle, psm, eValueEstimator);
+                    writePsm(bw, spectrumFileName, spectrumTitle, psm, peptideProteins, eValueEstimator);
                 }
 
                 // Increase progress
@@ -108,11 +112,11 @@ public class TextExporter {
     }
 
     private void writeHeaders(BufferedWriter bw) throws IOException {
-        bw.write("Spectrum_Title" + OnyaseIdfileReader.separator + "mz" + OnyaseIdfileReader.separator + "rt" + OnyaseIdfileReader.separator + "Sequence" + OnyaseIdfileReader.separator + "Modifications" + OnyaseIdfileReader.separator + "Charge" + OnyaseIdfileReader.separator + "Score" + OnyaseIdfileReader.separator + "E-Value");
+        bw.write("Spectrum_Title" + OnyaseIdfileReader.separator + "mz" + OnyaseIdfileReader.separator + "rt" + OnyaseIdfileReader.separator + "Sequence" + OnyaseIdfileReader.separator + "Modifications" + OnyaseIdfileReader.separator + "Charge" + OnyaseIdfileReader.separator + "Score" + OnyaseIdfileReader.separator + "E-Value" + OnyaseIdfileReader.separator + "Decoy" + OnyaseIdfileReader.separator + "Target" + OnyaseIdfileReader.separator + "Proteins");
         bw.newLine();
     }
 
-    private void writePsm(BufferedWriter bw, String spectrumFileName, String spectrumTitle, Psm psm, EValueEstimator eValueEstimator) throws IOException, MzMLUnmarshallerException {
+    private void writePsm(BufferedWriter bw, String spectrumFileName, String spectrumTitle, Psm psm, Map<String, PeptideProteins> peptideProteins, EValueEstimator eValueEstimator) throws IOException, MzMLUnmarshallerException {
 
         // Encode the spectrum title
         String encodedSpectrumTitle = URLEncoder.encode(spectrumTitle, OnyaseIdfileReader.encoding);
@@ -145,6 +149,18 @@ public class TextExporter {
         stringBuilder.append(score);
         stringBuilder.append(OnyaseIdfileReader.separator);
         stringBuilder.append(eValue);
+        stringBuilder.append(OnyaseIdfileReader.separator);
+        PeptideProteins proteins = peptideProteins.get(peptide.getSequence());
+        if (proteins != null) {
+            stringBuilder.append(proteins.isDecoy() ? 1 : 0);
+            stringBuilder.append(OnyaseIdfileReader.separator);
+            stringBuilder.append(proteins.isTarget() ? 1 : 0);
+            stringBuilder.append(OnyaseIdfileReader.separator);
+            stringBuilder.append(getProteins(proteins));
+        } else {
+            stringBuilder.append(OnyaseIdfileReader.separator);
+            stringBuilder.append(OnyaseIdfileReader.separator);
+        }
         stringBuilder.append(END_LINE);
 
         // Write to the file
@@ -181,4 +197,26 @@ public class TextExporter {
         String result = URLEncoder.encode(stringBuilder.toString(), "utf-8");
         return result;
     }
+
+    /**
+     * Returns the accessions of the given proteins in an utf-8 encoded String
+     * separated by commas.
+     *
+     * @param peptideProteins the proteins of the peptide
+     *
+     * @return the accessions of the proteins in a string
+     *
+     * @throws UnsupportedEncodingException exception thrown if the
+     * accessions could not be encoded
+     */
+    private String getProteins(PeptideProteins peptideProteins) throws UnsupportedEncodingException {
+        StringBuilder stringBuilder = new StringBuilder();
+        for (String accession : peptideProteins.getAccessions()) {
+            if (stringBuilder.length() > 0) {
+                stringBuilder.append(',');
+            }
+            stringBuilder.append(accession);
+        }
+        return URLEncoder.encode(stringBuilder.toString(), "utf-8");
+    }
 }
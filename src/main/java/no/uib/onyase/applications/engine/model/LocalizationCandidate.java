@@ -0,0 +1,83 @@
+package no.uib.onyase.applications.engine.model;
+
+import com.compomics.util.experiment.biology.Peptide;
+import no.uib.onyase.applications.engine.modules.ModificationPlan;
+import no.uib.onyase.applications.engine.modules.ModificationProfileTable;
+
+/**
+ * A peptide carrying a modification profile whose isoforms were only screened
+ * using representative sites, and which can be localized exhaustively later.
+ *
+ * @author Marc Vaudel
+ */
+public class LocalizationCandidate {
+
+    /**
+     * The peptide carrying its fixed modifications only.
+     */
+    private final Peptide peptide;
+    /**
+     * The modification plan of the peptide.
+     */
+    private final ModificationPlan modificationPlan;
+    /**
+     * The table containing the modification profile.
+     */
+    private final ModificationProfileTable modificationProfileTable;
+    /**
+     * The index of the modification profile in the table.
+     */
+    private final int profile;
+
+    /**
+     * Constructor.
+     *
+     * @param peptide the peptide carrying its fixed modifications only
+     * @param modificationPlan the modification plan of the peptide
+     * @param modificationProfileTable the table containing the modification
+     * profile
+     * @param profile the index of the modification profile in the table
+     */
+    public LocalizationCandidate(Peptide peptide, ModificationPlan modificationPlan, ModificationProfileTable modificationProfileTable, int profile) {
+        this.peptide = peptide;
+        this.modificationPlan = modificationPlan;
+        this.modificationProfileTable = modificationProfileTable;
+        this.profile = profile;
+    }
+
+    /**
+     * Returns the peptide carrying its fixed modifications only.
+     *
+     * @return the peptide carrying its fixed modifications only
+     */
+    public Peptide getPeptide() {
+        return peptide;
+    }
+
+    /**
+     * Returns the modification plan of the peptide.
+     *
+     * @return the modification plan of the peptide
+     */
+    public ModificationPlan getModificationPlan() {
+        return modificationPlan;
+    }
+
+    /**
+     * Returns the table containing the modification profile.
+     *
+     * @return the table containing the modification profile
+     */
+    public ModificationProfileTable getModificationProfileTable() {
+        return modificationProfileTable;
+    }
+
+    /**
+     * Returns the index of the modification profile in the table.
+     *
+     * @return the index of the modification profile in the table
+     */
+    public int getProfile() {
+        return profile;
+    }
+}
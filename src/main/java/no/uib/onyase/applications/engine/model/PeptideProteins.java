@@ -0,0 +1,70 @@
+package no.uib.onyase.applications.engine.model;
+
+import java.util.HashSet;
+
+/**
+ * This class gathers the proteins where a peptide sequence was found.
+ *
+ * @author Marc Vaudel
+ */
+public class PeptideProteins {
+
+    /**
+     * Boolean indicating whether the peptide was found on a target protein.
+     */
+    private boolean target = false;
+    /**
+     * Boolean indicating whether the peptide was found on a decoy protein.
+     */
+    private boolean decoy = false;
+    /**
+     * The accessions of the proteins where the peptide was found.
+     */
+    private final HashSet<String> accessions = new HashSet<String>(2);
+
+    /**
+     * Adds a protein where the peptide was found.
+     *
+     * @param accession the accession of the protein
+     * @param decoy a boolean indicating whether the protein is a decoy
+     */
+    public synchronized void addProtein(String accession, boolean decoy) {
+        accessions.add(accession);
+        if (decoy) {
+            this.decoy = true;
+        } else {
+            target = true;
+        }
+    }
+
+    /**
+     * Returns a boolean indicating whether the peptide was found on a target
+     * protein.
+     *
+     * @return a boolean indicating whether the peptide was found on a target
+     * protein
+     */
+    public boolean isTarget() {
+        return target;
+    }
+
+    /**
+     * Returns a boolean indicating whether the peptide was found on a decoy
+     * protein.
+     *
+     * @return a boolean indicating whether the peptide was found on a decoy
+     * protein
+     */
+    public boolean isDecoy() {
+        return decoy;
+    }
+
+    /**
+     * Returns the accessions of the proteins where the peptide was found.
+     *
+     * @return the accessions of the proteins where the peptide was found
+     */
+    public HashSet<String> getAccessions() {
+        return accessions;
+    }
+}
@@ -24,6 +24,12 @@ public class Psm {
      */
     private double score;
 
+    /**
+     * The candidate for the exhaustive localization of the modifications,
+     * null if the modifications were localized exhaustively.
+     */
+    private LocalizationCandidate localizationCandidate;
+
     /**
      * Constructor.
      * 
@@ -32,9 +38,24 @@ public class Psm {
      * @param score the score
      */
     public Psm(Peptide peptide, int charge, double score) {
+        this(peptide, charge, score, null);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param peptide the peptide
+     * @param charge the charge
+     * @param score the score
+     * @param localizationCandidate the candidate for the exhaustive
+     * localization of the modifications, null if the modifications were
+     * localized exhaustively
+     */
+    public Psm(Peptide peptide, int charge, double score, LocalizationCandidate localizationCandidate) {
         this.peptide = peptide;
         this.score = score;
         this.charge = charge;
+        this.localizationCandidate = localizationCandidate;
     }
 
     /**
@@ -63,4 +84,15 @@ public class Psm {
     public double getScore() {
         return score;
     }
+
+    /**
+     * Returns the candidate for the exhaustive localization of the
+     * modifications, null if the modifications were localized exhaustively.
+     * 
+     * @return the candidate for the exhaustive localization of the
+     * modifications
+     */
+    public LocalizationCandidate getLocalizationCandidate() {
+        return localizationCandidate;
+    }
 }
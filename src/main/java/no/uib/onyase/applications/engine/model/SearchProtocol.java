@@ -0,0 +1,178 @@
+package no.uib.onyase.applications.engine.model;
+
+import com.compomics.util.preferences.DigestionPreferences;
+import java.util.ArrayList;
+import no.uib.onyase.applications.engine.modules.precursor_handling.PrecursorProcessor;
+import no.uib.onyase.applications.engine.modules.spectrum_store.SpectrumStore;
+
+/**
+ * A search protocol associates the spectra acquired on a sample to the
+ * digestion preferences used to prepare it. Protocols using different
+ * enzymes can be searched in a single pass on the database. The spectra of a
+ * protocol can come from several files, for example fractions, in which case
+ * the precursors of all files are indexed together and the spectra are
+ * numbered consecutively across files.
+ *
+ * @author Marc Vaudel
+ */
+public class SearchProtocol {
+
+    /**
+     * The digestion preferences used to prepare the sample.
+     */
+    private final DigestionPreferences digestionPreferences;
+    /**
+     * The stores containing the spectra of every file.
+     */
+    private final ArrayList<SpectrumStore> spectrumStores;
+    /**
+     * The precursor processor of the spectra of all files.
+     */
+    private final PrecursorProcessor precursorProcessor;
+    /**
+     * The index of the first spectrum of every file.
+     */
+    private final int[] spectrumOffsets;
+    /**
+     * The index of the file of every spectrum.
+     */
+    private final int[] fileIndexes;
+
+    /**
+     * Constructor for the spectra of a single file.
+     *
+     * @param digestionPreferences the digestion preferences used to prepare
+     * the sample
+     * @param spectrumStore the store containing the spectra
+     * @param precursorProcessor the precursor processor of the spectra
+     */
+    public SearchProtocol(DigestionPreferences digestionPreferences, SpectrumStore spectrumStore, PrecursorProcessor precursorProcessor) {
+        this(digestionPreferences, getList(spectrumStore), precursorProcessor);
+    }
+
+    /**
+     * Constructor for the spectra of several files. The precursor processor
+     * must index the spectra of all stores, numbered consecutively in the
+     * order of the stores, see the merging constructor of the precursor
+     * processor.
+     *
+     * @param digestionPreferences the digestion preferences used to prepare
+     * the sample
+     * @param spectrumStores the stores containing the spectra of every file
+     * @param precursorProcessor the precursor processor of the spectra of all
+     * files
+     */
+    public SearchProtocol(DigestionPreferences digestionPreferences, ArrayList<SpectrumStore> spectrumStores, PrecursorProcessor precursorProcessor) {
+        this.digestionPreferences = digestionPreferences;
+        this.spectrumStores = spectrumStores;
+        this.precursorProcessor = precursorProcessor;
+        spectrumOffsets = new int[spectrumStores.size()];
+        int nSpectra = 0;
+        for (int fileIndex = 0; fileIndex < spectrumStores.size(); fileIndex++) {
+            spectrumOffsets[fileIndex] = nSpectra;
+            nSpectra += spectrumStores.get(fileIndex).size();
+        }
+        fileIndexes = new int[nSpectra];
+        for (int fileIndex = 0; fileIndex < spectrumStores.size(); fileIndex++) {
+            int end = spectrumOffsets[fileIndex] + spectrumStores.get(fileIndex).size();
+            for (int i = spectrumOffsets[fileIndex]; i < end; i++) {
+                fileIndexes[i] = fileIndex;
+            }
+        }
+    }
+
+    /**
+     * Returns a list containing the given spectrum store.
+     *
+     * @param spectrumStore the spectrum store
+     *
+     * @return a list containing the spectrum store
+     */
+    private static ArrayList<SpectrumStore> getList(SpectrumStore spectrumStore) {
+        ArrayList<SpectrumStore> spectrumStores = new ArrayList<SpectrumStore>(1);
+        spectrumStores.add(spectrumStore);
+        return spectrumStores;
+    }
+
+    /**
+     * Returns the digestion preferences used to prepare the sample.
+     *
+     * @return the digestion preferences used to prepare the sample
+     */
+    public DigestionPreferences getDigestionPreferences() {
+        return digestionPreferences;
+    }
+
+    /**
+     * Returns the precursor processor of the spectra of all files.
+     *
+     * @return the precursor processor of the spectra of all files
+     */
+    public PrecursorProcessor getPrecursorProcessor() {
+        return precursorProcessor;
+    }
+
+    /**
+     * Returns the number of spectrum files.
+     *
+     * @return the number of spectrum files
+     */
+    public int getNFiles() {
+        return spectrumStores.size();
+    }
+
+    /**
+     * Returns the store containing the spectra of the given file.
+     *
+     * @param fileIndex the index of the file
+     *
+     * @return the store containing the spectra of the file
+     */
+    public SpectrumStore getSpectrumStore(int fileIndex) {
+        return spectrumStores.get(fileIndex);
+    }
+
+    /**
+     * Returns the number of spectra of all files.
+     *
+     * @return the number of spectra of all files
+     */
+    public int getNSpectra() {
+        return fileIndexes.length;
+    }
+
+    /**
+     * Returns the index of the file of the given spectrum.
+     *
+     * @param spectrumIndex the index of the spectrum in the protocol
+     *
+     * @return the index of the file of the spectrum
+     */
+    public int getFileIndex(int spectrumIndex) {
+        return fileIndexes[spectrumIndex];
+    }
+
+    /**
+     * Returns the index of the given spectrum in the store of its file.
+     *
+     * @param spectrumIndex the index of the spectrum in the protocol
+     *
+     * @return the index of the spectrum in the store of its file
+     */
+    public int getIndexInFile(int spectrumIndex) {
+        return spectrumIndex - spectrumOffsets[fileIndexes[spectrumIndex]];
+    }
+
+    /**
+     * Returns the index in the protocol of the spectrum of the given file at
+     * the given index in its store.
+     *
+     * @param fileIndex the index of the file
+     * @param indexInFile the index of the spectrum in the store of the file
+     *
+     * @return the index of the spectrum in the protocol
+     */
+    public int getSpectrumIndex(int fileIndex, int indexInFile) {
+        return spectrumOffsets[fileIndex] + indexInFile;
+    }
+}
@@ -0,0 +1,227 @@
+package no.uib.onyase.applications.engine.model;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+
+/**
+ * This class contains the PSMs of a spectrum indexed by peptide key. If a
+ * maximal number of PSMs is set, only the best scoring PSMs are retained and
+ * the scores of all PSMs are kept in a histogram.
+ *
+ * @author Marc Vaudel
+ */
+public class SpectrumPsms {
+
+    /**
+     * The number of histogram bins per order of magnitude of the score.
+     */
+    public static final int BINS_PER_DECADE = 20;
+    /**
+     * The PSMs indexed by peptide key.
+     */
+    private final HashMap<String, Psm> psms;
+    /**
+     * The maximal number of PSMs to retain, null if all PSMs are retained.
+     */
+    private final Integer maxPsms;
+    /**
+     * Min-heap of the keys of the retained PSMs sorted by score, null if all
+     * PSMs are retained.
+     */
+    private final PriorityQueue<String> heap;
+    /**
+     * The number of PSMs in every bin of the score histogram, null if all
+     * PSMs are retained.
+     */
+    private int[] histogram = null;
+    /**
+     * The index of the first bin of the histogram.
+     */
+    private int firstBin = 0;
+    /**
+     * The number of PSMs added when not all PSMs are retained.
+     */
+    private int nPsms = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param maxPsms the maximal number of PSMs to retain, null if all PSMs
+     * should be retained
+     */
+    public SpectrumPsms(Integer maxPsms) {
+        if (maxPsms != null && maxPsms < 1) {
+            throw new IllegalArgumentException("The maximal number of PSMs must be at least one.");
+        }
+        this.maxPsms = maxPsms;
+        if (maxPsms != null) {
+            psms = new HashMap<String, Psm>(maxPsms + 1);
+            heap = new PriorityQueue<String>(maxPsms + 1, new Comparator<String>() {
+                @Override
+                public int compare(String key1, String key2) {
+                    return Double.compare(psms.get(key1).getScore(), psms.get(key2).getScore());
+                }
+            });
+        } else {
+            psms = new HashMap<String, Psm>(2);
+            heap = null;
+        }
+    }
+
+    /**
+     * Adds a PSM. If a PSM is already retained for the peptide key, the PSM of
+     * higher score is kept and the key is not counted again. Otherwise, if the
+     * maximal number of PSMs is reached, the PSM of lowest score is
+     * discarded. Keys of discarded PSMs are not remembered, and are counted
+     * again if added anew.
+     *
+     * @param peptideKey the key of the peptide
+     * @param psm the PSM
+     */
+    public void addPsm(String peptideKey, Psm psm) {
+        Psm retainedPsm = psms.get(peptideKey);
+        if (retainedPsm != null) {
+            if (psm.getScore() > retainedPsm.getScore()) {
+                if (heap != null) {
+                    heap.remove(peptideKey);
+                }
+                psms.put(peptideKey, psm);
+                if (heap != null) {
+                    heap.add(peptideKey);
+                }
+            }
+            return;
+        }
+        if (maxPsms == null) {
+            psms.put(peptideKey, psm);
+            return;
+        }
+        nPsms++;
+        addToHistogram(psm.getScore());
+        if (psms.size() < maxPsms) {
+            psms.put(peptideKey, psm);
+            heap.add(peptideKey);
+        } else if (psm.getScore() > psms.get(heap.peek()).getScore()) {
+            psms.remove(heap.poll());
+            psms.put(peptideKey, psm);
+            heap.add(peptideKey);
+        }
+    }
+
+    /**
+     * Adds a score to the histogram.
+     *
+     * @param score the score
+     */
+    private void addToHistogram(double score) {
+        int bin = getBin(score);
+        if (histogram == null) {
+            histogram = new int[1];
+            firstBin = bin;
+        } else if (bin < firstBin) {
+            int[] newHistogram = new int[histogram.length + firstBin - bin];
+            System.arraycopy(histogram, 0, newHistogram, firstBin - bin, histogram.length);
+            histogram = newHistogram;
+            firstBin = bin;
+        } else if (bin >= firstBin + histogram.length) {
+            int[] newHistogram = new int[bin - firstBin + 1];
+            System.arraycopy(histogram, 0, newHistogram, 0, histogram.length);
+            histogram = newHistogram;
+        }
+        histogram[bin - firstBin]++;
+    }
+
+    /**
+     * Returns the histogram bin of the given score.
+     *
+     * @param score the score
+     *
+     * @return the histogram bin of the score
+     */
+    private static int getBin(double score) {
+        return (int) Math.floor(Math.log10(score) * BINS_PER_DECADE);
+    }
+
+    /**
+     * Indicates whether a PSM is retained for the given peptide key.
+     *
+     * @param peptideKey the key of the peptide
+     *
+     * @return a boolean indicating whether a PSM is retained for the given
+     * peptide key
+     */
+    public boolean containsKey(String peptideKey) {
+        return psms.containsKey(peptideKey);
+    }
+
+    /**
+     * Returns the retained PSMs.
+     *
+     * @return the retained PSMs
+     */
+    public Collection<Psm> getPsms() {
+        return psms.values();
+    }
+
+    /**
+     * Returns the number of PSMs added, including the ones discarded.
+     *
+     * @return the number of PSMs added
+     */
+    public int getNPsms() {
+        if (maxPsms == null) {
+            return psms.size();
+        }
+        return nPsms;
+    }
+
+    /**
+     * Returns a boolean indicating whether all PSMs are retained.
+     *
+     * @return a boolean indicating whether all PSMs are retained
+     */
+    public boolean isComplete() {
+        return maxPsms == null;
+    }
+
+    /**
+     * Returns the histogram of the scores of all PSMs added, indexed by the
+     * integer value of the score at the center of every bin.
+     *
+     * @return the histogram of the scores of all PSMs added
+     */
+    public HashMap<Integer, Integer> getScoreHistogram() {
+        HashMap<Integer, Integer> scoreHistogram = new HashMap<Integer, Integer>();
+        if (maxPsms == null) {
+            for (Psm psm : psms.values()) {
+                add(scoreHistogram, (int) psm.getScore(), 1);
+            }
+        } else if (histogram != null) {
+            for (int i = 0; i < histogram.length; i++) {
+                if (histogram[i] > 0) {
+                    double binScore = Math.pow(10, (firstBin + i + 0.5) / BINS_PER_DECADE);
+                    add(scoreHistogram, (int) binScore, histogram[i]);
+                }
+            }
+        }
+        return scoreHistogram;
+    }
+
+    /**
+     * Adds a number of PSMs to a score histogram.
+     *
+     * @param scoreHistogram the score histogram
+     * @param score the score
+     * @param count the number of PSMs
+     */
+    private static void add(HashMap<Integer, Integer> scoreHistogram, int score, int count) {
+        Integer frequency = scoreHistogram.get(score);
+        if (frequency == null) {
+            scoreHistogram.put(score, count);
+        } else {
+            scoreHistogram.put(score, frequency + count);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package no.uib.onyase.applications.engine.modules;
+
+/**
+ * Iterator for the isoforms of a peptide carrying a given profile of
+ * modifications. Modifications are referred to by their index in the
+ * alphabetical order of the modifications searched and the isoforms are
+ * written in buffers provided by the caller.
+ *
+ * @author Marc Vaudel
+ */
+public interface ModificationIsoformIterator {
+
+    /**
+     * Indicates whether there is another isoform and moves the iterator.
+     *
+     * @return a boolean indicating whether there is another isoform
+     */
+    public boolean hasNext();
+
+    /**
+     * Resets the iterator before the first isoform.
+     */
+    public void reset();
+
+    /**
+     * Returns the number of modifications carried by every isoform.
+     *
+     * @return the number of modifications carried by every isoform
+     */
+    public int getNModifications();
+
+    /**
+     * Writes the current isoform in the given buffers: the site of every
+     * modification and the index of the modification.
+     *
+     * @param sites the buffer for the modification sites, at least as long
+     * as the number of modifications
+     * @param modifications the buffer for the modification indexes, at least
+     * as long as the number of modifications
+     */
+    public void getIsoform(int[] sites, int[] modifications);
+}
@@ -0,0 +1,142 @@
+package no.uib.onyase.applications.engine.modules;
+
+import java.util.HashMap;
+
+/**
+ * The variable modifications possible on a peptide in a given protein
+ * context. The possible sites and the maximal occurrence of every
+ * modification are stored in primitive arrays indexed by the order of the
+ * modifications.
+ *
+ * @author Marc Vaudel
+ */
+public class ModificationPlan {
+
+    /**
+     * The names of the modifications.
+     */
+    private final String[] modifications;
+    /**
+     * The possible sites of every modification, null if the modification is
+     * not possible.
+     */
+    private final int[][] sites;
+    /**
+     * The maximal occurrence of every modification.
+     */
+    private final int[] maxOccurrences;
+    /**
+     * Boolean indicating whether no modification is possible.
+     */
+    private final boolean empty;
+    /**
+     * The possible sites of the possible modifications indexed by name,
+     * lazily created.
+     */
+    private HashMap<String, Integer[]> possibleModificationSites = null;
+
+    /**
+     * Constructor.
+     *
+     * @param modifications the names of the modifications
+     * @param sites the possible sites of every modification, null if the
+     * modification is not possible
+     * @param maxOccurrences the maximal occurrence of every modification
+     */
+    public ModificationPlan(String[] modifications, int[][] sites, int[] maxOccurrences) {
+        this.modifications = modifications;
+        this.sites = sites;
+        this.maxOccurrences = maxOccurrences;
+        boolean noModification = true;
+        for (int maxOccurrence : maxOccurrences) {
+            if (maxOccurrence > 0) {
+                noModification = false;
+                break;
+            }
+        }
+        empty = noModification;
+    }
+
+    /**
+     * Indicates whether no modification is possible.
+     *
+     * @return a boolean indicating whether no modification is possible
+     */
+    public boolean isEmpty() {
+        return empty;
+    }
+
+    /**
+     * Returns the possible sites of the given modification, null if the
+     * modification is not possible.
+     *
+     * @param modification the index of the modification
+     *
+     * @return the possible sites of the modification
+     */
+    public int[] getSites(int modification) {
+        return sites[modification];
+    }
+
+    /**
+     * Returns the maximal occurrence of the given modification.
+     *
+     * @param modification the index of the modification
+     *
+     * @return the maximal occurrence of the modification
+     */
+    public int getMaxOccurrence(int modification) {
+        return maxOccurrences[modification];
+    }
+
+    /**
+     * Returns the maximal occurrence of every modification.
+     *
+     * @return the maximal occurrence of every modification
+     */
+    public int[] getMaxOccurrences() {
+        return maxOccurrences;
+    }
+
+    /**
+     * Indicates whether the given profile of a modification profile table
+     * built on the same modifications is possible on the peptide.
+     *
+     * @param modificationProfileTable the modification profile table
+     * @param profile the index of the profile
+     *
+     * @return a boolean indicating whether the profile is possible
+     */
+    public boolean isPossible(ModificationProfileTable modificationProfileTable, int profile) {
+        for (int k = 0; k < maxOccurrences.length; k++) {
+            if (modificationProfileTable.getOccurrence(profile, k) > maxOccurrences[k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the possible sites of the possible modifications indexed by
+     * name. The map is shared and should not be modified.
+     *
+     * @return the possible sites of the possible modifications
+     */
+    public HashMap<String, Integer[]> getPossibleModificationSites() {
+        if (possibleModificationSites == null) {
+            HashMap<String, Integer[]> modificationSitesMap = new HashMap<String, Integer[]>(1);
+            for (int k = 0; k < modifications.length; k++) {
+                int[] modificationSites = sites[k];
+                if (modificationSites != null) {
+                    Integer[] possibleSites = new Integer[modificationSites.length];
+                    for (int i = 0; i < modificationSites.length; i++) {
+                        possibleSites[i] = modificationSites[i];
+                    }
+                    modificationSitesMap.put(modifications[k], possibleSites);
+                }
+            }
+            possibleModificationSites = modificationSitesMap;
+        }
+        return possibleModificationSites;
+    }
+}
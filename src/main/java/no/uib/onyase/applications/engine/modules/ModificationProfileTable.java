@@ -0,0 +1,148 @@
+package no.uib.onyase.applications.engine.modules;
+
+import java.util.HashMap;
+import no.uib.onyase.utils.SortingUtils;
+
+/**
+ * Table of all the modification profiles possible given maximal occurrences
+ * of the variable modifications, sorted by mass difference. The occurrence of
+ * every modification in every profile is stored in a primitive array indexed
+ * by the order of the modifications.
+ *
+ * @author Marc Vaudel
+ */
+public class ModificationProfileTable {
+
+    /**
+     * The names of the modifications.
+     */
+    private final String[] modifications;
+    /**
+     * The mass difference of every profile in ascending order.
+     */
+    private final double[] masses;
+    /**
+     * The occurrence of every modification in every profile, profile after
+     * profile.
+     */
+    private final int[] occurrences;
+    /**
+     * The occurrence of every modification in every profile as map, lazily
+     * created.
+     */
+    private final HashMap<String, Integer>[] occurrenceMaps;
+    /**
+     * The number of profiles.
+     */
+    private final int nProfiles;
+
+    /**
+     * Constructor. All profiles carrying at least one modification are
+     * included.
+     *
+     * @param modifications the names of the modifications
+     * @param modificationMasses the masses of the modifications
+     * @param maxOccurrences the maximal occurrence of every modification
+     */
+    @SuppressWarnings("unchecked")
+    public ModificationProfileTable(String[] modifications, double[] modificationMasses, int[] maxOccurrences) {
+
+        this.modifications = modifications;
+        int nModifications = modifications.length;
+
+        long nCombinations = 1;
+        for (int maxOccurrence : maxOccurrences) {
+            nCombinations *= maxOccurrence + 1;
+            if (nCombinations * nModifications > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Too many modification profiles.");
+            }
+        }
+        nProfiles = (int) nCombinations - 1;
+
+        // Enumerate the occurrence vectors
+        double[] profileMasses = new double[nProfiles];
+        int[] profileOccurrences = new int[nProfiles * nModifications];
+        int[] occurrence = new int[nModifications];
+        double mass = 0.0;
+        for (int profile = 0; profile < nProfiles; profile++) {
+            for (int k = 0; k < nModifications; k++) {
+                if (occurrence[k] < maxOccurrences[k]) {
+                    occurrence[k]++;
+                    mass += modificationMasses[k];
+                    break;
+                }
+                mass -= occurrence[k] * modificationMasses[k];
+                occurrence[k] = 0;
+            }
+            profileMasses[profile] = mass;
+            System.arraycopy(occurrence, 0, profileOccurrences, profile * nModifications, nModifications);
+        }
+
+        // Sort by mass
+        int[] order = SortingUtils.getOrder(profileMasses, nProfiles);
+        masses = new double[nProfiles];
+        occurrences = new int[nProfiles * nModifications];
+        for (int profile = 0; profile < nProfiles; profile++) {
+            int j = order[profile];
+            masses[profile] = profileMasses[j];
+            System.arraycopy(profileOccurrences, j * nModifications, occurrences, profile * nModifications, nModifications);
+        }
+        occurrenceMaps = new HashMap[nProfiles];
+    }
+
+    /**
+     * Returns the number of profiles in the table.
+     *
+     * @return the number of profiles in the table
+     */
+    public int size() {
+        return nProfiles;
+    }
+
+    /**
+     * Returns the mass difference induced by the given profile.
+     *
+     * @param profile the index of the profile
+     *
+     * @return the mass difference induced by the profile
+     */
+    public double getMass(int profile) {
+        return masses[profile];
+    }
+
+    /**
+     * Returns the occurrence of a modification in the given profile.
+     *
+     * @param profile the index of the profile
+     * @param modification the index of the modification
+     *
+     * @return the occurrence of the modification in the profile
+     */
+    public int getOccurrence(int profile, int modification) {
+        return occurrences[profile * modifications.length + modification];
+    }
+
+    /**
+     * Returns the occurrence of the modifications found in the given profile
+     * indexed by modification name. The map is shared and should not be
+     * modified.
+     *
+     * @param profile the index of the profile
+     *
+     * @return the occurrence of the modifications found in the profile
+     */
+    public HashMap<String, Integer> getModificationOccurrence(int profile) {
+        HashMap<String, Integer> occurrenceMap = occurrenceMaps[profile];
+        if (occurrenceMap == null) {
+            occurrenceMap = new HashMap<String, Integer>(1);
+            for (int k = 0; k < modifications.length; k++) {
+                int occurrence = getOccurrence(profile, k);
+                if (occurrence > 0) {
+                    occurrenceMap.put(modifications[k], occurrence);
+                }
+            }
+            occurrenceMaps[profile] = occurrenceMap;
+        }
+        return occurrenceMap;
+    }
+}
@@ -0,0 +1,528 @@
+package no.uib.onyase.applications.engine.modules;
+
+import com.compomics.util.experiment.biology.PTM;
+import com.compomics.util.experiment.biology.PTMFactory;
+import com.compomics.util.experiment.biology.Peptide;
+import com.compomics.util.experiment.identification.identification_parameters.PtmSettings;
+import com.compomics.util.experiment.identification.matches.ModificationMatch;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import no.uib.onyase.applications.engine.modules.isoform_iterators.CombinationIsoformIterator;
+import no.uib.onyase.applications.engine.modules.isoform_iterators.OverlappingIsoformIterator;
+import no.uib.onyase.applications.engine.modules.isoform_iterators.ScreeningIsoformIterator;
+import no.uib.onyase.utils.LruCache;
+
+/**
+ * This class stores information on the variable modifications searched and
+ * provides the iterators for the modification isoforms of a peptide. Instances
+ * cache intermediate results and are meant to be used by a single thread.
+ *
+ * @author Marc Vaudel
+ */
+public class PeptideModificationsIteratorFactory {
+
+    /**
+     * The number of modification plans to keep in cache.
+     */
+    public static final int MODIFICATION_PLAN_CACHE_SIZE = 10000;
+    /**
+     * The preferred number of sites to iterate per modification when
+     * screening representative isoforms.
+     */
+    public static final int SCREENING_SITES = 2;
+    /**
+     * The modifications factory.
+     */
+    private final PTMFactory ptmFactory = PTMFactory.getInstance();
+    /**
+     * The variable modifications indexed by name.
+     */
+    private final HashMap<String, PTM> variablePtms;
+    /**
+     * The masses of the variable modifications indexed by name.
+     */
+    private final HashMap<String, Double> variablePtmMasses;
+    /**
+     * Map of modifications with overlapping targets.
+     */
+    private final HashMap<String, HashSet<String>> overlappingModifications;
+    /**
+     * Matrix indicating whether modifications can target the same sites, in
+     * alphabetical order of name.
+     */
+    private final boolean[][] orderedOverlaps;
+    /**
+     * The names of the variable modifications in alphabetical order as array.
+     */
+    private final String[] orderedModifications;
+    /**
+     * The masses of the variable modifications in alphabetical order of name.
+     */
+    private final double[] orderedModificationMasses;
+    /**
+     * The variable modifications in alphabetical order of name.
+     */
+    private final PTM[] orderedVariablePtms;
+    /**
+     * The number of residues around the peptide on the protein sequence
+     * needed to find the modification sites.
+     */
+    private final int flankingLength;
+    /**
+     * Boolean indicating whether some modifications target protein termini.
+     */
+    private final boolean proteinTerminalModifications;
+    /**
+     * The number of residues around the peptide on the protein sequence
+     * needed to find the sites of the fixed and variable modifications.
+     */
+    private final int contextFlankingLength;
+    /**
+     * Cache for the modification profile tables indexed by the maximal
+     * occurrence of every modification in alphabetical order encoded as
+     * string.
+     */
+    private final HashMap<String, ModificationProfileTable> modificationProfileTables = new HashMap<String, ModificationProfileTable>();
+    /**
+     * Cache for the modification plans of the last peptides indexed by
+     * modification plan key.
+     */
+    private final LruCache<String, ModificationPlan> modificationPlans = new LruCache<String, ModificationPlan>(MODIFICATION_PLAN_CACHE_SIZE);
+
+    /**
+     * Constructor.
+     *
+     * @param ptmSettings the modification settings of the search
+     */
+    public PeptideModificationsIteratorFactory(PtmSettings ptmSettings) {
+
+        int nVariableModifications = ptmSettings.getVariableModifications().size();
+        variablePtms = new HashMap<String, PTM>(nVariableModifications);
+        variablePtmMasses = new HashMap<String, Double>(nVariableModifications);
+        overlappingModifications = new HashMap<String, HashSet<String>>(nVariableModifications);
+        for (String ptmName : ptmSettings.getVariableModifications()) {
+            PTM ptm = ptmFactory.getPTM(ptmName);
+            variablePtms.put(ptmName, ptm);
+            variablePtmMasses.put(ptmName, ptm.getMass());
+            if (ptm.getType() == PTM.MODAA) {
+                for (String ptmName2 : ptmSettings.getVariableModifications()) {
+                    if (!ptmName.equals(ptmName2)) {
+                        PTM ptm2 = ptmFactory.getPTM(ptmName2);
+                        if (ptm2.getType() == PTM.MODAA) {
+                            HashSet<Character> aas1 = ptm.getPattern().getAminoAcidsAtTargetSet();
+                            for (Character aa2 : ptm2.getPattern().getAminoAcidsAtTarget()) {
+                                if (aas1.contains(aa2)) {
+                                    HashSet<String> conflicts = overlappingModifications.get(ptmName);
+                                    if (conflicts == null) {
+                                        conflicts = new HashSet<String>(1);
+                                        overlappingModifications.put(ptmName, conflicts);
+                                    }
+                                    conflicts.add(ptmName2);
+                                    break;
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        ArrayList<String> orderedModificationsName = new ArrayList<String>(variablePtms.keySet());
+        Collections.sort(orderedModificationsName);
+        orderedModifications = orderedModificationsName.toArray(new String[orderedModificationsName.size()]);
+        orderedModificationMasses = new double[orderedModifications.length];
+        orderedVariablePtms = new PTM[orderedModifications.length];
+        int patternFlanking = 0;
+        boolean proteinTerminal = false;
+        for (int i = 0; i < orderedModifications.length; i++) {
+            PTM ptm = variablePtms.get(orderedModifications[i]);
+            orderedVariablePtms[i] = ptm;
+            orderedModificationMasses[i] = ptm.getMass();
+            if (ptm.getPattern() != null) {
+                patternFlanking = Math.max(patternFlanking, ptm.getPattern().length() - 1);
+            }
+            int ptmType = ptm.getType();
+            if (ptmType == PTM.MODNP || ptmType == PTM.MODNPAA || ptmType == PTM.MODCP || ptmType == PTM.MODCPAA) {
+                proteinTerminal = true;
+            }
+        }
+        orderedOverlaps = new boolean[orderedModifications.length][orderedModifications.length];
+        for (int i = 0; i < orderedModifications.length; i++) {
+            HashSet<String> conflicts = overlappingModifications.get(orderedModifications[i]);
+            if (conflicts != null) {
+                for (int j = 0; j < orderedModifications.length; j++) {
+                    orderedOverlaps[i][j] = conflicts.contains(orderedModifications[j]);
+                }
+            }
+        }
+        flankingLength = patternFlanking;
+        proteinTerminalModifications = proteinTerminal;
+        for (String ptmName : ptmSettings.getFixedModifications()) {
+            PTM ptm = ptmFactory.getPTM(ptmName);
+            if (ptm.getPattern() != null) {
+                patternFlanking = Math.max(patternFlanking, ptm.getPattern().length() - 1);
+            }
+        }
+        contextFlankingLength = patternFlanking;
+    }
+
+    /**
+     * Returns the variable modifications indexed by name.
+     *
+     * @return the variable modifications indexed by name
+     */
+    public HashMap<String, PTM> getVariablePtms() {
+        return variablePtms;
+    }
+
+    /**
+     * Returns the masses of the variable modifications indexed by name.
+     *
+     * @return the masses of the variable modifications indexed by name
+     */
+    public HashMap<String, Double> getVariablePtmMasses() {
+        return variablePtmMasses;
+    }
+
+    /**
+     * Returns the names of the variable modifications in alphabetical order.
+     *
+     * @return the names of the variable modifications in alphabetical order
+     */
+    public String[] getOrderedModifications() {
+        return orderedModifications;
+    }
+
+    /**
+     * Returns the masses of the variable modifications in alphabetical order
+     * of name.
+     *
+     * @return the masses of the variable modifications in alphabetical order
+     * of name
+     */
+    public double[] getOrderedModificationMasses() {
+        return orderedModificationMasses;
+    }
+
+    /**
+     * Returns the table of the modification profiles possible given the
+     * maximal occurrence of every modification. Tables are cached and reused
+     * for peptides with the same maximal occurrences.
+     *
+     * @param maxOccurrences the maximal occurrence of every modification
+     * indexed by modification name, modifications not in the map cannot occur
+     *
+     * @return the table of the modification profiles
+     */
+    public ModificationProfileTable getModificationProfileTable(HashMap<String, Integer> maxOccurrences) {
+        int[] orderedMaxOccurrences = new int[orderedModifications.length];
+        for (int i = 0; i < orderedModifications.length; i++) {
+            Integer maxOccurrence = maxOccurrences.get(orderedModifications[i]);
+            orderedMaxOccurrences[i] = maxOccurrence == null ? 0 : maxOccurrence;
+        }
+        return getModificationProfileTable(orderedMaxOccurrences);
+    }
+
+    /**
+     * Returns the table of the modification profiles possible given the
+     * maximal occurrence of every modification. Tables are cached and reused
+     * for peptides with the same maximal occurrences.
+     *
+     * @param maxOccurrences the maximal occurrence of every modification in
+     * alphabetical order of name
+     *
+     * @return the table of the modification profiles
+     */
+    public ModificationProfileTable getModificationProfileTable(int[] maxOccurrences) {
+        char[] key = new char[maxOccurrences.length];
+        for (int i = 0; i < maxOccurrences.length; i++) {
+            key[i] = (char) maxOccurrences[i];
+        }
+        String tableKey = new String(key);
+        ModificationProfileTable modificationProfileTable = modificationProfileTables.get(tableKey);
+        if (modificationProfileTable == null) {
+            modificationProfileTable = new ModificationProfileTable(orderedModifications, orderedModificationMasses, maxOccurrences.clone());
+            modificationProfileTables.put(tableKey, modificationProfileTable);
+        }
+        return modificationProfileTable;
+    }
+
+    /**
+     * Returns a key for the modification plan of the given peptide. Peptides
+     * with the same key have the same modification plan: the key contains the
+     * sequence of the peptide and, when needed by the modifications searched,
+     * the flanking residues and protein termini.
+     *
+     * @param peptideSequence the sequence of the peptide
+     * @param proteinSequence the sequence of the protein
+     * @param indexOnProtein the index of the peptide on the protein
+     *
+     * @return a key for the modification plan of the peptide
+     */
+    private String getModificationPlanKey(String peptideSequence, String proteinSequence, int indexOnProtein) {
+        if (flankingLength == 0 && !proteinTerminalModifications) {
+            return peptideSequence;
+        }
+        int end = indexOnProtein + peptideSequence.length();
+        StringBuilder stringBuilder = new StringBuilder(peptideSequence.length() + 2 * flankingLength + 3);
+        if (proteinTerminalModifications) {
+            stringBuilder.append(indexOnProtein == 0 ? '^' : '_');
+        }
+        stringBuilder.append(proteinSequence, Math.max(0, indexOnProtein - flankingLength), indexOnProtein).append('|');
+        stringBuilder.append(peptideSequence).append('|');
+        stringBuilder.append(proteinSequence, end, Math.min(proteinSequence.length(), end + flankingLength));
+        if (proteinTerminalModifications) {
+            stringBuilder.append(end == proteinSequence.length() ? '$' : '_');
+        }
+        return stringBuilder.toString();
+    }
+
+    /**
+     * Returns the number of residues around a peptide on the protein needed
+     * to find the sites of the fixed and variable modifications.
+     *
+     * @return the number of flanking residues needed
+     */
+    public int getContextFlankingLength() {
+        return contextFlankingLength;
+    }
+
+    /**
+     * Returns a key for the context of the given peptide on the protein: the
+     * protein termini and, when needed by the fixed or variable modifications
+     * searched, the flanking residues. Occurrences of a peptide sequence with
+     * the same context key carry the same modifications. The key does not
+     * contain the peptide sequence.
+     *
+     * @param peptideLength the length of the peptide
+     * @param proteinSequence the sequence of the protein
+     * @param indexOnProtein the index of the peptide on the protein
+     *
+     * @return a key for the context of the peptide on the protein
+     */
+    public String getProteinContextKey(int peptideLength, String proteinSequence, int indexOnProtein) {
+        int end = indexOnProtein + peptideLength;
+        boolean nTerm = indexOnProtein == 0;
+        boolean cTerm = end == proteinSequence.length();
+        if (contextFlankingLength == 0) {
+            return nTerm ? cTerm ? "^$" : "^" : cTerm ? "$" : "";
+        }
+        StringBuilder stringBuilder = new StringBuilder(2 * contextFlankingLength + 3);
+        if (nTerm) {
+            stringBuilder.append('^');
+        }
+        stringBuilder.append(proteinSequence, Math.max(0, indexOnProtein - contextFlankingLength), indexOnProtein).append('|');
+        stringBuilder.append(proteinSequence, end, Math.min(proteinSequence.length(), end + contextFlankingLength));
+        if (cTerm) {
+            stringBuilder.append('$');
+        }
+        return stringBuilder.toString();
+    }
+
+    /**
+     * Returns the possible sites and the maximal occurrence of every variable
+     * modification on the given peptide. The plans of the last peptides are
+     * cached and reused for peptides found in other proteins or matching
+     * other precursors.
+     *
+     * @param peptide the peptide
+     * @param proteinSequence the sequence of the protein
+     * @param indexOnProtein the index of the peptide on the protein
+     * @param maxModifications the maximal number of modifications, the same
+     * for all calls
+     *
+     * @return the modification plan of the peptide
+     */
+    public ModificationPlan getModificationPlan(Peptide peptide, String proteinSequence, int indexOnProtein, HashMap<String, Integer> maxModifications) {
+        String planKey = getModificationPlanKey(peptide.getSequence(), proteinSequence, indexOnProtein);
+        ModificationPlan modificationPlan = modificationPlans.get(planKey);
+        if (modificationPlan == null) {
+            modificationPlan = getNewModificationPlan(peptide, proteinSequence, indexOnProtein, maxModifications);
+            modificationPlans.put(planKey, modificationPlan);
+        }
+        return modificationPlan;
+    }
+
+    /**
+     * Computes the possible sites and the maximal occurrence of every
+     * variable modification on the given peptide.
+     *
+     * @param peptide the peptide
+     * @param proteinSequence the sequence of the protein
+     * @param indexOnProtein the index of the peptide on the protein
+     * @param maxModifications the maximal number of modifications
+     *
+     * @return the modification plan of the peptide
+     */
+    private ModificationPlan getNewModificationPlan(Peptide peptide, String proteinSequence, int indexOnProtein, HashMap<String, Integer> maxModifications) {
+        int[][] sites = new int[orderedModifications.length][];
+        int[] maxOccurrences = new int[orderedModifications.length];
+        for (int k = 0; k < orderedModifications.length; k++) {
+            ArrayList<Integer> ptmSites = peptide.getPotentialModificationSitesNoCombination(orderedVariablePtms[k], proteinSequence, indexOnProtein);
+            int nSites = ptmSites.size();
+            if (nSites > 0) {
+                int[] modificationSites = new int[nSites];
+                for (int i = 0; i < nSites; i++) {
+                    modificationSites[i] = ptmSites.get(i);
+                }
+                sites[k] = modificationSites;
+                Integer maximalOccurrence = maxModifications.get(orderedModifications[k]);
+                maxOccurrences[k] = maximalOccurrence == null ? nSites : Math.min(nSites, maximalOccurrence);
+            }
+        }
+        return new ModificationPlan(orderedModifications, sites, maxOccurrences);
+    }
+
+    /**
+     * Returns an iterator for the isoforms of the given peptide carrying the
+     * given modification profile.
+     *
+     * @param modificationPlan the modification plan of the peptide
+     * @param modificationProfileTable the modification profile table
+     * @param profile the index of the profile in the table
+     * @param maxSites the preferred number of sites to iterate per
+     * modification, 0 to iterate all sites
+     *
+     * @return an iterator for the isoforms of the peptide
+     */
+    public ModificationIsoformIterator getModificationIsoformIterator(ModificationPlan modificationPlan, ModificationProfileTable modificationProfileTable, int profile, int maxSites) {
+        int[] modifications = getProfileModifications(modificationProfileTable, profile);
+        int[][] possibleSites = getPossibleSites(modificationPlan, modifications);
+        int[] occurrences = getOccurrences(modificationProfileTable, profile, modifications);
+        if (isOverlapping(modifications)) {
+            if (OverlappingIsoformIterator.isSupported(possibleSites)) {
+                return new OverlappingIsoformIterator(modifications, possibleSites, occurrences);
+            }
+            return new CombinationIsoformIterator(modifications, possibleSites, occurrences, 0, true);
+        }
+        return new CombinationIsoformIterator(modifications, possibleSites, occurrences, maxSites, false);
+    }
+
+    /**
+     * Returns an iterator for a small set of representative isoforms of the
+     * given peptide carrying the given modification profile.
+     *
+     * @param modificationPlan the modification plan of the peptide
+     * @param modificationProfileTable the modification profile table
+     * @param profile the index of the profile in the table
+     *
+     * @return an iterator for representative isoforms of the peptide
+     */
+    public ModificationIsoformIterator getScreeningIsoformIterator(ModificationPlan modificationPlan, ModificationProfileTable modificationProfileTable, int profile) {
+        int[] modifications = getProfileModifications(modificationProfileTable, profile);
+        int[][] possibleSites = getPossibleSites(modificationPlan, modifications);
+        int[] occurrences = getOccurrences(modificationProfileTable, profile, modifications);
+        boolean overlap = isOverlapping(modifications);
+        ModificationIsoformIterator sampledIterator = new CombinationIsoformIterator(modifications, possibleSites, occurrences, SCREENING_SITES, overlap);
+        if (!overlap) {
+            return sampledIterator;
+        }
+        return new ScreeningIsoformIterator(sampledIterator, getModificationIsoformIterator(modificationPlan, modificationProfileTable, profile, 0));
+    }
+
+    /**
+     * Returns the indexes of the modifications carried by the given profile.
+     *
+     * @param modificationProfileTable the modification profile table
+     * @param profile the index of the profile in the table
+     *
+     * @return the indexes of the modifications carried by the profile
+     */
+    private int[] getProfileModifications(ModificationProfileTable modificationProfileTable, int profile) {
+        int nModifications = 0;
+        for (int k = 0; k < orderedModifications.length; k++) {
+            if (modificationProfileTable.getOccurrence(profile, k) > 0) {
+                nModifications++;
+            }
+        }
+        int[] modifications = new int[nModifications];
+        int i = 0;
+        for (int k = 0; k < orderedModifications.length; k++) {
+            if (modificationProfileTable.getOccurrence(profile, k) > 0) {
+                modifications[i++] = k;
+            }
+        }
+        return modifications;
+    }
+
+    /**
+     * Returns the possible sites of the given modifications.
+     *
+     * @param modificationPlan the modification plan of the peptide
+     * @param modifications the indexes of the modifications
+     *
+     * @return the possible sites of the modifications
+     */
+    private int[][] getPossibleSites(ModificationPlan modificationPlan, int[] modifications) {
+        int[][] possibleSites = new int[modifications.length][];
+        for (int i = 0; i < modifications.length; i++) {
+            possibleSites[i] = modificationPlan.getSites(modifications[i]);
+        }
+        return possibleSites;
+    }
+
+    /**
+     * Returns the occurrence of the given modifications in the given profile.
+     *
+     * @param modificationProfileTable the modification profile table
+     * @param profile the index of the profile in the table
+     * @param modifications the indexes of the modifications
+     *
+     * @return the occurrence of the modifications
+     */
+    private int[] getOccurrences(ModificationProfileTable modificationProfileTable, int profile, int[] modifications) {
+        int[] occurrences = new int[modifications.length];
+        for (int i = 0; i < modifications.length; i++) {
+            occurrences[i] = modificationProfileTable.getOccurrence(profile, modifications[i]);
+        }
+        return occurrences;
+    }
+
+    /**
+     * Indicates whether some of the given modifications can target the same
+     * sites.
+     *
+     * @param modifications the indexes of the modifications
+     *
+     * @return a boolean indicating whether some of the modifications can
+     * target the same sites
+     */
+    private boolean isOverlapping(int[] modifications) {
+        for (int i = 0; i < modifications.length; i++) {
+            for (int j = 0; j < i; j++) {
+                if (orderedOverlaps[modifications[j]][modifications[i]]) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns a copy of the given peptide carrying the given variable
+     * modifications in addition to the fixed modifications of the original
+     * peptide.
+     *
+     * @param peptide the unmodified peptide
+     * @param sites the sites of the variable modifications
+     * @param modifications the indexes of the variable modifications
+     * @param nModifications the number of variable modifications
+     *
+     * @return the modified peptide
+     */
+    public Peptide getModifiedPeptide(Peptide peptide, int[] sites, int[] modifications, int nModifications) {
+        ArrayList<ModificationMatch> fixedModifications = peptide.getModificationMatches();
+        int nFixedModifications = fixedModifications == null ? 0 : fixedModifications.size();
+        ArrayList<ModificationMatch> modificationMatches = new ArrayList<ModificationMatch>(nFixedModifications + nModifications);
+        if (fixedModifications != null) {
+            modificationMatches.addAll(fixedModifications);
+        }
+        for (int i = 0; i < nModifications; i++) {
+            ModificationMatch modificationMatch = new ModificationMatch(orderedModifications[modifications[i]], true, sites[i]);
+            modificationMatch.setConfident(true);
+            modificationMatches.add(modificationMatch);
+        }
+        return new Peptide(peptide.getSequence(), modificationMatches);
+    }
+}
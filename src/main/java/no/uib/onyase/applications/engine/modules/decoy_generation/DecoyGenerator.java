@@ -0,0 +1,157 @@
+package no.uib.onyase.applications.engine.modules.decoy_generation;
+
+import no.uib.onyase.applications.engine.parameters.DecoyMode;
+
+/**
+ * This class generates decoy peptides from target peptides.
+ *
+ * @author Marc Vaudel
+ */
+public class DecoyGenerator {
+
+    /**
+     * The suffix appended to the accession of a protein for its decoy
+     * peptides.
+     */
+    public static final String DECOY_ACCESSION_SUFFIX = "_REVERSED";
+
+    /**
+     * Returns the decoy sequence of the given target sequence.
+     *
+     * @param sequence the target sequence
+     * @param decoyMode the way decoy sequences are generated
+     *
+     * @return the decoy sequence
+     */
+    public static String getDecoySequence(String sequence, DecoyMode decoyMode) {
+        int length = sequence.length();
+        char[] decoy = new char[length];
+        switch (decoyMode) {
+            case reversed:
+                for (int i = 0; i < length; i++) {
+                    decoy[i] = sequence.charAt(length - 1 - i);
+                }
+                break;
+            case pseudoReversed:
+                for (int i = 0; i < length - 1; i++) {
+                    decoy[i] = sequence.charAt(length - 2 - i);
+                }
+                decoy[length - 1] = sequence.charAt(length - 1);
+                break;
+            default:
+                throw new UnsupportedOperationException("Decoy mode " + decoyMode + " not implemented.");
+        }
+        return new String(decoy);
+    }
+
+    /**
+     * Indicates whether the decoy of the peptide between the given indexes of
+     * a protein has the same sequence as the target, without allocating the
+     * decoy sequence.
+     *
+     * @param proteinSequence the sequence of the protein
+     * @param start the index of the first residue of the peptide on the
+     * protein
+     * @param end the index after the last residue of the peptide on the
+     * protein
+     * @param decoyMode the way decoy sequences are generated
+     *
+     * @return a boolean indicating whether the decoy sequence is the same as
+     * the target
+     */
+    public static boolean isSameAsTarget(String proteinSequence, int start, int end, DecoyMode decoyMode) {
+        int last;
+        switch (decoyMode) {
+            case reversed:
+                last = end - 1;
+                break;
+            case pseudoReversed:
+                last = end - 2;
+                break;
+            default:
+                throw new UnsupportedOperationException("Decoy mode " + decoyMode + " not implemented.");
+        }
+        for (int i = start, j = last; i < j; i++, j--) {
+            if (proteinSequence.charAt(i) != proteinSequence.charAt(j)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the sequence of a protein where the given peptide is replaced
+     * by its decoy.
+     *
+     * @param proteinSequence the sequence of the protein
+     * @param start the index of the first residue of the peptide on the
+     * protein
+     * @param end the index after the last residue of the peptide on the
+     * protein
+     * @param decoyMode the way decoy sequences are generated
+     *
+     * @return the sequence of the protein carrying the decoy peptide
+     */
+    public static String getDecoyProteinSequence(String proteinSequence, int start, int end, DecoyMode decoyMode) {
+        StringBuilder stringBuilder = new StringBuilder(proteinSequence.length());
+        stringBuilder.append(proteinSequence, 0, start);
+        stringBuilder.append(getDecoySequence(proteinSequence.substring(start, end), decoyMode));
+        stringBuilder.append(proteinSequence, end, proteinSequence.length());
+        return stringBuilder.toString();
+    }
+
+    /**
+     * Returns a window of the sequence of a protein where the given peptide
+     * is replaced by its decoy. The window contains the decoy peptide and up
+     * to the given number of residues on each side, at least one when
+     * available so that the protein termini are preserved. The decoy peptide
+     * starts at the index given by getWindowStart in the window.
+     *
+     * @param proteinSequence the sequence of the protein
+     * @param start the index of the first residue of the peptide on the
+     * protein
+     * @param end the index after the last residue of the peptide on the
+     * protein
+     * @param flankingLength the number of flanking residues needed
+     * @param decoyMode the way decoy sequences are generated
+     *
+     * @return a window of the sequence of the protein carrying the decoy
+     * peptide
+     */
+    public static String getDecoyProteinWindow(String proteinSequence, int start, int end, int flankingLength, DecoyMode decoyMode) {
+        int windowFlanking = Math.max(flankingLength, 1);
+        int windowEnd = Math.min(proteinSequence.length(), end + windowFlanking);
+        int windowStart = start - getWindowStart(start, flankingLength);
+        StringBuilder stringBuilder = new StringBuilder(windowEnd - windowStart);
+        stringBuilder.append(proteinSequence, windowStart, start);
+        stringBuilder.append(getDecoySequence(proteinSequence.substring(start, end), decoyMode));
+        stringBuilder.append(proteinSequence, end, windowEnd);
+        return stringBuilder.toString();
+    }
+
+    /**
+     * Returns the index of the peptide in the window returned by
+     * getDecoyProteinWindow.
+     *
+     * @param start the index of the first residue of the peptide on the
+     * protein
+     * @param flankingLength the number of flanking residues needed
+     *
+     * @return the index of the peptide in the window
+     */
+    public static int getWindowStart(int start, int flankingLength) {
+        return Math.min(start, Math.max(flankingLength, 1));
+    }
+
+    /**
+     * Returns the accession to use for the decoy peptides of the given
+     * protein.
+     *
+     * @param accession the accession of the target protein
+     *
+     * @return the accession to use for the decoy peptides
+     */
+    public static String getDecoyAccession(String accession) {
+        return accession + DECOY_ACCESSION_SUFFIX;
+    }
+}
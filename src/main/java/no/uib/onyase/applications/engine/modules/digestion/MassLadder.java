@@ -0,0 +1,184 @@
+package no.uib.onyase.applications.engine.modules.digestion;
+
+import com.compomics.util.experiment.biology.PTM;
+import java.util.ArrayList;
+import no.uib.onyase.applications.engine.modules.fragmentation.FragmentLadder;
+
+/**
+ * The mass ladder stores the cumulative residue masses of a protein with the
+ * fixed modifications folded in, allowing to compute the mass of any
+ * sub-sequence in constant time. Only fixed modifications which do not depend
+ * on the sequence context are supported, see isSupported. The arrays are
+ * reused between proteins and should not be shared between threads.
+ *
+ * @author Marc Vaudel
+ */
+public class MassLadder {
+
+    /**
+     * The mass of every residue including fixed modifications indexed by
+     * amino acid character, NaN if not supported.
+     */
+    private final double[] residueMasses = new double[128];
+    /**
+     * The mass added to every peptide: water and fixed modifications of the
+     * peptide termini.
+     */
+    private final double terminiMass;
+    /**
+     * The mass of the fixed modifications of the protein N-terminus.
+     */
+    private final double proteinNTermMass;
+    /**
+     * The mass of the fixed modifications of the protein C-terminus.
+     */
+    private final double proteinCTermMass;
+    /**
+     * The cumulative residue masses of the current protein, the mass of the
+     * residues before index i at index i.
+     */
+    private double[] cumulativeMasses = new double[1024];
+    /**
+     * The length of the current protein.
+     */
+    private int length = 0;
+
+    /**
+     * Constructor. The fixed modifications must be supported as indicated by
+     * isSupported.
+     *
+     * @param fixedModifications the fixed modifications
+     */
+    public MassLadder(ArrayList<PTM> fixedModifications) {
+        for (char aa = 0; aa < residueMasses.length; aa++) {
+            residueMasses[aa] = isAmbiguous(aa) ? Double.NaN : FragmentLadder.getResidueMass(aa);
+        }
+        double peptideTermini = FragmentLadder.WATER_MASS;
+        double proteinNTerm = 0.0;
+        double proteinCTerm = 0.0;
+        for (PTM ptm : fixedModifications) {
+            switch (ptm.getType()) {
+                case PTM.MODAA:
+                    for (Character aa : ptm.getPattern().getAminoAcidsAtTarget()) {
+                        residueMasses[aa] += ptm.getMass();
+                    }
+                    break;
+                case PTM.MODN:
+                case PTM.MODC:
+                    peptideTermini += ptm.getMass();
+                    break;
+                case PTM.MODNP:
+                    proteinNTerm += ptm.getMass();
+                    break;
+                case PTM.MODCP:
+                    proteinCTerm += ptm.getMass();
+                    break;
+                default:
+                    throw new IllegalArgumentException("Modification " + ptm.getName() + " not supported by the mass ladder.");
+            }
+        }
+        terminiMass = peptideTermini;
+        proteinNTermMass = proteinNTerm;
+        proteinCTermMass = proteinCTerm;
+    }
+
+    /**
+     * Indicates whether the given fixed modifications can be folded in a mass
+     * ladder: modifications of single residues or of the termini.
+     *
+     * @param fixedModifications the fixed modifications
+     *
+     * @return a boolean indicating whether the fixed modifications are
+     * supported
+     */
+    public static boolean isSupported(ArrayList<PTM> fixedModifications) {
+        for (PTM ptm : fixedModifications) {
+            switch (ptm.getType()) {
+                case PTM.MODAA:
+                    if (ptm.getPattern() == null || ptm.getPattern().length() > 1) {
+                        return false;
+                    }
+                    break;
+                case PTM.MODN:
+                case PTM.MODC:
+                case PTM.MODNP:
+                case PTM.MODCP:
+                    break;
+                default:
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Indicates whether the given character is an ambiguous amino acid, which
+     * can be replaced by different residues.
+     *
+     * @param aa the amino acid character
+     *
+     * @return a boolean indicating whether the amino acid is ambiguous
+     */
+    private static boolean isAmbiguous(char aa) {
+        return aa == 'X' || aa == 'B' || aa == 'J' || aa == 'Z';
+    }
+
+    /**
+     * Computes the ladder of the given protein sequence.
+     *
+     * @param sequence the protein sequence
+     *
+     * @return a boolean indicating whether all residues of the protein are
+     * supported, if not the masses of the ladder are not valid
+     */
+    public boolean setProtein(String sequence) {
+        length = sequence.length();
+        if (length >= cumulativeMasses.length) {
+            cumulativeMasses = new double[Math.max(length + 1, 2 * cumulativeMasses.length)];
+        }
+        double mass = 0.0;
+        cumulativeMasses[0] = mass;
+        for (int i = 0; i < length; i++) {
+            char aa = sequence.charAt(i);
+            if (aa >= residueMasses.length) {
+                return false;
+            }
+            double residueMass = residueMasses[aa];
+            if (Double.isNaN(residueMass)) {
+                return false;
+            }
+            mass += residueMass;
+            cumulativeMasses[i + 1] = mass;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the length of the current protein.
+     *
+     * @return the length of the current protein
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Returns the mass of the peptide between the given indexes on the
+     * current protein including fixed modifications.
+     *
+     * @param start the index of the first residue on the protein
+     * @param end the index after the last residue on the protein
+     *
+     * @return the mass of the peptide
+     */
+    public double getMass(int start, int end) {
+        double mass = cumulativeMasses[end] - cumulativeMasses[start] + terminiMass;
+        if (start == 0) {
+            mass += proteinNTermMass;
+        }
+        if (end == length) {
+            mass += proteinCTermMass;
+        }
+        return mass;
+    }
+}
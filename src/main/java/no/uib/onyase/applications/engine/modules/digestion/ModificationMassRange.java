@@ -0,0 +1,152 @@
+package no.uib.onyase.applications.engine.modules.digestion;
+
+import com.compomics.util.experiment.biology.PTM;
+import java.util.HashSet;
+
+/**
+ * The modification mass range bounds the mass difference induced by the
+ * variable modifications on any sub-sequence of a protein in constant time,
+ * using the cumulative count of the residues targeted by every modification.
+ * The flanking residues of the modification patterns are not inspected, the
+ * range therefore contains all mass differences possible but possibly more.
+ * The arrays are reused between proteins and should not be shared between
+ * threads.
+ *
+ * @author Marc Vaudel
+ */
+public class ModificationMassRange {
+
+    /**
+     * The mass of every modification.
+     */
+    private final double[] masses;
+    /**
+     * The maximal occurrence of every modification on a peptide.
+     */
+    private final int[] maxOccurrences;
+    /**
+     * For every modification, the residues targeted indexed by amino acid
+     * character, null if the modification targets a terminus.
+     */
+    private final boolean[][] targets;
+    /**
+     * For every modification, the cumulative count of the residues targeted
+     * on the current protein, the count before index i at index i.
+     */
+    private final int[][] cumulativeCounts;
+
+    /**
+     * Constructor.
+     *
+     * @param modifications the variable modifications
+     * @param maxOccurrences the maximal occurrence of every modification on a
+     * peptide
+     */
+    public ModificationMassRange(PTM[] modifications, int[] maxOccurrences) {
+        int nModifications = modifications.length;
+        this.maxOccurrences = maxOccurrences;
+        masses = new double[nModifications];
+        targets = new boolean[nModifications][];
+        cumulativeCounts = new int[nModifications][];
+        for (int k = 0; k < nModifications; k++) {
+            PTM ptm = modifications[k];
+            masses[k] = ptm.getMass();
+            if (ptm.getType() == PTM.MODAA) {
+                HashSet<Character> aminoAcids = ptm.getPattern().getAminoAcidsAtTargetSet();
+                boolean[] modificationTargets = new boolean[128];
+                for (Character aa : aminoAcids) {
+                    if (aa < modificationTargets.length) {
+                        modificationTargets[aa] = true;
+                    }
+                }
+                targets[k] = modificationTargets;
+                cumulativeCounts[k] = new int[1024];
+            }
+        }
+    }
+
+    /**
+     * Counts the residues targeted by the modifications on the given protein
+     * sequence.
+     *
+     * @param sequence the protein sequence
+     */
+    public void setProtein(String sequence) {
+        int length = sequence.length();
+        for (int k = 0; k < targets.length; k++) {
+            boolean[] modificationTargets = targets[k];
+            if (modificationTargets != null) {
+                int[] counts = cumulativeCounts[k];
+                if (length >= counts.length) {
+                    counts = new int[Math.max(length + 1, 2 * counts.length)];
+                    cumulativeCounts[k] = counts;
+                }
+                int count = 0;
+                counts[0] = count;
+                for (int i = 0; i < length; i++) {
+                    char aa = sequence.charAt(i);
+                    if (aa < modificationTargets.length && modificationTargets[aa]) {
+                        count++;
+                    }
+                    counts[i + 1] = count;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the maximal number of sites of the given modification on the
+     * peptide between the given indexes of the current protein.
+     *
+     * @param k the index of the modification
+     * @param start the index of the first residue on the protein
+     * @param end the index after the last residue on the protein
+     *
+     * @return the maximal number of sites of the modification
+     */
+    private int getMaxOccurrence(int k, int start, int end) {
+        int[] counts = cumulativeCounts[k];
+        int nSites = counts == null ? 1 : counts[end] - counts[start];
+        return Math.min(nSites, maxOccurrences[k]);
+    }
+
+    /**
+     * Returns the minimal mass difference induced by the variable
+     * modifications on the peptide between the given indexes of the current
+     * protein.
+     *
+     * @param start the index of the first residue on the protein
+     * @param end the index after the last residue on the protein
+     *
+     * @return the minimal mass difference
+     */
+    public double getMinMass(int start, int end) {
+        double result = 0.0;
+        for (int k = 0; k < masses.length; k++) {
+            if (masses[k] < 0) {
+                result += masses[k] * getMaxOccurrence(k, start, end);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the maximal mass difference induced by the variable
+     * modifications on the peptide between the given indexes of the current
+     * protein.
+     *
+     * @param start the index of the first residue on the protein
+     * @param end the index after the last residue on the protein
+     *
+     * @return the maximal mass difference
+     */
+    public double getMaxMass(int start, int end) {
+        double result = 0.0;
+        for (int k = 0; k < masses.length; k++) {
+            if (masses[k] > 0) {
+                result += masses[k] * getMaxOccurrence(k, start, end);
+            }
+        }
+        return result;
+    }
+}
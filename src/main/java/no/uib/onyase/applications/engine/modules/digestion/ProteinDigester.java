@@ -0,0 +1,347 @@
+package no.uib.onyase.applications.engine.modules.digestion;
+
+import com.compomics.util.experiment.biology.Enzyme;
+import com.compomics.util.preferences.DigestionPreferences;
+
+/**
+ * The protein digester iterates the peptides of a protein as start index,
+ * end index, and mass, using a mass ladder. No peptide or string is
+ * allocated. Specific digestion iterates pairs of cleavage sites. Semi-specific
+ * and unspecific digestion slide a window over the mass ladder: for every
+ * start, the ends of the peptides within the mass range are delimited by two
+ * pointers which only move forward along the protein. The digester is reused
+ * between proteins and should not be shared between threads.
+ *
+ * @author Marc Vaudel
+ */
+public class ProteinDigester {
+
+    /**
+     * Boolean indicating whether proteins are not digested.
+     */
+    private final boolean wholeProtein;
+    /**
+     * The enzyme used for the digestion, null if proteins are not digested or
+     * for unspecific digestion.
+     */
+    private final Enzyme enzyme;
+    /**
+     * The maximal number of missed cleavages, -1 if not limited.
+     */
+    private final int nMissedCleavages;
+    /**
+     * Boolean indicating whether peptides must start at a cleavage site.
+     */
+    private final boolean specificStart;
+    /**
+     * Boolean indicating whether peptides must end at a cleavage site.
+     */
+    private final boolean specificEnd;
+    /**
+     * Boolean indicating whether peptides must start or end at a cleavage
+     * site.
+     */
+    private final boolean semiSpecific;
+    /**
+     * The cleavage sites of the current protein including its termini.
+     */
+    private int[] cleavageSites = new int[256];
+    /**
+     * The number of cleavage sites of the current protein.
+     */
+    private int nCleavageSites = 0;
+    /**
+     * For every index of the current protein, the first cleavage site at or
+     * after the index.
+     */
+    private int[] nextSites = new int[1024];
+    /**
+     * For every index of the current protein, the number of cleavage sites
+     * before the index, protein termini excluded.
+     */
+    private int[] siteCounts = new int[1024];
+    /**
+     * The length of the current protein.
+     */
+    private int length;
+    /**
+     * The mass ladder of the current protein.
+     */
+    private MassLadder massLadder;
+    /**
+     * The minimal peptide mass.
+     */
+    private double massMin;
+    /**
+     * The maximal peptide mass.
+     */
+    private double massMax;
+    /**
+     * The index of the cleavage site at the start of the current peptide,
+     * specific digestion only.
+     */
+    private int startSite;
+    /**
+     * The index of the cleavage site at the end of the current peptide,
+     * specific digestion only.
+     */
+    private int endSite;
+    /**
+     * The start of the current peptide, non-specific digestion only.
+     */
+    private int start;
+    /**
+     * The end of the current peptide, non-specific digestion only, -1 if
+     * the ends of the current start are not set.
+     */
+    private int end;
+    /**
+     * The first end where the peptide mass reaches the minimal mass.
+     */
+    private int lowEnd;
+    /**
+     * The last end where the peptide mass does not exceed the maximal mass.
+     */
+    private int highEnd;
+    /**
+     * The mass of the current peptide.
+     */
+    private double mass;
+
+    /**
+     * Constructor. The digestion preferences must be supported as indicated
+     * by isSupported.
+     *
+     * @param digestionPreferences the digestion preferences
+     */
+    public ProteinDigester(DigestionPreferences digestionPreferences) {
+        switch (digestionPreferences.getCleavagePreference()) {
+            case wholeProtein:
+                wholeProtein = true;
+                enzyme = null;
+                nMissedCleavages = 0;
+                specificStart = true;
+                specificEnd = true;
+                semiSpecific = false;
+                break;
+            case unSpecific:
+                wholeProtein = false;
+                enzyme = null;
+                nMissedCleavages = -1;
+                specificStart = false;
+                specificEnd = false;
+                semiSpecific = false;
+                break;
+            default:
+                wholeProtein = false;
+                enzyme = digestionPreferences.getEnzymes().get(0);
+                Integer missedCleavages = digestionPreferences.getnMissedCleavages(enzyme.getName());
+                nMissedCleavages = missedCleavages == null ? 0 : missedCleavages;
+                DigestionPreferences.Specificity specificity = digestionPreferences.getSpecificity(enzyme.getName());
+                specificStart = specificity == DigestionPreferences.Specificity.specific || specificity == DigestionPreferences.Specificity.specificNTermOnly;
+                specificEnd = specificity == DigestionPreferences.Specificity.specific || specificity == DigestionPreferences.Specificity.specificCTermOnly;
+                semiSpecific = specificity == DigestionPreferences.Specificity.semiSpecific;
+        }
+    }
+
+    /**
+     * Indicates whether the given digestion preferences are supported by the
+     * digester: no digestion, unspecific digestion, or digestion with a
+     * single enzyme.
+     *
+     * @param digestionPreferences the digestion preferences
+     *
+     * @return a boolean indicating whether the digestion preferences are
+     * supported
+     */
+    public static boolean isSupported(DigestionPreferences digestionPreferences) {
+        switch (digestionPreferences.getCleavagePreference()) {
+            case wholeProtein:
+            case unSpecific:
+                return true;
+            case enzyme:
+                return digestionPreferences.getEnzymes().size() == 1;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Sets the protein to digest. The mass ladder must be set to the protein.
+     *
+     * @param sequence the protein sequence
+     * @param massLadder the mass ladder of the protein
+     * @param massMin the minimal peptide mass
+     * @param massMax the maximal peptide mass
+     */
+    public void setProtein(String sequence, MassLadder massLadder, double massMin, double massMax) {
+        this.massLadder = massLadder;
+        this.massMin = massMin;
+        this.massMax = massMax;
+        length = sequence.length();
+        if (length + 2 > cleavageSites.length) {
+            cleavageSites = new int[Math.max(length + 2, 2 * cleavageSites.length)];
+        }
+        nCleavageSites = 0;
+        cleavageSites[nCleavageSites++] = 0;
+        if (enzyme != null) {
+            for (int i = 1; i < length; i++) {
+                if (enzyme.isCleavageSiteNoCombination(sequence.charAt(i - 1), sequence.charAt(i))) {
+                    cleavageSites[nCleavageSites++] = i;
+                }
+            }
+        }
+        cleavageSites[nCleavageSites++] = length;
+        if (wholeProtein || specificStart && specificEnd) {
+            startSite = length > 0 ? 0 : nCleavageSites;
+            endSite = startSite;
+        } else {
+            setSiteIndexes();
+            start = 0;
+            end = -1;
+            lowEnd = 0;
+            highEnd = 0;
+        }
+    }
+
+    /**
+     * Sets the next cleavage site and the number of cleavage sites before
+     * every index of the current protein.
+     */
+    private void setSiteIndexes() {
+        if (length + 1 > nextSites.length) {
+            int newLength = Math.max(length + 1, 2 * nextSites.length);
+            nextSites = new int[newLength];
+            siteCounts = new int[newLength];
+        }
+        int site = 0;
+        for (int i = 0; i <= length; i++) {
+            if (cleavageSites[site] < i) {
+                site++;
+            }
+            nextSites[i] = cleavageSites[site];
+            siteCounts[i] = site > 0 ? site - 1 : 0;
+        }
+    }
+
+    /**
+     * Indicates whether the given index is a cleavage site of the current
+     * protein.
+     *
+     * @param i the index
+     *
+     * @return a boolean indicating whether the index is a cleavage site
+     */
+    private boolean isSite(int i) {
+        return nextSites[i] == i;
+    }
+
+    /**
+     * Moves to the next peptide within the mass range.
+     *
+     * @return a boolean indicating whether there is another peptide
+     */
+    public boolean next() {
+        if (wholeProtein || specificStart && specificEnd) {
+            return nextSpecific();
+        }
+        return nextNonSpecific();
+    }
+
+    /**
+     * Moves to the next peptide between two cleavage sites within the mass
+     * range.
+     *
+     * @return a boolean indicating whether there is another peptide
+     */
+    private boolean nextSpecific() {
+        while (startSite < nCleavageSites - 1) {
+            endSite++;
+            if (endSite < nCleavageSites && endSite - startSite <= nMissedCleavages + 1) {
+                mass = massLadder.getMass(cleavageSites[startSite], cleavageSites[endSite]);
+                if (mass > massMax) {
+                    endSite = nCleavageSites;
+                } else if (mass >= massMin) {
+                    return true;
+                }
+            } else {
+                startSite++;
+                endSite = startSite;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Moves to the next peptide with at most one specific terminus within
+     * the mass range.
+     *
+     * @return a boolean indicating whether there is another peptide
+     */
+    private boolean nextNonSpecific() {
+        while (start < length) {
+            if (end == -1) {
+                if (specificStart && !isSite(start)) {
+                    start = nextSites[start];
+                    continue;
+                }
+
+                // Slide the mass window
+                if (lowEnd <= start) {
+                    lowEnd = start + 1;
+                }
+                while (lowEnd <= length && massLadder.getMass(start, lowEnd) < massMin) {
+                    lowEnd++;
+                }
+                if (highEnd < lowEnd - 1) {
+                    highEnd = lowEnd - 1;
+                }
+                while (highEnd < length && massLadder.getMass(start, highEnd + 1) <= massMax) {
+                    highEnd++;
+                }
+                end = lowEnd - 1;
+            }
+            end++;
+            if (end <= highEnd && (specificEnd || semiSpecific && !isSite(start))) {
+                end = nextSites[end];
+            }
+            if (end > highEnd || nMissedCleavages >= 0 && siteCounts[end] - siteCounts[start + 1] > nMissedCleavages) {
+                start++;
+                end = -1;
+                continue;
+            }
+            mass = massLadder.getMass(start, end);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the index of the first residue of the current peptide on the
+     * protein.
+     *
+     * @return the index of the first residue of the current peptide
+     */
+    public int getStart() {
+        return wholeProtein || specificStart && specificEnd ? cleavageSites[startSite] : start;
+    }
+
+    /**
+     * Returns the index after the last residue of the current peptide on the
+     * protein.
+     *
+     * @return the index after the last residue of the current peptide
+     */
+    public int getEnd() {
+        return wholeProtein || specificStart && specificEnd ? cleavageSites[endSite] : end;
+    }
+
+    /**
+     * Returns the mass of the current peptide including fixed modifications.
+     *
+     * @return the mass of the current peptide
+     */
+    public double getMass() {
+        return mass;
+    }
+}
@@ -0,0 +1,175 @@
+package no.uib.onyase.applications.engine.modules.fragment_index;
+
+import java.util.Arrays;
+
+/**
+ * The candidate selector retains, for a range of a peptide index, the
+ * peptides sharing the most peaks with the spectrum according to a fragment
+ * index. If no fragment index is provided, all peptides are retained. The
+ * peptides can be restricted to the eligible ones, for example excluding
+ * duplicate sequences, before ranking. The
+ * buffers are reused between spectra and should not be shared between
+ * threads.
+ *
+ * @author Marc Vaudel
+ */
+public class CandidateSelector {
+
+    /**
+     * The fragment index, null if not used.
+     */
+    private final FragmentIndex fragmentIndex;
+    /**
+     * The maximal number of candidates to retain per range.
+     */
+    private final int nCandidates;
+    /**
+     * The array containing the m/z of the peaks of the current spectrum.
+     */
+    private double[] peakMzs;
+    /**
+     * The index of the first peak of the current spectrum.
+     */
+    private int peakStart = 0;
+    /**
+     * The index after the last peak of the current spectrum.
+     */
+    private int peakEnd = 0;
+    /**
+     * The shared peaks count of the peptides of the current range.
+     */
+    private int[] counts = new int[256];
+    /**
+     * Histogram of the shared peaks counts.
+     */
+    private int[] histogram = new int[256];
+    /**
+     * The indexes of the candidates retained.
+     */
+    private int[] candidates = new int[256];
+
+    /**
+     * Constructor.
+     *
+     * @param fragmentIndex the fragment index, null if not used
+     * @param nCandidates the maximal number of candidates to retain per range
+     */
+    public CandidateSelector(FragmentIndex fragmentIndex, int nCandidates) {
+        this.fragmentIndex = fragmentIndex;
+        this.nCandidates = nCandidates;
+    }
+
+    /**
+     * Sets the peaks of the current spectrum. The array is not copied.
+     *
+     * @param mzs the array containing the m/z of the peaks
+     * @param peakStart the index of the first peak
+     * @param peakEnd the index after the last peak
+     */
+    public void setPeaks(double[] mzs, int peakStart, int peakEnd) {
+        this.peakMzs = mzs;
+        this.peakStart = peakStart;
+        this.peakEnd = peakEnd;
+    }
+
+    /**
+     * Selects the candidates of the given range. The candidates are returned
+     * by getCandidates() in ascending order.
+     *
+     * @param first the index of the first peptide
+     * @param last the index after the last peptide
+     *
+     * @return the number of candidates selected
+     */
+    public int select(int first, int last) {
+        return select(first, last, null);
+    }
+
+    /**
+     * Selects the candidates of the given range among the eligible peptides.
+     * The maximal number of candidates is applied to the eligible peptides
+     * only. The candidates are returned by getCandidates() in ascending
+     * order.
+     *
+     * @param first the index of the first peptide
+     * @param last the index after the last peptide
+     * @param eligible array indicating for every peptide of the range,
+     * starting at index 0 for the first peptide, whether it can be selected,
+     * null if all peptides can be selected
+     *
+     * @return the number of candidates selected
+     */
+    public int select(int first, int last, boolean[] eligible) {
+
+        int rangeSize = Math.max(0, last - first);
+        if (rangeSize > candidates.length) {
+            candidates = new int[Math.max(rangeSize, 2 * candidates.length)];
+        }
+
+        // Gather the eligible peptides
+        int nEligible = 0;
+        for (int i = 0; i < rangeSize; i++) {
+            if (eligible == null || eligible[i]) {
+                candidates[nEligible++] = first + i;
+            }
+        }
+
+        // Small sets of peptides are not filtered
+        if (fragmentIndex == null || nEligible <= nCandidates) {
+            return nEligible;
+        }
+
+        // Count the shared peaks
+        if (rangeSize > counts.length) {
+            counts = new int[Math.max(rangeSize, 2 * counts.length)];
+        }
+        fragmentIndex.countSharedPeaks(peakMzs, peakStart, peakEnd, first, last, counts);
+
+        // Find the count threshold of the top eligible candidates
+        int maxCount = 0;
+        for (int j = 0; j < nEligible; j++) {
+            int count = counts[candidates[j] - first];
+            if (count > maxCount) {
+                maxCount = count;
+            }
+        }
+        if (maxCount >= histogram.length) {
+            histogram = new int[maxCount + 1];
+        }
+        Arrays.fill(histogram, 0, maxCount + 1, 0);
+        for (int j = 0; j < nEligible; j++) {
+            histogram[counts[candidates[j] - first]]++;
+        }
+        int threshold = maxCount;
+        int nAbove = 0;
+        while (nAbove + histogram[threshold] < nCandidates) {
+            nAbove += histogram[threshold];
+            threshold--;
+        }
+
+        // Retain the top candidates in ascending order
+        int nAtThreshold = nCandidates - nAbove;
+        int nSelected = 0;
+        for (int j = 0; j < nEligible; j++) {
+            int candidate = candidates[j];
+            int count = counts[candidate - first];
+            if (count > threshold) {
+                candidates[nSelected++] = candidate;
+            } else if (count == threshold && nAtThreshold > 0) {
+                candidates[nSelected++] = candidate;
+                nAtThreshold--;
+            }
+        }
+        return nSelected;
+    }
+
+    /**
+     * Returns the candidates selected, only the values up to the number
+     * returned by the last call to select() are valid.
+     *
+     * @return the candidates selected
+     */
+    public int[] getCandidates() {
+        return candidates;
+    }
+}
@@ -0,0 +1,145 @@
+package no.uib.onyase.applications.engine.modules.fragment_index;
+
+/**
+ * Inverted index of the fragment ions of the peptides of a peptide index. The
+ * m/z axis is discretized in bins, every bin lists the indexes of the peptides
+ * having a fragment ion in this bin in ascending order.
+ *
+ * @author Marc Vaudel
+ */
+public class FragmentIndex {
+
+    /**
+     * The size of the bins in m/z.
+     */
+    private final double binSize;
+    /**
+     * The index of the first peptide of every bin in the peptides array, the
+     * last value is the size of the peptides array.
+     */
+    private final int[] binStarts;
+    /**
+     * The peptide indexes of all bins.
+     */
+    private final int[] peptides;
+
+    /**
+     * Constructor.
+     *
+     * @param binSize the size of the bins in m/z
+     * @param binStarts the index of the first peptide of every bin in the
+     * peptides array
+     * @param peptides the peptide indexes of all bins
+     */
+    public FragmentIndex(double binSize, int[] binStarts, int[] peptides) {
+        this.binSize = binSize;
+        this.binStarts = binStarts;
+        this.peptides = peptides;
+    }
+
+    /**
+     * Returns the size of the bins in m/z.
+     *
+     * @return the size of the bins in m/z
+     */
+    public double getBinSize() {
+        return binSize;
+    }
+
+    /**
+     * Returns the number of bins.
+     *
+     * @return the number of bins
+     */
+    public int getNBins() {
+        return binStarts.length - 1;
+    }
+
+    /**
+     * Returns the number of fragment ions indexed.
+     *
+     * @return the number of fragment ions indexed
+     */
+    public int size() {
+        return peptides.length;
+    }
+
+    /**
+     * Returns the bin of the given m/z, -1 if outside the index.
+     *
+     * @param mz the m/z
+     *
+     * @return the bin of the given m/z
+     */
+    public int getBin(double mz) {
+        if (mz < 0) {
+            return -1;
+        }
+        double bin = mz / binSize;
+        if (bin >= getNBins()) {
+            return -1;
+        }
+        return (int) bin;
+    }
+
+    /**
+     * Counts, for every peptide of the given range, the peaks matching a
+     * fragment ion in the bin of the peak or in one of the adjacent bins.
+     *
+     * @param peakMzs the m/z of the peaks
+     * @param peakStart the index of the first peak
+     * @param peakEnd the index after the last peak
+     * @param first the index of the first peptide
+     * @param last the index after the last peptide
+     * @param counts array where to store the counts, the count of peptide i
+     * is stored at index i - first
+     */
+    public void countSharedPeaks(double[] peakMzs, int peakStart, int peakEnd, int first, int last, int[] counts) {
+
+        for (int i = 0; i < last - first; i++) {
+            counts[i] = 0;
+        }
+
+        int nBins = getNBins();
+        for (int i = peakStart; i < peakEnd; i++) {
+            int peakBin = getBin(peakMzs[i]);
+            if (peakBin >= 0) {
+                int binMin = Math.max(0, peakBin - 1);
+                int binMax = Math.min(nBins - 1, peakBin + 1);
+                for (int bin = binMin; bin <= binMax; bin++) {
+                    int end = binStarts[bin + 1];
+                    for (int j = getFirstIndex(binStarts[bin], end, first); j < end; j++) {
+                        int peptide = peptides[j];
+                        if (peptide >= last) {
+                            break;
+                        }
+                        counts[peptide - first]++;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the index of the first peptide higher or equal to the given
+     * peptide in the given range of the peptides array.
+     *
+     * @param low the start of the range
+     * @param high the end of the range
+     * @param peptide the peptide
+     *
+     * @return the index of the first peptide higher or equal to the given
+     * peptide
+     */
+    private int getFirstIndex(int low, int high, int peptide) {
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (peptides[middle] < peptide) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,212 @@
+package no.uib.onyase.applications.engine.modules.fragment_index;
+
+import com.compomics.util.exceptions.ExceptionHandler;
+import com.compomics.util.waiting.WaitingHandler;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import no.uib.onyase.applications.engine.modules.fragmentation.FragmentLadder;
+import no.uib.onyase.applications.engine.modules.peptide_index.PeptideIndex;
+
+/**
+ * This class builds a fragment index from the peptides of a peptide index.
+ * The singly charged b and y ions of the peptides carrying their fixed
+ * modifications are indexed.
+ *
+ * @author Marc Vaudel
+ */
+public class FragmentIndexBuilder {
+
+    /**
+     * A handler for the exceptions.
+     */
+    private ExceptionHandler exceptionHandler;
+    /**
+     * A waiting handler providing feedback to the user and allowing canceling
+     * the process.
+     */
+    private WaitingHandler waitingHandler;
+
+    /**
+     * Constructor.
+     *
+     * @param waitingHandler a waiting handler providing feedback to the user
+     * and allowing canceling the process
+     * @param exceptionHandler a handler for the exceptions
+     */
+    public FragmentIndexBuilder(WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) {
+        this.exceptionHandler = exceptionHandler;
+        this.waitingHandler = waitingHandler;
+    }
+
+    /**
+     * Builds the fragment index of the given peptide index.
+     *
+     * @param peptideIndex the peptide index
+     * @param fragmentAccuracy the fragment ion accuracy
+     * @param ppm boolean indicating whether the accuracy is in ppm
+     * @param nThreads the number of threads to use
+     *
+     * @return the fragment index
+     *
+     * @throws InterruptedException exception thrown if a threading issue
+     * occurs
+     */
+    public FragmentIndex buildIndex(PeptideIndex peptideIndex, double fragmentAccuracy, boolean ppm, int nThreads) throws InterruptedException {
+
+        // Set the bins according to the largest fragment possible
+        int nPeptides = peptideIndex.size();
+        double maxMz = nPeptides > 0 ? peptideIndex.getMass(nPeptides - 1) + FragmentLadder.PROTON_MASS : 0.0;
+        double binSize = ppm ? fragmentAccuracy * maxMz / 1000000 : fragmentAccuracy;
+        int nBins = (int) (maxMz / binSize) + 1;
+
+        // Count the fragments per bin in slices of the peptide index
+        int sliceSize = Math.max(1, (nPeptides + nThreads - 1) / nThreads);
+        ArrayList<SliceProcessor> sliceProcessors = new ArrayList<SliceProcessor>(nThreads);
+        for (int start = 0; start < nPeptides; start += sliceSize) {
+            sliceProcessors.add(new SliceProcessor(peptideIndex, start, Math.min(start + sliceSize, nPeptides), binSize, nBins));
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+        for (SliceProcessor sliceProcessor : sliceProcessors) {
+            pool.submit(sliceProcessor);
+        }
+        pool.shutdown();
+        if (!pool.awaitTermination(Integer.MAX_VALUE, TimeUnit.DAYS)) {
+            waitingHandler.appendReport("Fragment indexing timed out.", true, true);
+        }
+
+        // Convert the counts in offsets so that the peptides of every bin are sorted
+        int[] binStarts = new int[nBins + 1];
+        long offset = 0;
+        for (int bin = 0; bin < nBins; bin++) {
+            binStarts[bin] = (int) offset;
+            for (SliceProcessor sliceProcessor : sliceProcessors) {
+                int count = sliceProcessor.binIndexes[bin];
+                sliceProcessor.binIndexes[bin] = (int) offset;
+                offset += count;
+            }
+            if (offset > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Too many fragment ions to index.");
+            }
+        }
+        binStarts[nBins] = (int) offset;
+
+        // Fill the bins
+        int[] peptides = new int[(int) offset];
+        pool = Executors.newFixedThreadPool(nThreads);
+        for (SliceProcessor sliceProcessor : sliceProcessors) {
+            sliceProcessor.peptides = peptides;
+            pool.submit(sliceProcessor);
+        }
+        pool.shutdown();
+        if (!pool.awaitTermination(Integer.MAX_VALUE, TimeUnit.DAYS)) {
+            waitingHandler.appendReport("Fragment indexing timed out.", true, true);
+        }
+
+        return new FragmentIndex(binSize, binStarts, peptides);
+    }
+
+    /**
+     * Private runnable to index the fragments of a slice of the peptide index.
+     * The first run counts the fragments per bin, the second run stores the
+     * peptides in the bins.
+     */
+    private class SliceProcessor implements Runnable {
+
+        /**
+         * The peptide index.
+         */
+        private final PeptideIndex peptideIndex;
+        /**
+         * The index of the first peptide of the slice.
+         */
+        private final int startIndex;
+        /**
+         * The index after the last peptide of the slice.
+         */
+        private final int endIndex;
+        /**
+         * The size of the bins.
+         */
+        private final double binSize;
+        /**
+         * The number of bins.
+         */
+        private final int nBins;
+        /**
+         * The number of fragments per bin during the first run, the index
+         * where to store the next peptide of every bin during the second run.
+         */
+        private final int[] binIndexes;
+        /**
+         * The peptides array to fill, null during the first run.
+         */
+        private int[] peptides = null;
+
+        /**
+         * Constructor.
+         *
+         * @param peptideIndex the peptide index
+         * @param startIndex the index of the first peptide of the slice
+         * @param endIndex the index after the last peptide of the slice
+         * @param binSize the size of the bins
+         * @param nBins the number of bins
+         */
+        public SliceProcessor(PeptideIndex peptideIndex, int startIndex, int endIndex, double binSize, int nBins) {
+            this.peptideIndex = peptideIndex;
+            this.startIndex = startIndex;
+            this.endIndex = endIndex;
+            this.binSize = binSize;
+            this.nBins = nBins;
+            binIndexes = new int[nBins];
+        }
+
+        @Override
+        public void run() {
+
+            try {
+
+                FragmentLadder fragmentLadder = new FragmentLadder();
+
+                for (int i = startIndex; i < endIndex; i++) {
+
+                    fragmentLadder.setPeptide(peptideIndex.getPeptide(i));
+                    int nFragments = fragmentLadder.getNFragments();
+                    addFragments(i, fragmentLadder.getBIons(), nFragments);
+                    addFragments(i, fragmentLadder.getYIons(), nFragments);
+
+                    if (waitingHandler.isRunCanceled()) {
+                        return;
+                    }
+                }
+            } catch (Exception e) {
+                if (!waitingHandler.isRunCanceled()) {
+                    exceptionHandler.catchException(e);
+                    waitingHandler.setRunCanceled();
+                }
+            }
+        }
+
+        /**
+         * Counts or stores the fragments of a peptide.
+         *
+         * @param peptide the index of the peptide
+         * @param fragmentMzs the m/z of the fragments
+         * @param nFragments the number of fragments
+         */
+        private void addFragments(int peptide, double[] fragmentMzs, int nFragments) {
+            for (int j = 0; j < nFragments; j++) {
+                double bin = fragmentMzs[j] / binSize;
+                if (bin >= 0 && bin < nBins) {
+                    int binIndex = (int) bin;
+                    if (peptides == null) {
+                        binIndexes[binIndex]++;
+                    } else {
+                        peptides[binIndexes[binIndex]++] = peptide;
+                    }
+                }
+            }
+        }
+    }
+}
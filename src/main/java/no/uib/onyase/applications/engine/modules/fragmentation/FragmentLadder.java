@@ -0,0 +1,213 @@
+package no.uib.onyase.applications.engine.modules.fragmentation;
+
+import com.compomics.util.experiment.biology.AminoAcid;
+import com.compomics.util.experiment.biology.Atom;
+import com.compomics.util.experiment.biology.PTMFactory;
+import com.compomics.util.experiment.biology.Peptide;
+import com.compomics.util.experiment.biology.ions.ElementaryIon;
+import com.compomics.util.experiment.identification.matches.ModificationMatch;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * The fragment ladder computes the m/z of the singly charged b and y ions of
+ * a peptide. The arrays are reused between peptides and should not be shared
+ * between threads.
+ *
+ * @author Marc Vaudel
+ */
+public class FragmentLadder {
+
+    /**
+     * The mass of the residues indexed by amino acid character, NaN if not an
+     * amino acid.
+     */
+    private static final double[] RESIDUE_MASSES = createResidueMassTable();
+    /**
+     * The mass of a proton.
+     */
+    public static final double PROTON_MASS = ElementaryIon.proton.getTheoreticMass();
+    /**
+     * The mass of water.
+     */
+    public static final double WATER_MASS = 2 * Atom.H.getMonoisotopicMass() + Atom.O.getMonoisotopicMass();
+    /**
+     * The modifications factory.
+     */
+    private final PTMFactory ptmFactory = PTMFactory.getInstance();
+    /**
+     * Cache for the mass of the modifications.
+     */
+    private final HashMap<String, Double> ptmMasses = new HashMap<String, Double>();
+    /**
+     * The mass of every residue of the current peptide including
+     * modifications.
+     */
+    private double[] residueMasses = new double[64];
+    /**
+     * The m/z of the b ions of the current peptide, b1 at index 0.
+     */
+    private double[] bIons = new double[64];
+    /**
+     * The m/z of the y ions of the current peptide, y1 at index 0.
+     */
+    private double[] yIons = new double[64];
+    /**
+     * The length of the current peptide.
+     */
+    private int length = 0;
+
+    /**
+     * Constructor.
+     */
+    public FragmentLadder() {
+
+    }
+
+    /**
+     * Returns the table of residue masses indexed by amino acid character.
+     *
+     * @return the table of residue masses
+     */
+    private static double[] createResidueMassTable() {
+        double[] result = new double[128];
+        for (char aa = 0; aa < result.length; aa++) {
+            result[aa] = Double.NaN;
+        }
+        for (char aa = 'A'; aa <= 'Z'; aa++) {
+            try {
+                AminoAcid aminoAcid = AminoAcid.getAminoAcid(aa);
+                if (aminoAcid != null) {
+                    result[aa] = aminoAcid.getMonoisotopicMass();
+                }
+            } catch (IllegalArgumentException e) {
+                // Not an amino acid
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the mass of the given residue.
+     *
+     * @param aa the amino acid character
+     *
+     * @return the mass of the residue, NaN if not an amino acid
+     */
+    public static double getResidueMass(char aa) {
+        return aa < RESIDUE_MASSES.length ? RESIDUE_MASSES[aa] : Double.NaN;
+    }
+
+    /**
+     * Computes the ladder of the given peptide.
+     *
+     * @param peptide the peptide
+     */
+    public void setPeptide(Peptide peptide) {
+        setPeptide(peptide.getSequence(), peptide.getModificationMatches());
+    }
+
+    /**
+     * Computes the ladder of the given sequence carrying the given
+     * modifications.
+     *
+     * @param sequence the sequence of the peptide
+     * @param modificationMatches the modifications of the peptide, can be
+     * null
+     */
+    public void setPeptide(String sequence, ArrayList<ModificationMatch> modificationMatches) {
+
+        length = sequence.length();
+        if (length > residueMasses.length) {
+            int newLength = Math.max(length, 2 * residueMasses.length);
+            residueMasses = new double[newLength];
+            bIons = new double[newLength];
+            yIons = new double[newLength];
+        }
+
+        // Residue masses
+        for (int i = 0; i < length; i++) {
+            residueMasses[i] = getResidueMass(sequence.charAt(i));
+        }
+        if (modificationMatches != null) {
+            for (ModificationMatch modificationMatch : modificationMatches) {
+                residueMasses[modificationMatch.getModificationSite() - 1] += getPtmMass(modificationMatch.getTheoreticPtm());
+            }
+        }
+
+        // Ladders
+        double bMz = PROTON_MASS;
+        double yMz = PROTON_MASS + WATER_MASS;
+        for (int i = 0; i < length; i++) {
+            bMz += residueMasses[i];
+            bIons[i] = bMz;
+            yMz += residueMasses[length - i - 1];
+            yIons[i] = yMz;
+        }
+    }
+
+    /**
+     * Returns the mass of the given modification.
+     *
+     * @param ptmName the name of the modification
+     *
+     * @return the mass of the modification
+     */
+    private double getPtmMass(String ptmName) {
+        Double mass = ptmMasses.get(ptmName);
+        if (mass == null) {
+            mass = ptmFactory.getPTM(ptmName).getMass();
+            ptmMasses.put(ptmName, mass);
+        }
+        return mass;
+    }
+
+    /**
+     * Returns the length of the current peptide.
+     *
+     * @return the length of the current peptide
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Returns the number of fragment ions of every type, i.e. the length of
+     * the peptide minus one.
+     *
+     * @return the number of fragment ions of every type
+     */
+    public int getNFragments() {
+        return Math.max(0, length - 1);
+    }
+
+    /**
+     * Returns the m/z of the b ions of the current peptide, b1 at index 0.
+     * Only the first getNFragments() values are valid.
+     *
+     * @return the m/z of the b ions
+     */
+    public double[] getBIons() {
+        return bIons;
+    }
+
+    /**
+     * Returns the m/z of the y ions of the current peptide, y1 at index 0.
+     * Only the first getNFragments() values are valid.
+     *
+     * @return the m/z of the y ions
+     */
+    public double[] getYIons() {
+        return yIons;
+    }
+
+    /**
+     * Returns the mass of every residue of the current peptide including
+     * modifications. Only the first getLength() values are valid.
+     *
+     * @return the mass of every residue
+     */
+    public double[] getResidueMasses() {
+        return residueMasses;
+    }
+}
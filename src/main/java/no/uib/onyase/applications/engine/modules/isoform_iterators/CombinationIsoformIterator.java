@@ -0,0 +1,156 @@
+package no.uib.onyase.applications.engine.modules.isoform_iterators;
+
+import no.uib.onyase.applications.engine.modules.ModificationIsoformIterator;
+
+/**
+ * Iterator for the isoforms of a peptide combining the site combinations of
+ * every modification. When the modifications can target the same sites, the
+ * isoforms where a site carries more than one modification are skipped. The
+ * OverlappingIsoformIterator should be preferred in this case, when the
+ * number of sites allows it.
+ *
+ * @author Marc Vaudel
+ */
+public class CombinationIsoformIterator implements ModificationIsoformIterator {
+
+    /**
+     * The indexes of the modifications.
+     */
+    private final int[] modifications;
+    /**
+     * The iterators for the sites of every modification.
+     */
+    private final SiteCombinationIterator[] siteIterators;
+    /**
+     * The index of the first site of every modification in an isoform.
+     */
+    private final int[] offsets;
+    /**
+     * The number of modifications carried by every isoform.
+     */
+    private final int nModifications;
+    /**
+     * Boolean indicating whether the modifications can target the same
+     * sites.
+     */
+    private final boolean overlap;
+    /**
+     * The current sites.
+     */
+    private final int[] sites;
+    /**
+     * Boolean indicating whether the iteration has started.
+     */
+    private boolean started = false;
+
+    /**
+     * Constructor.
+     *
+     * @param modifications the indexes of the modifications
+     * @param possibleSites the possible sites of every modification
+     * @param occurrences the occurrence of every modification
+     * @param maxSites the preferred number of sites to iterate per
+     * modification, 0 to iterate all sites
+     * @param overlap boolean indicating whether the modifications can target
+     * the same sites
+     */
+    public CombinationIsoformIterator(int[] modifications, int[][] possibleSites, int[] occurrences, int maxSites, boolean overlap) {
+        this.modifications = modifications;
+        this.overlap = overlap;
+        siteIterators = new SiteCombinationIterator[modifications.length];
+        offsets = new int[modifications.length];
+        int nSites = 0;
+        for (int k = 0; k < modifications.length; k++) {
+            siteIterators[k] = new SiteCombinationIterator(possibleSites[k], occurrences[k], maxSites);
+            offsets[k] = nSites;
+            nSites += occurrences[k];
+        }
+        nModifications = nSites;
+        sites = new int[nSites];
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (move()) {
+            if (!overlap || !isConflicting()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Moves to the next combination of sites regardless of conflicts.
+     *
+     * @return a boolean indicating whether there is another combination
+     */
+    private boolean move() {
+        if (!started) {
+            for (int k = 0; k < siteIterators.length; k++) {
+                SiteCombinationIterator siteIterator = siteIterators[k];
+                if (!siteIterator.hasNext()) {
+                    return false;
+                }
+                siteIterator.getSites(sites, offsets[k]);
+            }
+            started = true;
+            return true;
+        }
+        for (int k = 0; k < siteIterators.length; k++) {
+            SiteCombinationIterator siteIterator = siteIterators[k];
+            if (siteIterator.hasNext()) {
+                siteIterator.getSites(sites, offsets[k]);
+                for (int l = 0; l < k; l++) {
+                    siteIterator = siteIterators[l];
+                    siteIterator.reset();
+                    siteIterator.hasNext();
+                    siteIterator.getSites(sites, offsets[l]);
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Indicates whether a site of the current combination carries more than
+     * one modification.
+     *
+     * @return a boolean indicating whether a site of the current combination
+     * carries more than one modification
+     */
+    private boolean isConflicting() {
+        for (int i = 0; i < nModifications; i++) {
+            for (int j = i + 1; j < nModifications; j++) {
+                if (sites[i] == sites[j]) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void reset() {
+        for (SiteCombinationIterator siteIterator : siteIterators) {
+            siteIterator.reset();
+        }
+        started = false;
+    }
+
+    @Override
+    public int getNModifications() {
+        return nModifications;
+    }
+
+    @Override
+    public void getIsoform(int[] sites, int[] modifications) {
+        System.arraycopy(this.sites, 0, sites, 0, nModifications);
+        for (int k = 0; k < this.modifications.length; k++) {
+            int modification = this.modifications[k];
+            for (int i = offsets[k]; i < offsets[k] + siteIterators[k].getOccurrence(); i++) {
+                modifications[i] = modification;
+            }
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package no.uib.onyase.applications.engine.modules.isoform_iterators;
+
+import no.uib.onyase.applications.engine.modules.ModificationIsoformIterator;
+
+/**
+ * Iterator for the isoforms of a peptide carrying modifications that can
+ * target the same sites. The sites of every modification are enumerated as
+ * bitmasks of constant population using Gosper's hack, and the occupancy of
+ * the sites by the previous modifications is kept as a bitmask so that only
+ * the isoforms where every site carries at most one modification are
+ * produced. The iteration is not recursive and does not allocate memory.
+ *
+ * @author Marc Vaudel
+ */
+public class OverlappingIsoformIterator implements ModificationIsoformIterator {
+
+    /**
+     * The maximal number of possible sites of a modification.
+     */
+    public static final int MAX_SITES = 62;
+    /**
+     * The maximal number of distinct sites of all modifications.
+     */
+    public static final int MAX_DISTINCT_SITES = 64;
+    /**
+     * The indexes of the modifications.
+     */
+    private final int[] modifications;
+    /**
+     * The possible sites of every modification.
+     */
+    private final int[][] possibleSites;
+    /**
+     * The occupancy bit of every possible site of every modification.
+     */
+    private final long[][] siteBits;
+    /**
+     * The first combination of every modification.
+     */
+    private final long[] firstCombinations;
+    /**
+     * The limit of the combinations of every modification.
+     */
+    private final long[] combinationLimits;
+    /**
+     * The current combination of every modification as bitmask of the
+     * indexes of its possible sites.
+     */
+    private final long[] combinations;
+    /**
+     * The occupancy of the sites by the modifications preceding every
+     * modification.
+     */
+    private final long[] occupancies;
+    /**
+     * The number of modifications carried by every isoform.
+     */
+    private final int nModifications;
+    /**
+     * Boolean indicating whether the iteration has started.
+     */
+    private boolean started = false;
+
+    /**
+     * Constructor. The number of sites must be supported as indicated by
+     * isSupported.
+     *
+     * @param modifications the indexes of the modifications
+     * @param possibleSites the possible sites of every modification
+     * @param occurrences the occurrence of every modification
+     */
+    public OverlappingIsoformIterator(int[] modifications, int[][] possibleSites, int[] occurrences) {
+        this.modifications = modifications;
+        this.possibleSites = possibleSites;
+        int nModificationTypes = modifications.length;
+
+        // Map every distinct site to a bit
+        int maxSite = 0;
+        for (int[] sites : possibleSites) {
+            for (int site : sites) {
+                maxSite = Math.max(maxSite, site);
+            }
+        }
+        int[] siteIndexes = new int[maxSite + 1];
+        int nDistinctSites = 0;
+        siteBits = new long[nModificationTypes][];
+        for (int k = 0; k < nModificationTypes; k++) {
+            int[] sites = possibleSites[k];
+            long[] bits = new long[sites.length];
+            for (int i = 0; i < sites.length; i++) {
+                int site = sites[i];
+                if (siteIndexes[site] == 0) {
+                    siteIndexes[site] = ++nDistinctSites;
+                }
+                bits[i] = 1L << (siteIndexes[site] - 1);
+            }
+            siteBits[k] = bits;
+        }
+
+        // Set the combinations
+        firstCombinations = new long[nModificationTypes];
+        combinationLimits = new long[nModificationTypes];
+        combinations = new long[nModificationTypes];
+        occupancies = new long[nModificationTypes + 1];
+        int nSites = 0;
+        for (int k = 0; k < nModificationTypes; k++) {
+            firstCombinations[k] = (1L << occurrences[k]) - 1;
+            combinationLimits[k] = 1L << possibleSites[k].length;
+            nSites += occurrences[k];
+        }
+        nModifications = nSites;
+    }
+
+    /**
+     * Indicates whether the given sites can be enumerated by this iterator.
+     *
+     * @param possibleSites the possible sites of every modification
+     *
+     * @return a boolean indicating whether the sites can be enumerated
+     */
+    public static boolean isSupported(int[][] possibleSites) {
+        int maxSite = 0;
+        for (int[] sites : possibleSites) {
+            if (sites.length > MAX_SITES) {
+                return false;
+            }
+            for (int site : sites) {
+                maxSite = Math.max(maxSite, site);
+            }
+        }
+        if (maxSite < MAX_DISTINCT_SITES) {
+            return true;
+        }
+        boolean[] found = new boolean[maxSite + 1];
+        int nDistinctSites = 0;
+        for (int[] sites : possibleSites) {
+            for (int site : sites) {
+                if (!found[site]) {
+                    found[site] = true;
+                    nDistinctSites++;
+                }
+            }
+        }
+        return nDistinctSites <= MAX_DISTINCT_SITES;
+    }
+
+    @Override
+    public boolean hasNext() {
+        int nModificationTypes = modifications.length;
+        int k;
+        boolean advance;
+        if (!started) {
+            started = true;
+            k = 0;
+            combinations[0] = firstCombinations[0];
+            advance = false;
+        } else {
+            k = nModificationTypes - 1;
+            advance = true;
+        }
+        while (true) {
+            long combination = combinations[k];
+            if (advance) {
+                combination = getNextCombination(combination);
+                combinations[k] = combination;
+            }
+            if (combination < combinationLimits[k]) {
+                long occupancy = getOccupancy(k, combination);
+                if ((occupancy & occupancies[k]) == 0) {
+                    occupancies[k + 1] = occupancies[k] | occupancy;
+                    if (k == nModificationTypes - 1) {
+                        return true;
+                    }
+                    k++;
+                    combinations[k] = firstCombinations[k];
+                    advance = false;
+                } else {
+                    advance = true;
+                }
+            } else {
+                if (k == 0) {
+                    return false;
+                }
+                k--;
+                advance = true;
+            }
+        }
+    }
+
+    /**
+     * Returns the next combination of same population using Gosper's hack.
+     *
+     * @param combination the current combination
+     *
+     * @return the next combination
+     */
+    private static long getNextCombination(long combination) {
+        long lowestBit = combination & -combination;
+        long ripple = combination + lowestBit;
+        return ripple | (((combination ^ ripple) >>> 2) / lowestBit);
+    }
+
+    /**
+     * Returns the occupancy of the sites by the given combination of the
+     * given modification.
+     *
+     * @param k the index of the modification in this iterator
+     * @param combination the combination
+     *
+     * @return the occupancy of the sites
+     */
+    private long getOccupancy(int k, long combination) {
+        long[] bits = siteBits[k];
+        long occupancy = 0L;
+        long remaining = combination;
+        while (remaining != 0) {
+            occupancy |= bits[Long.numberOfTrailingZeros(remaining)];
+            remaining &= remaining - 1;
+        }
+        return occupancy;
+    }
+
+    @Override
+    public void reset() {
+        started = false;
+    }
+
+    @Override
+    public int getNModifications() {
+        return nModifications;
+    }
+
+    @Override
+    public void getIsoform(int[] sites, int[] modifications) {
+        int i = 0;
+        for (int k = 0; k < this.modifications.length; k++) {
+            int modification = this.modifications[k];
+            int[] modificationSites = possibleSites[k];
+            long remaining = combinations[k];
+            while (remaining != 0) {
+                sites[i] = modificationSites[Long.numberOfTrailingZeros(remaining)];
+                modifications[i] = modification;
+                remaining &= remaining - 1;
+                i++;
+            }
+        }
+    }
+}
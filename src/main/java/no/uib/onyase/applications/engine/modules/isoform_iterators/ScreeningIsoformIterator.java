@@ -0,0 +1,90 @@
+package no.uib.onyase.applications.engine.modules.isoform_iterators;
+
+import no.uib.onyase.applications.engine.modules.ModificationIsoformIterator;
+
+/**
+ * Iterator for a small set of representative isoforms of a peptide used to
+ * screen candidates before exhaustive localization. The sites of every
+ * modification are sampled at regular intervals. If none of the sampled
+ * isoforms is valid, the first valid isoform is returned instead.
+ *
+ * @author Marc Vaudel
+ */
+public class ScreeningIsoformIterator implements ModificationIsoformIterator {
+
+    /**
+     * The iterator for the sampled isoforms.
+     */
+    private final ModificationIsoformIterator sampledIterator;
+    /**
+     * The iterator for all isoforms used when no sampled isoform is valid.
+     */
+    private final ModificationIsoformIterator fallbackIterator;
+    /**
+     * The number of isoforms returned by the sampled iterator.
+     */
+    private int nSampled = 0;
+    /**
+     * Boolean indicating whether the fallback iterator is used.
+     */
+    private boolean fallback = false;
+    /**
+     * Boolean indicating whether the iteration is finished.
+     */
+    private boolean finished = false;
+
+    /**
+     * Constructor.
+     *
+     * @param sampledIterator the iterator for the sampled isoforms
+     * @param fallbackIterator the iterator for all isoforms used when no
+     * sampled isoform is valid
+     */
+    public ScreeningIsoformIterator(ModificationIsoformIterator sampledIterator, ModificationIsoformIterator fallbackIterator) {
+        this.sampledIterator = sampledIterator;
+        this.fallbackIterator = fallbackIterator;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (finished) {
+            return false;
+        }
+        if (!fallback) {
+            if (sampledIterator.hasNext()) {
+                nSampled++;
+                return true;
+            }
+            if (nSampled > 0) {
+                finished = true;
+                return false;
+            }
+            fallback = true;
+        }
+        finished = true;
+        return fallbackIterator.hasNext();
+    }
+
+    @Override
+    public void reset() {
+        sampledIterator.reset();
+        fallbackIterator.reset();
+        nSampled = 0;
+        fallback = false;
+        finished = false;
+    }
+
+    @Override
+    public int getNModifications() {
+        return sampledIterator.getNModifications();
+    }
+
+    @Override
+    public void getIsoform(int[] sites, int[] modifications) {
+        if (fallback) {
+            fallbackIterator.getIsoform(sites, modifications);
+        } else {
+            sampledIterator.getIsoform(sites, modifications);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package no.uib.onyase.applications.engine.modules.isoform_iterators;
+
+/**
+ * Iterator for the combinations of sites of a modification occurring one or
+ * more times on a peptide. The iterator can be reset and reused.
+ *
+ * @author Marc Vaudel
+ */
+public class SiteCombinationIterator {
+
+    /**
+     * The possible sites.
+     */
+    private final int[] possibleSites;
+    /**
+     * The indexes of the current sites in the possible sites.
+     */
+    private final int[] indexes;
+    /**
+     * The increment to use when iterating the possible indexes.
+     */
+    private final int increment;
+
+    /**
+     * Constructor.
+     *
+     * @param possibleSites the possible sites
+     * @param occurrence the occurrence of the modification
+     * @param maxSites the preferred number of sites to iterate, 0 to iterate
+     * all sites
+     */
+    public SiteCombinationIterator(int[] possibleSites, int occurrence, int maxSites) {
+        if (maxSites > 0) {
+            increment = Math.max(possibleSites.length / maxSites, 1);
+        } else {
+            increment = 1;
+        }
+        this.possibleSites = possibleSites;
+        indexes = new int[occurrence];
+        reset();
+    }
+
+    /**
+     * Resets the iterator before the first combination. For a single
+     * occurrence, the sampled sites are increment - 1, 2 * increment - 1,
+     * etc. like in the SingleModificationSiteIterator.
+     */
+    public final void reset() {
+        if (indexes.length == 1) {
+            indexes[0] = -1;
+            return;
+        }
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = i;
+        }
+        indexes[indexes.length - 1] -= increment;
+    }
+
+    /**
+     * Indicates whether there is another site combination and moves the
+     * iterator.
+     *
+     * @return a boolean indicating whether there is another site combination
+     */
+    public boolean hasNext() {
+        for (int i = indexes.length - 1; i >= 0; i--) {
+            if (indexes[i] + (indexes.length - i) * increment < possibleSites.length) {
+                indexes[i] += increment;
+                for (int j = i + 1; j < indexes.length; j++) {
+                    indexes[j] = indexes[j - 1] + increment;
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes the current sites in the given buffer.
+     *
+     * @param sites the buffer
+     * @param offset the index where to write the first site
+     */
+    public void getSites(int[] sites, int offset) {
+        for (int i = 0; i < indexes.length; i++) {
+            sites[offset + i] = possibleSites[indexes[i]];
+        }
+    }
+
+    /**
+     * Returns the number of sites of every combination.
+     *
+     * @return the number of sites of every combination
+     */
+    public int getOccurrence() {
+        return indexes.length;
+    }
+}
@@ -0,0 +1,603 @@
+package no.uib.onyase.applications.engine.modules.peptide_index;
+
+import com.compomics.util.experiment.biology.PTM;
+import com.compomics.util.experiment.biology.Peptide;
+import com.compomics.util.experiment.identification.matches.ModificationMatch;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import no.uib.onyase.applications.engine.model.PeptideProteins;
+import no.uib.onyase.applications.engine.modules.decoy_generation.DecoyGenerator;
+import no.uib.onyase.applications.engine.parameters.DecoyMode;
+
+/**
+ * Index of the peptides of a database sorted by mass. Peptides are stored as
+ * fixed size records containing the mass, the protein, the start and end
+ * positions on the protein, and the decoy status. Records are held in byte
+ * buffers which can be in memory or mapped from a file. Peptides are only
+ * instantiated upon request.
+ *
+ * @author Marc Vaudel
+ */
+public class PeptideIndex {
+
+    /**
+     * The offset of the mass in a peptide record.
+     */
+    public static final int MASS_OFFSET = 0;
+    /**
+     * The offset of the protein index in a peptide record.
+     */
+    public static final int PROTEIN_OFFSET = 8;
+    /**
+     * The offset of the start index in a peptide record.
+     */
+    public static final int START_OFFSET = 12;
+    /**
+     * The offset of the end index in a peptide record.
+     */
+    public static final int END_OFFSET = 16;
+    /**
+     * The offset of the decoy flag in a peptide record.
+     */
+    public static final int DECOY_OFFSET = 20;
+    /**
+     * Decoy flag of a target peptide.
+     */
+    public static final byte TARGET = 0;
+    /**
+     * Decoy flag of a peptide found on a decoy protein.
+     */
+    public static final byte DECOY_PROTEIN = 1;
+    /**
+     * Decoy flag of a decoy peptide generated by reversing its target
+     * peptide.
+     */
+    public static final byte DECOY_REVERSED = 2;
+    /**
+     * Decoy flag of a decoy peptide generated by reversing its target peptide
+     * while preserving the C-terminal residue.
+     */
+    public static final byte DECOY_PSEUDO_REVERSED = 3;
+    /**
+     * The size of a peptide record in bytes.
+     */
+    public static final int RECORD_SIZE = 21;
+    /**
+     * The binary logarithm of the number of records per buffer.
+     */
+    public static final int BUFFER_SHIFT = 24;
+    /**
+     * The maximal number of records per buffer.
+     */
+    public static final int RECORDS_PER_BUFFER = 1 << BUFFER_SHIFT;
+    /**
+     * The mass tolerance used to retrieve the peptides of a given mass.
+     */
+    public static final double MASS_TOLERANCE = 0.001;
+    /**
+     * Mask to get the index of a record in its buffer.
+     */
+    private static final int BUFFER_MASK = RECORDS_PER_BUFFER - 1;
+    /**
+     * The accessions of the proteins.
+     */
+    private final String[] proteinAccessions;
+    /**
+     * The sequences of the proteins.
+     */
+    private final String[] proteinSequences;
+    /**
+     * The buffers containing the peptide records.
+     */
+    private final ByteBuffer[] peptideBuffers;
+    /**
+     * The number of peptides.
+     */
+    private final int nPeptides;
+    /**
+     * The sequences of the peptides which differ from the protein sequence,
+     * for example after substitution of an X, indexed by peptide index.
+     */
+    private final HashMap<Integer, String> substitutedSequences;
+    /**
+     * The fixed modifications to set on the peptides.
+     */
+    private final ArrayList<PTM> fixedModifications;
+    /**
+     * The number of residues around the peptides needed to find the sites of
+     * the fixed modifications.
+     */
+    private final int fixedFlankingLength;
+    /**
+     * The minimal peptide mass used for the digestion.
+     */
+    private final double massMin;
+    /**
+     * The maximal peptide mass used for the digestion.
+     */
+    private final double massMax;
+    /**
+     * The maximal occurrence of every variable modification over all peptides.
+     */
+    private HashMap<String, Integer> maxOccurrences;
+
+    /**
+     * Constructor.
+     *
+     * @param proteinAccessions the accessions of the proteins
+     * @param proteinSequences the sequences of the proteins
+     * @param peptideBuffers the buffers containing the peptide records sorted
+     * by mass
+     * @param nPeptides the number of peptides
+     * @param substitutedSequences the sequences of the peptides which differ
+     * from the protein sequence
+     * @param fixedModifications the fixed modifications to set on the
+     * peptides
+     * @param massMin the minimal peptide mass used for the digestion
+     * @param massMax the maximal peptide mass used for the digestion
+     */
+    public PeptideIndex(String[] proteinAccessions, String[] proteinSequences, ByteBuffer[] peptideBuffers, int nPeptides, HashMap<Integer, String> substitutedSequences, ArrayList<PTM> fixedModifications, double massMin, double massMax) {
+        this.proteinAccessions = proteinAccessions;
+        this.proteinSequences = proteinSequences;
+        this.peptideBuffers = peptideBuffers;
+        this.nPeptides = nPeptides;
+        this.substitutedSequences = substitutedSequences;
+        this.fixedModifications = fixedModifications;
+        this.massMin = massMin;
+        this.massMax = massMax;
+        fixedFlankingLength = getFlankingLength(fixedModifications);
+    }
+
+    /**
+     * Returns the number of residues around a peptide needed to find the
+     * sites of the given modifications.
+     *
+     * @param modifications the modifications
+     *
+     * @return the number of flanking residues needed
+     */
+    public static int getFlankingLength(ArrayList<PTM> modifications) {
+        int flankingLength = 0;
+        for (PTM ptm : modifications) {
+            if (ptm.getPattern() != null) {
+                flankingLength = Math.max(flankingLength, ptm.getPattern().length() - 1);
+            }
+        }
+        return flankingLength;
+    }
+
+    /**
+     * Returns the number of buffers needed to store the given number of
+     * peptides.
+     *
+     * @param nPeptides the number of peptides
+     *
+     * @return the number of buffers needed
+     */
+    public static int getNBuffers(int nPeptides) {
+        return (nPeptides + RECORDS_PER_BUFFER - 1) >>> BUFFER_SHIFT;
+    }
+
+    /**
+     * Returns the number of records in the buffer of the given index.
+     *
+     * @param nPeptides the number of peptides
+     * @param bufferIndex the index of the buffer
+     *
+     * @return the number of records in the buffer
+     */
+    public static int getBufferNRecords(int nPeptides, int bufferIndex) {
+        return Math.min(RECORDS_PER_BUFFER, nPeptides - (bufferIndex << BUFFER_SHIFT));
+    }
+
+    /**
+     * Writes a peptide record in the given buffers.
+     *
+     * @param peptideBuffers the buffers
+     * @param i the index of the peptide
+     * @param mass the mass of the peptide
+     * @param proteinIndex the index of the protein
+     * @param start the index of the first residue on the protein
+     * @param end the index after the last residue on the protein
+     * @param decoy the decoy flag of the peptide
+     */
+    public static void putPeptide(ByteBuffer[] peptideBuffers, int i, double mass, int proteinIndex, int start, int end, byte decoy) {
+        ByteBuffer buffer = peptideBuffers[i >>> BUFFER_SHIFT];
+        int offset = (i & BUFFER_MASK) * RECORD_SIZE;
+        buffer.putDouble(offset + MASS_OFFSET, mass);
+        buffer.putInt(offset + PROTEIN_OFFSET, proteinIndex);
+        buffer.putInt(offset + START_OFFSET, start);
+        buffer.putInt(offset + END_OFFSET, end);
+        buffer.put(offset + DECOY_OFFSET, decoy);
+    }
+
+    /**
+     * Returns the number of peptides in the index.
+     *
+     * @return the number of peptides in the index
+     */
+    public int size() {
+        return nPeptides;
+    }
+
+    /**
+     * Returns the index of the first peptide with a mass higher or equal to
+     * the given mass. Returns the size of the index if none.
+     *
+     * @param mass the minimal mass
+     *
+     * @return the index of the first peptide with a mass higher or equal to
+     * the given mass
+     */
+    public int getFirstIndex(double mass) {
+        int low = 0;
+        int high = nPeptides;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (getMass(middle) < mass) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Returns the index after the last peptide with a mass lower or equal to
+     * the given mass.
+     *
+     * @param mass the maximal mass
+     *
+     * @return the index after the last peptide with a mass lower or equal to
+     * the given mass
+     */
+    public int getLastIndex(double mass) {
+        int low = 0;
+        int high = nPeptides;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (getMass(middle) <= mass) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Returns the mass of the peptide at the given index.
+     *
+     * @param i the index of the peptide
+     *
+     * @return the mass of the peptide
+     */
+    public double getMass(int i) {
+        return peptideBuffers[i >>> BUFFER_SHIFT].getDouble((i & BUFFER_MASK) * RECORD_SIZE + MASS_OFFSET);
+    }
+
+    /**
+     * Returns the index of the protein of the peptide at the given index.
+     *
+     * @param i the index of the peptide
+     *
+     * @return the index of the protein
+     */
+    public int getProteinIndex(int i) {
+        return peptideBuffers[i >>> BUFFER_SHIFT].getInt((i & BUFFER_MASK) * RECORD_SIZE + PROTEIN_OFFSET);
+    }
+
+    /**
+     * Returns the index of the peptide on its protein.
+     *
+     * @param i the index of the peptide
+     *
+     * @return the index of the peptide on its protein
+     */
+    public int getStart(int i) {
+        return peptideBuffers[i >>> BUFFER_SHIFT].getInt((i & BUFFER_MASK) * RECORD_SIZE + START_OFFSET);
+    }
+
+    /**
+     * Returns the index after the last residue of the peptide on its protein.
+     *
+     * @param i the index of the peptide
+     *
+     * @return the index after the last residue of the peptide on its protein
+     */
+    public int getEnd(int i) {
+        return peptideBuffers[i >>> BUFFER_SHIFT].getInt((i & BUFFER_MASK) * RECORD_SIZE + END_OFFSET);
+    }
+
+    /**
+     * Returns the decoy flag of the peptide.
+     *
+     * @param i the index of the peptide
+     *
+     * @return the decoy flag of the peptide
+     */
+    public byte getDecoyFlag(int i) {
+        return peptideBuffers[i >>> BUFFER_SHIFT].get((i & BUFFER_MASK) * RECORD_SIZE + DECOY_OFFSET);
+    }
+
+    /**
+     * Indicates whether the peptide is a decoy.
+     *
+     * @param i the index of the peptide
+     *
+     * @return a boolean indicating whether the peptide is a decoy
+     */
+    public boolean isDecoy(int i) {
+        return getDecoyFlag(i) != TARGET;
+    }
+
+    /**
+     * Returns the decoy mode corresponding to the given decoy flag, null if
+     * the peptide was not generated.
+     *
+     * @param decoyFlag the decoy flag
+     *
+     * @return the decoy mode corresponding to the given decoy flag
+     */
+    public static DecoyMode getDecoyMode(byte decoyFlag) {
+        switch (decoyFlag) {
+            case DECOY_REVERSED:
+                return DecoyMode.reversed;
+            case DECOY_PSEUDO_REVERSED:
+                return DecoyMode.pseudoReversed;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Returns the decoy flag of the peptides generated using the given decoy
+     * mode.
+     *
+     * @param decoyMode the decoy mode
+     *
+     * @return the decoy flag of the generated peptides
+     */
+    public static byte getDecoyFlag(DecoyMode decoyMode) {
+        switch (decoyMode) {
+            case reversed:
+                return DECOY_REVERSED;
+            case pseudoReversed:
+                return DECOY_PSEUDO_REVERSED;
+            default:
+                throw new UnsupportedOperationException("Decoy mode " + decoyMode + " not implemented.");
+        }
+    }
+
+    /**
+     * Returns the sequence of the peptide at the given index.
+     *
+     * @param i the index of the peptide
+     *
+     * @return the sequence of the peptide
+     */
+    public String getSequence(int i) {
+        String sequence = substitutedSequences.get(i);
+        if (sequence == null) {
+            sequence = proteinSequences[getProteinIndex(i)].substring(getStart(i), getEnd(i));
+            DecoyMode decoyMode = getDecoyMode(getDecoyFlag(i));
+            if (decoyMode != null) {
+                sequence = DecoyGenerator.getDecoySequence(sequence, decoyMode);
+            }
+        }
+        return sequence;
+    }
+
+    /**
+     * Returns the sequence of the protein of the peptide. For generated decoy
+     * peptides, the target peptide is replaced by the decoy peptide in a copy
+     * of the sequence of the protein, the windowed version should be
+     * preferred when iterating peptides.
+     *
+     * @param i the index of the peptide
+     *
+     * @return the sequence of the protein of the peptide
+     */
+    public String getProteinSequence(int i) {
+        String proteinSequence = proteinSequences[getProteinIndex(i)];
+        DecoyMode decoyMode = getDecoyMode(getDecoyFlag(i));
+        if (decoyMode != null) {
+            return DecoyGenerator.getDecoyProteinSequence(proteinSequence, getStart(i), getEnd(i), decoyMode);
+        }
+        return proteinSequence;
+    }
+
+    /**
+     * Returns the sequence of the protein of the peptide, or for generated
+     * decoy peptides a window of the protein sequence carrying the decoy
+     * peptide and the given number of flanking residues, see
+     * DecoyGenerator.getDecoyProteinWindow. The index of the peptide on the
+     * returned sequence is given by getIndexOnProteinSequence.
+     *
+     * @param i the index of the peptide
+     * @param flankingLength the number of flanking residues needed
+     *
+     * @return the sequence of the protein of the peptide or a window of it
+     */
+    public String getProteinSequence(int i, int flankingLength) {
+        String proteinSequence = proteinSequences[getProteinIndex(i)];
+        DecoyMode decoyMode = getDecoyMode(getDecoyFlag(i));
+        if (decoyMode != null) {
+            return DecoyGenerator.getDecoyProteinWindow(proteinSequence, getStart(i), getEnd(i), flankingLength, decoyMode);
+        }
+        return proteinSequence;
+    }
+
+    /**
+     * Returns the index of the peptide on the sequence returned by
+     * getProteinSequence for the given number of flanking residues.
+     *
+     * @param i the index of the peptide
+     * @param flankingLength the number of flanking residues needed
+     *
+     * @return the index of the peptide on the sequence
+     */
+    public int getIndexOnProteinSequence(int i, int flankingLength) {
+        int start = getStart(i);
+        if (getDecoyMode(getDecoyFlag(i)) != null) {
+            return DecoyGenerator.getWindowStart(start, flankingLength);
+        }
+        return start;
+    }
+
+    /**
+     * Returns the accession of the protein of the peptide.
+     *
+     * @param i the index of the peptide
+     *
+     * @return the accession of the protein of the peptide
+     */
+    public String getProteinAccession(int i) {
+        String accession = proteinAccessions[getProteinIndex(i)];
+        if (getDecoyMode(getDecoyFlag(i)) != null) {
+            return DecoyGenerator.getDecoyAccession(accession);
+        }
+        return accession;
+    }
+
+    /**
+     * Returns the accessions of the proteins.
+     *
+     * @return the accessions of the proteins
+     */
+    public String[] getProteinAccessions() {
+        return proteinAccessions;
+    }
+
+    /**
+     * Returns the sequences of the proteins.
+     *
+     * @return the sequences of the proteins
+     */
+    public String[] getProteinSequences() {
+        return proteinSequences;
+    }
+
+    /**
+     * Returns the buffers containing the peptide records.
+     *
+     * @return the buffers containing the peptide records
+     */
+    public ByteBuffer[] getPeptideBuffers() {
+        return peptideBuffers;
+    }
+
+    /**
+     * Returns the sequences of the peptides which differ from the protein
+     * sequence indexed by peptide index.
+     *
+     * @return the sequences of the peptides which differ from the protein
+     * sequence
+     */
+    public HashMap<Integer, String> getSubstitutedSequences() {
+        return substitutedSequences;
+    }
+
+    /**
+     * Returns the minimal peptide mass used for the digestion.
+     *
+     * @return the minimal peptide mass used for the digestion
+     */
+    public double getMassMin() {
+        return massMin;
+    }
+
+    /**
+     * Returns the maximal peptide mass used for the digestion.
+     *
+     * @return the maximal peptide mass used for the digestion
+     */
+    public double getMassMax() {
+        return massMax;
+    }
+
+    /**
+     * Returns the maximal occurrence of every variable modification over all
+     * peptides.
+     *
+     * @return the maximal occurrence of every variable modification over all
+     * peptides
+     */
+    public HashMap<String, Integer> getMaxOccurrences() {
+        return maxOccurrences;
+    }
+
+    /**
+     * Sets the maximal occurrence of every variable modification over all
+     * peptides.
+     *
+     * @param maxOccurrences the maximal occurrence of every variable
+     * modification over all peptides
+     */
+    public void setMaxOccurrences(HashMap<String, Integer> maxOccurrences) {
+        this.maxOccurrences = maxOccurrences;
+    }
+
+    /**
+     * Returns the proteins where the given peptide sequence is found. Null if
+     * not found.
+     *
+     * @param sequence the peptide sequence
+     * @param mass the mass of the peptide carrying its fixed modifications
+     *
+     * @return the proteins where the given peptide sequence is found
+     */
+    public PeptideProteins getPeptideProteins(String sequence, double mass) {
+        PeptideProteins peptideProteins = null;
+        int last = getLastIndex(mass + MASS_TOLERANCE);
+        for (int i = getFirstIndex(mass - MASS_TOLERANCE); i < last; i++) {
+            if (getEnd(i) - getStart(i) == sequence.length() && getSequence(i).equals(sequence)) {
+                if (peptideProteins == null) {
+                    peptideProteins = new PeptideProteins();
+                }
+                peptideProteins.addProtein(getProteinAccession(i), isDecoy(i));
+            }
+        }
+        return peptideProteins;
+    }
+
+    /**
+     * Returns the peptide at the given index carrying the fixed
+     * modifications.
+     *
+     * @param i the index of the peptide
+     *
+     * @return the peptide
+     */
+    public Peptide getPeptide(int i) {
+        String sequence = getSequence(i);
+        if (fixedModifications.isEmpty()) {
+            return new Peptide(sequence, new ArrayList<ModificationMatch>(0));
+        }
+        return getPeptide(sequence, getProteinSequence(i, fixedFlankingLength), getIndexOnProteinSequence(i, fixedFlankingLength), fixedModifications);
+    }
+
+    /**
+     * Returns a peptide carrying the given fixed modifications.
+     *
+     * @param sequence the sequence of the peptide
+     * @param proteinSequence the sequence of the protein
+     * @param start the index of the peptide on the protein
+     * @param fixedModifications the fixed modifications
+     *
+     * @return the peptide carrying its fixed modifications
+     */
+    public static Peptide getPeptide(String sequence, String proteinSequence, int start, ArrayList<PTM> fixedModifications) {
+        Peptide unmodifiedPeptide = new Peptide(sequence, new ArrayList<ModificationMatch>(0));
+        ArrayList<ModificationMatch> modificationMatches = new ArrayList<ModificationMatch>(1);
+        for (PTM ptm : fixedModifications) {
+            ArrayList<Integer> sites = unmodifiedPeptide.getPotentialModificationSitesNoCombination(ptm, proteinSequence, start);
+            for (Integer site : sites) {
+                modificationMatches.add(new ModificationMatch(ptm.getName(), false, site));
+            }
+        }
+        return new Peptide(sequence, modificationMatches);
+    }
+}
@@ -0,0 +1,550 @@
+package no.uib.onyase.applications.engine.modules.peptide_index;
+
+import com.compomics.util.exceptions.ExceptionHandler;
+import com.compomics.util.experiment.biology.PTM;
+import com.compomics.util.experiment.biology.PTMFactory;
+import com.compomics.util.experiment.biology.Peptide;
+import com.compomics.util.experiment.biology.Protein;
+import com.compomics.util.experiment.identification.identification_parameters.PtmSettings;
+import com.compomics.util.experiment.identification.identification_parameters.SearchParameters;
+import com.compomics.util.experiment.identification.protein_sequences.SequenceFactory;
+import com.compomics.util.experiment.identification.protein_sequences.digestion.IteratorFactory;
+import com.compomics.util.experiment.identification.protein_sequences.digestion.PeptideWithPosition;
+import com.compomics.util.experiment.identification.protein_sequences.digestion.SequenceIterator;
+import com.compomics.util.preferences.DigestionPreferences;
+import com.compomics.util.preferences.IdentificationParameters;
+import com.compomics.util.waiting.WaitingHandler;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import no.uib.onyase.applications.engine.modules.decoy_generation.DecoyGenerator;
+import no.uib.onyase.applications.engine.modules.digestion.MassLadder;
+import no.uib.onyase.applications.engine.modules.digestion.ProteinDigester;
+import no.uib.onyase.applications.engine.parameters.DecoyMode;
+import no.uib.onyase.utils.SortingUtils;
+
+/**
+ * This class digests the proteins of the sequence factory and builds a mass
+ * sorted index of the peptides.
+ *
+ * @author Marc Vaudel
+ */
+public class PeptideIndexBuilder {
+
+    /**
+     * The sequence factory.
+     */
+    private SequenceFactory sequenceFactory = SequenceFactory.getInstance();
+    /**
+     * The modifications factory.
+     */
+    private PTMFactory ptmFactory = PTMFactory.getInstance();
+    /**
+     * A handler for the exceptions.
+     */
+    private ExceptionHandler exceptionHandler;
+    /**
+     * A waiting handler providing feedback to the user and allowing canceling
+     * the process.
+     */
+    private WaitingHandler waitingHandler;
+
+    /**
+     * Constructor.
+     *
+     * @param waitingHandler a waiting handler providing feedback to the user
+     * and allowing canceling the process
+     * @param exceptionHandler a handler for the exceptions
+     */
+    public PeptideIndexBuilder(WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) {
+        this.exceptionHandler = exceptionHandler;
+        this.waitingHandler = waitingHandler;
+    }
+
+    /**
+     * Digests the proteins of the sequence factory and returns the peptides
+     * in an index sorted by mass. If decoy peptides are to be generated, the
+     * decoy of every target peptide is added to the index.
+     *
+     * @param identificationParameters the identification parameters
+     * @param maxX the maximal number of Xs to allow in a peptide sequence
+     * @param decoyMode the way decoy peptides are obtained
+     * @param massMin the minimal peptide mass to consider
+     * @param massMax the maximal peptide mass to consider
+     * @param nThreads the number of threads to use
+     *
+     * @return the peptide index
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the database
+     * @throws InterruptedException exception thrown if a threading issue
+     * occurs
+     */
+    public PeptideIndex buildIndex(IdentificationParameters identificationParameters, int maxX, DecoyMode decoyMode, double massMin, double massMax, int nThreads) throws IOException, InterruptedException {
+
+        SearchParameters searchParameters = identificationParameters.getSearchParameters();
+        PtmSettings ptmSettings = searchParameters.getPtmSettings();
+        ArrayList<PTM> fixedModifications = getFixedModifications(ptmSettings);
+
+        // Set progress counters
+        waitingHandler.setSecondaryProgressCounterIndeterminate(false);
+        waitingHandler.setMaxSecondaryProgressCounter(sequenceFactory.getNSequences());
+
+        // Digest the proteins
+        SequenceFactory.ProteinIterator proteinIterator = sequenceFactory.getProteinIterator(false);
+        ArrayList<ProteinProcessor> proteinProcessors = new ArrayList<ProteinProcessor>(nThreads);
+        ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+        for (int i = 0; i < nThreads; i++) {
+            ProteinProcessor proteinProcessor = new ProteinProcessor(proteinIterator, searchParameters.getDigestionPreferences(), ptmSettings.getFixedModifications(), fixedModifications, maxX, decoyMode, massMin, massMax);
+            proteinProcessors.add(proteinProcessor);
+            pool.submit(proteinProcessor);
+        }
+        pool.shutdown();
+        if (!pool.awaitTermination(Integer.MAX_VALUE, TimeUnit.DAYS)) {
+            waitingHandler.appendReport("Digestion timed out.", true, true);
+        }
+
+        // Merge the results of the different threads
+        waitingHandler.setSecondaryProgressCounterIndeterminate(true);
+        int nProteins = 0;
+        int nPeptides = 0;
+        for (ProteinProcessor proteinProcessor : proteinProcessors) {
+            nProteins += proteinProcessor.proteinSequences.size();
+            nPeptides += proteinProcessor.nPeptides;
+        }
+        String[] proteinAccessions = new String[nProteins];
+        String[] proteinSequences = new String[nProteins];
+        double[] masses = new double[nPeptides];
+        int[] proteinIndexes = new int[nPeptides];
+        int[] starts = new int[nPeptides];
+        int[] ends = new int[nPeptides];
+        byte[] decoys = new byte[nPeptides];
+        HashMap<Integer, String> substitutedSequences = new HashMap<Integer, String>(0);
+        int proteinOffset = 0;
+        int peptideOffset = 0;
+        for (ProteinProcessor proteinProcessor : proteinProcessors) {
+            int nThreadProteins = proteinProcessor.proteinSequences.size();
+            for (int i = 0; i < nThreadProteins; i++) {
+                proteinAccessions[proteinOffset + i] = proteinProcessor.proteinAccessions.get(i);
+                proteinSequences[proteinOffset + i] = proteinProcessor.proteinSequences.get(i);
+            }
+            int nThreadPeptides = proteinProcessor.nPeptides;
+            System.arraycopy(proteinProcessor.masses, 0, masses, peptideOffset, nThreadPeptides);
+            System.arraycopy(proteinProcessor.starts, 0, starts, peptideOffset, nThreadPeptides);
+            System.arraycopy(proteinProcessor.ends, 0, ends, peptideOffset, nThreadPeptides);
+            System.arraycopy(proteinProcessor.decoys, 0, decoys, peptideOffset, nThreadPeptides);
+            for (int i = 0; i < nThreadPeptides; i++) {
+                proteinIndexes[peptideOffset + i] = proteinOffset + proteinProcessor.proteinIndexes[i];
+            }
+            for (Integer i : proteinProcessor.substitutedSequences.keySet()) {
+                substitutedSequences.put(peptideOffset + i, proteinProcessor.substitutedSequences.get(i));
+            }
+            proteinOffset += nThreadProteins;
+            peptideOffset += nThreadPeptides;
+        }
+
+        // Sort the peptides by mass and store them in buffers
+        int[] order = SortingUtils.getOrder(masses, nPeptides);
+        int nBuffers = PeptideIndex.getNBuffers(nPeptides);
+        ByteBuffer[] peptideBuffers = new ByteBuffer[nBuffers];
+        for (int i = 0; i < nBuffers; i++) {
+            peptideBuffers[i] = ByteBuffer.allocate(PeptideIndex.getBufferNRecords(nPeptides, i) * PeptideIndex.RECORD_SIZE);
+        }
+        HashMap<Integer, String> sortedSubstitutedSequences = new HashMap<Integer, String>(substitutedSequences.size());
+        for (int i = 0; i < nPeptides; i++) {
+            int index = order[i];
+            int proteinIndex = proteinIndexes[index];
+            PeptideIndex.putPeptide(peptideBuffers, i, masses[index], proteinIndex, starts[index], ends[index], decoys[index]);
+            String substitutedSequence = substitutedSequences.get(index);
+            if (substitutedSequence != null) {
+                sortedSubstitutedSequences.put(i, substitutedSequence);
+            }
+        }
+
+        return new PeptideIndex(proteinAccessions, proteinSequences, peptideBuffers, nPeptides, sortedSubstitutedSequences, fixedModifications, massMin, massMax);
+    }
+
+    /**
+     * Returns the fixed modifications of the given modification settings.
+     *
+     * @param ptmSettings the modification settings
+     *
+     * @return the fixed modifications
+     */
+    public ArrayList<PTM> getFixedModifications(PtmSettings ptmSettings) {
+        ArrayList<PTM> fixedModifications = new ArrayList<PTM>(ptmSettings.getFixedModifications().size());
+        for (String ptmName : ptmSettings.getFixedModifications()) {
+            fixedModifications.add(ptmFactory.getPTM(ptmName));
+        }
+        return fixedModifications;
+    }
+
+    /**
+     * Returns the maximal number of sites of every variable modification over
+     * the peptides of the index, capped by the maximal number of
+     * modifications.
+     *
+     * @param peptideIndex the peptide index
+     * @param ptmSettings the modification settings
+     * @param maxModifications the maximal number of modifications
+     * @param nThreads the number of threads to use
+     *
+     * @return the maximal occurrence of every variable modification
+     *
+     * @throws InterruptedException exception thrown if a threading issue
+     * occurs
+     */
+    public HashMap<String, Integer> getMaxOccurrences(PeptideIndex peptideIndex, PtmSettings ptmSettings, HashMap<String, Integer> maxModifications, int nThreads) throws InterruptedException {
+
+        ArrayList<PTM> variableModifications = new ArrayList<PTM>(ptmSettings.getVariableModifications().size());
+        for (String ptmName : ptmSettings.getVariableModifications()) {
+            variableModifications.add(ptmFactory.getPTM(ptmName));
+        }
+        if (maxModifications == null) {
+            maxModifications = new HashMap<String, Integer>(0);
+        }
+
+        // Iterate the index in slices
+        int nPeptides = peptideIndex.size();
+        int sliceSize = Math.max(1, (nPeptides + nThreads - 1) / nThreads);
+        ArrayList<OccurrenceProcessor> occurrenceProcessors = new ArrayList<OccurrenceProcessor>(nThreads);
+        ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+        for (int start = 0; start < nPeptides; start += sliceSize) {
+            OccurrenceProcessor occurrenceProcessor = new OccurrenceProcessor(peptideIndex, start, Math.min(start + sliceSize, nPeptides), variableModifications, maxModifications);
+            occurrenceProcessors.add(occurrenceProcessor);
+            pool.submit(occurrenceProcessor);
+        }
+        pool.shutdown();
+        if (!pool.awaitTermination(Integer.MAX_VALUE, TimeUnit.DAYS)) {
+            waitingHandler.appendReport("Modification sites inspection timed out.", true, true);
+        }
+
+        // Merge the results of the different threads
+        HashMap<String, Integer> maxOccurrences = new HashMap<String, Integer>(variableModifications.size());
+        for (OccurrenceProcessor occurrenceProcessor : occurrenceProcessors) {
+            for (String ptmName : occurrenceProcessor.maxOccurrences.keySet()) {
+                Integer threadOccurrence = occurrenceProcessor.maxOccurrences.get(ptmName);
+                Integer occurrence = maxOccurrences.get(ptmName);
+                if (occurrence == null || threadOccurrence > occurrence) {
+                    maxOccurrences.put(ptmName, threadOccurrence);
+                }
+            }
+        }
+        return maxOccurrences;
+    }
+
+    /**
+     * Private runnable to digest proteins.
+     */
+    private class ProteinProcessor implements Runnable {
+
+        /**
+         * The protein iterator.
+         */
+        private final SequenceFactory.ProteinIterator proteinIterator;
+        /**
+         * The digestion preferences.
+         */
+        private final DigestionPreferences digestionPreferences;
+        /**
+         * The sequence iterator factory.
+         */
+        private final IteratorFactory iteratorFactory;
+        /**
+         * The minimal peptide mass to consider.
+         */
+        private final Double massMin;
+        /**
+         * The maximal peptide mass to consider.
+         */
+        private final Double massMax;
+        /**
+         * The accessions of the proteins processed by this thread.
+         */
+        private final ArrayList<String> proteinAccessions = new ArrayList<String>();
+        /**
+         * The sequences of the proteins processed by this thread.
+         */
+        private final ArrayList<String> proteinSequences = new ArrayList<String>();
+        /**
+         * The fixed modifications.
+         */
+        private final ArrayList<PTM> fixedModifications;
+        /**
+         * The number of residues around the peptides needed to find the
+         * sites of the fixed modifications.
+         */
+        private final int fixedFlankingLength;
+        /**
+         * The way decoy peptides are obtained.
+         */
+        private final DecoyMode decoyMode;
+        /**
+         * The mass ladder of the proteins, null if the fixed modifications or
+         * the digestion are not supported.
+         */
+        private final MassLadder massLadder;
+        /**
+         * The digester using the mass ladder, null if not supported.
+         */
+        private final ProteinDigester proteinDigester;
+        /**
+         * The number of peptides found by this thread.
+         */
+        private int nPeptides = 0;
+        /**
+         * The masses of the peptides.
+         */
+        private double[] masses = new double[1024];
+        /**
+         * The index of the protein of every peptide.
+         */
+        private int[] proteinIndexes = new int[1024];
+        /**
+         * The index of every peptide on its protein.
+         */
+        private int[] starts = new int[1024];
+        /**
+         * The index after the last residue of every peptide on its protein.
+         */
+        private int[] ends = new int[1024];
+        /**
+         * The decoy flag of every peptide.
+         */
+        private byte[] decoys = new byte[1024];
+        /**
+         * The sequences of the peptides which differ from the protein.
+         */
+        private final HashMap<Integer, String> substitutedSequences = new HashMap<Integer, String>(0);
+
+        /**
+         * Constructor.
+         *
+         * @param proteinIterator the protein iterator
+         * @param digestionPreferences the digestion preferences
+         * @param fixedModificationNames the names of the fixed modifications
+         * @param fixedModifications the fixed modifications
+         * @param maxX the maximal number of Xs to allow in a peptide sequence
+         * @param decoyMode the way decoy peptides are obtained
+         * @param massMin the minimal peptide mass to consider
+         * @param massMax the maximal peptide mass to consider
+         */
+        public ProteinProcessor(SequenceFactory.ProteinIterator proteinIterator, DigestionPreferences digestionPreferences, ArrayList<String> fixedModificationNames, ArrayList<PTM> fixedModifications, int maxX, DecoyMode decoyMode, Double massMin, Double massMax) {
+            this.proteinIterator = proteinIterator;
+            this.digestionPreferences = digestionPreferences;
+            this.fixedModifications = fixedModifications;
+            fixedFlankingLength = PeptideIndex.getFlankingLength(fixedModifications);
+            this.decoyMode = decoyMode;
+            this.massMin = massMin;
+            this.massMax = massMax;
+            iteratorFactory = new IteratorFactory(fixedModificationNames, maxX);
+            if (MassLadder.isSupported(fixedModifications) && ProteinDigester.isSupported(digestionPreferences)) {
+                massLadder = new MassLadder(fixedModifications);
+                proteinDigester = new ProteinDigester(digestionPreferences);
+            } else {
+                massLadder = null;
+                proteinDigester = null;
+            }
+        }
+
+        @Override
+        public void run() {
+
+            try {
+
+                while (proteinIterator.hasNext()) {
+
+                    // Get a protein and find all possible peptides
+                    Protein protein = proteinIterator.getNextProtein();
+                    String sequence = protein.getSequence();
+                    int proteinIndex = proteinSequences.size();
+                    proteinAccessions.add(protein.getAccession());
+                    proteinSequences.add(sequence);
+                    boolean decoyProtein = sequenceFactory.isDecoyAccession(protein.getAccession());
+
+                    if (massLadder != null && massLadder.setProtein(sequence)) {
+
+                        // Store all peptides using the mass ladder, decoys have the same composition and mass
+                        proteinDigester.setProtein(sequence, massLadder, massMin, massMax);
+                        while (proteinDigester.next()) {
+                            int start = proteinDigester.getStart();
+                            int end = proteinDigester.getEnd();
+                            double mass = proteinDigester.getMass();
+                            addPeptide(mass, proteinIndex, start, end, decoyProtein ? PeptideIndex.DECOY_PROTEIN : PeptideIndex.TARGET, null);
+                            if (decoyMode != DecoyMode.concatenated && !decoyProtein && !DecoyGenerator.isSameAsTarget(sequence, start, end, decoyMode)) {
+                                addPeptide(mass, proteinIndex, start, end, PeptideIndex.getDecoyFlag(decoyMode), null);
+                            }
+                        }
+
+                    } else {
+
+                        // Store all peptides
+                        SequenceIterator sequenceIterator = iteratorFactory.getSequenceIterator(sequence, digestionPreferences, massMin, massMax);
+                        PeptideWithPosition peptideWithPosition;
+                        while ((peptideWithPosition = sequenceIterator.getNextPeptide()) != null) {
+
+                            Peptide peptide = peptideWithPosition.getPeptide();
+                            String peptideSequence = peptide.getSequence();
+                            int start = peptideWithPosition.getPosition();
+                            int end = start + peptideSequence.length();
+                            boolean substituted = !sequence.regionMatches(start, peptideSequence, 0, peptideSequence.length());
+                            addPeptide(peptide.getMass(), proteinIndex, start, end, decoyProtein ? PeptideIndex.DECOY_PROTEIN : PeptideIndex.TARGET, substituted ? peptideSequence : null);
+
+                            // Add the decoy peptide
+                            if (decoyMode != DecoyMode.concatenated && !decoyProtein) {
+                                String decoySequence = DecoyGenerator.getDecoySequence(peptideSequence, decoyMode);
+                                if (!decoySequence.equals(peptideSequence)) {
+                                    String decoyProteinWindow = DecoyGenerator.getDecoyProteinWindow(sequence, start, end, fixedFlankingLength, decoyMode);
+                                    Peptide decoyPeptide = PeptideIndex.getPeptide(decoySequence, decoyProteinWindow, DecoyGenerator.getWindowStart(start, fixedFlankingLength), fixedModifications);
+                                    addPeptide(decoyPeptide.getMass(), proteinIndex, start, end, PeptideIndex.getDecoyFlag(decoyMode), substituted ? decoySequence : null);
+                                }
+                            }
+                        }
+                    }
+                    if (waitingHandler.isRunCanceled()) {
+                        return;
+                    } else {
+                        waitingHandler.increaseSecondaryProgressCounter();
+                    }
+                }
+            } catch (Exception e) {
+                if (!waitingHandler.isRunCanceled()) {
+                    exceptionHandler.catchException(e);
+                    waitingHandler.setRunCanceled();
+                }
+            }
+        }
+
+        /**
+         * Adds a peptide.
+         *
+         * @param mass the mass of the peptide
+         * @param proteinIndex the index of the protein
+         * @param start the index of the first residue on the protein
+         * @param end the index after the last residue on the protein
+         * @param decoy the decoy flag of the peptide
+         * @param substitutedSequence the sequence of the peptide if it
+         * differs from the protein, null otherwise
+         */
+        private void addPeptide(double mass, int proteinIndex, int start, int end, byte decoy, String substitutedSequence) {
+            if (nPeptides == masses.length) {
+                int newLength = 2 * nPeptides;
+                masses = Arrays.copyOf(masses, newLength);
+                proteinIndexes = Arrays.copyOf(proteinIndexes, newLength);
+                starts = Arrays.copyOf(starts, newLength);
+                ends = Arrays.copyOf(ends, newLength);
+                decoys = Arrays.copyOf(decoys, newLength);
+            }
+            masses[nPeptides] = mass;
+            proteinIndexes[nPeptides] = proteinIndex;
+            starts[nPeptides] = start;
+            ends[nPeptides] = end;
+            decoys[nPeptides] = decoy;
+            if (substitutedSequence != null) {
+                substitutedSequences.put(nPeptides, substitutedSequence);
+            }
+            nPeptides++;
+        }
+    }
+
+    /**
+     * Private runnable to inspect the modification sites of a slice of the
+     * index.
+     */
+    private class OccurrenceProcessor implements Runnable {
+
+        /**
+         * The peptide index.
+         */
+        private final PeptideIndex peptideIndex;
+        /**
+         * The index of the first peptide to inspect.
+         */
+        private final int startIndex;
+        /**
+         * The index after the last peptide to inspect.
+         */
+        private final int endIndex;
+        /**
+         * The variable modifications.
+         */
+        private final ArrayList<PTM> variableModifications;
+        /**
+         * The number of residues around the peptides needed to find the
+         * sites of the variable modifications.
+         */
+        private final int flankingLength;
+        /**
+         * The maximal number of modifications.
+         */
+        private final HashMap<String, Integer> maxModifications;
+        /**
+         * The maximal occurrence of every variable modification.
+         */
+        private final HashMap<String, Integer> maxOccurrences = new HashMap<String, Integer>();
+
+        /**
+         * Constructor.
+         *
+         * @param peptideIndex the peptide index
+         * @param startIndex the index of the first peptide to inspect
+         * @param endIndex the index after the last peptide to inspect
+         * @param variableModifications the variable modifications
+         * @param maxModifications the maximal number of modifications
+         */
+        public OccurrenceProcessor(PeptideIndex peptideIndex, int startIndex, int endIndex, ArrayList<PTM> variableModifications, HashMap<String, Integer> maxModifications) {
+            this.peptideIndex = peptideIndex;
+            this.startIndex = startIndex;
+            this.endIndex = endIndex;
+            this.variableModifications = variableModifications;
+            flankingLength = PeptideIndex.getFlankingLength(variableModifications);
+            this.maxModifications = maxModifications;
+        }
+
+        @Override
+        public void run() {
+
+            try {
+
+                for (int i = startIndex; i < endIndex; i++) {
+
+                    Peptide peptide = null;
+                    String proteinSequence = null;
+                    int indexOnProtein = 0;
+                    for (PTM ptm : variableModifications) {
+                        String ptmName = ptm.getName();
+                        Integer maxOccurrence = maxOccurrences.get(ptmName);
+                        Integer maxModification = maxModifications.get(ptmName);
+                        if (maxOccurrence == null || maxModification == null || maxOccurrence < maxModification) {
+                            if (peptide == null) {
+                                peptide = peptideIndex.getPeptide(i);
+                                proteinSequence = peptideIndex.getProteinSequence(i, flankingLength);
+                                indexOnProtein = peptideIndex.getIndexOnProteinSequence(i, flankingLength);
+                            }
+                            int nSites = peptide.getPotentialModificationSitesNoCombination(ptm, proteinSequence, indexOnProtein).size();
+                            if (maxModification != null) {
+                                nSites = Math.min(nSites, maxModification);
+                            }
+                            if (nSites > 0 && (maxOccurrence == null || nSites > maxOccurrence)) {
+                                maxOccurrences.put(ptmName, nSites);
+                            }
+                        }
+                    }
+                    if (waitingHandler.isRunCanceled()) {
+                        return;
+                    }
+                }
+            } catch (Exception e) {
+                if (!waitingHandler.isRunCanceled()) {
+                    exceptionHandler.catchException(e);
+                    waitingHandler.setRunCanceled();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,418 @@
+package no.uib.onyase.applications.engine.modules.peptide_index;
+
+import com.compomics.util.experiment.biology.Enzyme;
+import com.compomics.util.experiment.biology.PTM;
+import com.compomics.util.experiment.identification.identification_parameters.PtmSettings;
+import com.compomics.util.experiment.identification.identification_parameters.SearchParameters;
+import com.compomics.util.preferences.DigestionPreferences;
+import com.compomics.util.preferences.IdentificationParameters;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import no.uib.onyase.applications.engine.parameters.DecoyMode;
+
+/**
+ * This class stores peptide indexes in a folder for reuse across runs. An
+ * index is identified by a key computed from the database file, the digestion
+ * preferences, the fixed modifications, and the maximal number of Xs. The
+ * proteins are stored in a header file while the peptide records are stored
+ * in a binary file mapped in memory upon loading.
+ *
+ * @author Marc Vaudel
+ */
+public class PeptideIndexCache {
+
+    /**
+     * The version of the file format.
+     */
+    public static final int VERSION = 1;
+    /**
+     * The extension of the header files.
+     */
+    public static final String HEADER_EXTENSION = ".proteins";
+    /**
+     * The extension of the peptide files.
+     */
+    public static final String PEPTIDES_EXTENSION = ".peptides";
+    /**
+     * The extension of the modification occurrence files.
+     */
+    public static final String OCCURRENCES_EXTENSION = ".occurrences";
+    /**
+     * The extension of files being written.
+     */
+    public static final String TEMP_EXTENSION = ".tmp";
+    /**
+     * The encoding used for the sequences.
+     */
+    public static final String ENCODING = "US-ASCII";
+    /**
+     * The folder where the indexes are stored.
+     */
+    private final File folder;
+
+    /**
+     * Constructor.
+     *
+     * @param folder the folder where the indexes are stored
+     */
+    public PeptideIndexCache(File folder) {
+        this.folder = folder;
+    }
+
+    /**
+     * Returns the key of the peptide index corresponding to the given
+     * parameters. The database is identified by its path, size, and last
+     * modification date.
+     *
+     * @param identificationParameters the identification parameters
+     * @param maxX the maximal number of Xs allowed in a peptide sequence
+     * @param decoyMode the way decoy peptides are obtained
+     *
+     * @return the key of the peptide index
+     */
+    public static String getIndexKey(IdentificationParameters identificationParameters, int maxX, DecoyMode decoyMode) {
+
+        SearchParameters searchParameters = identificationParameters.getSearchParameters();
+        StringBuilder stringBuilder = new StringBuilder();
+
+        File fastaFile = searchParameters.getFastaFile();
+        stringBuilder.append(fastaFile.getAbsolutePath()).append('|');
+        stringBuilder.append(fastaFile.length()).append('|');
+        stringBuilder.append(fastaFile.lastModified()).append('|');
+
+        DigestionPreferences digestionPreferences = searchParameters.getDigestionPreferences();
+        stringBuilder.append(digestionPreferences.getCleavagePreference()).append('|');
+        if (digestionPreferences.getCleavagePreference() == DigestionPreferences.CleavagePreference.enzyme) {
+            for (Enzyme enzyme : digestionPreferences.getEnzymes()) {
+                String enzymeName = enzyme.getName();
+                stringBuilder.append(enzymeName).append(',');
+                stringBuilder.append(digestionPreferences.getSpecificity(enzymeName)).append(',');
+                stringBuilder.append(digestionPreferences.getnMissedCleavages(enzymeName)).append('|');
+            }
+        }
+
+        ArrayList<String> fixedModifications = new ArrayList<String>(searchParameters.getPtmSettings().getFixedModifications());
+        Collections.sort(fixedModifications);
+        for (String ptmName : fixedModifications) {
+            stringBuilder.append(ptmName).append(',');
+        }
+        stringBuilder.append('|').append(maxX);
+        stringBuilder.append('|').append(decoyMode.index);
+
+        return getHash(stringBuilder.toString());
+    }
+
+    /**
+     * Returns the key of the modification occurrences corresponding to the
+     * given parameters.
+     *
+     * @param ptmSettings the modification settings
+     * @param maxModifications the maximal number of modifications
+     *
+     * @return the key of the modification occurrences
+     */
+    public static String getOccurrencesKey(PtmSettings ptmSettings, HashMap<String, Integer> maxModifications) {
+        ArrayList<String> variableModifications = new ArrayList<String>(ptmSettings.getVariableModifications());
+        Collections.sort(variableModifications);
+        StringBuilder stringBuilder = new StringBuilder();
+        for (String ptmName : variableModifications) {
+            stringBuilder.append(ptmName).append(',');
+            if (maxModifications != null) {
+                stringBuilder.append(maxModifications.get(ptmName));
+            }
+            stringBuilder.append('|');
+        }
+        return getHash(stringBuilder.toString());
+    }
+
+    /**
+     * Returns the md5 hash of the given string in hexadecimal.
+     *
+     * @param string the string to hash
+     *
+     * @return the hash of the string
+     */
+    private static String getHash(String string) {
+        try {
+            MessageDigest messageDigest = MessageDigest.getInstance("MD5");
+            byte[] digest = messageDigest.digest(string.getBytes("UTF-8"));
+            StringBuilder stringBuilder = new StringBuilder(2 * digest.length);
+            for (byte b : digest) {
+                stringBuilder.append(Character.forDigit((b >> 4) & 0xF, 16));
+                stringBuilder.append(Character.forDigit(b & 0xF, 16));
+            }
+            return stringBuilder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 not available.", e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 not available.", e);
+        }
+    }
+
+    /**
+     * Loads the peptide index of the given key. Returns null if not found.
+     * The peptide records are mapped in memory.
+     *
+     * @param indexKey the key of the index
+     * @param fixedModifications the fixed modifications to set on the
+     * peptides
+     *
+     * @return the peptide index
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the files
+     */
+    public PeptideIndex load(String indexKey, ArrayList<PTM> fixedModifications) throws IOException {
+
+        File headerFile = new File(folder, indexKey + HEADER_EXTENSION);
+        File peptidesFile = new File(folder, indexKey + PEPTIDES_EXTENSION);
+        if (!headerFile.exists() || !peptidesFile.exists()) {
+            return null;
+        }
+
+        // Read the proteins
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(headerFile)));
+        String[] proteinAccessions;
+        String[] proteinSequences;
+        HashMap<Integer, String> substitutedSequences;
+        double massMin;
+        double massMax;
+        int nPeptides;
+        try {
+            if (dis.readInt() != VERSION) {
+                return null;
+            }
+            massMin = dis.readDouble();
+            massMax = dis.readDouble();
+            int nProteins = dis.readInt();
+            proteinAccessions = new String[nProteins];
+            proteinSequences = new String[nProteins];
+            for (int i = 0; i < nProteins; i++) {
+                proteinAccessions[i] = dis.readUTF();
+                proteinSequences[i] = readSequence(dis);
+            }
+            int nSubstituted = dis.readInt();
+            substitutedSequences = new HashMap<Integer, String>(nSubstituted);
+            for (int i = 0; i < nSubstituted; i++) {
+                int index = dis.readInt();
+                substitutedSequences.put(index, readSequence(dis));
+            }
+            nPeptides = dis.readInt();
+        } finally {
+            dis.close();
+        }
+
+        // Map the peptides
+        if (peptidesFile.length() != ((long) nPeptides) * PeptideIndex.RECORD_SIZE) {
+            return null;
+        }
+        int nBuffers = PeptideIndex.getNBuffers(nPeptides);
+        ByteBuffer[] peptideBuffers = new ByteBuffer[nBuffers];
+        RandomAccessFile raf = new RandomAccessFile(peptidesFile, "r");
+        try {
+            FileChannel fileChannel = raf.getChannel();
+            long position = 0;
+            for (int i = 0; i < nBuffers; i++) {
+                long size = ((long) PeptideIndex.getBufferNRecords(nPeptides, i)) * PeptideIndex.RECORD_SIZE;
+                peptideBuffers[i] = fileChannel.map(FileChannel.MapMode.READ_ONLY, position, size);
+                position += size;
+            }
+        } finally {
+            raf.close();
+        }
+
+        return new PeptideIndex(proteinAccessions, proteinSequences, peptideBuffers, nPeptides, substitutedSequences, fixedModifications, massMin, massMax);
+    }
+
+    /**
+     * Saves the given peptide index under the given key. Files are written
+     * under a temporary name and renamed upon completion.
+     *
+     * @param peptideIndex the peptide index
+     * @param indexKey the key of the index
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the files
+     */
+    public void save(PeptideIndex peptideIndex, String indexKey) throws IOException {
+
+        if (!folder.exists()) {
+            folder.mkdirs();
+        }
+        File headerFile = new File(folder, indexKey + HEADER_EXTENSION);
+        File peptidesFile = new File(folder, indexKey + PEPTIDES_EXTENSION);
+        File headerTempFile = new File(folder, indexKey + HEADER_EXTENSION + TEMP_EXTENSION);
+        File peptidesTempFile = new File(folder, indexKey + PEPTIDES_EXTENSION + TEMP_EXTENSION);
+
+        // Write the peptides
+        RandomAccessFile raf = new RandomAccessFile(peptidesTempFile, "rw");
+        try {
+            raf.setLength(0);
+            FileChannel fileChannel = raf.getChannel();
+            for (ByteBuffer peptideBuffer : peptideIndex.getPeptideBuffers()) {
+                ByteBuffer buffer = peptideBuffer.duplicate();
+                buffer.clear();
+                while (buffer.hasRemaining()) {
+                    fileChannel.write(buffer);
+                }
+            }
+        } finally {
+            raf.close();
+        }
+
+        // Write the proteins
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(headerTempFile)));
+        try {
+            dos.writeInt(VERSION);
+            dos.writeDouble(peptideIndex.getMassMin());
+            dos.writeDouble(peptideIndex.getMassMax());
+            String[] proteinAccessions = peptideIndex.getProteinAccessions();
+            String[] proteinSequences = peptideIndex.getProteinSequences();
+            dos.writeInt(proteinAccessions.length);
+            for (int i = 0; i < proteinAccessions.length; i++) {
+                dos.writeUTF(proteinAccessions[i]);
+                writeSequence(dos, proteinSequences[i]);
+            }
+            HashMap<Integer, String> substitutedSequences = peptideIndex.getSubstitutedSequences();
+            dos.writeInt(substitutedSequences.size());
+            for (Integer index : substitutedSequences.keySet()) {
+                dos.writeInt(index);
+                writeSequence(dos, substitutedSequences.get(index));
+            }
+            dos.writeInt(peptideIndex.size());
+        } finally {
+            dos.close();
+        }
+
+        // Replace the previous version if any
+        replace(peptidesTempFile, peptidesFile);
+        replace(headerTempFile, headerFile);
+    }
+
+    /**
+     * Loads the maximal modification occurrences for the given index and
+     * modification keys. Returns null if not found.
+     *
+     * @param indexKey the key of the index
+     * @param occurrencesKey the key of the modification occurrences
+     *
+     * @return the maximal occurrence of every variable modification
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the file
+     */
+    public HashMap<String, Integer> loadMaxOccurrences(String indexKey, String occurrencesKey) throws IOException {
+        File occurrencesFile = new File(folder, indexKey + "_" + occurrencesKey + OCCURRENCES_EXTENSION);
+        if (!occurrencesFile.exists()) {
+            return null;
+        }
+        HashMap<String, Integer> maxOccurrences = new HashMap<String, Integer>();
+        BufferedReader br = new BufferedReader(new FileReader(occurrencesFile));
+        try {
+            String line;
+            while ((line = br.readLine()) != null) {
+                int separator = line.lastIndexOf('\t');
+                if (separator > 0) {
+                    maxOccurrences.put(line.substring(0, separator), Integer.valueOf(line.substring(separator + 1)));
+                }
+            }
+        } finally {
+            br.close();
+        }
+        return maxOccurrences;
+    }
+
+    /**
+     * Saves the maximal modification occurrences for the given index and
+     * modification keys.
+     *
+     * @param maxOccurrences the maximal occurrence of every variable
+     * modification
+     * @param indexKey the key of the index
+     * @param occurrencesKey the key of the modification occurrences
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the file
+     */
+    public void saveMaxOccurrences(HashMap<String, Integer> maxOccurrences, String indexKey, String occurrencesKey) throws IOException {
+        File occurrencesFile = new File(folder, indexKey + "_" + occurrencesKey + OCCURRENCES_EXTENSION);
+        File occurrencesTempFile = new File(folder, indexKey + "_" + occurrencesKey + OCCURRENCES_EXTENSION + TEMP_EXTENSION);
+        BufferedWriter bw = new BufferedWriter(new FileWriter(occurrencesTempFile));
+        try {
+            for (String ptmName : maxOccurrences.keySet()) {
+                bw.write(ptmName + "\t" + maxOccurrences.get(ptmName));
+                bw.newLine();
+            }
+        } finally {
+            bw.close();
+        }
+        replace(occurrencesTempFile, occurrencesFile);
+    }
+
+    /**
+     * Replaces the destination file by the source file.
+     *
+     * @param source the source file
+     * @param destination the destination file
+     *
+     * @throws IOException exception thrown if the file could not be replaced
+     */
+    private static void replace(File source, File destination) throws IOException {
+        if (destination.exists() && !destination.delete()) {
+            throw new IOException("Impossible to delete " + destination.getAbsolutePath() + ".");
+        }
+        if (!source.renameTo(destination)) {
+            throw new IOException("Impossible to rename " + source.getAbsolutePath() + " to " + destination.getAbsolutePath() + ".");
+        }
+    }
+
+    /**
+     * Writes a sequence preceded by its length.
+     *
+     * @param dos the output stream
+     * @param sequence the sequence
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * writing the sequence
+     */
+    private static void writeSequence(DataOutputStream dos, String sequence) throws IOException {
+        byte[] bytes = sequence.getBytes(ENCODING);
+        dos.writeInt(bytes.length);
+        dos.write(bytes);
+    }
+
+    /**
+     * Reads a sequence preceded by its length.
+     *
+     * @param dis the input stream
+     *
+     * @return the sequence
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * reading the sequence
+     */
+    private static String readSequence(DataInputStream dis) throws IOException {
+        byte[] bytes = new byte[dis.readInt()];
+        dis.readFully(bytes);
+        return new String(bytes, ENCODING);
+    }
+}
@@ -0,0 +1,318 @@
+package no.uib.onyase.applications.engine.modules.precursor_handling;
+
+import com.compomics.util.exceptions.ExceptionHandler;
+import com.compomics.util.experiment.biology.ElementaryElement;
+import com.compomics.util.experiment.biology.ions.ElementaryIon;
+import com.compomics.util.experiment.identification.identification_parameters.SearchParameters;
+import com.compomics.util.experiment.identification.spectrum_annotation.AnnotationSettings;
+import com.compomics.util.waiting.WaitingHandler;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import no.uib.onyase.applications.engine.modules.spectrum_store.SpectrumStore;
+
+/**
+ * This class infers the likely charges and monoisotopic peaks of the
+ * precursors from their fragment spectrum. Every charge and isotope hypothesis
+ * is scored by the number of complementary fragment pairs whose m/z sum to the
+ * mass of the precursor plus two protons. Hypotheses under which a substantial
+ * share of the fragment intensity lies above the mass of the singly charged
+ * precursor are discarded. A short list of the best hypotheses is retained for
+ * every spectrum.
+ *
+ * @author Marc Vaudel
+ */
+public class PrecursorInference {
+
+    /**
+     * The minimal number of complementary fragment pairs supporting the best
+     * hypothesis of a spectrum to retain the inference.
+     */
+    public static final int MIN_PAIRS = 2;
+    /**
+     * The maximal share of the fragment intensity above the mass of the singly
+     * charged precursor for a hypothesis to be considered.
+     */
+    public static final double MAX_IMPOSSIBLE_INTENSITY = 0.05;
+    /**
+     * A handler for the exceptions.
+     */
+    private ExceptionHandler exceptionHandler;
+    /**
+     * A waiting handler providing feedback to the user and allowing canceling
+     * the process.
+     */
+    private WaitingHandler waitingHandler;
+    /**
+     * The inferred charges of every spectrum sorted by decreasing likelihood,
+     * null for the spectra where no inference could be made.
+     */
+    private int[][] spectrumCharges;
+    /**
+     * The inferred isotopes of every spectrum corresponding to the inferred
+     * charges.
+     */
+    private int[][] spectrumIsotopes;
+
+    /**
+     * Constructor.
+     *
+     * @param waitingHandler a waiting handler providing feedback to the user
+     * and allowing canceling the process
+     * @param exceptionHandler a handler for the exceptions
+     */
+    public PrecursorInference(WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) {
+        this.exceptionHandler = exceptionHandler;
+        this.waitingHandler = waitingHandler;
+    }
+
+    /**
+     * Infers the likely charges and isotopes of the precursors of the given
+     * store. The charges annotated in the spectrum file are used when
+     * available, all charges searched otherwise.
+     *
+     * @param spectrumStore the store containing the spectra to process
+     * @param searchParameters the search parameters
+     * @param annotationSettings the annotation settings
+     * @param maxCandidates the maximal number of charge and isotope
+     * hypotheses to retain per spectrum
+     * @param nThreads the number of threads to use
+     *
+     * @throws InterruptedException exception thrown if a threading issue
+     * occurs
+     */
+    public void inferPrecursors(SpectrumStore spectrumStore, SearchParameters searchParameters, AnnotationSettings annotationSettings, int maxCandidates, int nThreads) throws InterruptedException {
+
+        int nSpectra = spectrumStore.size();
+        spectrumCharges = new int[nSpectra][];
+        spectrumIsotopes = new int[nSpectra][];
+
+        // Set progress counters
+        waitingHandler.setSecondaryProgressCounterIndeterminate(false);
+        waitingHandler.setMaxSecondaryProgressCounter(nSpectra);
+
+        // Process the spectra in slices
+        int sliceSize = Math.max(1, (nSpectra + nThreads - 1) / nThreads);
+        ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+        for (int start = 0; start < nSpectra; start += sliceSize) {
+            InferenceProcessor inferenceProcessor = new InferenceProcessor(spectrumStore, start, Math.min(start + sliceSize, nSpectra), searchParameters, annotationSettings, maxCandidates);
+            pool.submit(inferenceProcessor);
+        }
+        pool.shutdown();
+        if (!pool.awaitTermination(Integer.MAX_VALUE, TimeUnit.DAYS)) {
+            waitingHandler.appendReport("Precursor inference timed out.", true, true);
+        }
+        waitingHandler.setSecondaryProgressCounterIndeterminate(true);
+    }
+
+    /**
+     * Returns the inferred charges of the spectrum at the given index sorted
+     * by decreasing likelihood, null if no inference could be made.
+     *
+     * @param spectrumIndex the index of the spectrum in the spectrum store
+     *
+     * @return the inferred charges of the spectrum
+     */
+    public int[] getCharges(int spectrumIndex) {
+        return spectrumCharges[spectrumIndex];
+    }
+
+    /**
+     * Returns the inferred isotopes of the spectrum at the given index
+     * corresponding to the inferred charges, null if no inference could be
+     * made.
+     *
+     * @param spectrumIndex the index of the spectrum in the spectrum store
+     *
+     * @return the inferred isotopes of the spectrum
+     */
+    public int[] getIsotopes(int spectrumIndex) {
+        return spectrumIsotopes[spectrumIndex];
+    }
+
+    /**
+     * Returns the number of spectra where charges and isotopes could be
+     * inferred.
+     *
+     * @return the number of spectra where charges and isotopes could be
+     * inferred
+     */
+    public int getNInferred() {
+        int nInferred = 0;
+        for (int[] charges : spectrumCharges) {
+            if (charges != null) {
+                nInferred++;
+            }
+        }
+        return nInferred;
+    }
+
+    /**
+     * Private runnable to infer the precursors of a slice of the spectrum
+     * store.
+     */
+    private class InferenceProcessor implements Runnable {
+
+        /**
+         * The store containing the spectra.
+         */
+        private final SpectrumStore spectrumStore;
+        /**
+         * The index of the first spectrum to process.
+         */
+        private final int startIndex;
+        /**
+         * The index after the last spectrum to process.
+         */
+        private final int endIndex;
+        /**
+         * The search parameters.
+         */
+        private final SearchParameters searchParameters;
+        /**
+         * The annotation settings.
+         */
+        private final AnnotationSettings annotationSettings;
+        /**
+         * The maximal number of hypotheses to retain per spectrum.
+         */
+        private final int maxCandidates;
+
+        /**
+         * Constructor.
+         *
+         * @param spectrumStore the store containing the spectra
+         * @param startIndex the index of the first spectrum to process
+         * @param endIndex the index after the last spectrum to process
+         * @param searchParameters the search parameters
+         * @param annotationSettings the annotation settings
+         * @param maxCandidates the maximal number of hypotheses to retain per
+         * spectrum
+         */
+        public InferenceProcessor(SpectrumStore spectrumStore, int startIndex, int endIndex, SearchParameters searchParameters, AnnotationSettings annotationSettings, int maxCandidates) {
+            this.spectrumStore = spectrumStore;
+            this.startIndex = startIndex;
+            this.endIndex = endIndex;
+            this.searchParameters = searchParameters;
+            this.annotationSettings = annotationSettings;
+            this.maxCandidates = maxCandidates;
+        }
+
+        @Override
+        public void run() {
+
+            try {
+
+                int minCharge = searchParameters.getMinChargeSearched().value;
+                int maxCharge = searchParameters.getMaxChargeSearched().value;
+                int minIsotope = searchParameters.getMinIsotopicCorrection();
+                int maxIsotope = searchParameters.getMaxIsotopicCorrection();
+                double fragmentAccuracy = annotationSettings.getFragmentIonAccuracy();
+                boolean ppm = annotationSettings.isFragmentIonPpm();
+                double protonMass = ElementaryIon.proton.getTheoreticMass();
+                double neutronMass = ElementaryElement.neutron.getMass();
+                double[] mzs = spectrumStore.getMzs();
+                float[] intensities = spectrumStore.getIntensities();
+
+                int[] allCharges = new int[maxCharge - minCharge + 1];
+                for (int charge = minCharge; charge <= maxCharge; charge++) {
+                    allCharges[charge - minCharge] = charge;
+                }
+                int nIsotopes = maxIsotope - minIsotope + 1;
+
+                for (int i = startIndex; i < endIndex; i++) {
+
+                    // Get the charges to test
+                    int[] charges = PrecursorProcessor.getAnnotatedCharges(spectrumStore.getPrecursor(i).getPossibleCharges(), minCharge, maxCharge);
+                    if (charges == null) {
+                        charges = allCharges;
+                    }
+                    int peakStart = spectrumStore.getPeakStart(i);
+                    int peakEnd = spectrumStore.getPeakEnd(i);
+                    double precursorMz = spectrumStore.getPrecursorMz(i);
+                    double totalIntensity = 0.0;
+                    for (int j = peakStart; j < peakEnd; j++) {
+                        totalIntensity += intensities[j];
+                    }
+
+                    // Score every hypothesis
+                    int nHypotheses = charges.length * nIsotopes;
+                    int[] hypothesisCharges = new int[nHypotheses];
+                    int[] hypothesisIsotopes = new int[nHypotheses];
+                    int[] hypothesisPairs = new int[nHypotheses];
+                    int nRetained = 0;
+                    for (int charge : charges) {
+                        for (int isotope = minIsotope; isotope <= maxIsotope; isotope++) {
+
+                            double precursorMass = (precursorMz - protonMass) * charge - isotope * neutronMass;
+                            double maxFragmentMz = precursorMass + protonMass;
+                            double pairsMz = maxFragmentMz + protonMass;
+                            double tolerance = ppm ? 2 * maxFragmentMz * fragmentAccuracy / 1000000 : 2 * fragmentAccuracy;
+
+                            // Discard the hypothesis if too much intensity cannot be explained by fragments
+                            double impossibleIntensity = 0.0;
+                            for (int j = peakEnd - 1; j >= peakStart && mzs[j] > maxFragmentMz + tolerance; j--) {
+                                impossibleIntensity += intensities[j];
+                            }
+                            if (impossibleIntensity > MAX_IMPOSSIBLE_INTENSITY * totalIntensity) {
+                                continue;
+                            }
+
+                            // Count the complementary pairs
+                            int nPairs = 0;
+                            int low = peakStart;
+                            int high = peakEnd - 1;
+                            while (low < high) {
+                                double sum = mzs[low] + mzs[high];
+                                if (sum < pairsMz - tolerance) {
+                                    low++;
+                                } else if (sum > pairsMz + tolerance) {
+                                    high--;
+                                } else {
+                                    nPairs++;
+                                    low++;
+                                    high--;
+                                }
+                            }
+
+                            // Insert the hypothesis in decreasing number of pairs
+                            int index = nRetained;
+                            while (index > 0 && hypothesisPairs[index - 1] < nPairs) {
+                                hypothesisCharges[index] = hypothesisCharges[index - 1];
+                                hypothesisIsotopes[index] = hypothesisIsotopes[index - 1];
+                                hypothesisPairs[index] = hypothesisPairs[index - 1];
+                                index--;
+                            }
+                            hypothesisCharges[index] = charge;
+                            hypothesisIsotopes[index] = isotope;
+                            hypothesisPairs[index] = nPairs;
+                            nRetained++;
+                        }
+                    }
+
+                    // Retain the best hypotheses
+                    if (nRetained > 0 && hypothesisPairs[0] >= MIN_PAIRS) {
+                        int nCandidates = Math.min(nRetained, maxCandidates);
+                        int[] inferredCharges = new int[nCandidates];
+                        int[] inferredIsotopes = new int[nCandidates];
+                        System.arraycopy(hypothesisCharges, 0, inferredCharges, 0, nCandidates);
+                        System.arraycopy(hypothesisIsotopes, 0, inferredIsotopes, 0, nCandidates);
+                        spectrumIsotopes[i] = inferredIsotopes;
+                        spectrumCharges[i] = inferredCharges;
+                    }
+
+                    if (waitingHandler.isRunCanceled()) {
+                        return;
+                    } else {
+                        waitingHandler.increaseSecondaryProgressCounter();
+                    }
+                }
+            } catch (Exception e) {
+                if (!waitingHandler.isRunCanceled()) {
+                    exceptionHandler.catchException(e);
+                    waitingHandler.setRunCanceled();
+                }
+            }
+        }
+    }
+}
@@ -1,14 +1,27 @@
 package no.uib.onyase.applications.engine.modules.precursor_handling;
 
+import com.compomics.util.experiment.biology.ElementaryElement;
 import com.compomics.util.experiment.biology.ions.ElementaryIon;
 import com.compomics.util.experiment.identification.identification_parameters.SearchParameters;
+import com.compomics.util.experiment.massspectrometry.Charge;
 import com.compomics.util.experiment.massspectrometry.SpectrumFactory;
 import com.compomics.util.experiment.massspectrometry.indexes.PrecursorMap;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import no.uib.onyase.applications.engine.modules.spectrum_store.SpectrumStore;
+import no.uib.onyase.utils.SortingUtils;
 import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException;
 
 /**
- * This class processes the precursors present in an mgf file.
+ * This class processes the precursors present in an mgf file. When built from
+ * a spectrum store, the neutral masses of the precursors at every possible
+ * charge and isotope are indexed, allowing to retrieve the spectra matching a
+ * peptide mass with a single range query. The possible charges and isotopes
+ * of a precursor are the ones inferred from its fragment spectrum if
+ * available. Otherwise, the charges annotated in the spectrum file, or all
+ * charges searched if none is annotated, are combined with all isotopes
+ * searched.
  *
  * @author Marc Vaudel
  */
@@ -36,6 +49,53 @@ public class PrecursorProcessor {
      */
     private Double massMax;
 
+    /**
+     * The neutral masses of the precursors at every possible charge and
+     * isotope, sorted in ascending order.
+     */
+    private double[] neutralMasses;
+
+    /**
+     * The mass tolerance of every neutral mass.
+     */
+    private double[] massTolerances;
+
+    /**
+     * The maximal mass tolerance.
+     */
+    private double maxMassTolerance;
+
+    /**
+     * The index of the spectrum of every neutral mass in the spectrum store.
+     */
+    private int[] spectrumIndexes;
+
+    /**
+     * The charge of every neutral mass.
+     */
+    private int[] charges;
+
+    /**
+     * The isotope of every neutral mass.
+     */
+    private int[] isotopes;
+
+    /**
+     * The possible charges of every spectrum of the store.
+     */
+    private int[][] spectrumCharges;
+
+    /**
+     * The possible isotopes of every spectrum of the store corresponding to
+     * the possible charges.
+     */
+    private int[][] spectrumIsotopes;
+
+    /**
+     * The number of spectra with charges annotated in the spectrum file.
+     */
+    private int nAnnotatedSpectra;
+
     /**
      * Constructor. The spectrum file corresponding to the file to import must
      * be loaded in the spectrum factory.
@@ -54,6 +114,83 @@ public class PrecursorProcessor {
         importSpectra(mgfFileName, searchParameters, minMz, maxMz);
     }
 
+    /**
+     * Constructor. The spectrum file of the spectrum store must be loaded in
+     * the spectrum factory. The neutral masses of the precursors of the store
+     * are indexed.
+     *
+     * @param spectrumStore the store containing the spectra to process
+     * @param precursorInference the charges and isotopes inferred from the
+     * fragment spectra, null if not inferred
+     * @param searchParameters the search parameters
+     * @param minMz the minimal m/z to consider
+     * @param maxMz the maximal m/z to consider
+     *
+     * @throws IOException exception thrown whenever an error occurred while
+     * loading the spectra
+     * @throws MzMLUnmarshallerException exception thrown whenever an error
+     * occurred while reading an mzML file
+     */
+    public PrecursorProcessor(SpectrumStore spectrumStore, PrecursorInference precursorInference, SearchParameters searchParameters, Double minMz, Double maxMz) throws IOException, MzMLUnmarshallerException {
+        importSpectra(spectrumStore.getSpectrumFileName(), searchParameters, minMz, maxMz);
+        indexNeutralMasses(spectrumStore, precursorInference, searchParameters);
+    }
+
+    /**
+     * Constructor merging the neutral masses of the given precursor
+     * processors, built from spectrum stores, in a single index. The spectra
+     * are numbered consecutively in the order of the processors: the index
+     * of a spectrum in the merged index is its index in its store plus the
+     * number of spectra of the preceding stores. The precursor map is not
+     * available for a merged index.
+     *
+     * @param precursorProcessors the precursor processors to merge
+     */
+    public PrecursorProcessor(ArrayList<PrecursorProcessor> precursorProcessors) {
+
+        int nSpectra = 0;
+        int nMasses = 0;
+        for (PrecursorProcessor precursorProcessor : precursorProcessors) {
+            nSpectra += precursorProcessor.spectrumCharges.length;
+            nMasses += precursorProcessor.neutralMasses.length;
+        }
+
+        // Concatenate the spectra and their neutral masses
+        spectrumCharges = new int[nSpectra][];
+        spectrumIsotopes = new int[nSpectra][];
+        double[] masses = new double[nMasses];
+        double[] tolerances = new double[nMasses];
+        int[] indexes = new int[nMasses];
+        int[] massCharges = new int[nMasses];
+        int[] massIsotopes = new int[nMasses];
+        nAnnotatedSpectra = 0;
+        int spectrumOffset = 0;
+        int index = 0;
+        for (PrecursorProcessor precursorProcessor : precursorProcessors) {
+            if (massMin == null || precursorProcessor.massMin < massMin) {
+                massMin = precursorProcessor.massMin;
+            }
+            if (massMax == null || precursorProcessor.massMax > massMax) {
+                massMax = precursorProcessor.massMax;
+            }
+            nAnnotatedSpectra += precursorProcessor.nAnnotatedSpectra;
+            int processorSpectra = precursorProcessor.spectrumCharges.length;
+            System.arraycopy(precursorProcessor.spectrumCharges, 0, spectrumCharges, spectrumOffset, processorSpectra);
+            System.arraycopy(precursorProcessor.spectrumIsotopes, 0, spectrumIsotopes, spectrumOffset, processorSpectra);
+            for (int i = 0; i < precursorProcessor.neutralMasses.length; i++) {
+                masses[index] = precursorProcessor.neutralMasses[i];
+                tolerances[index] = precursorProcessor.massTolerances[i];
+                indexes[index] = spectrumOffset + precursorProcessor.spectrumIndexes[i];
+                massCharges[index] = precursorProcessor.charges[i];
+                massIsotopes[index] = precursorProcessor.isotopes[i];
+                index++;
+            }
+            spectrumOffset += processorSpectra;
+        }
+
+        setNeutralMasses(masses, tolerances, indexes, massCharges, massIsotopes);
+    }
+
     /**
      * Imports the precursors of the given file according to the given search
      * parameters.
@@ -99,6 +236,401 @@ public class PrecursorProcessor {
         massMax = (mzMax * maxCharge) - (maxCharge * ElementaryIon.proton.getTheoreticMass());
     }
 
+    /**
+     * Indexes the neutral masses of the precursors of the given store at every
+     * possible charge and isotope.
+     *
+     * @param spectrumStore the store containing the spectra to process
+     * @param precursorInference the charges and isotopes inferred from the
+     * fragment spectra, null if not inferred
+     * @param searchParameters the search parameters
+     */
+    private void indexNeutralMasses(SpectrumStore spectrumStore, PrecursorInference precursorInference, SearchParameters searchParameters) {
+
+        int minCharge = searchParameters.getMinChargeSearched().value;
+        int maxCharge = searchParameters.getMaxChargeSearched().value;
+        int minIsotope = searchParameters.getMinIsotopicCorrection();
+        int maxIsotope = searchParameters.getMaxIsotopicCorrection();
+        double precursorAccuracy = searchParameters.getPrecursorAccuracy();
+        boolean ppm = searchParameters.isPrecursorAccuracyTypePpm();
+        double protonMass = ElementaryIon.proton.getTheoreticMass();
+        double neutronMass = ElementaryElement.neutron.getMass();
+
+        // Get the possible charges and isotopes of every spectrum
+        int nSpectra = spectrumStore.size();
+        int[] allCharges = new int[maxCharge - minCharge + 1];
+        for (int charge = minCharge; charge <= maxCharge; charge++) {
+            allCharges[charge - minCharge] = charge;
+        }
+        int nIsotopes = maxIsotope - minIsotope + 1;
+        spectrumCharges = new int[nSpectra][];
+        spectrumIsotopes = new int[nSpectra][];
+        nAnnotatedSpectra = 0;
+        int nMasses = 0;
+        for (int i = 0; i < nSpectra; i++) {
+            int[] annotatedCharges = getAnnotatedCharges(spectrumStore.getPrecursor(i).getPossibleCharges(), minCharge, maxCharge);
+            if (annotatedCharges != null) {
+                nAnnotatedSpectra++;
+            }
+            if (precursorInference != null && precursorInference.getCharges(i) != null) {
+                spectrumCharges[i] = precursorInference.getCharges(i);
+                spectrumIsotopes[i] = precursorInference.getIsotopes(i);
+            } else {
+                int[] possibleCharges = annotatedCharges != null ? annotatedCharges : allCharges;
+                int nHypotheses = possibleCharges.length * nIsotopes;
+                spectrumCharges[i] = new int[nHypotheses];
+                spectrumIsotopes[i] = new int[nHypotheses];
+                int index = 0;
+                for (int charge : possibleCharges) {
+                    for (int isotope = minIsotope; isotope <= maxIsotope; isotope++) {
+                        spectrumCharges[i][index] = charge;
+                        spectrumIsotopes[i][index] = isotope;
+                        index++;
+                    }
+                }
+            }
+            nMasses += spectrumCharges[i].length;
+        }
+
+        // Compute the neutral masses at every possible charge and isotope
+        double[] masses = new double[nMasses];
+        double[] tolerances = new double[nMasses];
+        int[] indexes = new int[nMasses];
+        int[] massCharges = new int[nMasses];
+        int[] massIsotopes = new int[nMasses];
+        int index = 0;
+        for (int i = 0; i < nSpectra; i++) {
+            double mz = spectrumStore.getPrecursorMz(i);
+            double mzTolerance = ppm ? mz * precursorAccuracy / 1000000 : precursorAccuracy;
+            for (int j = 0; j < spectrumCharges[i].length; j++) {
+                int charge = spectrumCharges[i][j];
+                int isotope = spectrumIsotopes[i][j];
+                masses[index] = (mz - protonMass) * charge - isotope * neutronMass;
+                tolerances[index] = mzTolerance * charge;
+                indexes[index] = i;
+                massCharges[index] = charge;
+                massIsotopes[index] = isotope;
+                index++;
+            }
+        }
+
+        setNeutralMasses(masses, tolerances, indexes, massCharges, massIsotopes);
+    }
+
+    /**
+     * Sets the index of the neutral masses from the given arrays, sorting
+     * them by mass.
+     *
+     * @param masses the neutral masses
+     * @param tolerances the mass tolerance of every neutral mass
+     * @param indexes the index of the spectrum of every neutral mass
+     * @param massCharges the charge of every neutral mass
+     * @param massIsotopes the isotope of every neutral mass
+     */
+    private void setNeutralMasses(double[] masses, double[] tolerances, int[] indexes, int[] massCharges, int[] massIsotopes) {
+
+        // Sort by mass
+        int nMasses = masses.length;
+        int[] order = SortingUtils.getOrder(masses, nMasses);
+        neutralMasses = new double[nMasses];
+        massTolerances = new double[nMasses];
+        spectrumIndexes = new int[nMasses];
+        charges = new int[nMasses];
+        isotopes = new int[nMasses];
+        maxMassTolerance = 0.0;
+        for (int i = 0; i < nMasses; i++) {
+            int j = order[i];
+            neutralMasses[i] = masses[j];
+            massTolerances[i] = tolerances[j];
+            spectrumIndexes[i] = indexes[j];
+            charges[i] = massCharges[j];
+            isotopes[i] = massIsotopes[j];
+            if (tolerances[j] > maxMassTolerance) {
+                maxMassTolerance = tolerances[j];
+            }
+        }
+    }
+
+    /**
+     * Removes the given spectra from the index of the neutral masses. The
+     * removed spectra have no possible charge anymore and are not matched to
+     * peptides.
+     *
+     * @param removedSpectra boolean indicating for every spectrum of the
+     * store whether it should be removed
+     *
+     * @return the number of spectra removed
+     */
+    public int removeSpectra(boolean[] removedSpectra) {
+
+        int nRemoved = 0;
+        for (int i = 0; i < removedSpectra.length; i++) {
+            if (removedSpectra[i] && spectrumCharges[i].length > 0) {
+                spectrumCharges[i] = new int[0];
+                spectrumIsotopes[i] = new int[0];
+                nRemoved++;
+            }
+        }
+
+        // Compact the neutral masses, keeping the mass order
+        int index = 0;
+        maxMassTolerance = 0.0;
+        for (int i = 0; i < neutralMasses.length; i++) {
+            if (!removedSpectra[spectrumIndexes[i]]) {
+                neutralMasses[index] = neutralMasses[i];
+                massTolerances[index] = massTolerances[i];
+                spectrumIndexes[index] = spectrumIndexes[i];
+                charges[index] = charges[i];
+                isotopes[index] = isotopes[i];
+                if (massTolerances[i] > maxMassTolerance) {
+                    maxMassTolerance = massTolerances[i];
+                }
+                index++;
+            }
+        }
+        if (index < neutralMasses.length) {
+            neutralMasses = Arrays.copyOf(neutralMasses, index);
+            massTolerances = Arrays.copyOf(massTolerances, index);
+            spectrumIndexes = Arrays.copyOf(spectrumIndexes, index);
+            charges = Arrays.copyOf(charges, index);
+            isotopes = Arrays.copyOf(isotopes, index);
+        }
+
+        return nRemoved;
+    }
+
+    /**
+     * Returns the annotated charges within the given range in ascending
+     * order, null if no charge is annotated. An empty array is returned if
+     * charges are annotated but none is in the range.
+     *
+     * @param possibleCharges the charges annotated in the spectrum file
+     * @param minCharge the minimal charge searched
+     * @param maxCharge the maximal charge searched
+     *
+     * @return the annotated charges within the given range
+     */
+    static int[] getAnnotatedCharges(ArrayList<Charge> possibleCharges, int minCharge, int maxCharge) {
+        if (possibleCharges == null || possibleCharges.isEmpty()) {
+            return null;
+        }
+        boolean[] found = new boolean[maxCharge - minCharge + 1];
+        int nCharges = 0;
+        for (Charge possibleCharge : possibleCharges) {
+            int charge = possibleCharge.value;
+            if (charge >= minCharge && charge <= maxCharge && !found[charge - minCharge]) {
+                found[charge - minCharge] = true;
+                nCharges++;
+            }
+        }
+        int[] charges = new int[nCharges];
+        int index = 0;
+        for (int charge = minCharge; charge <= maxCharge; charge++) {
+            if (found[charge - minCharge]) {
+                charges[index++] = charge;
+            }
+        }
+        return charges;
+    }
+
+    /**
+     * Returns the index of the first neutral mass greater than the given mass,
+     * or equal to it if inclusive. The search starts at the given index and
+     * progresses by exponentially growing steps, which makes it fast for
+     * successive queries with increasing masses.
+     *
+     * @param mass the mass of interest
+     * @param inclusive boolean indicating whether neutral masses equal to the
+     * given mass should be included
+     * @param from the index where to start the search, all neutral masses
+     * before this index must be lower than the given mass
+     *
+     * @return the index of the first neutral mass greater than the given mass
+     */
+    private int getNeutralMassIndex(double mass, boolean inclusive, int from) {
+        int low = from;
+        int high = from;
+        int step = 1;
+        while (high < neutralMasses.length && isBelow(high, mass, inclusive)) {
+            low = high + 1;
+            high += step;
+            step <<= 1;
+        }
+        high = Math.min(high, neutralMasses.length);
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (isBelow(middle, mass, inclusive)) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Indicates whether the neutral mass at the given index is below the
+     * given mass.
+     *
+     * @param i the index of the neutral mass
+     * @param mass the mass of interest
+     * @param inclusive boolean indicating whether a neutral mass equal to the
+     * given mass should be considered as not below
+     *
+     * @return a boolean indicating whether the neutral mass is below the
+     * given mass
+     */
+    private boolean isBelow(int i, double mass, boolean inclusive) {
+        return neutralMasses[i] < mass || !inclusive && neutralMasses[i] == mass;
+    }
+
+    /**
+     * Returns the index of the first neutral mass that can match the given
+     * peptide mass. Candidates must be verified using isMatch.
+     *
+     * @param peptideMass the mass of the peptide
+     *
+     * @return the index of the first candidate neutral mass
+     */
+    public int getCandidatesStart(double peptideMass) {
+        return getCandidatesStart(peptideMass, 0);
+    }
+
+    /**
+     * Returns the index of the first neutral mass that can match the given
+     * peptide mass, starting the search at the given index. Candidates must
+     * be verified using isMatch.
+     *
+     * @param peptideMass the mass of the peptide
+     * @param from the index where to start the search, typically the start
+     * of the candidates of a lower mass
+     *
+     * @return the index of the first candidate neutral mass
+     */
+    public int getCandidatesStart(double peptideMass, int from) {
+        return getNeutralMassIndex(peptideMass - maxMassTolerance, true, from);
+    }
+
+    /**
+     * Returns the index after the last neutral mass that can match the given
+     * peptide mass.
+     *
+     * @param peptideMass the mass of the peptide
+     *
+     * @return the index after the last candidate neutral mass
+     */
+    public int getCandidatesEnd(double peptideMass) {
+        return getCandidatesEnd(peptideMass, 0);
+    }
+
+    /**
+     * Returns the index after the last neutral mass that can match the given
+     * peptide mass, starting the search at the given index.
+     *
+     * @param peptideMass the mass of the peptide
+     * @param from the index where to start the search, typically the start
+     * of the candidates of this mass
+     *
+     * @return the index after the last candidate neutral mass
+     */
+    public int getCandidatesEnd(double peptideMass, int from) {
+        return getNeutralMassIndex(peptideMass + maxMassTolerance, false, from);
+    }
+
+    /**
+     * Indicates whether the given peptide mass matches the neutral mass at the
+     * given index.
+     *
+     * @param i the index of the neutral mass
+     * @param peptideMass the mass of the peptide
+     *
+     * @return a boolean indicating whether the peptide mass matches the
+     * neutral mass
+     */
+    public boolean isMatch(int i, double peptideMass) {
+        return Math.abs(neutralMasses[i] - peptideMass) <= massTolerances[i];
+    }
+
+    /**
+     * Returns the index in the spectrum store of the spectrum of the neutral
+     * mass at the given index.
+     *
+     * @param i the index of the neutral mass
+     *
+     * @return the index of the spectrum in the spectrum store
+     */
+    public int getSpectrumIndex(int i) {
+        return spectrumIndexes[i];
+    }
+
+    /**
+     * Returns the charge of the neutral mass at the given index.
+     *
+     * @param i the index of the neutral mass
+     *
+     * @return the charge of the neutral mass
+     */
+    public int getCharge(int i) {
+        return charges[i];
+    }
+
+    /**
+     * Returns the isotope of the neutral mass at the given index.
+     *
+     * @param i the index of the neutral mass
+     *
+     * @return the isotope of the neutral mass
+     */
+    public int getIsotope(int i) {
+        return isotopes[i];
+    }
+
+    /**
+     * Returns the possible charges of the spectrum at the given index in the
+     * spectrum store. Every charge is paired with the isotope at the same
+     * index in getIsotopes.
+     *
+     * @param spectrumIndex the index of the spectrum in the spectrum store
+     *
+     * @return the possible charges of the spectrum
+     */
+    public int[] getCharges(int spectrumIndex) {
+        return spectrumCharges[spectrumIndex];
+    }
+
+    /**
+     * Returns the possible isotopes of the spectrum at the given index in the
+     * spectrum store. Every isotope is paired with the charge at the same
+     * index in getCharges.
+     *
+     * @param spectrumIndex the index of the spectrum in the spectrum store
+     *
+     * @return the possible isotopes of the spectrum
+     */
+    public int[] getIsotopes(int spectrumIndex) {
+        return spectrumIsotopes[spectrumIndex];
+    }
+
+    /**
+     * Returns the number of spectra with charges annotated in the spectrum
+     * file.
+     *
+     * @return the number of spectra with charges annotated in the spectrum
+     * file
+     */
+    public int getNAnnotatedSpectra() {
+        return nAnnotatedSpectra;
+    }
+
+    /**
+     * Returns the number of neutral masses indexed.
+     *
+     * @return the number of neutral masses indexed
+     */
+    public int getNNeutralMasses() {
+        return neutralMasses == null ? 0 : neutralMasses.length;
+    }
+
     /**
      * Returns the precursor map.
      *
@@ -8,7 +8,8 @@ package no.uib.onyase.applications.engine.modules.scoring;
 public enum PsmScore {
 
     hyperscore(0,"Hyperscore", "Implementation of the hyperscore similar to X!Tandem."), 
-    snrScore(1,"SnrScore", "Score based on the signal to noise ratio of the intensities of annotated peaks.");
+    snrScore(1,"SnrScore", "Score based on the signal to noise ratio of the intensities of annotated peaks."),
+    nativeHyperscore(2,"NativeHyperscore", "Allocation-free implementation of the hyperscore on b and y ions.");
 
     /**
      * The index of the option.
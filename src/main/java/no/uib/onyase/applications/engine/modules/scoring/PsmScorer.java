@@ -0,0 +1,340 @@
+package no.uib.onyase.applications.engine.modules.scoring;
+
+import com.compomics.util.experiment.biology.Peptide;
+import com.compomics.util.experiment.identification.matches.IonMatch;
+import com.compomics.util.experiment.identification.matches.ModificationMatch;
+import com.compomics.util.experiment.identification.psm_scoring.psm_scores.HyperScore;
+import com.compomics.util.experiment.identification.psm_scoring.psm_scores.SnrScore;
+import com.compomics.util.experiment.identification.spectrum_annotation.AnnotationSettings;
+import com.compomics.util.experiment.identification.spectrum_annotation.SpecificAnnotationSettings;
+import com.compomics.util.experiment.identification.spectrum_annotation.spectrum_annotators.PeptideSpectrumAnnotator;
+import com.compomics.util.experiment.identification.spectrum_assumptions.PeptideAssumption;
+import com.compomics.util.experiment.massspectrometry.Charge;
+import com.compomics.util.experiment.massspectrometry.MSnSpectrum;
+import com.compomics.util.preferences.IdentificationParameters;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import no.uib.onyase.applications.engine.modules.scoring.psm_scores.NativeHyperScore;
+import no.uib.onyase.applications.engine.modules.spectrum_store.SpectrumStore;
+import no.uib.onyase.utils.LruCache;
+import uk.ac.ebi.jmzml.xml.io.MzMLUnmarshallerException;
+
+/**
+ * This class annotates spectra and scores peptide spectrum matches according
+ * to the selected score. Spectra are read from a spectrum store. An instance
+ * should be used by a single thread.
+ *
+ * @author Marc Vaudel
+ */
+public class PsmScorer {
+
+    /**
+     * The number of spectrum objects to keep in cache.
+     */
+    public static final int SPECTRUM_CACHE_SIZE = 500;
+    /**
+     * The score to use.
+     */
+    private final PsmScore psmScore;
+    /**
+     * The object used to estimate the hyperscore.
+     */
+    private HyperScore hyperScoreEstimator;
+    /**
+     * The object used to estimate the SNR score.
+     */
+    private SnrScore snrScoreEstimator;
+    /**
+     * The object used to estimate the native hyperscore.
+     */
+    private NativeHyperScore nativeHyperScoreEstimator;
+    /**
+     * A spectrum annotator.
+     */
+    private final PeptideSpectrumAnnotator peptideSpectrumAnnotator = new PeptideSpectrumAnnotator();
+    /**
+     * The identification parameters.
+     */
+    private final IdentificationParameters identificationParameters;
+    /**
+     * The annotation settings.
+     */
+    private final AnnotationSettings annotationSettings;
+    /**
+     * The store containing the spectra.
+     */
+    private final SpectrumStore spectrumStore;
+    /**
+     * Cache for the spectrum objects of the last spectra scored indexed by
+     * spectrum index.
+     */
+    private final LruCache<Integer, MSnSpectrum> spectrumCache = new LruCache<Integer, MSnSpectrum>(SPECTRUM_CACHE_SIZE);
+    /**
+     * Cache for the specific annotation settings indexed by the properties
+     * they depend on.
+     */
+    private final HashMap<String, SpecificAnnotationSettings> specificAnnotationSettingsCache = new HashMap<String, SpecificAnnotationSettings>();
+    /**
+     * Builder for the keys of the specific annotation settings cache.
+     */
+    private final StringBuilder cacheKeyBuilder = new StringBuilder();
+    /**
+     * List used to sort the names of the modifications.
+     */
+    private final ArrayList<String> modificationNames = new ArrayList<String>(4);
+    /**
+     * The number of specific annotation settings found in the cache.
+     */
+    private long cacheHits = 0;
+    /**
+     * The number of specific annotation settings not found in the cache.
+     */
+    private long cacheMisses = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param psmScore the score to use
+     * @param identificationParameters the identification parameters
+     * @param spectrumStore the store containing the spectra
+     */
+    public PsmScorer(PsmScore psmScore, IdentificationParameters identificationParameters, SpectrumStore spectrumStore) {
+        this.psmScore = psmScore;
+        this.identificationParameters = identificationParameters;
+        this.spectrumStore = spectrumStore;
+
+        // Peaks filtered in the store should not be filtered again
+        AnnotationSettings originalAnnotationSettings = identificationParameters.getAnnotationPreferences();
+        if (spectrumStore.getIntensityLimit() > 0) {
+            annotationSettings = originalAnnotationSettings.clone();
+            annotationSettings.setIntensityLimit(0.0);
+        } else {
+            annotationSettings = originalAnnotationSettings;
+        }
+
+        switch (psmScore) {
+            case hyperscore:
+                hyperScoreEstimator = new HyperScore();
+                break;
+            case snrScore:
+                snrScoreEstimator = new SnrScore();
+                break;
+            case nativeHyperscore:
+                nativeHyperScoreEstimator = new NativeHyperScore(spectrumStore, annotationSettings.getFragmentIonAccuracy(), annotationSettings.isFragmentIonPpm());
+                break;
+            default:
+                throw new UnsupportedOperationException("Score " + psmScore + " not implemented.");
+        }
+    }
+
+    /**
+     * Returns the annotation settings specific to the given peptide and
+     * charge. Null if not needed by the score. The settings only depend on the
+     * charge, on the presence of residues yielding neutral losses, and on the
+     * modifications carried by the peptide, they are cached accordingly.
+     *
+     * @param peptide the peptide
+     * @param charge the precursor charge
+     *
+     * @return the annotation settings specific to the given peptide and
+     * charge
+     *
+     * @throws IOException exception thrown if an error occurred while reading
+     * a file
+     * @throws InterruptedException exception thrown if a threading error
+     * occurred
+     * @throws ClassNotFoundException exception thrown if an error occurred
+     * while casting an object
+     * @throws SQLException exception thrown if an error occurred while
+     * interacting with a database
+     * @throws MzMLUnmarshallerException exception thrown if an error occurred
+     * while reading an mzML file
+     */
+    public SpecificAnnotationSettings getSpecificAnnotationSettings(Peptide peptide, int charge) throws IOException, InterruptedException, ClassNotFoundException, SQLException, MzMLUnmarshallerException {
+        if (psmScore == PsmScore.nativeHyperscore) {
+            return null;
+        }
+        String key = getCacheKey(peptide, charge);
+        SpecificAnnotationSettings specificAnnotationSettings = specificAnnotationSettingsCache.get(key);
+        if (specificAnnotationSettings == null) {
+            cacheMisses++;
+            PeptideAssumption peptideAssumption = new PeptideAssumption(peptide, new Charge(Charge.PLUS, charge));
+            specificAnnotationSettings = annotationSettings.getSpecificAnnotationPreferences(null, peptideAssumption, identificationParameters.getSequenceMatchingPreferences(), identificationParameters.getPtmScoringPreferences().getSequenceMatchingPreferences());
+            specificAnnotationSettingsCache.put(key, specificAnnotationSettings);
+        } else {
+            cacheHits++;
+        }
+        return specificAnnotationSettings;
+    }
+
+    /**
+     * Returns the key of the specific annotation settings of the given
+     * peptide and charge in the cache.
+     *
+     * @param peptide the peptide
+     * @param charge the precursor charge
+     *
+     * @return the key of the specific annotation settings in the cache
+     */
+    private String getCacheKey(Peptide peptide, int charge) {
+
+        // Residues yielding water and ammonia losses
+        String sequence = peptide.getSequence();
+        boolean waterLoss = false;
+        boolean ammoniaLoss = false;
+        for (int i = 0; i < sequence.length() && !(waterLoss && ammoniaLoss); i++) {
+            switch (sequence.charAt(i)) {
+                case 'D':
+                case 'E':
+                case 'S':
+                case 'T':
+                    waterLoss = true;
+                    break;
+                case 'K':
+                case 'N':
+                case 'Q':
+                case 'R':
+                    ammoniaLoss = true;
+                    break;
+                default:
+                    break;
+            }
+        }
+        cacheKeyBuilder.setLength(0);
+        cacheKeyBuilder.append(charge).append('_').append(waterLoss ? '1' : '0').append(ammoniaLoss ? '1' : '0');
+
+        // Modifications
+        ArrayList<ModificationMatch> modificationMatches = peptide.getModificationMatches();
+        if (modificationMatches != null && !modificationMatches.isEmpty()) {
+            modificationNames.clear();
+            for (ModificationMatch modificationMatch : modificationMatches) {
+                String ptmName = modificationMatch.getTheoreticPtm();
+                if (!modificationNames.contains(ptmName)) {
+                    modificationNames.add(ptmName);
+                }
+            }
+            Collections.sort(modificationNames);
+            for (String ptmName : modificationNames) {
+                cacheKeyBuilder.append('_').append(ptmName);
+            }
+        }
+
+        return cacheKeyBuilder.toString();
+    }
+
+    /**
+     * Returns the number of specific annotation settings found in the cache.
+     *
+     * @return the number of specific annotation settings found in the cache
+     */
+    public long getCacheHits() {
+        return cacheHits;
+    }
+
+    /**
+     * Returns the number of specific annotation settings not found in the
+     * cache.
+     *
+     * @return the number of specific annotation settings not found in the
+     * cache
+     */
+    public long getCacheMisses() {
+        return cacheMisses;
+    }
+
+    /**
+     * Indicates whether the isoforms of a peptide can be scored
+     * incrementally using setIsoformPeptide and getIsoformScore.
+     *
+     * @return a boolean indicating whether the isoforms of a peptide can be
+     * scored incrementally
+     */
+    public boolean isIncremental() {
+        return psmScore == PsmScore.nativeHyperscore;
+    }
+
+    /**
+     * Sets the peptide whose isoforms will be scored incrementally against
+     * the given spectrum. Only for incremental scores. Must be called for
+     * every peptide, charge and spectrum before scoring its isoforms with
+     * getIsoformScore.
+     *
+     * @param peptide the peptide carrying its fixed modifications only
+     * @param charge the precursor charge
+     * @param spectrumIndex the index of the spectrum in the store
+     * @param modificationMasses the masses of the variable modifications
+     * indexed as in the isoforms
+     */
+    public void setIsoformPeptide(Peptide peptide, int charge, int spectrumIndex, double[] modificationMasses) {
+        nativeHyperScoreEstimator.setIsoformPeptide(peptide, charge, spectrumIndex, modificationMasses);
+    }
+
+    /**
+     * Returns the score of the given isoform of the peptide set with
+     * setIsoformPeptide. Consecutive isoforms differing by few sites are
+     * scored faster. The state of the previous isoform is kept by the scorer:
+     * all isoforms must be scored after setIsoformPeptide without other call
+     * to getScore or setIsoformPeptide in between. Zero if no fragment ion
+     * could be annotated.
+     *
+     * @param sites the sites of the variable modifications
+     * @param modifications the indexes of the variable modifications
+     * @param nModifications the number of variable modifications
+     *
+     * @return the score of the isoform
+     */
+    public double getIsoformScore(int[] sites, int[] modifications, int nModifications) {
+        return nativeHyperScoreEstimator.getIsoformScore(sites, modifications, nModifications);
+    }
+
+    /**
+     * Returns the score of the given peptide for the given spectrum. Zero if
+     * no fragment ion could be annotated.
+     *
+     * @param peptide the peptide
+     * @param charge the precursor charge
+     * @param spectrumIndex the index of the spectrum in the store
+     * @param specificAnnotationSettings the annotation settings specific to
+     * this peptide and charge as provided by getSpecificAnnotationSettings
+     *
+     * @return the score of the peptide spectrum match
+     *
+     * @throws InterruptedException exception thrown if a threading error
+     * occurred while annotating the spectrum
+     */
+    public double getScore(Peptide peptide, int charge, int spectrumIndex, SpecificAnnotationSettings specificAnnotationSettings) throws InterruptedException {
+
+        // The native scores work directly on the store
+        if (psmScore == PsmScore.nativeHyperscore) {
+            return nativeHyperScoreEstimator.getScore(peptide, charge, spectrumIndex);
+        }
+
+        // Get the spectrum, built by the store for the spectra not in cache
+        MSnSpectrum spectrum = spectrumCache.get(spectrumIndex);
+        if (spectrum == null) {
+            spectrum = spectrumStore.getSpectrum(spectrumIndex);
+            spectrumCache.put(spectrumIndex, spectrum);
+        }
+
+        // Get the spectrum annotation
+        ArrayList<IonMatch> ionMatches = peptideSpectrumAnnotator.getSpectrumAnnotation(annotationSettings, specificAnnotationSettings, spectrum, peptide);
+
+        // Retain only matches yielding fragment ions
+        if (ionMatches.isEmpty()) {
+            return 0.0;
+        }
+
+        // Get the score
+        switch (psmScore) {
+            case hyperscore:
+                return hyperScoreEstimator.getScore(peptide, spectrum, annotationSettings, specificAnnotationSettings, ionMatches);
+            case snrScore:
+                return snrScoreEstimator.getScore(peptide, spectrum, annotationSettings, specificAnnotationSettings, ionMatches);
+            default:
+                throw new UnsupportedOperationException("Score " + psmScore + " not implemented.");
+        }
+    }
+}
@@ -10,6 +10,7 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import no.uib.onyase.applications.engine.model.Psm;
+import no.uib.onyase.applications.engine.model.SpectrumPsms;
 import no.uib.onyase.utils.TitlesIterator;
 import org.apache.commons.math.util.FastMath;
 import no.uib.onyase.applications.engine.modules.scoring.EValueEstimator;
@@ -24,7 +25,7 @@ public class HyperscoreEValueEstimator implements EValueEstimator {
     /**
      * Map of the PSMs to score
      */
-    private HashMap<String, HashMap<String, Psm>> PsmsMap;
+    private HashMap<String, SpectrumPsms> PsmsMap;
     /**
      * A handler for the exceptions.
      */
@@ -57,6 +58,8 @@ public class HyperscoreEValueEstimator implements EValueEstimator {
 
     /**
      * Estimates the e-values of the PSMs and sets -log10(e-value) as score.
+     * If not all PSMs were retained, the e-values are estimated from the
+     * histogram of the scores of all PSMs.
      *
      * @param spectrumFileName the name of the spectrum file scored
      * @param psmsMap map of the PSMs for every spectrum
@@ -65,7 +68,7 @@ public class HyperscoreEValueEstimator implements EValueEstimator {
      * @throws InterruptedException exception thrown if a threading issue
      * occurs.
      */
-    public void estimateInterpolationCoefficients(String spectrumFileName, HashMap<String, HashMap<String, Psm>> psmsMap, int nThreads) throws InterruptedException {
+    public void estimateInterpolationCoefficients(String spectrumFileName, HashMap<String, SpectrumPsms> psmsMap, int nThreads) throws InterruptedException {
 
         this.PsmsMap = psmsMap;
         waitingHandler.setSecondaryProgressCounterIndeterminate(false);
@@ -115,7 +118,7 @@ public class HyperscoreEValueEstimator implements EValueEstimator {
 
         // If null, return the number of hits
         if (score == 0.0) {
-            return (double) PsmsMap.get(spectrumTitle).size();
+            return (double) PsmsMap.get(spectrumTitle).getNPsms();
         }
 
         // Get interpolation values
@@ -169,18 +172,23 @@ public class HyperscoreEValueEstimator implements EValueEstimator {
 
                 String spectrumTitle;
                 while ((spectrumTitle = titlesIterator.next()) != null) {
-                    HashMap<String, Psm> spectrumPsms = PsmsMap.get(spectrumTitle);
-                    if (spectrumPsms.size() > 1) {
-                        int[] scores = new int[spectrumPsms.size()];
-                        int i = 0;
-                        for (Psm psm : spectrumPsms.values()) {
-                            double score = psm.getScore();
-                            int scoreValue = (int) score;
-                            scores[i] = scoreValue;
-                            i++;
+                    SpectrumPsms spectrumPsms = PsmsMap.get(spectrumTitle);
+                    if (spectrumPsms.getNPsms() > 1) {
+                        double[] ab;
+                        if (spectrumPsms.isComplete()) {
+                            int[] scores = new int[spectrumPsms.getNPsms()];
+                            int i = 0;
+                            for (Psm psm : spectrumPsms.getPsms()) {
+                                double score = psm.getScore();
+                                int scoreValue = (int) score;
+                                scores[i] = scoreValue;
+                                i++;
+                            }
+                            ab = hyperScore.getInterpolationValues(scores, false);
+                        } else {
+                            ab = hyperScore.getInterpolationValues(spectrumPsms.getScoreHistogram(), false);
                         }
-                        threadHitsMap.put(spectrumTitle, i);
-                        double[] ab = hyperScore.getInterpolationValues(scores, false);
+                        threadHitsMap.put(spectrumTitle, spectrumPsms.getNPsms());
                         if (ab != null) {
                             threadInterpolationValuesMap.put(spectrumTitle, ab);
                         }
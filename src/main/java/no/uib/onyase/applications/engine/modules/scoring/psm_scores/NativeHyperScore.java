@@ -0,0 +1,466 @@
+package no.uib.onyase.applications.engine.modules.scoring.psm_scores;
+
+import com.compomics.util.experiment.biology.Peptide;
+import java.util.Arrays;
+import no.uib.onyase.applications.engine.modules.fragmentation.FragmentLadder;
+import no.uib.onyase.applications.engine.modules.spectrum_store.SpectrumStore;
+
+/**
+ * Implementation of the hyperscore working on the primitive arrays of a
+ * spectrum store. The b and y ions of the peptide are matched against the
+ * peaks of the spectrum by merge-join and the score is computed from a
+ * precomputed table of log factorials. The buffers are reused between
+ * peptides and no object is allocated per peptide. The isoforms of a peptide
+ * can be scored incrementally: only the fragment ions located between the
+ * sites that changed since the previous isoform are matched again. An
+ * instance should be used by a single thread.
+ *
+ * @author Marc Vaudel
+ */
+public class NativeHyperScore {
+
+    /**
+     * The size of the log factorial table.
+     */
+    private static final int LOG_FACTORIAL_TABLE_SIZE = 1024;
+    /**
+     * Table of the natural logarithm of the factorial of every integer.
+     */
+    private static final double[] LOG_FACTORIALS = getLogFactorials();
+    /**
+     * The fragment ion accuracy.
+     */
+    private final double fragmentAccuracy;
+    /**
+     * Boolean indicating whether the fragment ion accuracy is in ppm.
+     */
+    private final boolean ppm;
+    /**
+     * The store containing the spectra.
+     */
+    private final SpectrumStore spectrumStore;
+    /**
+     * The ladder of the fragment ions.
+     */
+    private final FragmentLadder fragmentLadder = new FragmentLadder();
+    /**
+     * The stamp of the last scoring where every peak of the spectrum was
+     * matched.
+     */
+    private int[] peakStamps = new int[1024];
+    /**
+     * The stamp of the current scoring.
+     */
+    private int stamp = 0;
+    /**
+     * The intensity of the peaks matched during the current scoring.
+     */
+    private double matchedIntensity;
+    /**
+     * The mass of the residues of the unmodified isoform.
+     */
+    private double[] isoformResidueMasses = new double[64];
+    /**
+     * The mass added by the variable modifications to every residue of the
+     * current isoform.
+     */
+    private double[] isoformDeltas = new double[64];
+    /**
+     * Buffer for the mass added by the variable modifications to every
+     * residue of the next isoform.
+     */
+    private double[] newIsoformDeltas = new double[64];
+    /**
+     * The m/z of the b ions of the current isoform, b1 at index 0.
+     */
+    private double[] isoformBIons = new double[64];
+    /**
+     * The m/z of the y ions of the current isoform, y1 at index 0.
+     */
+    private double[] isoformYIons = new double[64];
+    /**
+     * The index of the first peak matched by every ion of the current
+     * isoform, by ion type, fragment charge and ion number.
+     */
+    private int[] ionMatchStarts = new int[256];
+    /**
+     * The index after the last peak matched by every ion of the current
+     * isoform, by ion type, fragment charge and ion number.
+     */
+    private int[] ionMatchEnds = new int[256];
+    /**
+     * The number of ions of the current isoform matching every peak.
+     */
+    private int[] peakCounts = new int[1024];
+    /**
+     * The masses of the variable modifications indexed as in the isoforms.
+     */
+    private double[] modificationMasses;
+    /**
+     * The length of the isoforms.
+     */
+    private int isoformLength;
+    /**
+     * The sum of the residue and modification masses of the isoforms.
+     */
+    private double isoformMass;
+    /**
+     * The maximal fragment charge considered for the isoforms.
+     */
+    private int isoformMaxFragmentCharge;
+    /**
+     * The index of the first peak of the spectrum of the isoforms.
+     */
+    private int isoformPeakStart;
+    /**
+     * The index after the last peak of the spectrum of the isoforms.
+     */
+    private int isoformPeakEnd;
+    /**
+     * Boolean indicating whether an isoform was scored since the peptide was
+     * set.
+     */
+    private boolean isoformScored;
+    /**
+     * The number of b ions of the current isoform matched.
+     */
+    private int isoformNB;
+    /**
+     * The number of y ions of the current isoform matched.
+     */
+    private int isoformNY;
+
+    /**
+     * Constructor.
+     *
+     * @param spectrumStore the store containing the spectra
+     * @param fragmentAccuracy the fragment ion accuracy
+     * @param ppm boolean indicating whether the fragment ion accuracy is in ppm
+     */
+    public NativeHyperScore(SpectrumStore spectrumStore, double fragmentAccuracy, boolean ppm) {
+        this.spectrumStore = spectrumStore;
+        this.fragmentAccuracy = fragmentAccuracy;
+        this.ppm = ppm;
+    }
+
+    /**
+     * Returns the table of the natural logarithm of the factorial of every
+     * integer.
+     *
+     * @return the table of log factorials
+     */
+    private static double[] getLogFactorials() {
+        double[] result = new double[LOG_FACTORIAL_TABLE_SIZE];
+        for (int i = 2; i < LOG_FACTORIAL_TABLE_SIZE; i++) {
+            result[i] = result[i - 1] + Math.log(i);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the natural logarithm of the factorial of the given integer.
+     *
+     * @param n the integer
+     *
+     * @return the natural logarithm of the factorial
+     */
+    public static double getLogFactorial(int n) {
+        return LOG_FACTORIALS[Math.min(n, LOG_FACTORIAL_TABLE_SIZE - 1)];
+    }
+
+    /**
+     * Returns the hyperscore of the given peptide for the given spectrum.
+     * Fragment ions are considered at charges from one to the precursor
+     * charge minus one. Zero if no ion was matched.
+     *
+     * @param peptide the peptide
+     * @param charge the precursor charge
+     * @param spectrumIndex the index of the spectrum in the store
+     *
+     * @return the hyperscore
+     */
+    public double getScore(Peptide peptide, int charge, int spectrumIndex) {
+
+        int peakStart = spectrumStore.getPeakStart(spectrumIndex);
+        int peakEnd = spectrumStore.getPeakEnd(spectrumIndex);
+        if (peakEnd == peakStart) {
+            return 0.0;
+        }
+
+        // Reset the stamps
+        int nPeaks = peakEnd - peakStart;
+        if (nPeaks > peakStamps.length) {
+            peakStamps = new int[Math.max(nPeaks, 2 * peakStamps.length)];
+            stamp = 0;
+        }
+        if (stamp == Integer.MAX_VALUE) {
+            Arrays.fill(peakStamps, 0);
+            stamp = 0;
+        }
+        stamp++;
+        matchedIntensity = 0.0;
+
+        // Match the ladders
+        fragmentLadder.setPeptide(peptide);
+        int nFragments = fragmentLadder.getNFragments();
+        int maxFragmentCharge = Math.max(1, charge - 1);
+        int nB = 0;
+        int nY = 0;
+        for (int fragmentCharge = 1; fragmentCharge <= maxFragmentCharge; fragmentCharge++) {
+            nB += matchLadder(fragmentLadder.getBIons(), nFragments, fragmentCharge, peakStart, peakEnd);
+            nY += matchLadder(fragmentLadder.getYIons(), nFragments, fragmentCharge, peakStart, peakEnd);
+        }
+        if (nB == 0 && nY == 0) {
+            return 0.0;
+        }
+
+        return Math.exp(getLogFactorial(nB) + getLogFactorial(nY) + Math.log(matchedIntensity));
+    }
+
+    /**
+     * Matches a ladder of singly charged fragment ions at the given charge
+     * against the peaks of the spectrum and returns the number of ions
+     * matched. The intensity of the peaks matched for the first time is added
+     * to the matched intensity.
+     *
+     * @param ladder the m/z of the singly charged ions in ascending order
+     * @param nFragments the number of ions
+     * @param fragmentCharge the charge of the ions
+     * @param peakStart the index of the first peak of the spectrum
+     * @param peakEnd the index after the last peak of the spectrum
+     *
+     * @return the number of ions matched
+     */
+    private int matchLadder(double[] ladder, int nFragments, int fragmentCharge, int peakStart, int peakEnd) {
+
+        double[] mzs = spectrumStore.getMzs();
+        float[] intensities = spectrumStore.getIntensities();
+        double chargeContribution = (fragmentCharge - 1) * FragmentLadder.PROTON_MASS;
+        int nMatched = 0;
+        int peakIndex = peakStart;
+
+        for (int i = 0; i < nFragments && peakIndex < peakEnd; i++) {
+
+            double ionMz = (ladder[i] + chargeContribution) / fragmentCharge;
+            double tolerance = ppm ? ionMz * fragmentAccuracy / 1000000 : fragmentAccuracy;
+            double mzLow = ionMz - tolerance;
+            double mzHigh = ionMz + tolerance;
+
+            while (peakIndex < peakEnd && mzs[peakIndex] < mzLow) {
+                peakIndex++;
+            }
+
+            boolean matched = false;
+            for (int j = peakIndex; j < peakEnd && mzs[j] <= mzHigh; j++) {
+                matched = true;
+                int stampIndex = j - peakStart;
+                if (peakStamps[stampIndex] != stamp) {
+                    peakStamps[stampIndex] = stamp;
+                    matchedIntensity += intensities[j];
+                }
+            }
+            if (matched) {
+                nMatched++;
+            }
+        }
+
+        return nMatched;
+    }
+
+    /**
+     * Sets the peptide whose isoforms will be scored incrementally against
+     * the given spectrum. Must be called for every peptide, charge and
+     * spectrum before scoring its isoforms with getIsoformScore.
+     *
+     * @param peptide the peptide carrying its fixed modifications only
+     * @param charge the precursor charge
+     * @param spectrumIndex the index of the spectrum in the store
+     * @param modificationMasses the masses of the variable modifications
+     * indexed as in the isoforms
+     */
+    public void setIsoformPeptide(Peptide peptide, int charge, int spectrumIndex, double[] modificationMasses) {
+
+        this.modificationMasses = modificationMasses;
+        isoformPeakStart = spectrumStore.getPeakStart(spectrumIndex);
+        isoformPeakEnd = spectrumStore.getPeakEnd(spectrumIndex);
+        isoformMaxFragmentCharge = Math.max(1, charge - 1);
+        isoformScored = false;
+
+        // Residue masses
+        fragmentLadder.setPeptide(peptide);
+        isoformLength = fragmentLadder.getLength();
+        if (isoformLength > isoformResidueMasses.length) {
+            int newLength = Math.max(isoformLength, 2 * isoformResidueMasses.length);
+            isoformResidueMasses = new double[newLength];
+            isoformDeltas = new double[newLength];
+            newIsoformDeltas = new double[newLength];
+            isoformBIons = new double[newLength];
+            isoformYIons = new double[newLength];
+        }
+        System.arraycopy(fragmentLadder.getResidueMasses(), 0, isoformResidueMasses, 0, isoformLength);
+
+        // Ion and peak buffers
+        int nIons = 2 * isoformMaxFragmentCharge * fragmentLadder.getNFragments();
+        if (nIons > ionMatchStarts.length) {
+            int newLength = Math.max(nIons, 2 * ionMatchStarts.length);
+            ionMatchStarts = new int[newLength];
+            ionMatchEnds = new int[newLength];
+        }
+        int nPeaks = isoformPeakEnd - isoformPeakStart;
+        if (nPeaks > peakCounts.length) {
+            peakCounts = new int[Math.max(nPeaks, 2 * peakCounts.length)];
+        }
+    }
+
+    /**
+     * Returns the hyperscore of the given isoform of the peptide set with
+     * setIsoformPeptide. Only the ions affected by the sites that changed
+     * since the previous isoform are matched again: the b ions from the first
+     * changed site, up to the last changed site if the mass of the isoform is
+     * unchanged, and the matching y ions, all y ions otherwise. The ions
+     * matched are kept between calls, getScore must therefore not be called
+     * between setIsoformPeptide and the scoring of the last isoform. Zero if
+     * no ion was matched.
+     *
+     * @param sites the sites of the variable modifications
+     * @param modifications the indexes of the variable modifications
+     * @param nModifications the number of variable modifications
+     *
+     * @return the hyperscore of the isoform
+     */
+    public double getIsoformScore(int[] sites, int[] modifications, int nModifications) {
+
+        if (isoformPeakEnd == isoformPeakStart || isoformLength < 2) {
+            return 0.0;
+        }
+
+        // Get the mass added to every residue
+        Arrays.fill(newIsoformDeltas, 0, isoformLength, 0.0);
+        for (int i = 0; i < nModifications; i++) {
+            newIsoformDeltas[sites[i] - 1] += modificationMasses[modifications[i]];
+        }
+
+        // Get the range of b ions affected
+        int nFragments = isoformLength - 1;
+        int firstIon, lastIon;
+        boolean massChanged;
+        if (!isoformScored) {
+            Arrays.fill(ionMatchStarts, 0, 2 * isoformMaxFragmentCharge * nFragments, 0);
+            Arrays.fill(ionMatchEnds, 0, 2 * isoformMaxFragmentCharge * nFragments, 0);
+            Arrays.fill(peakCounts, 0, isoformPeakEnd - isoformPeakStart, 0);
+            matchedIntensity = 0.0;
+            isoformNB = 0;
+            isoformNY = 0;
+            isoformMass = 0.0;
+            for (int i = 0; i < isoformLength; i++) {
+                isoformMass += isoformResidueMasses[i] + newIsoformDeltas[i];
+            }
+            firstIon = 0;
+            lastIon = nFragments - 1;
+            massChanged = true;
+            isoformScored = true;
+        } else {
+            firstIon = -1;
+            lastIon = -1;
+            double newIsoformMass = 0.0;
+            for (int i = 0; i < isoformLength; i++) {
+                if (newIsoformDeltas[i] != isoformDeltas[i]) {
+                    if (firstIon == -1) {
+                        firstIon = i;
+                    }
+                    lastIon = i - 1;
+                }
+                newIsoformMass += isoformResidueMasses[i] + newIsoformDeltas[i];
+            }
+
+            // If the mass changed, all b ions after the first changed site and all y ions are affected
+            massChanged = newIsoformMass != isoformMass;
+            if (massChanged) {
+                isoformMass = newIsoformMass;
+                lastIon = nFragments - 1;
+            }
+        }
+        double[] swap = isoformDeltas;
+        isoformDeltas = newIsoformDeltas;
+        newIsoformDeltas = swap;
+
+        // Update the ions
+        int firstYIon = massChanged && firstIon >= 0 ? 0 : firstIon;
+        for (int i = firstYIon; i <= lastIon && i >= 0; i++) {
+            boolean bChanged = i >= firstIon;
+            if (bChanged) {
+                double previousB = i == 0 ? FragmentLadder.PROTON_MASS : isoformBIons[i - 1];
+                isoformBIons[i] = previousB + isoformResidueMasses[i] + isoformDeltas[i];
+            }
+            int j = nFragments - 1 - i;
+            isoformYIons[j] = 2 * FragmentLadder.PROTON_MASS + FragmentLadder.WATER_MASS + isoformMass - isoformBIons[i];
+            for (int fragmentCharge = 1; fragmentCharge <= isoformMaxFragmentCharge; fragmentCharge++) {
+                int offset = 2 * (fragmentCharge - 1) * nFragments;
+                if (bChanged) {
+                    isoformNB += matchIon(offset + i, isoformBIons[i], fragmentCharge);
+                }
+                isoformNY += matchIon(offset + nFragments + j, isoformYIons[j], fragmentCharge);
+            }
+        }
+
+        if (isoformNB == 0 && isoformNY == 0) {
+            return 0.0;
+        }
+
+        return Math.exp(getLogFactorial(isoformNB) + getLogFactorial(isoformNY) + Math.log(matchedIntensity));
+    }
+
+    /**
+     * Matches again an ion of the current isoform at a new m/z and updates
+     * the peak counts and matched intensity.
+     *
+     * @param ionIndex the index of the ion in the match buffers
+     * @param singlyChargedMz the m/z of the singly charged ion
+     * @param fragmentCharge the charge of the ion
+     *
+     * @return the change in the number of ions matched: -1, 0 or 1
+     */
+    private int matchIon(int ionIndex, double singlyChargedMz, int fragmentCharge) {
+
+        double[] mzs = spectrumStore.getMzs();
+        float[] intensities = spectrumStore.getIntensities();
+
+        // Remove the previous match
+        int previousStart = ionMatchStarts[ionIndex];
+        int previousEnd = ionMatchEnds[ionIndex];
+        for (int j = previousStart; j < previousEnd; j++) {
+            int countIndex = j - isoformPeakStart;
+            if (--peakCounts[countIndex] == 0) {
+                matchedIntensity -= intensities[j];
+            }
+        }
+
+        // Find the new match
+        double ionMz = (singlyChargedMz + (fragmentCharge - 1) * FragmentLadder.PROTON_MASS) / fragmentCharge;
+        double tolerance = ppm ? ionMz * fragmentAccuracy / 1000000 : fragmentAccuracy;
+        double mzLow = ionMz - tolerance;
+        double mzHigh = ionMz + tolerance;
+        int low = isoformPeakStart;
+        int high = isoformPeakEnd;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (mzs[middle] < mzLow) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        int end = low;
+        while (end < isoformPeakEnd && mzs[end] <= mzHigh) {
+            int countIndex = end - isoformPeakStart;
+            if (peakCounts[countIndex]++ == 0) {
+                matchedIntensity += intensities[end];
+            }
+            end++;
+        }
+        ionMatchStarts[ionIndex] = low;
+        ionMatchEnds[ionIndex] = end;
+
+        return (end > low ? 1 : 0) - (previousEnd > previousStart ? 1 : 0);
+    }
+}
@@ -0,0 +1,220 @@
+package no.uib.onyase.applications.engine.modules.spectrum_store;
+
+import com.compomics.util.experiment.massspectrometry.MSnSpectrum;
+import com.compomics.util.experiment.massspectrometry.Peak;
+import com.compomics.util.experiment.massspectrometry.Precursor;
+import java.util.HashMap;
+
+/**
+ * Store for the spectra of a file indexed by integer. The peaks of all
+ * spectra are packed in primitive arrays sorted by m/z for every spectrum.
+ * Peaks below the intensity limit are removed upon building. The spectrum
+ * objects needed by the compomics annotation are built upon request and not
+ * retained by the store, users should cache them as needed.
+ *
+ * @author Marc Vaudel
+ */
+public class SpectrumStore {
+
+    /**
+     * The name of the spectrum file.
+     */
+    private final String spectrumFileName;
+    /**
+     * The titles of the spectra.
+     */
+    private final String[] titles;
+    /**
+     * The index of the spectra indexed by title.
+     */
+    private final HashMap<String, Integer> indexes;
+    /**
+     * The precursors of the spectra.
+     */
+    private final Precursor[] precursors;
+    /**
+     * The index of the first peak of every spectrum in the peaks arrays, the
+     * last value is the total number of peaks.
+     */
+    private final int[] peakStarts;
+    /**
+     * The m/z of the peaks.
+     */
+    private final double[] mzs;
+    /**
+     * The intensities of the peaks.
+     */
+    private final float[] intensities;
+    /**
+     * The intensity limit used to filter the peaks as share of the
+     * intensities of every spectrum.
+     */
+    private final double intensityLimit;
+
+    /**
+     * Constructor.
+     *
+     * @param spectrumFileName the name of the spectrum file
+     * @param titles the titles of the spectra
+     * @param indexes the index of the spectra indexed by title
+     * @param precursors the precursors of the spectra
+     * @param peakStarts the index of the first peak of every spectrum in the
+     * peaks arrays
+     * @param mzs the m/z of the peaks
+     * @param intensities the intensities of the peaks
+     * @param intensityLimit the intensity limit used to filter the peaks
+     */
+    public SpectrumStore(String spectrumFileName, String[] titles, HashMap<String, Integer> indexes, Precursor[] precursors, int[] peakStarts, double[] mzs, float[] intensities, double intensityLimit) {
+        this.spectrumFileName = spectrumFileName;
+        this.titles = titles;
+        this.indexes = indexes;
+        this.precursors = precursors;
+        this.peakStarts = peakStarts;
+        this.mzs = mzs;
+        this.intensities = intensities;
+        this.intensityLimit = intensityLimit;
+    }
+
+    /**
+     * Returns the name of the spectrum file.
+     *
+     * @return the name of the spectrum file
+     */
+    public String getSpectrumFileName() {
+        return spectrumFileName;
+    }
+
+    /**
+     * Returns the number of spectra.
+     *
+     * @return the number of spectra
+     */
+    public int size() {
+        return titles.length;
+    }
+
+    /**
+     * Returns the index of the spectrum with the given title, null if not
+     * found.
+     *
+     * @param spectrumTitle the title of the spectrum
+     *
+     * @return the index of the spectrum
+     */
+    public Integer getIndex(String spectrumTitle) {
+        return indexes.get(spectrumTitle);
+    }
+
+    /**
+     * Returns the title of the spectrum at the given index.
+     *
+     * @param i the index of the spectrum
+     *
+     * @return the title of the spectrum
+     */
+    public String getTitle(int i) {
+        return titles[i];
+    }
+
+    /**
+     * Returns the precursor of the spectrum at the given index.
+     *
+     * @param i the index of the spectrum
+     *
+     * @return the precursor of the spectrum
+     */
+    public Precursor getPrecursor(int i) {
+        return precursors[i];
+    }
+
+    /**
+     * Returns the precursor m/z of the spectrum at the given index.
+     *
+     * @param i the index of the spectrum
+     *
+     * @return the precursor m/z of the spectrum
+     */
+    public double getPrecursorMz(int i) {
+        return precursors[i].getMz();
+    }
+
+    /**
+     * Returns the index of the first peak of the spectrum in the peak arrays.
+     *
+     * @param i the index of the spectrum
+     *
+     * @return the index of the first peak of the spectrum
+     */
+    public int getPeakStart(int i) {
+        return peakStarts[i];
+    }
+
+    /**
+     * Returns the index after the last peak of the spectrum in the peak
+     * arrays.
+     *
+     * @param i the index of the spectrum
+     *
+     * @return the index after the last peak of the spectrum
+     */
+    public int getPeakEnd(int i) {
+        return peakStarts[i + 1];
+    }
+
+    /**
+     * Returns the number of peaks of the spectrum.
+     *
+     * @param i the index of the spectrum
+     *
+     * @return the number of peaks of the spectrum
+     */
+    public int getNPeaks(int i) {
+        return peakStarts[i + 1] - peakStarts[i];
+    }
+
+    /**
+     * Returns the m/z of the peaks of all spectra.
+     *
+     * @return the m/z of the peaks of all spectra
+     */
+    public double[] getMzs() {
+        return mzs;
+    }
+
+    /**
+     * Returns the intensities of the peaks of all spectra.
+     *
+     * @return the intensities of the peaks of all spectra
+     */
+    public float[] getIntensities() {
+        return intensities;
+    }
+
+    /**
+     * Returns the intensity limit used to filter the peaks as share of the
+     * intensities of every spectrum.
+     *
+     * @return the intensity limit used to filter the peaks
+     */
+    public double getIntensityLimit() {
+        return intensityLimit;
+    }
+
+    /**
+     * Returns the spectrum at the given index as a spectrum object containing
+     * the peaks of the store. A new object is built at every call.
+     *
+     * @param i the index of the spectrum
+     *
+     * @return the spectrum
+     */
+    public MSnSpectrum getSpectrum(int i) {
+        int start = peakStarts[i];
+        int end = peakStarts[i + 1];
+        HashMap<Double, Peak> peakMap = new HashMap<Double, Peak>(end - start);
+        for (int j = start; j < end; j++) {
+            peakMap.put(mzs[j], new Peak(mzs[j], intensities[j]));
+        }
+        return new MSnSpectrum(2, precursors[i], titles[i], peakMap, spectrumFileName);
+    }
+}
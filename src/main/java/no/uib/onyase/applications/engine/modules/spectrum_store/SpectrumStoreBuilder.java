@@ -0,0 +1,248 @@
+package no.uib.onyase.applications.engine.modules.spectrum_store;
+
+import com.compomics.util.exceptions.ExceptionHandler;
+import com.compomics.util.experiment.massspectrometry.MSnSpectrum;
+import com.compomics.util.experiment.massspectrometry.Peak;
+import com.compomics.util.experiment.massspectrometry.Precursor;
+import com.compomics.util.experiment.massspectrometry.SpectrumFactory;
+import com.compomics.util.math.BasicMathFunctions;
+import com.compomics.util.waiting.WaitingHandler;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import no.uib.onyase.utils.SortingUtils;
+import no.uib.onyase.utils.TitlesIterator;
+
+/**
+ * This class loads the spectra of a file from the spectrum factory in a
+ * spectrum store.
+ *
+ * @author Marc Vaudel
+ */
+public class SpectrumStoreBuilder {
+
+    /**
+     * The spectrum factory.
+     */
+    private SpectrumFactory spectrumFactory = SpectrumFactory.getInstance();
+    /**
+     * A handler for the exceptions.
+     */
+    private ExceptionHandler exceptionHandler;
+    /**
+     * A waiting handler providing feedback to the user and allowing canceling
+     * the process.
+     */
+    private WaitingHandler waitingHandler;
+
+    /**
+     * Constructor.
+     *
+     * @param waitingHandler a waiting handler providing feedback to the user
+     * and allowing canceling the process
+     * @param exceptionHandler a handler for the exceptions
+     */
+    public SpectrumStoreBuilder(WaitingHandler waitingHandler, ExceptionHandler exceptionHandler) {
+        this.exceptionHandler = exceptionHandler;
+        this.waitingHandler = waitingHandler;
+    }
+
+    /**
+     * Loads the spectra of the given file in a spectrum store. Peaks with an
+     * intensity lower than the given share of the intensities of their
+     * spectrum are removed.
+     *
+     * @param spectrumFileName the name of the spectrum file
+     * @param intensityLimit the intensity limit as share of the intensities
+     * of every spectrum, 0 to keep all peaks
+     * @param nThreads the number of threads to use
+     *
+     * @return the spectrum store
+     *
+     * @throws InterruptedException exception thrown if a threading issue
+     * occurs
+     */
+    public SpectrumStore buildStore(String spectrumFileName, double intensityLimit, int nThreads) throws InterruptedException {
+
+        ArrayList<String> spectrumTitles = spectrumFactory.getSpectrumTitles(spectrumFileName);
+        int nSpectra = spectrumTitles.size();
+        String[] titles = spectrumTitles.toArray(new String[nSpectra]);
+        HashMap<String, Integer> indexes = new HashMap<String, Integer>(nSpectra);
+        for (int i = 0; i < nSpectra; i++) {
+            indexes.put(titles[i], i);
+        }
+        Precursor[] precursors = new Precursor[nSpectra];
+        double[][] spectraMzs = new double[nSpectra][];
+        float[][] spectraIntensities = new float[nSpectra][];
+
+        // Set progress counters
+        waitingHandler.setSecondaryProgressCounterIndeterminate(false);
+        waitingHandler.setMaxSecondaryProgressCounter(nSpectra);
+
+        // Load the spectra
+        TitlesIterator titlesIterator = new TitlesIterator(spectrumTitles);
+        ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+        for (int i = 0; i < nThreads; i++) {
+            SpectrumProcessor spectrumProcessor = new SpectrumProcessor(titlesIterator, spectrumFileName, indexes, intensityLimit, precursors, spectraMzs, spectraIntensities);
+            pool.submit(spectrumProcessor);
+        }
+        pool.shutdown();
+        if (!pool.awaitTermination(Integer.MAX_VALUE, TimeUnit.DAYS)) {
+            waitingHandler.appendReport("Loading spectra timed out.", true, true);
+        }
+        waitingHandler.setSecondaryProgressCounterIndeterminate(true);
+
+        // Pack the peaks
+        int[] peakStarts = new int[nSpectra + 1];
+        long nPeaks = 0;
+        for (int i = 0; i < nSpectra; i++) {
+            peakStarts[i] = (int) nPeaks;
+            if (spectraMzs[i] != null) {
+                nPeaks += spectraMzs[i].length;
+            }
+            if (nPeaks > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Too many peaks to store.");
+            }
+        }
+        peakStarts[nSpectra] = (int) nPeaks;
+        double[] mzs = new double[(int) nPeaks];
+        float[] intensities = new float[(int) nPeaks];
+        for (int i = 0; i < nSpectra; i++) {
+            if (spectraMzs[i] != null) {
+                System.arraycopy(spectraMzs[i], 0, mzs, peakStarts[i], spectraMzs[i].length);
+                System.arraycopy(spectraIntensities[i], 0, intensities, peakStarts[i], spectraIntensities[i].length);
+                spectraMzs[i] = null;
+                spectraIntensities[i] = null;
+            }
+        }
+
+        return new SpectrumStore(spectrumFileName, titles, indexes, precursors, peakStarts, mzs, intensities, intensityLimit);
+    }
+
+    /**
+     * Private runnable to load and filter spectra.
+     */
+    private class SpectrumProcessor implements Runnable {
+
+        /**
+         * Iterator for the spectrum titles.
+         */
+        private final TitlesIterator titlesIterator;
+        /**
+         * The name of the spectrum file.
+         */
+        private final String spectrumFileName;
+        /**
+         * The index of the spectra indexed by title.
+         */
+        private final HashMap<String, Integer> indexes;
+        /**
+         * The intensity limit.
+         */
+        private final double intensityLimit;
+        /**
+         * The precursors of the spectra.
+         */
+        private final Precursor[] precursors;
+        /**
+         * The m/z of the peaks of every spectrum.
+         */
+        private final double[][] spectraMzs;
+        /**
+         * The intensities of the peaks of every spectrum.
+         */
+        private final float[][] spectraIntensities;
+
+        /**
+         * Constructor.
+         *
+         * @param titlesIterator an iterator for the spectra to process
+         * @param spectrumFileName the name of the spectrum file
+         * @param indexes the index of the spectra indexed by title
+         * @param intensityLimit the intensity limit
+         * @param precursors the precursors of the spectra
+         * @param spectraMzs the m/z of the peaks of every spectrum
+         * @param spectraIntensities the intensities of the peaks of every
+         * spectrum
+         */
+        public SpectrumProcessor(TitlesIterator titlesIterator, String spectrumFileName, HashMap<String, Integer> indexes, double intensityLimit, Precursor[] precursors, double[][] spectraMzs, float[][] spectraIntensities) {
+            this.titlesIterator = titlesIterator;
+            this.spectrumFileName = spectrumFileName;
+            this.indexes = indexes;
+            this.intensityLimit = intensityLimit;
+            this.precursors = precursors;
+            this.spectraMzs = spectraMzs;
+            this.spectraIntensities = spectraIntensities;
+        }
+
+        @Override
+        public void run() {
+
+            try {
+
+                String spectrumTitle;
+                while ((spectrumTitle = titlesIterator.next()) != null) {
+
+                    int index = indexes.get(spectrumTitle);
+                    MSnSpectrum spectrum = (MSnSpectrum) spectrumFactory.getSpectrum(spectrumFileName, spectrumTitle);
+                    precursors[index] = spectrum.getPrecursor();
+
+                    // Get the peaks
+                    Collection<Peak> peaks = spectrum.getPeakList();
+                    int nPeaks = peaks.size();
+                    double[] mzs = new double[nPeaks];
+                    double[] intensities = new double[nPeaks];
+                    int i = 0;
+                    for (Peak peak : peaks) {
+                        mzs[i] = peak.mz;
+                        intensities[i] = peak.intensity;
+                        i++;
+                    }
+
+                    // Get the intensity threshold
+                    double threshold = 0.0;
+                    if (intensityLimit > 0 && nPeaks > 0) {
+                        threshold = BasicMathFunctions.percentile(intensities.clone(), intensityLimit);
+                    }
+
+                    // Store the peaks above the threshold sorted by m/z
+                    int[] order = SortingUtils.getOrder(mzs, nPeaks);
+                    int nRetained = 0;
+                    for (int j = 0; j < nPeaks; j++) {
+                        if (intensities[j] >= threshold) {
+                            nRetained++;
+                        }
+                    }
+                    double[] retainedMzs = new double[nRetained];
+                    float[] retainedIntensities = new float[nRetained];
+                    int k = 0;
+                    for (int j = 0; j < nPeaks; j++) {
+                        int peakIndex = order[j];
+                        double intensity = intensities[peakIndex];
+                        if (intensity >= threshold) {
+                            retainedMzs[k] = mzs[peakIndex];
+                            retainedIntensities[k] = (float) intensity;
+                            k++;
+                        }
+                    }
+                    spectraMzs[index] = retainedMzs;
+                    spectraIntensities[index] = retainedIntensities;
+
+                    if (waitingHandler.isRunCanceled()) {
+                        return;
+                    } else {
+                        waitingHandler.increaseSecondaryProgressCounter();
+                    }
+                }
+            } catch (Exception e) {
+                if (!waitingHandler.isRunCanceled()) {
+                    exceptionHandler.catchException(e);
+                    waitingHandler.setRunCanceled();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package no.uib.onyase.applications.engine.parameters;
+
+/**
+ * Enum of the implemented ways to obtain decoy peptides.
+ *
+ * @author Marc Vaudel
+ */
+public enum DecoyMode {
+
+    concatenated(0, "Concatenated", "The decoy sequences are provided in the database."),
+    reversed(1, "Reversed", "Decoy peptides are generated by reversing the target peptides."),
+    pseudoReversed(2, "Pseudo-reversed", "Decoy peptides are generated by reversing the target peptides while preserving their C-terminal residue.");
+
+    /**
+     * The index of the option.
+     */
+    public final int index;
+    /**
+     * The name of the option.
+     */
+    public final String name;
+    /**
+     * The description of the option.
+     */
+    public final String description;
+
+    /**
+     * Constructor.
+     *
+     * @param index the index of the option
+     * @param name the name of the option
+     * @param description the description of the option
+     */
+    private DecoyMode(int index, String name, String description) {
+        this.index = index;
+        this.name = name;
+        this.description = description;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+}
@@ -0,0 +1,439 @@
+package no.uib.onyase.applications.engine.parameters;
+
+import java.io.File;
+import java.util.HashMap;
+import no.uib.onyase.applications.engine.modules.scoring.PsmScore;
+
+/**
+ * The advanced parameters of the engine which are not part of the
+ * identification parameters.
+ *
+ * @author Marc Vaudel
+ */
+public class EngineParameters {
+
+    /**
+     * The score to use.
+     */
+    private PsmScore psmScore = PsmScore.hyperscore;
+    /**
+     * The search mode to use. Searches of several spectrum files or
+     * protocols in one pass only support the protein centric mode.
+     */
+    private SearchMode searchMode = SearchMode.proteinCentric;
+    /**
+     * The maximal number of Xs to allow in a peptide sequence.
+     */
+    private int maxX = 2;
+    /**
+     * The minimal m/z to consider.
+     */
+    private Double minMz = 500.0;
+    /**
+     * The maximal m/z to consider.
+     */
+    private Double maxMz = null;
+    /**
+     * The maximal number of modifications indexed by modification name.
+     */
+    private HashMap<String, Integer> maxModifications = new HashMap<String, Integer>();
+    /**
+     * The preferred number of sites to iterate for every PTM, 0 to iterate
+     * all sites.
+     */
+    private int maxSites = 0;
+    /**
+     * The folder where to store the peptide indexes for reuse across runs,
+     * null if peptide indexes should not be stored.
+     */
+    private File peptideIndexFolder = null;
+    /**
+     * The maximal number of candidates to score per precursor mass window,
+     * ranked by number of peaks shared with the spectrum according to a
+     * fragment index. Null if all candidates should be scored.
+     */
+    private Integer fragmentIndexCandidates = null;
+    /**
+     * The memory in MB to allocate to the filter of the peptides inspected
+     * for every spectrum in the protein-centric search mode. The larger the
+     * filter, the lower the share of peptides wrongly considered as inspected
+     * for a spectrum.
+     */
+    private int inspectedPeptidesMemory = 256;
+    /**
+     * The maximal number of PSMs to retain per spectrum, null if all PSMs
+     * should be retained. When set, the e-values are estimated from a
+     * histogram of the scores of all PSMs.
+     */
+    private Integer maxPsms = null;
+    /**
+     * The way decoy peptides are obtained.
+     */
+    private DecoyMode decoyMode = DecoyMode.concatenated;
+    /**
+     * The maximal number of charge and isotope hypotheses to retain per
+     * spectrum after inference from the fragment spectrum, null if the
+     * charges and isotopes should not be inferred.
+     */
+    private Integer precursorCandidates = null;
+    /**
+     * The number of modified peptides per spectrum whose modifications are
+     * localized exhaustively after screening representative isoforms, null
+     * if the sites should be sampled according to maxSites.
+     */
+    private Integer localizationCandidates = null;
+    /**
+     * The e-value under which spectra identified without variable
+     * modifications are not searched for modified peptides, null if all
+     * spectra should be searched for modified peptides. Searches of several
+     * spectrum files or protocols in one pass do not support the cascade.
+     */
+    private Double cascadeEValue = null;
+
+    /**
+     * Constructor.
+     */
+    public EngineParameters() {
+
+    }
+
+    /**
+     * Constructor copying the given parameters.
+     *
+     * @param engineParameters the parameters to copy
+     */
+    public EngineParameters(EngineParameters engineParameters) {
+        psmScore = engineParameters.getPsmScore();
+        searchMode = engineParameters.getSearchMode();
+        maxX = engineParameters.getMaxX();
+        minMz = engineParameters.getMinMz();
+        maxMz = engineParameters.getMaxMz();
+        if (engineParameters.getMaxModifications() != null) {
+            maxModifications = new HashMap<String, Integer>(engineParameters.getMaxModifications());
+        } else {
+            maxModifications = null;
+        }
+        maxSites = engineParameters.getMaxSites();
+        peptideIndexFolder = engineParameters.getPeptideIndexFolder();
+        fragmentIndexCandidates = engineParameters.getFragmentIndexCandidates();
+        inspectedPeptidesMemory = engineParameters.getInspectedPeptidesMemory();
+        maxPsms = engineParameters.getMaxPsms();
+        decoyMode = engineParameters.getDecoyMode();
+        precursorCandidates = engineParameters.getPrecursorCandidates();
+        localizationCandidates = engineParameters.getLocalizationCandidates();
+        cascadeEValue = engineParameters.getCascadeEValue();
+    }
+
+    /**
+     * Returns the score to use.
+     *
+     * @return the score to use
+     */
+    public PsmScore getPsmScore() {
+        return psmScore;
+    }
+
+    /**
+     * Sets the score to use.
+     *
+     * @param psmScore the score to use
+     */
+    public void setPsmScore(PsmScore psmScore) {
+        this.psmScore = psmScore;
+    }
+
+    /**
+     * Returns the search mode.
+     *
+     * @return the search mode
+     */
+    public SearchMode getSearchMode() {
+        return searchMode;
+    }
+
+    /**
+     * Sets the search mode. Searches of several spectrum files or protocols
+     * in one pass only support the protein centric mode.
+     *
+     * @param searchMode the search mode
+     */
+    public void setSearchMode(SearchMode searchMode) {
+        this.searchMode = searchMode;
+    }
+
+    /**
+     * Returns the maximal number of Xs to allow in a peptide sequence.
+     *
+     * @return the maximal number of Xs to allow in a peptide sequence
+     */
+    public int getMaxX() {
+        return maxX;
+    }
+
+    /**
+     * Sets the maximal number of Xs to allow in a peptide sequence.
+     *
+     * @param maxX the maximal number of Xs to allow in a peptide sequence
+     */
+    public void setMaxX(int maxX) {
+        this.maxX = maxX;
+    }
+
+    /**
+     * Returns the minimal m/z to consider.
+     *
+     * @return the minimal m/z to consider
+     */
+    public Double getMinMz() {
+        return minMz;
+    }
+
+    /**
+     * Sets the minimal m/z to consider.
+     *
+     * @param minMz the minimal m/z to consider
+     */
+    public void setMinMz(Double minMz) {
+        this.minMz = minMz;
+    }
+
+    /**
+     * Returns the maximal m/z to consider.
+     *
+     * @return the maximal m/z to consider
+     */
+    public Double getMaxMz() {
+        return maxMz;
+    }
+
+    /**
+     * Sets the maximal m/z to consider.
+     *
+     * @param maxMz the maximal m/z to consider
+     */
+    public void setMaxMz(Double maxMz) {
+        this.maxMz = maxMz;
+    }
+
+    /**
+     * Returns the maximal number of modifications indexed by modification
+     * name.
+     *
+     * @return the maximal number of modifications indexed by modification
+     * name
+     */
+    public HashMap<String, Integer> getMaxModifications() {
+        return maxModifications;
+    }
+
+    /**
+     * Sets the maximal number of modifications indexed by modification name.
+     *
+     * @param maxModifications the maximal number of modifications indexed by
+     * modification name
+     */
+    public void setMaxModifications(HashMap<String, Integer> maxModifications) {
+        this.maxModifications = maxModifications;
+    }
+
+    /**
+     * Returns the preferred number of sites to iterate for every PTM.
+     *
+     * @return the preferred number of sites to iterate for every PTM
+     */
+    public int getMaxSites() {
+        return maxSites;
+    }
+
+    /**
+     * Sets the preferred number of sites to iterate for every PTM.
+     *
+     * @param maxSites the preferred number of sites to iterate for every PTM,
+     * 0 to iterate all sites
+     */
+    public void setMaxSites(int maxSites) {
+        this.maxSites = maxSites;
+    }
+
+    /**
+     * Returns the folder where to store the peptide indexes for reuse across
+     * runs, null if peptide indexes should not be stored.
+     *
+     * @return the folder where to store the peptide indexes
+     */
+    public File getPeptideIndexFolder() {
+        return peptideIndexFolder;
+    }
+
+    /**
+     * Sets the folder where to store the peptide indexes for reuse across
+     * runs, null if peptide indexes should not be stored.
+     *
+     * @param peptideIndexFolder the folder where to store the peptide indexes
+     */
+    public void setPeptideIndexFolder(File peptideIndexFolder) {
+        this.peptideIndexFolder = peptideIndexFolder;
+    }
+
+    /**
+     * Returns the maximal number of candidates to score per precursor mass
+     * window, ranked by number of peaks shared with the spectrum according to
+     * a fragment index. Null if all candidates should be scored.
+     *
+     * @return the maximal number of candidates to score per precursor mass
+     * window
+     */
+    public Integer getFragmentIndexCandidates() {
+        return fragmentIndexCandidates;
+    }
+
+    /**
+     * Sets the maximal number of candidates to score per precursor mass
+     * window, ranked by number of peaks shared with the spectrum according to
+     * a fragment index. Null if all candidates should be scored.
+     *
+     * @param fragmentIndexCandidates the maximal number of candidates to
+     * score per precursor mass window
+     */
+    public void setFragmentIndexCandidates(Integer fragmentIndexCandidates) {
+        this.fragmentIndexCandidates = fragmentIndexCandidates;
+    }
+
+    /**
+     * Returns the memory in MB to allocate to the filter of the peptides
+     * inspected for every spectrum.
+     *
+     * @return the memory in MB to allocate to the filter of the peptides
+     * inspected for every spectrum
+     */
+    public int getInspectedPeptidesMemory() {
+        return inspectedPeptidesMemory;
+    }
+
+    /**
+     * Sets the memory in MB to allocate to the filter of the peptides
+     * inspected for every spectrum.
+     *
+     * @param inspectedPeptidesMemory the memory in MB to allocate to the
+     * filter of the peptides inspected for every spectrum
+     */
+    public void setInspectedPeptidesMemory(int inspectedPeptidesMemory) {
+        this.inspectedPeptidesMemory = inspectedPeptidesMemory;
+    }
+
+    /**
+     * Returns the maximal number of PSMs to retain per spectrum, null if all
+     * PSMs should be retained.
+     *
+     * @return the maximal number of PSMs to retain per spectrum
+     */
+    public Integer getMaxPsms() {
+        return maxPsms;
+    }
+
+    /**
+     * Sets the maximal number of PSMs to retain per spectrum, null if all
+     * PSMs should be retained.
+     *
+     * @param maxPsms the maximal number of PSMs to retain per spectrum, at
+     * least one
+     *
+     * @throws IllegalArgumentException if maxPsms is lower than one
+     */
+    public void setMaxPsms(Integer maxPsms) {
+        if (maxPsms != null && maxPsms < 1) {
+            throw new IllegalArgumentException("The maximal number of PSMs per spectrum must be at least one.");
+        }
+        this.maxPsms = maxPsms;
+    }
+
+    /**
+     * Returns the way decoy peptides are obtained.
+     *
+     * @return the way decoy peptides are obtained
+     */
+    public DecoyMode getDecoyMode() {
+        return decoyMode;
+    }
+
+    /**
+     * Sets the way decoy peptides are obtained.
+     *
+     * @param decoyMode the way decoy peptides are obtained
+     */
+    public void setDecoyMode(DecoyMode decoyMode) {
+        this.decoyMode = decoyMode;
+    }
+
+    /**
+     * Returns the maximal number of charge and isotope hypotheses to retain
+     * per spectrum after inference from the fragment spectrum, null if the
+     * charges and isotopes should not be inferred.
+     *
+     * @return the maximal number of charge and isotope hypotheses to retain
+     * per spectrum
+     */
+    public Integer getPrecursorCandidates() {
+        return precursorCandidates;
+    }
+
+    /**
+     * Sets the maximal number of charge and isotope hypotheses to retain per
+     * spectrum after inference from the fragment spectrum, null if the
+     * charges and isotopes should not be inferred.
+     *
+     * @param precursorCandidates the maximal number of charge and isotope
+     * hypotheses to retain per spectrum
+     */
+    public void setPrecursorCandidates(Integer precursorCandidates) {
+        this.precursorCandidates = precursorCandidates;
+    }
+
+    /**
+     * Returns the number of modified peptides per spectrum whose
+     * modifications are localized exhaustively after screening
+     * representative isoforms, null if the sites should be sampled according
+     * to maxSites.
+     *
+     * @return the number of modified peptides per spectrum to localize
+     * exhaustively
+     */
+    public Integer getLocalizationCandidates() {
+        return localizationCandidates;
+    }
+
+    /**
+     * Sets the number of modified peptides per spectrum whose modifications
+     * are localized exhaustively after screening representative isoforms,
+     * null if the sites should be sampled according to maxSites.
+     *
+     * @param localizationCandidates the number of modified peptides per
+     * spectrum to localize exhaustively
+     */
+    public void setLocalizationCandidates(Integer localizationCandidates) {
+        this.localizationCandidates = localizationCandidates;
+    }
+
+    /**
+     * Returns the e-value under which spectra identified without variable
+     * modifications are not searched for modified peptides, null if all
+     * spectra are searched for modified peptides.
+     *
+     * @return the e-value threshold of the cascade search
+     */
+    public Double getCascadeEValue() {
+        return cascadeEValue;
+    }
+
+    /**
+     * Sets the e-value under which spectra identified without variable
+     * modifications are not searched for modified peptides, null if all
+     * spectra should be searched for modified peptides. Searches of several
+     * spectrum files or protocols in one pass do not support the cascade.
+     *
+     * @param cascadeEValue the e-value threshold of the cascade search
+     */
+    public void setCascadeEValue(Double cascadeEValue) {
+        this.cascadeEValue = cascadeEValue;
+    }
+}
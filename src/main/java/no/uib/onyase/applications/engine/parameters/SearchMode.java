@@ -0,0 +1,44 @@
+package no.uib.onyase.applications.engine.parameters;
+
+/**
+ * Enum of the implemented search modes.
+ *
+ * @author Marc Vaudel
+ */
+public enum SearchMode {
+
+    proteinCentric(0, "Protein centric", "Iterates the proteins and matches every peptide to the precursors."),
+    spectrumCentric(1, "Spectrum centric", "Indexes the peptides by mass and iterates the spectra.");
+
+    /**
+     * The index of the option.
+     */
+    public final int index;
+    /**
+     * The name of the option.
+     */
+    public final String name;
+    /**
+     * The description of the option.
+     */
+    public final String description;
+
+    /**
+     * Constructor.
+     *
+     * @param index the index of the option
+     * @param name the name of the option
+     * @param description the description of the option
+     */
+    private SearchMode(int index, String name, String description) {
+        this.index = index;
+        this.name = name;
+        this.description = description;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+}
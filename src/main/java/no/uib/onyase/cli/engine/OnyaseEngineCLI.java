@@ -21,6 +21,7 @@ import java.util.HashMap;
 import java.util.concurrent.Callable;
 import no.uib.onyase.applications.engine.OnyaseEngine;
 import no.uib.onyase.applications.engine.modules.scoring.PsmScore;
+import no.uib.onyase.applications.engine.parameters.EngineParameters;
 import no.uib.onyase.cli.paths.PathSettingsCLI;
 import no.uib.onyase.cli.paths.PathSettingsCLIInputBean;
 import no.uib.onyase.settings.OnyasePathPreferences;
@@ -145,18 +146,19 @@ public class OnyaseEngineCLI implements Callable {
             int nThreads = onyaseCLIInputBean.getNThreads();
 
             // Advanced parameters, to be put in the identification parameters at a later stage
-            PsmScore implementedScore = PsmScore.hyperscore;
-            int maxX = 2;
-            Double minMz = 500.0;
-            Double maxMz = null;
-            HashMap<String, Integer> maxModifications = new HashMap<String, Integer>();
-            int maxSites = 5;
+            EngineParameters engineParameters = new EngineParameters();
+            engineParameters.setPsmScore(PsmScore.hyperscore);
+            engineParameters.setMaxX(2);
+            engineParameters.setMinMz(500.0);
+            engineParameters.setMaxMz(null);
+            engineParameters.setMaxModifications(new HashMap<String, Integer>());
+            engineParameters.setMaxSites(0);
 
         try {
             
             // Start the engine
             OnyaseEngine onyaseEngine = new OnyaseEngine();
-            onyaseEngine.launch(spectrumfile, outputFile, identificationParameters, implementedScore, maxX, minMz, maxMz, maxModifications, maxSites, nThreads, waitingHandler, exceptionHandler);
+            onyaseEngine.launch(spectrumfile, outputFile, identificationParameters, engineParameters, nThreads, waitingHandler, exceptionHandler);
 
         } catch (Exception e) {
             e.printStackTrace();
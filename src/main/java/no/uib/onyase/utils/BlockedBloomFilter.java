@@ -0,0 +1,198 @@
+package no.uib.onyase.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A blocked Bloom filter over 64 bit hashes. Every hash sets bits in a single
+ * block of 512 bits, which corresponds to a cache line. The filter is thread
+ * safe without locking: the bits are set using compare-and-set, which is only
+ * attempted for bits not set yet, so that no insertion is lost.
+ *
+ * @author Marc Vaudel
+ */
+public class BlockedBloomFilter {
+
+    /**
+     * The number of words per block as power of two.
+     */
+    private static final int BLOCK_SHIFT = 3;
+    /**
+     * The number of words per block.
+     */
+    private static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+    /**
+     * The number of bits set per hash.
+     */
+    public static final int N_HASHES = 4;
+    /**
+     * The bits of the filter.
+     */
+    private final AtomicLongArray bits;
+    /**
+     * The number of blocks.
+     */
+    private final int nBlocks;
+
+    /**
+     * Constructor.
+     *
+     * @param memory the memory to allocate to the filter in bytes
+     */
+    public BlockedBloomFilter(long memory) {
+        long nWords = Math.max(BLOCK_SIZE, memory / 8);
+        nBlocks = (int) Math.min(nWords >>> BLOCK_SHIFT, Math.min(1 << 28, Integer.MAX_VALUE >>> BLOCK_SHIFT));
+        bits = new AtomicLongArray(nBlocks << BLOCK_SHIFT);
+    }
+
+    /**
+     * Returns a 64 bit hash of the given string.
+     *
+     * @param value the string to hash
+     *
+     * @return a 64 bit hash of the string
+     */
+    public static long getHash(String value) {
+        return getHash(value, 0, value.length());
+    }
+
+    /**
+     * Returns a 64 bit hash of the substring of the given string between the
+     * given indexes, without allocating the substring.
+     *
+     * @param value the string
+     * @param start the index of the first character of the substring
+     * @param end the index after the last character of the substring
+     *
+     * @return a 64 bit hash of the substring
+     */
+    public static long getHash(String value, int start, int end) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = start; i < end; i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    /**
+     * Returns a 64 bit hash combining the given hash and string.
+     *
+     * @param hash a 64 bit hash
+     * @param value a string
+     *
+     * @return a 64 bit hash combining the hash and the string
+     */
+    public static long getHash(long hash, String value) {
+        return mix(hash * 0x9e3779b97f4a7c15L ^ getHash(value));
+    }
+
+    /**
+     * Returns a 64 bit hash combining the given hash and integer.
+     *
+     * @param hash a 64 bit hash
+     * @param value an integer
+     *
+     * @return a 64 bit hash combining the hash and the integer
+     */
+    public static long getHash(long hash, int value) {
+        return mix(hash ^ (value * 0x9e3779b97f4a7c15L));
+    }
+
+    /**
+     * Mixes the bits of the given value.
+     *
+     * @param value the value to mix
+     *
+     * @return the mixed value
+     */
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+
+    /**
+     * Returns the index of the first word of the block of the given hash. The
+     * block is selected using the 28 upper bits of the hash, the 36 lower bits
+     * are used to select the bits in the block.
+     *
+     * @param hash the hash
+     *
+     * @return the index of the first word of the block
+     */
+    private int getBlockStart(long hash) {
+        return (int) (((hash >>> 36) * nBlocks) >>> 28) << BLOCK_SHIFT;
+    }
+
+    /**
+     * Adds the given hash to the filter.
+     *
+     * @param hash the hash to add
+     */
+    public void add(long hash) {
+        int blockStart = getBlockStart(hash);
+        for (int i = 0; i < N_HASHES; i++) {
+            int bit = (int) (hash >>> (9 * i)) & 511;
+            int index = blockStart + (bit >>> 6);
+            long mask = 1L << bit;
+            long word = bits.get(index);
+            while ((word & mask) == 0 && !bits.compareAndSet(index, word, word | mask)) {
+                word = bits.get(index);
+            }
+        }
+    }
+
+    /**
+     * Indicates whether the given hash might have been added to the filter.
+     *
+     * @param hash the hash to look for
+     *
+     * @return false if the hash was not added, true if it might have been
+     * added
+     */
+    public boolean mightContain(long hash) {
+        int blockStart = getBlockStart(hash);
+        for (int i = 0; i < N_HASHES; i++) {
+            int bit = (int) (hash >>> (9 * i)) & 511;
+            if ((bits.get(blockStart + (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the memory used by the filter in bytes.
+     *
+     * @return the memory used by the filter in bytes
+     */
+    public long getMemory() {
+        return 8L * bits.length();
+    }
+
+    /**
+     * Returns the share of bits set in the filter.
+     *
+     * @return the share of bits set in the filter
+     */
+    public double getFillRatio() {
+        long nSet = 0;
+        for (int i = 0; i < bits.length(); i++) {
+            nSet += Long.bitCount(bits.get(i));
+        }
+        return ((double) nSet) / (64.0 * bits.length());
+    }
+
+    /**
+     * Returns an estimate of the false positive rate of the filter in its
+     * current state.
+     *
+     * @return an estimate of the false positive rate of the filter
+     */
+    public double getFalsePositiveRate() {
+        return Math.pow(getFillRatio(), N_HASHES);
+    }
+}
@@ -0,0 +1,182 @@
+package no.uib.onyase.utils;
+
+/**
+ * Set of 64 bit values stored in primitive arrays using open addressing with
+ * linear probing. The values are expected to be well distributed hashes. They
+ * are spread in segments using their upper bits, the segments are locked
+ * independently so that the set can be shared by several threads.
+ *
+ * @author Marc Vaudel
+ */
+public class ConcurrentLongHashSet {
+
+    /**
+     * The number of segments as power of two.
+     */
+    public static final int SEGMENTS_SHIFT = 6;
+    /**
+     * The initial capacity of every segment.
+     */
+    private static final int INITIAL_CAPACITY = 64;
+    /**
+     * The segments of the set.
+     */
+    private final Segment[] segments = new Segment[1 << SEGMENTS_SHIFT];
+
+    /**
+     * Constructor.
+     */
+    public ConcurrentLongHashSet() {
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    /**
+     * Returns the segment of the given value.
+     *
+     * @param value the value
+     *
+     * @return the segment of the value
+     */
+    private Segment getSegment(long value) {
+        return segments[(int) (value >>> (64 - SEGMENTS_SHIFT))];
+    }
+
+    /**
+     * Adds a value to the set.
+     *
+     * @param value the value
+     *
+     * @return a boolean indicating whether the value was not already in the
+     * set
+     */
+    public boolean add(long value) {
+        Segment segment = getSegment(value);
+        synchronized (segment) {
+            return segment.add(value);
+        }
+    }
+
+    /**
+     * Indicates whether the set contains the given value.
+     *
+     * @param value the value
+     *
+     * @return a boolean indicating whether the set contains the value
+     */
+    public boolean contains(long value) {
+        Segment segment = getSegment(value);
+        synchronized (segment) {
+            return segment.contains(value);
+        }
+    }
+
+    /**
+     * Returns the number of values in the set.
+     *
+     * @return the number of values in the set
+     */
+    public long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * A segment of the set. Zero marks empty slots and is stored separately.
+     * Segments are not thread safe.
+     */
+    private static class Segment {
+
+        /**
+         * The slots of the segment.
+         */
+        private long[] slots = new long[INITIAL_CAPACITY];
+        /**
+         * The number of values in the segment.
+         */
+        private int size = 0;
+        /**
+         * Boolean indicating whether zero is in the segment.
+         */
+        private boolean zero = false;
+
+        /**
+         * Adds a value to the segment.
+         *
+         * @param value the value
+         *
+         * @return a boolean indicating whether the value was not already in
+         * the segment
+         */
+        private boolean add(long value) {
+            if (value == 0) {
+                if (zero) {
+                    return false;
+                }
+                zero = true;
+                size++;
+                return true;
+            }
+            int mask = slots.length - 1;
+            int slot = (int) value & mask;
+            while (slots[slot] != 0) {
+                if (slots[slot] == value) {
+                    return false;
+                }
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = value;
+            size++;
+            if (2 * size > slots.length) {
+                grow();
+            }
+            return true;
+        }
+
+        /**
+         * Indicates whether the segment contains the given value.
+         *
+         * @param value the value
+         *
+         * @return a boolean indicating whether the segment contains the value
+         */
+        private boolean contains(long value) {
+            if (value == 0) {
+                return zero;
+            }
+            int mask = slots.length - 1;
+            int slot = (int) value & mask;
+            while (slots[slot] != 0) {
+                if (slots[slot] == value) {
+                    return true;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return false;
+        }
+
+        /**
+         * Doubles the number of slots of the segment.
+         */
+        private void grow() {
+            long[] oldSlots = slots;
+            slots = new long[2 * oldSlots.length];
+            int mask = slots.length - 1;
+            for (long value : oldSlots) {
+                if (value != 0) {
+                    int slot = (int) value & mask;
+                    while (slots[slot] != 0) {
+                        slot = (slot + 1) & mask;
+                    }
+                    slots[slot] = value;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package no.uib.onyase.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Map retaining a bounded number of entries and discarding the least recently
+ * accessed entry when full. This class is not thread safe and is meant to be
+ * used as cache by a single thread.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ *
+ * @author Marc Vaudel
+ */
+public class LruCache<K, V> extends LinkedHashMap<K, V> {
+
+    /**
+     * The maximal number of entries to retain.
+     */
+    private final int capacity;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity the maximal number of entries to retain
+     */
+    public LruCache(int capacity) {
+        super(16, 0.75f, true);
+        this.capacity = capacity;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+        return size() > capacity;
+    }
+}
@@ -0,0 +1,114 @@
+package no.uib.onyase.utils;
+
+/**
+ * Utilities for the sorting of primitive arrays.
+ *
+ * @author Marc Vaudel
+ */
+public class SortingUtils {
+
+    /**
+     * Below this size, ranges are sorted by insertion.
+     */
+    private static final int INSERTION_THRESHOLD = 16;
+
+    /**
+     * Empty constructor.
+     */
+    private SortingUtils() {
+
+    }
+
+    /**
+     * Returns the indexes of the given values in ascending order of value.
+     *
+     * @param values the values to sort
+     * @param length the number of values to consider, starting from the
+     * beginning of the array
+     *
+     * @return the indexes of the values in ascending order
+     */
+    public static int[] getOrder(double[] values, int length) {
+        int[] order = new int[length];
+        for (int i = 0; i < length; i++) {
+            order[i] = i;
+        }
+        sort(values, order, 0, length - 1);
+        return order;
+    }
+
+    /**
+     * Sorts the given range of indexes according to the given values.
+     *
+     * @param values the values
+     * @param order the indexes to sort
+     * @param from the first index of the range, inclusive
+     * @param to the last index of the range, inclusive
+     */
+    private static void sort(double[] values, int[] order, int from, int to) {
+        while (to - from > INSERTION_THRESHOLD) {
+
+            // Median of three pivot
+            int middle = (from + to) >>> 1;
+            if (values[order[middle]] < values[order[from]]) {
+                swap(order, middle, from);
+            }
+            if (values[order[to]] < values[order[from]]) {
+                swap(order, to, from);
+            }
+            if (values[order[to]] < values[order[middle]]) {
+                swap(order, to, middle);
+            }
+            double pivot = values[order[middle]];
+
+            // Partition
+            int i = from;
+            int j = to;
+            while (i <= j) {
+                while (values[order[i]] < pivot) {
+                    i++;
+                }
+                while (values[order[j]] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(order, i, j);
+                    i++;
+                    j--;
+                }
+            }
+
+            // Recurse on the smallest part to bound the stack
+            if (j - from < to - i) {
+                sort(values, order, from, j);
+                from = i;
+            } else {
+                sort(values, order, i, to);
+                to = j;
+            }
+        }
+        for (int i = from + 1; i <= to; i++) {
+            int index = order[i];
+            double value = values[index];
+            int j = i - 1;
+            while (j >= from && values[order[j]] > value) {
+                order[j + 1] = order[j];
+                j--;
+            }
+            order[j + 1] = index;
+        }
+    }
+
+    /**
+     * Swaps two elements of an array.
+     *
+     * @param array the array
+     * @param i the index of the first element
+     * @param j the index of the second element
+     */
+    private static void swap(int[] array, int i, int j) {
+        int temp = array[i];
+        array[i] = array[j];
+        array[j] = temp;
+    }
+}
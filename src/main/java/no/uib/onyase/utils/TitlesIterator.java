@@ -1,6 +1,6 @@
 package no.uib.onyase.utils;
 
-import java.util.Set;
+import java.util.Collection;
 import java.util.concurrent.Semaphore;
 
 /**
@@ -27,9 +27,9 @@ public class TitlesIterator {
     /**
      * Constructor.
      *
-     * @param values a set of values to iterate
+     * @param values the values to iterate
      */
-    public TitlesIterator(Set<String> values) {
+    public TitlesIterator(Collection<String> values) {
         array = values.toArray(new String[values.size()]);
     }
 